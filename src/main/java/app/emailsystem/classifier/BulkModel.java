@@ -0,0 +1,326 @@
+package app.emailsystem.classifier;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * A naive Bayes model telling bulk messages, such as automated notices, from normal
+ * ones, trained one message at a time.
+ *
+ * A message is read as tokens: its sender's address and domain, the words of its
+ * subject, and the words of its body up to {@code maxTokens}, skipping markup. Each token
+ * is hashed as it is read, with a different seed per part so a word in the subject is a
+ * different token than in the body, and nothing is allocated per token. The model keeps
+ * how often each token occurred in either class in a {@link TokenTable}; a message's score
+ * is the probability of bulk given its tokens, with add-one smoothing, ignoring tokens
+ * never seen in training.
+ *
+ * Scoring takes a read lock and training a write lock, so any number of threads score
+ * while one trains.
+ */
+public final class BulkModel {
+
+    private static final int MAGIC = 0x42554C4B;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long FROM_SEED = 0xcbf29ce484222325L;
+    private static final long SUBJECT_SEED = 0x84222325cbf29ce4L;
+    private static final long BODY_SEED = 0x9e3779b97f4a7c15L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_TOKEN_LENGTH = 40;
+    /** Past this the running product of likelihood ratios is folded into the log odds */
+    private static final double RESCALE = 1e100;
+
+    /** Each ASCII letter or digit in lower case, 0 for other characters */
+    private static final char[] ASCII_WORD = new char[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            ASCII_WORD[c] = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+        }
+    }
+
+    private final int maxTokens;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private TokenTable tokens;
+    private long bulkMessages;
+    private long normalMessages;
+    private long bulkTokens;
+    private long normalTokens;
+
+    /**
+     * @param maxTokens the most body tokens read from a message
+     */
+    public BulkModel(int maxTokens) {
+        this.maxTokens = maxTokens;
+        this.tokens = new TokenTable();
+    }
+
+    public long getBulkMessages() {
+        lock.readLock().lock();
+        try {
+            return bulkMessages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getNormalMessages() {
+        lock.readLock().lock();
+        try {
+            return normalMessages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getVocabularySize() {
+        lock.readLock().lock();
+        try {
+            return tokens.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the probability that the message is bulk, 0.5 if the model knows none of its tokens
+     */
+    public double score(String from, String subject, String html) {
+        lock.readLock().lock();
+        try {
+            Scorer scorer = new Scorer(tokens,
+                    bulkTokens + tokens.size() + 1, normalTokens + tokens.size() + 1);
+            tokenize(from, subject, html, scorer);
+            if (scorer.known == 0) {
+                return 0.5;
+            }
+            double logOdds = scorer.logOdds + Math.log(scorer.ratio)
+                    + Math.log((bulkMessages + 1.0) / (normalMessages + 1.0));
+            return 1.0 / (1.0 + Math.exp(-logOdds));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Learn from a message the user marked as bulk or as normal. A correction of an
+     * earlier example is trained with {@code weight} -1 on the wrong class, then +1 on
+     * the right one.
+     *
+     * @param weight +1 to add the example, -1 to take it back
+     */
+    public void train(String from, String subject, String html, boolean bulk, int weight) {
+        lock.writeLock().lock();
+        try {
+            long[] count = new long[1];
+            tokenize(from, subject, html, key -> {
+                tokens.add(key, bulk ? weight : 0, bulk ? 0 : weight);
+                count[0]++;
+            });
+            if (bulk) {
+                bulkMessages = Math.max(0, bulkMessages + weight);
+                bulkTokens = Math.max(0, bulkTokens + weight * count[0]);
+            } else {
+                normalMessages = Math.max(0, normalMessages + weight);
+                normalTokens = Math.max(0, normalTokens + weight * count[0]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop rare tokens once the vocabulary outgrows the given size
+     *
+     * @return the number of tokens dropped
+     */
+    public int limitVocabulary(int maxSize) {
+        lock.writeLock().lock();
+        try {
+            int dropped = 0;
+            for (int minTotal = 2; tokens.size() > maxSize; minTotal *= 2) {
+                dropped += tokens.prune(minTotal);
+            }
+            return dropped;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(bulkMessages);
+            out.writeLong(normalMessages);
+            out.writeLong(bulkTokens);
+            out.writeLong(normalTokens);
+            out.writeInt(tokens.size());
+            IOException[] failure = new IOException[1];
+            tokens.forEach((key, counts) -> {
+                if (failure[0] == null) {
+                    try {
+                        out.writeLong(key);
+                        out.writeLong(counts);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the model's state with one written by {@link #writeTo}
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a bulk model snapshot");
+        }
+        long bulk = in.readLong();
+        long normal = in.readLong();
+        long bulkCount = in.readLong();
+        long normalCount = in.readLong();
+        int size = in.readInt();
+        TokenTable table = new TokenTable(size);
+        for (int i = 0; i < size; i++) {
+            long key = in.readLong();
+            long counts = in.readLong();
+            table.add(key, TokenTable.bulk(counts), TokenTable.normal(counts));
+        }
+        lock.writeLock().lock();
+        try {
+            tokens = table;
+            bulkMessages = bulk;
+            normalMessages = normal;
+            bulkTokens = bulkCount;
+            normalTokens = normalCount;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hash the message's tokens into the sink
+     */
+    void tokenize(String from, String subject, String html, LongConsumer sink) {
+        if (from != null && !from.isEmpty()) {
+            sink.accept(hash(FROM_SEED, from, 0, from.length()));
+            int at = from.lastIndexOf('@');
+            if (at >= 0) {
+                sink.accept(hash(FROM_SEED, from, at, from.length()));
+            }
+        }
+        if (subject != null) {
+            words(SUBJECT_SEED, subject, false, Integer.MAX_VALUE, sink);
+        }
+        if (html != null) {
+            words(BODY_SEED, html, true, maxTokens, sink);
+        }
+    }
+
+    /**
+     * Hash the words of the text, runs of letters and digits, in lower case
+     *
+     * @param markup whether to skip tags and character references
+     */
+    private static void words(long seed, String text, boolean markup, int limit, LongConsumer sink) {
+        int emitted = 0;
+        long hash = seed;
+        int length = 0;
+        int i = 0;
+        int end = text.length();
+        while (i < end && emitted < limit) {
+            char c = text.charAt(i);
+            char lower = c < 128 ? ASCII_WORD[c] : Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+            if (lower != 0) {
+                hash = (hash ^ lower) * FNV_PRIME;
+                length++;
+                i++;
+                continue;
+            }
+            if (length >= 2 && length <= MAX_TOKEN_LENGTH) {
+                sink.accept(key(hash));
+                emitted++;
+            }
+            hash = seed;
+            length = 0;
+            i++;
+            if (markup && c == '<') {
+                while (i < end && text.charAt(i) != '>') {
+                    i++;
+                }
+                i++;
+            } else if (markup && c == '&') {
+                int reference = i;
+                while (reference < end && reference - i < 10
+                        && (Character.isLetterOrDigit(text.charAt(reference)) || text.charAt(reference) == '#')) {
+                    reference++;
+                }
+                if (reference < end && text.charAt(reference) == ';') {
+                    i = reference + 1;
+                }
+            }
+        }
+        if (emitted < limit && length >= 2 && length <= MAX_TOKEN_LENGTH) {
+            sink.accept(key(hash));
+        }
+    }
+
+    private static long hash(long seed, String text, int from, int to) {
+        long hash = seed;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ Character.toLowerCase(text.charAt(i))) * FNV_PRIME;
+        }
+        return key(hash);
+    }
+
+    private static long key(long hash) {
+        // 0 marks an empty slot of the table
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Accumulates the likelihood ratios of a message's tokens as a product, folding it
+     * into a logarithm only when it grows large, rather than a logarithm per token
+     */
+    private static final class Scorer implements LongConsumer {
+        private final TokenTable tokens;
+        private final double bulkTotal;
+        private final double normalTotal;
+        private double ratio = 1.0;
+        private double logOdds;
+        private int known;
+
+        private Scorer(TokenTable tokens, double bulkTotal, double normalTotal) {
+            this.tokens = tokens;
+            this.bulkTotal = bulkTotal;
+            this.normalTotal = normalTotal;
+        }
+
+        @Override
+        public void accept(long key) {
+            long counts = tokens.get(key);
+            if (counts == 0) {
+                return;
+            }
+            known++;
+            ratio *= (TokenTable.bulk(counts) + 1.0) * normalTotal / ((TokenTable.normal(counts) + 1.0) * bulkTotal);
+            if (ratio > RESCALE || ratio < 1 / RESCALE) {
+                logOdds += Math.log(ratio);
+                ratio = 1.0;
+            }
+        }
+    }
+}
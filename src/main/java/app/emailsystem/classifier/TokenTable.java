@@ -0,0 +1,161 @@
+package app.emailsystem.classifier;
+
+/**
+ * Per-token counts of a {@link BulkModel}: a hash table from a token's 64-bit hash to
+ * the number of times it was seen in bulk and in normal messages.
+ *
+ * Keys and counts live in one {@code long[]}, a key followed by its two counts packed
+ * into one long, with open addressing and linear probing. A lookup touches one or two
+ * adjacent slots of one array, and nothing is boxed or allocated per token. Key 0 marks
+ * an empty slot, so callers never pass it. Not thread-safe; {@link BulkModel} guards it.
+ */
+public final class TokenTable {
+
+    private static final int MIN_CAPACITY = 1024;
+
+    /** key, counts, key, counts, ... */
+    private long[] slots;
+    private int mask;
+    private int size;
+
+    public TokenTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of tokens to make room for
+     */
+    public TokenTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2L) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the token's counts packed as by {@link #pack}, 0 if it was never seen
+     */
+    public long get(long key) {
+        int index = index(key);
+        while (true) {
+            long slot = slots[index << 1];
+            if (slot == key) {
+                return slots[(index << 1) + 1];
+            }
+            if (slot == 0) {
+                return 0;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Add to a token's counts, adding the token if it is new
+     */
+    public void add(long key, int bulk, int normal) {
+        int index = index(key);
+        while (true) {
+            long slot = slots[index << 1];
+            if (slot == key) {
+                long counts = slots[(index << 1) + 1];
+                slots[(index << 1) + 1] = pack(saturate(bulk(counts) + (long) bulk), saturate(normal(counts) + (long) normal));
+                return;
+            }
+            if (slot == 0) {
+                slots[index << 1] = key;
+                slots[(index << 1) + 1] = pack(saturate(bulk), saturate(normal));
+                if (++size * 2 > slots.length / 2) {
+                    resize(slots.length);
+                }
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove the tokens seen fewer than {@code minTotal} times in all, which are most of
+     * a large vocabulary and say little
+     *
+     * @return the number of tokens removed
+     */
+    public int prune(int minTotal) {
+        long[] old = slots;
+        int before = size;
+        allocate(Math.max(MIN_CAPACITY, old.length / 2));
+        for (int i = 0; i < old.length; i += 2) {
+            long counts = old[i + 1];
+            if (old[i] != 0 && (long) bulk(counts) + normal(counts) >= minTotal) {
+                add(old[i], bulk(counts), normal(counts));
+            }
+        }
+        return before - size;
+    }
+
+    /**
+     * Visit every token, in no particular order
+     */
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < slots.length; i += 2) {
+            if (slots[i] != 0) {
+                visitor.visit(slots[i], slots[i + 1]);
+            }
+        }
+    }
+
+    public static long pack(int bulk, int normal) {
+        return ((long) bulk << 32) | (normal & 0xFFFFFFFFL);
+    }
+
+    public static int bulk(long counts) {
+        return (int) (counts >>> 32);
+    }
+
+    public static int normal(long counts) {
+        return (int) counts;
+    }
+
+    private void resize(int capacity) {
+        long[] old = slots;
+        allocate(capacity);
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0) {
+                int index = index(old[i]);
+                while (slots[index << 1] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index << 1] = old[i];
+                slots[(index << 1) + 1] = old[i + 1];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new long[capacity * 2];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int index(long key) {
+        // The keys are hashes already; fold the high bits in for tables smaller than 2^32
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private static int saturate(long count) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, count));
+    }
+
+    /**
+     * Receives each token of {@link #forEach}
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long key, long counts);
+    }
+}
@@ -1,14 +1,54 @@
 package app.emailsystem.config;
 
+import app.emailsystem.smtp.SmtpServer;
+import app.emailsystem.smtp.SmtpSettings;
+import app.emailsystem.smtp.SmtpSubmissionHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+
 /**
  * Mail configuration class.
- * 
+ *
  * Note: This system no longer uses external mail sending functionality.
  * Email messages are sent and received internally within the application.
+ * Programs may submit messages over SMTP, see {@link SmtpServer}; they are sent like
+ * those from the compose form and never leave the system either.
  */
 @Configuration
 public class MailConfig {
-    // No mail configuration needed for internal email system
-} 
\ No newline at end of file
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(name = "smtp.enabled", havingValue = "true")
+    public SmtpServer smtpServer(SmtpSubmissionHandler handler,
+                                 @Value("${smtp.hostname:localhost}") String hostname,
+                                 @Value("${smtp.bind-address:127.0.0.1}") String bindAddress,
+                                 @Value("${smtp.port:2525}") int port,
+                                 @Value("${smtp.allowed-networks:127.0.0.0/8,::1/128}") List<String> allowedNetworks,
+                                 @Value("${smtp.max-message-size:52428800}") long maxMessageSize,
+                                 @Value("${smtp.max-recipients:500}") int maxRecipients,
+                                 @Value("${smtp.max-connections:256}") int maxConnections,
+                                 @Value("${smtp.workers:8}") int workers,
+                                 @Value("${smtp.queue-size:256}") int queueSize,
+                                 @Value("${smtp.idle-timeout-ms:300000}") long idleTimeoutMs,
+                                 @Value("${smtp.spool-directory:data/smtp-spool}") String spoolDirectory) {
+        return new SmtpServer(handler, SmtpSettings.builder()
+            .hostname(hostname)
+            .bindAddress(bindAddress)
+            .port(port)
+            .allowedNetworks(allowedNetworks)
+            .maxMessageSize(maxMessageSize)
+            .maxRecipients(maxRecipients)
+            .maxConnections(maxConnections)
+            .workers(workers)
+            .queueSize(queueSize)
+            .idleTimeout(Duration.ofMillis(idleTimeoutMs))
+            .spoolDirectory(Paths.get(spoolDirectory))
+            .build());
+    }
+}
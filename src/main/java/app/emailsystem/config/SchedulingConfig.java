@@ -0,0 +1,12 @@
+package app.emailsystem.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables the background jobs of the application, such as the attachment storage migration.
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
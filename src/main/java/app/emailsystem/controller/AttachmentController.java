@@ -1,14 +1,18 @@
 package app.emailsystem.controller;
 
 import app.emailsystem.entity.Attachment;
-import app.emailsystem.entity.Email;
-import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.exception.EmailSystemException;
 import app.emailsystem.security.CustomUserDetails;
 import app.emailsystem.service.AttachmentService;
 import app.emailsystem.service.EmailService;
+import app.emailsystem.storage.AttachmentArchive;
+import app.emailsystem.storage.DerivedArtifact;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -16,16 +20,30 @@ import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Controller
 @RequestMapping("/attachment")
 public class AttachmentController {
 
+    private static final String GZIP = "gzip";
+
     private final AttachmentService attachmentService;
     private final EmailService emailService;
 
@@ -36,48 +54,224 @@ public class AttachmentController {
     }
 
     /**
-     * Download an attachment with security verification
+     * Download an attachment with security verification.
+     * 
+     * Attachments never change once sent, so responses carry a strong ETag derived from
+     * the content hash and may be cached forever by the browser. Conditional requests
+     * ({@code If-None-Match}, {@code If-Modified-Since}) are answered with 304 and
+     * {@code Range} requests, including multiple ranges, with 206 Partial Content.
+     * 
+     * Content stored gzip-compressed is sent as is to clients that accept gzip, with its
+     * own entity tag. Range requests always address the original bytes, so they are
+     * served from the decoded content.
      * 
      * @param id the attachment ID
+     * @param ifRange the If-Range header of a resumed download, if any
+     * @param range the Range header, if any
+     * @param acceptEncoding the Accept-Encoding header, if any
      * @param userDetails the authenticated user
      * @return the attachment file as a downloadable resource
      */
     @GetMapping("/{id}")
     public ResponseEntity<Resource> downloadAttachment(@PathVariable UUID id,
+                                                     @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                                     @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                                     @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
                                                      @AuthenticationPrincipal CustomUserDetails userDetails) {
         log.debug("Download request for attachment ID: {}", id);
         
-        Attachment attachment = attachmentService.getAttachment(id);
-        if (attachment == null) {
-            log.warn("Attachment not found with ID: {}", id);
-            throw new ResourceNotFoundException("Attachment not found");
-        }
+        UUID userId = userDetails.getUser().getId();
         
         // Security check: ensure user has access to the email containing this attachment
-        Email email = attachment.getEmail();
-        if (email == null) {
-            log.warn("Attachment has no associated email: {}", id);
-            throw new ResourceNotFoundException("Invalid attachment");
-        }
+        Attachment attachment = attachmentService.getAccessibleAttachment(id, userId);
         
-        UUID userId = userDetails.getUser().getId();
+        log.debug("Serving attachment: {}, size: {}, type: {}", 
+                attachment.getFilename(), attachment.getSize(), attachment.getContentType());
         
-        // Verify the user is either the sender or recipient of the email
-        if (!email.getSender().getId().equals(userId) && !email.getRecipient().getId().equals(userId)) {
-            log.warn("User {} attempted to access attachment {} without permission", userId, id);
-            throw new ResourceNotFoundException("Attachment not found");
+        String etag = "\"" + (attachment.getContentHash() != null ? attachment.getContentHash() : attachment.getId()) + "\"";
+        Instant lastModified = attachment.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant();
+        
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + attachment.getFilename() + "\"")
+                .contentType(MediaType.parseMediaType(attachment.getContentType()))
+                .lastModified(lastModified)
+                .cacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable());
+        
+        Optional<Resource> gzipped = attachmentService.getEncodedAttachmentResource(attachment, GZIP);
+        if (gzipped.isPresent()) {
+            response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+            if (range == null && acceptsGzip(acceptEncoding)) {
+                // The compressed bytes are a different representation and need their own tag
+                return response
+                        .eTag("\"" + attachment.getContentHash() + "-" + GZIP + "\"")
+                        .header(HttpHeaders.CONTENT_ENCODING, GZIP)
+                        .body(gzipped.get());
+            }
         }
         
-        // Get the attachment as a resource
-        Resource resource = attachmentService.getAttachmentAsResource(id);
+        // Stream the original content from the attachment storage
+        Resource resource = attachmentService.getAttachmentAsResource(attachment);
+        response.eTag(etag);
         
-        log.debug("Serving attachment: {}, size: {}, type: {}", 
-                attachment.getFilename(), attachment.getSize(), attachment.getContentType());
+        // A resumed download whose validator no longer matches must get the whole file.
+        // Spring applies Range headers to every Resource body except InputStreamResource.
+        if (ifRange != null && !isRangeValidatorCurrent(ifRange, etag, lastModified)) {
+            return response
+                    .contentLength(attachment.getSize())
+                    .body(openFullBody(resource));
+        }
         
+        // Content-Length is left to the converter, it differs for partial responses
+        return response.body(resource);
+    }
+
+    /**
+     * Download all attachments of an email as one ZIP file
+     *
+     * @param emailId the email ID
+     * @param userDetails the authenticated user
+     * @return the archive, streamed while it is built
+     */
+    @GetMapping("/email/{emailId}/zip")
+    public ResponseEntity<StreamingResponseBody> downloadEmailAttachments(@PathVariable UUID emailId,
+                                                                          @AuthenticationPrincipal CustomUserDetails userDetails) {
+        return archive(List.of(emailId), userDetails);
+    }
+
+    /**
+     * Download the attachments of several emails as one ZIP file, one folder per email
+     *
+     * @param emailIds the email IDs
+     * @param userDetails the authenticated user
+     * @return the archive, streamed while it is built
+     */
+    @GetMapping("/zip")
+    public ResponseEntity<StreamingResponseBody> downloadAttachmentsOfEmails(@RequestParam("emailIds") List<UUID> emailIds,
+                                                                             @AuthenticationPrincipal CustomUserDetails userDetails) {
+        return archive(emailIds, userDetails);
+    }
+
+    /**
+     * Access checks and database reads happen here, on the request thread; the body
+     * only streams content from the attachment storage
+     */
+    private ResponseEntity<StreamingResponseBody> archive(List<UUID> emailIds, CustomUserDetails userDetails) {
+        AttachmentArchive archive = attachmentService.buildArchive(emailIds, userDetails.getUser().getId());
+
+        StreamingResponseBody body = out -> {
+            try {
+                archive.writeTo(out);
+            } catch (IOException e) {
+                // Usually the client went away; the partial archive cannot be repaired either way
+                log.warn("Failed to stream attachment archive: {}", e.getMessage());
+                throw e;
+            }
+        };
+
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + attachment.getFilename() + "\"")
-                .contentType(MediaType.parseMediaType(attachment.getContentType()))
-                .contentLength(attachment.getSize())
-                .body(resource);
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(archive.getFilename(), StandardCharsets.UTF_8)
+                        .build()
+                        .toString())
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .cacheControl(CacheControl.noStore())
+                .body(body);
+    }
+
+    /**
+     * Serve the thumbnail rendered for an image attachment
+     *
+     * @param id the attachment ID
+     * @param userDetails the authenticated user
+     * @return the JPEG thumbnail, or 404 if there is none (yet)
+     */
+    @GetMapping("/{id}/thumbnail")
+    public ResponseEntity<Resource> thumbnail(@PathVariable UUID id,
+                                              @AuthenticationPrincipal CustomUserDetails userDetails) {
+        return derivedArtifact(id, DerivedArtifact.THUMBNAIL, userDetails);
+    }
+
+    /**
+     * Serve the plain text extracted from a document attachment
+     *
+     * @param id the attachment ID
+     * @param userDetails the authenticated user
+     * @return the text, or 404 if there is none (yet)
+     */
+    @GetMapping("/{id}/text")
+    public ResponseEntity<Resource> text(@PathVariable UUID id,
+                                         @AuthenticationPrincipal CustomUserDetails userDetails) {
+        return derivedArtifact(id, DerivedArtifact.TEXT, userDetails);
+    }
+
+    /**
+     * Derived artifacts depend only on the content hash, so like the content itself
+     * they can be cached for as long as the browser likes
+     */
+    private ResponseEntity<Resource> derivedArtifact(UUID id, DerivedArtifact artifact, CustomUserDetails userDetails) {
+        Attachment attachment = attachmentService.getAccessibleAttachment(id, userDetails.getUser().getId());
+        Optional<Resource> resource = attachmentService.getDerivedArtifact(attachment, artifact);
+        if (resource.isEmpty()) {
+            // Not processed yet; must not be cached, the artifact may appear shortly
+            return ResponseEntity.notFound().cacheControl(CacheControl.noStore()).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(artifact.getContentType()))
+                .header("X-Content-Type-Options", "nosniff")
+                .eTag("\"" + artifact.storageKey(attachment.getContentHash()) + "\"")
+                .cacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable())
+                .body(resource.get());
+    }
+
+    /**
+     * Check whether an Accept-Encoding header allows gzip, honouring {@code q=0}
+     */
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(GZIP)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check an If-Range validator, which is either an entity tag or an HTTP date
+     */
+    private boolean isRangeValidatorCurrent(String ifRange, String etag, Instant lastModified) {
+        String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            // If-Range requires a strong comparison
+            return validator.equals(etag);
+        }
+        try {
+            Instant date = ZonedDateTime.parse(validator, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return date.getEpochSecond() == lastModified.getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private Resource openFullBody(Resource resource) {
+        try {
+            return new InputStreamResource(resource.getInputStream());
+        } catch (IOException e) {
+            throw new EmailSystemException("Failed to read attachment", e);
+        }
     }
-} 
\ No newline at end of file
+}
@@ -5,21 +5,29 @@ import app.emailsystem.dto.EmailDTO;
 import app.emailsystem.entity.Email;
 import app.emailsystem.entity.User;
 import app.emailsystem.mapper.EmailMapper;
+import app.emailsystem.ratelimit.SendRateLimiter;
 import app.emailsystem.service.AttachmentService;
+import app.emailsystem.service.DraftAutosaveService;
 import app.emailsystem.service.EmailService;
+import app.emailsystem.service.SendResult;
 import app.emailsystem.service.UserService;
 import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.storage.StagedAttachment;
 import app.emailsystem.exception.ResourceNotFoundException;
 import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.RateLimitExceededException;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,8 +36,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.stream.Collectors;
 
 /**
  * Controller responsible for email composition, sending, and draft management
@@ -41,23 +50,32 @@ public class ComposeController {
     private final UserService userService;
     private final AttachmentService attachmentService;
     private final EmailMapper emailMapper;
+    private final SendRateLimiter sendRateLimiter;
+    private final DraftAutosaveService draftAutosaveService;
     private static final Logger log = LoggerFactory.getLogger(ComposeController.class);
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("MMM d, yyyy HH:mm:ss");
 
     @Autowired
-    public ComposeController(UserService userService, EmailService emailService, AttachmentService attachmentService, EmailMapper emailMapper) {
+    public ComposeController(UserService userService, EmailService emailService, AttachmentService attachmentService,
+                             EmailMapper emailMapper, SendRateLimiter sendRateLimiter,
+                             DraftAutosaveService draftAutosaveService) {
         this.userService = userService;
         this.emailService = emailService;
         this.attachmentService = attachmentService;
         this.emailMapper = emailMapper;
+        this.sendRateLimiter = sendRateLimiter;
+        this.draftAutosaveService = draftAutosaveService;
     }
 
     @GetMapping("/compose")
     public String showComposeForm(@RequestParam(required = false) String to,
                                  @RequestParam(required = false) UUID replyTo,
                                  @RequestParam(required = false) UUID forwardFrom,
+                                 @AuthenticationPrincipal CustomUserDetails userDetails,
                                  Model model) {
+        UUID userId = userDetails.getUser().getId();
         EmailDTO emailDTO = new EmailDTO();
+        emailDTO.setIdempotencyKey(UUID.randomUUID().toString());
         
         // Pre-populate to field if specified
         if (to != null && !to.isEmpty()) {
@@ -66,7 +84,7 @@ public class ComposeController {
         
         // If this is a reply, fetch the original email
         if (replyTo != null) {
-            Optional<Email> originalEmailOpt = emailService.getEmail(replyTo);
+            Optional<Email> originalEmailOpt = findReadableEmail(replyTo, userId);
             if (originalEmailOpt.isPresent()) {
                 Email original = originalEmailOpt.get();
                 emailDTO.setRecipients(original.getSender().getEmail());
@@ -81,38 +99,54 @@ public class ComposeController {
         
         // If this is a forward, fetch the original email
         if (forwardFrom != null) {
-            Optional<Email> originalEmailOpt = emailService.getEmailWithAttachments(forwardFrom);
+            Optional<Email> originalEmailOpt = findReadableEmail(forwardFrom, userId);
             if (originalEmailOpt.isPresent()) {
                 Email original = originalEmailOpt.get();
                 emailDTO.setSubject("Fwd: " + original.getSubject());
+                EmailDTO originalDTO = emailMapper.toDto(original);
                 emailDTO.setContent("\n\n----- Forwarded Message -----\n" +
                               "From: " + original.getSender().getEmail() + "\n" +
-                              "To: " + original.getRecipient().getEmail() + "\n" +
+                              "To: " + (originalDTO.getRecipients() != null ? originalDTO.getRecipients() : "") + "\n" +
+                              (originalDTO.getCc() != null ? "Cc: " + originalDTO.getCc() + "\n" : "") +
                               "Date: " + original.getCreatedAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + "\n" +
                               "Subject: " + original.getSubject() + "\n\n" +
                               original.getContent());
                 
-                // If the original email has attachments, convert them to DTOs
-                if (!original.getAttachments().isEmpty()) {
-                    List<AttachmentDTO> attachmentDTOs = attachmentService.convertToDto(original.getAttachments());
+                // Forwarded attachments are sent by reference to the original content, see
+                // AttachmentService#saveAttachments, so only their metadata is loaded here
+                List<AttachmentDTO> attachmentDTOs = attachmentService.getAttachmentMetadata(original.getId());
+                if (!attachmentDTOs.isEmpty()) {
                     emailDTO.setSavedAttachments(attachmentDTOs);
                 }
             }
         }
         
         model.addAttribute("emailDTO", emailDTO);
+        model.addAttribute("canBroadcast", emailService.canBroadcast(userId));
         model.addAttribute("isReply", replyTo != null);
         model.addAttribute("isForward", forwardFrom != null);
         
         return "compose";
     }
+
+    /**
+     * The email with its participants if it is in one of the user's mailboxes
+     */
+    private Optional<Email> findReadableEmail(UUID emailId, UUID userId) {
+        if (!emailService.canRead(emailId, userId)) {
+            return Optional.empty();
+        }
+        return emailService.getEmailWithParticipants(emailId);
+    }
     
     @GetMapping("/draft/{id}/edit")
     public String editDraft(@PathVariable UUID id,
                           @AuthenticationPrincipal CustomUserDetails userDetails,
                           Model model) {
         UUID userId = userDetails.getUser().getId();
-        Optional<Email> draftOpt = emailService.getEmailWithAttachments(id);
+        // Autosaved changes not written yet
+        draftAutosaveService.flush(id);
+        Optional<Email> draftOpt = emailService.getEmailWithParticipants(id);
         
         if (draftOpt.isEmpty() || !draftOpt.get().isDraft()) {
             throw new ResourceNotFoundException("Draft", "id", id);
@@ -127,12 +161,15 @@ public class ComposeController {
         
         // Convert to DTO
         EmailDTO emailDTO = emailMapper.toDto(draft);
+        emailDTO.setBcc(draft.getBccAddresses());
         emailDTO.setId(draft.getId().toString());
         emailDTO.setDraft(true);
+        emailDTO.setDraftVersion(draft.getDraftVersion());
+        emailDTO.setIdempotencyKey(UUID.randomUUID().toString());
         
         // Add attachments if any
-        if (!draft.getAttachments().isEmpty()) {
-            List<AttachmentDTO> attachmentDTOs = attachmentService.convertToDto(draft.getAttachments());
+        List<AttachmentDTO> attachmentDTOs = attachmentService.getAttachmentMetadata(draft.getId());
+        if (!attachmentDTOs.isEmpty()) {
             emailDTO.setSavedAttachments(attachmentDTOs);
         }
         
@@ -147,40 +184,82 @@ public class ComposeController {
                           @Valid @ModelAttribute EmailDTO emailDTO, 
                           BindingResult bindingResult,
                           RedirectAttributes redirectAttributes,
-                          Model model) {
+                          Model model,
+                          HttpServletResponse response) {
         
         if (bindingResult.hasErrors()) {
             return "compose";
         }
         
+        // Checked before anything is staged or written, so a throttled request costs nothing
+        try {
+            sendRateLimiter.checkSend(userDetails, emailDTO);
+        } catch (EmailSystemException e) {
+            return rejected(e, response, model, emailDTO, "compose");
+        }
+        
         UUID userId = userDetails.getUser().getId();
         
+        List<StagedAttachment> stagedAttachments = new ArrayList<>();
         try {
-            // Process attachments - they are already bound to emailDTO.attachments from the form
-            if (emailDTO.getAttachments() != null && !emailDTO.getAttachments().isEmpty()) {
-                // Filter out empty attachments
-                List<MultipartFile> validAttachments = emailDTO.getAttachments().stream()
-                    .filter(file -> file != null && !file.isEmpty())
-                    .collect(Collectors.toList());
-                
-                if (!validAttachments.isEmpty()) {
-                    emailDTO.setAttachments(validAttachments);
-                }
-            }
+            // Stream uploaded files to the attachment storage before the send transaction starts
+            stagedAttachments = attachmentService.stageAttachments(emailDTO.getAttachments());
             
-            // Send the email
-            List<Email> sentEmails = emailService.sendEmail(userId, emailDTO);
+            // Queue the email; recipients get it from the delivery workers
+            SendResult result = emailService.sendEmail(userId, emailDTO, stagedAttachments);
             
             // Provide feedback
-            redirectAttributes.addFlashAttribute("successMessage", 
-                "Email sent successfully to " + emailDTO.getRecipients());
+            if (result.isDuplicate()) {
+                redirectAttributes.addFlashAttribute("message", "This email was already sent");
+            } else if (result.getSendAt() != null && result.getSendAt().equals(emailDTO.getSendAt())) {
+                redirectAttributes.addFlashAttribute("message", "Email scheduled for " + result.getSendAt().format(DATE_FORMATTER));
+            } else {
+                redirectAttributes.addFlashAttribute("message", "Email queued for delivery");
+                if (result.getSendAt() != null) {
+                    // Held for the undo window
+                    redirectAttributes.addFlashAttribute("undoEmailId", result.getEmail().getId());
+                    redirectAttributes.addFlashAttribute("undoMillis",
+                        Math.max(0, Duration.between(LocalDateTime.now(), result.getSendAt()).toMillis()));
+                }
+            }
             
             return "redirect:/sent";
+        } catch (DataIntegrityViolationException e) {
+            // The same form was submitted twice at once and the other request sent it
+            if (emailService.isAlreadySent(userId, emailDTO.getIdempotencyKey())) {
+                redirectAttributes.addFlashAttribute("message", "This email was already sent");
+                return "redirect:/sent";
+            }
+            log.error("Error sending email", e);
+            model.addAttribute("errorMessage", "Failed to send email: " + e.getMessage());
+            model.addAttribute("emailDTO", emailDTO);
+            return "compose";
         } catch (Exception e) {
             log.error("Error sending email", e);
             model.addAttribute("errorMessage", "Failed to send email: " + e.getMessage());
             model.addAttribute("emailDTO", emailDTO); // Add emailDTO back to model on error
             return "compose";
+        } finally {
+            // Anything still staged was not attached to a saved email
+            attachmentService.discardStaged(stagedAttachments);
+        }
+    }
+    
+    /**
+     * Undo a send, or cancel a scheduled one, before its delivery starts. The email goes
+     * back to the drafts.
+     */
+    @PostMapping("/email/{id}/cancel-send")
+    public String cancelSend(@PathVariable UUID id,
+                           @AuthenticationPrincipal CustomUserDetails userDetails,
+                           RedirectAttributes redirectAttributes) {
+        try {
+            emailService.cancelSend(id, userDetails.getUser().getId());
+            redirectAttributes.addFlashAttribute("message", "Sending cancelled, the email is back in your drafts");
+            return "redirect:/drafts";
+        } catch (EmailSystemException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
+            return "redirect:/sent";
         }
     }
     
@@ -188,25 +267,26 @@ public class ComposeController {
     public String saveDraft(@AuthenticationPrincipal CustomUserDetails userDetails,
                           @ModelAttribute EmailDTO emailDTO,
                           RedirectAttributes redirectAttributes,
-                          Model model) {
+                          Model model,
+                          HttpServletResponse response) {
+        
+        try {
+            sendRateLimiter.checkDraft(userDetails, emailDTO);
+        } catch (EmailSystemException e) {
+            return rejected(e, response, model, emailDTO, "compose");
+        }
         
         UUID userId = userDetails.getUser().getId();
         
+        List<StagedAttachment> stagedAttachments = new ArrayList<>();
         try {
-            // Process attachments - they are already bound to emailDTO.attachments from the form
-            if (emailDTO.getAttachments() != null && !emailDTO.getAttachments().isEmpty()) {
-                // Filter out empty attachments
-                List<MultipartFile> validAttachments = emailDTO.getAttachments().stream()
-                    .filter(file -> file != null && !file.isEmpty())
-                    .collect(Collectors.toList());
-                
-                if (!validAttachments.isEmpty()) {
-                    emailDTO.setAttachments(validAttachments);
-                }
-            }
+            // Stream uploaded files to the attachment storage before the draft transaction starts
+            stagedAttachments = attachmentService.stageAttachments(emailDTO.getAttachments());
+            
+            flushAutosaved(emailDTO.getId());
             
             // Save as draft
-            Email savedDraft = emailService.saveDraft(emailDTO, userId);
+            Email savedDraft = emailService.saveDraft(emailDTO, userId, stagedAttachments);
             
             // Provide feedback
             redirectAttributes.addFlashAttribute("successMessage", "Draft saved successfully");
@@ -217,7 +297,90 @@ public class ComposeController {
             model.addAttribute("errorMessage", "Failed to save draft: " + e.getMessage());
             model.addAttribute("emailDTO", emailDTO); // Add emailDTO back to model on error
             return "compose";
+        } finally {
+            // Anything still staged was not attached to a saved email
+            attachmentService.discardStaged(stagedAttachments);
+        }
+    }
+    
+    @GetMapping("/broadcast")
+    public String showBroadcastForm(@AuthenticationPrincipal CustomUserDetails userDetails, Model model) {
+        if (!emailService.canBroadcast(userDetails.getUser().getId())) {
+            throw new ResourceNotFoundException("Page not found");
+        }
+        model.addAttribute("emailDTO", new EmailDTO());
+        return "broadcast";
+    }
+    
+    /**
+     * Send a message to every user, stored once however many users there are
+     */
+    @PostMapping(value = "/broadcast", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public String sendBroadcast(@AuthenticationPrincipal CustomUserDetails userDetails,
+                              @ModelAttribute EmailDTO emailDTO,
+                              RedirectAttributes redirectAttributes,
+                              Model model,
+                              HttpServletResponse response) {
+        try {
+            sendRateLimiter.checkDraft(userDetails, emailDTO);
+        } catch (EmailSystemException e) {
+            return rejected(e, response, model, emailDTO, "broadcast");
+        }
+        
+        UUID userId = userDetails.getUser().getId();
+        
+        List<StagedAttachment> stagedAttachments = new ArrayList<>();
+        try {
+            if (emailDTO.getSubject() == null || emailDTO.getSubject().isBlank()
+                    || emailDTO.getContent() == null || emailDTO.getContent().isBlank()) {
+                throw new EmailSystemException("Subject and content are required");
+            }
+            stagedAttachments = attachmentService.stageAttachments(emailDTO.getAttachments());
+            emailService.sendBroadcast(userId, emailDTO, stagedAttachments);
+            
+            redirectAttributes.addFlashAttribute("message", "Broadcast sent to all users");
+            return "redirect:/sent";
+        } catch (Exception e) {
+            log.error("Error sending broadcast", e);
+            model.addAttribute("errorMessage", "Failed to send broadcast: " + e.getMessage());
+            model.addAttribute("emailDTO", emailDTO);
+            return "broadcast";
+        } finally {
+            // Anything still staged was not attached to a saved email
+            attachmentService.discardStaged(stagedAttachments);
+        }
+    }
+    
+    /**
+     * Write the draft's autosaved changes not written yet, so the form's version matches
+     * the row. A malformed ID is only logged, and the form saved as a new draft.
+     */
+    private void flushAutosaved(String draftId) {
+        if (draftId == null || draftId.isBlank()) {
+            return;
+        }
+        UUID id;
+        try {
+            id = UUID.fromString(draftId);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid draft ID format: {}", draftId);
+            return;
         }
+        draftAutosaveService.flush(id);
+    }
+    
+    /**
+     * Show the form again with the rate limit error, keeping what the user wrote
+     */
+    private String rejected(EmailSystemException e, HttpServletResponse response, Model model,
+                            EmailDTO emailDTO, String view) {
+        if (e instanceof RateLimitExceededException throttled) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(throttled.getRetryAfterSeconds()));
+        }
+        model.addAttribute("errorMessage", e.getMessage());
+        model.addAttribute("emailDTO", emailDTO);
+        return view;
     }
     
     // Additional methods as needed
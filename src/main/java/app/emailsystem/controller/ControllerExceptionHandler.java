@@ -1,9 +1,12 @@
 package app.emailsystem.controller;
 
 import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.RateLimitExceededException;
+import jakarta.servlet.http.HttpServletResponse;
 import app.emailsystem.exception.ResourceNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.ui.Model;
@@ -30,6 +33,16 @@ public class ControllerExceptionHandler {
         return "error/custom-error";
     }
     
+    @ExceptionHandler(RateLimitExceededException.class)
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    public String handleRateLimitExceeded(RateLimitExceededException ex, Model model, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+        model.addAttribute("errorMessage", ex.getMessage());
+        model.addAttribute("errorCode", 429);
+        model.addAttribute("errorTitle", "Too Many Requests");
+        return "error/custom-error";
+    }
+    
     @ExceptionHandler(EmailSystemException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
     public String handleEmailSystemException(EmailSystemException ex, Model model) {
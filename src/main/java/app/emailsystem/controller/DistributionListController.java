@@ -0,0 +1,128 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.entity.DistributionList;
+import app.emailsystem.entity.DistributionListMember;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.DistributionListService;
+import app.emailsystem.service.EmailService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Controller for managing the distribution lists a user owns
+ */
+@Controller
+@RequestMapping("/lists")
+public class DistributionListController {
+
+    private static final int MEMBER_PAGE_SIZE = 50;
+
+    private final DistributionListService distributionListService;
+    private final EmailService emailService;
+    private static final Logger log = LoggerFactory.getLogger(DistributionListController.class);
+
+    @Autowired
+    public DistributionListController(DistributionListService distributionListService, EmailService emailService) {
+        this.distributionListService = distributionListService;
+        this.emailService = emailService;
+    }
+
+    @GetMapping
+    public String lists(@AuthenticationPrincipal CustomUserDetails userDetails, Model model) {
+        UUID userId = userDetails.getUser().getId();
+        addCommonModelAttributes(model, userId);
+        return "lists";
+    }
+
+    @GetMapping("/{id}")
+    public String list(@PathVariable UUID id,
+                       @RequestParam(defaultValue = "0") int page,
+                       @AuthenticationPrincipal CustomUserDetails userDetails,
+                       Model model) {
+        UUID userId = userDetails.getUser().getId();
+        DistributionList list = distributionListService.getList(id, userId);
+        Page<DistributionListMember> members = distributionListService.getMembers(id, userId, page, MEMBER_PAGE_SIZE);
+
+        addCommonModelAttributes(model, userId);
+        model.addAttribute("selectedList", list);
+        model.addAttribute("members", members);
+        model.addAttribute("currentPage", page);
+        return "lists";
+    }
+
+    @PostMapping
+    public String createList(@RequestParam String name,
+                             @RequestParam String address,
+                             @AuthenticationPrincipal CustomUserDetails userDetails,
+                             RedirectAttributes redirectAttributes) {
+        try {
+            DistributionList list = distributionListService.createList(userDetails.getUser().getId(), name, address);
+            redirectAttributes.addFlashAttribute("message", "Distribution list " + list.getAddress() + " created");
+            return "redirect:/lists/" + list.getId();
+        } catch (Exception e) {
+            log.error("Error creating distribution list", e);
+            redirectAttributes.addFlashAttribute("error", "Could not create distribution list: " + e.getMessage());
+            return "redirect:/lists";
+        }
+    }
+
+    @PostMapping("/{id}/members")
+    public String addMembers(@PathVariable UUID id,
+                             @RequestParam String addresses,
+                             @AuthenticationPrincipal CustomUserDetails userDetails,
+                             RedirectAttributes redirectAttributes) {
+        try {
+            List<String> unknown = distributionListService.addMembers(id, userDetails.getUser().getId(), addresses);
+            redirectAttributes.addFlashAttribute("message", "Members updated");
+            if (!unknown.isEmpty()) {
+                redirectAttributes.addFlashAttribute("error", "No user found for: " + String.join(", ", unknown));
+            }
+        } catch (Exception e) {
+            log.error("Error adding members to distribution list {}", id, e);
+            redirectAttributes.addFlashAttribute("error", "Could not add members: " + e.getMessage());
+        }
+        return "redirect:/lists/" + id;
+    }
+
+    @PostMapping("/{id}/members/{userId}/remove")
+    public String removeMember(@PathVariable UUID id,
+                               @PathVariable UUID userId,
+                               @AuthenticationPrincipal CustomUserDetails userDetails,
+                               RedirectAttributes redirectAttributes) {
+        try {
+            distributionListService.removeMember(id, userDetails.getUser().getId(), userId);
+            redirectAttributes.addFlashAttribute("message", "Member removed");
+        } catch (Exception e) {
+            redirectAttributes.addFlashAttribute("error", "Could not remove member: " + e.getMessage());
+        }
+        return "redirect:/lists/" + id;
+    }
+
+    @PostMapping("/{id}/delete")
+    public String deleteList(@PathVariable UUID id,
+                             @AuthenticationPrincipal CustomUserDetails userDetails,
+                             RedirectAttributes redirectAttributes) {
+        try {
+            distributionListService.deleteList(id, userDetails.getUser().getId());
+            redirectAttributes.addFlashAttribute("message", "Distribution list deleted");
+        } catch (Exception e) {
+            redirectAttributes.addFlashAttribute("error", "Could not delete distribution list: " + e.getMessage());
+        }
+        return "redirect:/lists";
+    }
+
+    private void addCommonModelAttributes(Model model, UUID userId) {
+        model.addAttribute("lists", distributionListService.getLists(userId));
+        model.addAttribute("unreadCount", emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId));
+    }
+}
@@ -0,0 +1,61 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.dto.DraftPatchDTO;
+import app.emailsystem.dto.DraftStateDTO;
+import app.emailsystem.dto.EmailDTO;
+import app.emailsystem.dto.response.ApiResponse;
+import app.emailsystem.ratelimit.SendRateLimiter;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.DraftAutosaveService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.UUID;
+
+/**
+ * JSON API used by the compose page to autosave drafts, see {@link DraftAutosaveService}.
+ *
+ * <ol>
+ *   <li>{@code POST /api/drafts} creates the draft on the first autosave and returns its ID and version</li>
+ *   <li>{@code PATCH /api/drafts/{id}} sends the fields changed since the last save, and the body as a
+ *       delta, along with the version they were made to; it answers the new version, or 409 with the
+ *       current draft if that version is outdated</li>
+ * </ol>
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/drafts")
+public class DraftController {
+
+    private final DraftAutosaveService draftAutosaveService;
+    private final SendRateLimiter sendRateLimiter;
+
+    @Autowired
+    public DraftController(DraftAutosaveService draftAutosaveService, SendRateLimiter sendRateLimiter) {
+        this.draftAutosaveService = draftAutosaveService;
+        this.sendRateLimiter = sendRateLimiter;
+    }
+
+    @PostMapping
+    public ResponseEntity<ApiResponse<DraftStateDTO>> createDraft(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                                  @RequestBody DraftPatchDTO draft) {
+        sendRateLimiter.checkDraft(userDetails, new EmailDTO());
+        DraftStateDTO state = draftAutosaveService.create(userDetails.getUser().getId(), draft);
+        return ResponseEntity.created(ServletUriComponentsBuilder.fromCurrentRequest()
+                        .path("/{id}").buildAndExpand(state.getId()).toUri())
+                .body(ApiResponse.success("Draft saved", state));
+    }
+
+    @PatchMapping("/{id}")
+    public ApiResponse<DraftStateDTO> patchDraft(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                 @PathVariable UUID id,
+                                                 @RequestBody DraftPatchDTO patch) {
+        sendRateLimiter.checkDraft(userDetails, new EmailDTO());
+        return ApiResponse.success("Draft saved",
+                draftAutosaveService.patch(userDetails.getUser().getId(), id, patch));
+    }
+}
@@ -29,10 +29,11 @@ public class EmailActionController {
 
     @PostMapping("/email/{id}/trash")
     public String moveToTrash(@PathVariable UUID id,
+                           @AuthenticationPrincipal CustomUserDetails userDetails,
                            @RequestHeader(value = "Referer", required = false) String referer,
                            RedirectAttributes redirectAttributes) {
         try {
-            emailService.moveToTrash(id);
+            emailService.moveToTrash(id, userDetails.getUser().getId());
             redirectAttributes.addFlashAttribute("message", "Email moved to trash");
         } catch (Exception e) {
             redirectAttributes.addFlashAttribute("error", "Could not move email to trash: " + e.getMessage());
@@ -55,9 +56,10 @@ public class EmailActionController {
 
     @PostMapping("/email/{id}/restore")
     public String restoreFromTrash(@PathVariable UUID id,
+                                 @AuthenticationPrincipal CustomUserDetails userDetails,
                                  RedirectAttributes redirectAttributes) {
         try {
-            emailService.restoreFromTrash(id);
+            emailService.restoreFromTrash(id, userDetails.getUser().getId());
             redirectAttributes.addFlashAttribute("message", "Email restored from trash");
         } catch (Exception e) {
             redirectAttributes.addFlashAttribute("error", "Could not restore email: " + e.getMessage());
@@ -65,11 +67,28 @@ public class EmailActionController {
         return "redirect:/trash";
     }
 
+    /**
+     * Move a message the bulk classifier misjudged back to the inbox
+     */
+    @PostMapping("/email/{id}/not-bulk")
+    public String markNotBulk(@PathVariable UUID id,
+                              @AuthenticationPrincipal CustomUserDetails userDetails,
+                              RedirectAttributes redirectAttributes) {
+        try {
+            emailService.markNotBulk(id, userDetails.getUser().getId());
+            redirectAttributes.addFlashAttribute("message", "Email moved to inbox");
+        } catch (Exception e) {
+            redirectAttributes.addFlashAttribute("error", "Could not move email to inbox: " + e.getMessage());
+        }
+        return "redirect:/bulk";
+    }
+
     /**
      * Handle bulk operations like moving multiple emails to trash
      */
     @PostMapping("/emails/trash")
     public String moveEmailsToTrash(@RequestParam("emailIds") String emailIds,
+                                 @AuthenticationPrincipal CustomUserDetails userDetails,
                                  @RequestHeader(value = "Referer", required = false) String referer,
                                  RedirectAttributes redirectAttributes) {
         try {
@@ -78,7 +97,7 @@ public class EmailActionController {
             
             for (String id : ids) {
                 try {
-                    emailService.moveToTrash(UUID.fromString(id.trim()));
+                    emailService.moveToTrash(UUID.fromString(id.trim()), userDetails.getUser().getId());
                     count++;
                 } catch (Exception e) {
                     log.error("Error moving email to trash: {}", e.getMessage());
@@ -114,6 +133,7 @@ public class EmailActionController {
 
     @PostMapping("/emails/restore")
     public String restoreEmails(@RequestParam("emailIds") String emailIds,
+                              @AuthenticationPrincipal CustomUserDetails userDetails,
                               @RequestHeader(value = "Referer", required = false) String referer,
                               RedirectAttributes redirectAttributes) {
         try {
@@ -122,7 +142,7 @@ public class EmailActionController {
             
             for (String id : ids) {
                 try {
-                    emailService.restoreFromTrash(UUID.fromString(id.trim()));
+                    emailService.restoreFromTrash(UUID.fromString(id.trim()), userDetails.getUser().getId());
                     count++;
                 } catch (Exception e) {
                     log.error("Error restoring email with ID {}: {}", id, e.getMessage());
@@ -0,0 +1,74 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.entity.FilterRule;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.EmailService;
+import app.emailsystem.service.FilterRuleService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+
+/**
+ * Controller for managing a user's filter rules
+ */
+@Controller
+@RequestMapping("/filters")
+public class FilterRuleController {
+
+    private final FilterRuleService filterRuleService;
+    private final EmailService emailService;
+    private static final Logger log = LoggerFactory.getLogger(FilterRuleController.class);
+
+    @Autowired
+    public FilterRuleController(FilterRuleService filterRuleService, EmailService emailService) {
+        this.filterRuleService = filterRuleService;
+        this.emailService = emailService;
+    }
+
+    @GetMapping
+    public String filters(@AuthenticationPrincipal CustomUserDetails userDetails, Model model) {
+        UUID userId = userDetails.getUser().getId();
+        model.addAttribute("rules", filterRuleService.getRules(userId));
+        model.addAttribute("fields", FilterRule.Field.values());
+        model.addAttribute("actions", FilterRule.Action.values());
+        model.addAttribute("unreadCount", emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId));
+        return "filters";
+    }
+
+    @PostMapping
+    public String createRule(@RequestParam FilterRule.Field field,
+                             @RequestParam String value,
+                             @RequestParam FilterRule.Action action,
+                             @RequestParam(required = false) String label,
+                             @AuthenticationPrincipal CustomUserDetails userDetails,
+                             RedirectAttributes redirectAttributes) {
+        try {
+            filterRuleService.createRule(userDetails.getUser().getId(), field, value, action, label);
+            redirectAttributes.addFlashAttribute("message", "Filter rule added");
+        } catch (Exception e) {
+            log.error("Error creating filter rule", e);
+            redirectAttributes.addFlashAttribute("error", "Could not add filter rule: " + e.getMessage());
+        }
+        return "redirect:/filters";
+    }
+
+    @PostMapping("/{id}/delete")
+    public String deleteRule(@PathVariable UUID id,
+                             @AuthenticationPrincipal CustomUserDetails userDetails,
+                             RedirectAttributes redirectAttributes) {
+        try {
+            filterRuleService.deleteRule(userDetails.getUser().getId(), id);
+            redirectAttributes.addFlashAttribute("message", "Filter rule deleted");
+        } catch (Exception e) {
+            redirectAttributes.addFlashAttribute("error", "Could not delete filter rule: " + e.getMessage());
+        }
+        return "redirect:/filters";
+    }
+}
@@ -1,6 +1,7 @@
 package app.emailsystem.controller;
 
 import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
 import app.emailsystem.security.CustomUserDetails;
 import app.emailsystem.service.EmailService;
 import app.emailsystem.service.UserService;
@@ -41,8 +42,8 @@ public class MainController {
             
             // Get dashboard statistics
             long unreadCount = emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId);
-            Page<Email> sentEmails = emailService.getSentEmails(userId, 0, 10);
-            Page<Email> draftEmails = emailService.getDraftEmails(userId, 0, 10);
+            Page<MailboxEntry> sentEmails = emailService.getSentEmails(userId, 0, 10);
+            Page<MailboxEntry> draftEmails = emailService.getDraftEmails(userId, 0, 10);
             
             // Get recent emails with eager-loaded senders
             List<Email> recentEmails = emailService.getInboxEmailsWithSender(userId, 5);
@@ -0,0 +1,164 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.dto.ContentDigestDTO;
+import app.emailsystem.dto.UploadSessionDTO;
+import app.emailsystem.dto.response.ApiResponse;
+import app.emailsystem.ratelimit.SendRateLimiter;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.UploadSessionService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JSON API for resumable attachment uploads, see {@link UploadSessionService}.
+ *
+ * <ol>
+ *   <li>{@code POST /api/uploads/negotiate} with the SHA-256 and size of each file answers which
+ *       ones the server already holds; those are attached by reference and skip the remaining steps</li>
+ *   <li>{@code POST /api/uploads?filename=&size=} creates a session and returns its chunk size</li>
+ *   <li>{@code PUT /api/uploads/{id}/chunks/{index}} sends one chunk as the raw request body</li>
+ *   <li>{@code GET /api/uploads/{id}} lists the received ranges and missing chunks</li>
+ *   <li>{@code POST /api/uploads/{id}/commit} returns the ID of the pending attachment, which is
+ *       posted as {@code attachmentIds} when sending an email or saving a draft</li>
+ * </ol>
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/uploads")
+public class UploadController {
+
+    private final UploadSessionService uploadSessionService;
+    private final SendRateLimiter sendRateLimiter;
+
+    @Autowired
+    public UploadController(UploadSessionService uploadSessionService, SendRateLimiter sendRateLimiter) {
+        this.uploadSessionService = uploadSessionService;
+        this.sendRateLimiter = sendRateLimiter;
+    }
+
+    @PostMapping
+    public ResponseEntity<ApiResponse<UploadSessionDTO>> createUpload(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                                     @RequestParam String filename,
+                                                                     @RequestParam long size,
+                                                                     @RequestParam(required = false) String contentType,
+                                                                     @RequestParam(required = false) Integer chunkSize) {
+        UploadSessionDTO session = uploadSessionService.create(userDetails.getUser().getId(),
+                filename, contentType, size, chunkSize);
+        return ResponseEntity.created(ServletUriComponentsBuilder.fromCurrentRequest()
+                        .replaceQuery(null).path("/{id}").buildAndExpand(session.getId()).toUri())
+                .body(ApiResponse.success("Upload created", session));
+    }
+
+    @PostMapping("/negotiate")
+    public ApiResponse<List<ContentDigestDTO>> negotiate(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                         @RequestBody List<ContentDigestDTO> files) {
+        return ApiResponse.success("Checked stored content",
+                uploadSessionService.negotiate(userDetails.getUser().getId(), files));
+    }
+
+    /**
+     * Remove a pending attachment that was uploaded or negotiated but is no longer wanted
+     */
+    @DeleteMapping("/attachments/{attachmentId}")
+    public ApiResponse<Void> discardAttachment(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                               @PathVariable UUID attachmentId) {
+        uploadSessionService.discardPendingAttachment(userDetails.getUser().getId(), attachmentId);
+        return ApiResponse.success("Attachment removed");
+    }
+
+    @GetMapping("/{id}")
+    public ApiResponse<UploadSessionDTO> getUpload(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                   @PathVariable UUID id) {
+        return ApiResponse.success("Upload status", uploadSessionService.getStatus(userDetails.getUser().getId(), id));
+    }
+
+    /**
+     * Receive one chunk. The body is streamed to disk as it arrives; sending a chunk
+     * again overwrites it, so a client can retry any chunk whose response it did not get.
+     *
+     * A chunk counts against the user's upload limit before it is read when it declares its
+     * length, and once it has been read otherwise.
+     */
+    @PutMapping("/{id}/chunks/{index}")
+    public ApiResponse<UploadSessionDTO> uploadChunk(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                     @PathVariable UUID id,
+                                                     @PathVariable int index,
+                                                     @RequestHeader(value = "X-Content-SHA256", required = false) String sha256,
+                                                     HttpServletRequest request) throws IOException {
+        long length = request.getContentLengthLong();
+        if (length >= 0) {
+            sendRateLimiter.checkUpload(userDetails, length);
+        }
+        CountingInputStream body = new CountingInputStream(request.getInputStream());
+        try (body) {
+            return ApiResponse.success("Chunk received",
+                    uploadSessionService.receiveChunk(userDetails.getUser().getId(), id, index, body, sha256));
+        } finally {
+            if (length < 0) {
+                sendRateLimiter.recordUpload(userDetails, body.count);
+            }
+        }
+    }
+
+    @PostMapping("/{id}/commit")
+    public ApiResponse<UploadSessionDTO> commitUpload(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                                      @PathVariable UUID id,
+                                                      @RequestParam(required = false) String sha256) {
+        return ApiResponse.success("Upload completed",
+                uploadSessionService.commit(userDetails.getUser().getId(), id, sha256));
+    }
+
+    @DeleteMapping("/{id}")
+    public ApiResponse<Void> abortUpload(@AuthenticationPrincipal CustomUserDetails userDetails,
+                                         @PathVariable UUID id) {
+        uploadSessionService.abort(userDetails.getUser().getId(), id);
+        return ApiResponse.success("Upload cancelled");
+    }
+
+    /**
+     * Counts the bytes read from a chunk sent without a Content-Length
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.EmailService;
+import app.emailsystem.service.VacationResponderService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Controller for a user's vacation responder
+ */
+@Controller
+@RequestMapping("/vacation")
+public class VacationController {
+
+    private final VacationResponderService vacationResponderService;
+    private final EmailService emailService;
+    private static final Logger log = LoggerFactory.getLogger(VacationController.class);
+
+    @Autowired
+    public VacationController(VacationResponderService vacationResponderService, EmailService emailService) {
+        this.vacationResponderService = vacationResponderService;
+        this.emailService = emailService;
+    }
+
+    @GetMapping
+    public String vacation(@AuthenticationPrincipal CustomUserDetails userDetails, Model model) {
+        UUID userId = userDetails.getUser().getId();
+        model.addAttribute("responder", vacationResponderService.getResponder(userId).orElse(null));
+        model.addAttribute("unreadCount", emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId));
+        return "vacation";
+    }
+
+    @PostMapping
+    public String saveResponder(@RequestParam(defaultValue = "false") boolean enabled,
+                                @RequestParam(required = false) String subject,
+                                @RequestParam(required = false) String message,
+                                @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd'T'HH:mm") LocalDateTime startsAt,
+                                @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd'T'HH:mm") LocalDateTime endsAt,
+                                @AuthenticationPrincipal CustomUserDetails userDetails,
+                                RedirectAttributes redirectAttributes) {
+        try {
+            vacationResponderService.saveResponder(userDetails.getUser().getId(), enabled, subject, message, startsAt, endsAt);
+            redirectAttributes.addFlashAttribute("message", enabled ? "Vacation responder on" : "Vacation responder off");
+        } catch (Exception e) {
+            log.error("Error saving vacation responder", e);
+            redirectAttributes.addFlashAttribute("error", "Could not save vacation responder: " + e.getMessage());
+        }
+        return "redirect:/vacation";
+    }
+}
@@ -1,7 +1,9 @@
 package app.emailsystem.controller;
 
+import app.emailsystem.dto.AttachmentDTO;
 import app.emailsystem.dto.EmailDTO;
 import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
 import app.emailsystem.entity.User;
 import app.emailsystem.mapper.EmailMapper;
 import app.emailsystem.service.AttachmentService;
@@ -53,7 +55,7 @@ public class WebController {
                       @RequestParam(defaultValue = "10") int size,
                       Model model) {
         UUID userId = userDetails.getUser().getId();
-        Page<Email> emails = emailService.getInboxEmails(userId, page, size);
+        Page<MailboxEntry> emails = emailService.getInboxEmails(userId, page, size);
         
         // Create a map of email IDs to a boolean indicating whether they have attachments
         Map<UUID, Boolean> hasAttachments = createHasAttachmentsMap(emails);
@@ -71,11 +73,14 @@ public class WebController {
                       @RequestParam(defaultValue = "10") int size,
                       Model model) {
         UUID userId = userDetails.getUser().getId();
-        Page<Email> emails = emailService.getSentEmails(userId, page, size);
+        Page<MailboxEntry> emails = emailService.getSentEmails(userId, page, size);
         
         // Create a map of email IDs to a boolean indicating whether they have attachments
         Map<UUID, Boolean> hasAttachments = createHasAttachmentsMap(emails);
         model.addAttribute("hasAttachments", hasAttachments);
+        model.addAttribute("deliveries", emailService.getDeliveries(emails.getContent().stream()
+                .map(entry -> entry.getEmail().getId())
+                .collect(Collectors.toList())));
         
         // Add common data to model
         addCommonModelAttributes(model, emails, page, userId, "sent");
@@ -89,7 +94,7 @@ public class WebController {
                         @RequestParam(defaultValue = "10") int size,
                         Model model) {
         UUID userId = userDetails.getUser().getId();
-        Page<Email> emails = emailService.getDraftEmails(userId, page, size);
+        Page<MailboxEntry> emails = emailService.getDraftEmails(userId, page, size);
         
         // Create a map of email IDs to a boolean indicating whether they have attachments
         Map<UUID, Boolean> hasAttachments = createHasAttachmentsMap(emails);
@@ -101,13 +106,31 @@ public class WebController {
         return "drafts";
     }
 
+    @GetMapping("/bulk")
+    public String bulk(@AuthenticationPrincipal CustomUserDetails userDetails,
+                       @RequestParam(defaultValue = "0") int page,
+                       @RequestParam(defaultValue = "10") int size,
+                       Model model) {
+        UUID userId = userDetails.getUser().getId();
+        Page<MailboxEntry> emails = emailService.getBulkEmails(userId, page, size);
+        
+        // Create a map of email IDs to a boolean indicating whether they have attachments
+        Map<UUID, Boolean> hasAttachments = createHasAttachmentsMap(emails);
+        model.addAttribute("hasAttachments", hasAttachments);
+        
+        // Add common data to model
+        addCommonModelAttributes(model, emails, page, userId, "bulk");
+        
+        return "bulk";
+    }
+
     @GetMapping("/trash")
     public String trash(@AuthenticationPrincipal CustomUserDetails userDetails,
                        @RequestParam(defaultValue = "0") int page,
                        @RequestParam(defaultValue = "10") int size,
                        Model model) {
         UUID userId = userDetails.getUser().getId();
-        Page<Email> emails = emailService.getTrashEmails(userId, page, size);
+        Page<MailboxEntry> emails = emailService.getTrashEmails(userId, page, size);
         
         // Create a map of email IDs to a boolean indicating whether they have attachments
         Map<UUID, Boolean> hasAttachments = createHasAttachmentsMap(emails);
@@ -122,12 +145,12 @@ public class WebController {
     /**
      * Helper method to create a map of email IDs to a boolean indicating whether they have attachments
      */
-    private Map<UUID, Boolean> createHasAttachmentsMap(Page<Email> emails) {
+    private Map<UUID, Boolean> createHasAttachmentsMap(Page<MailboxEntry> emails) {
         Map<UUID, Boolean> hasAttachments = new HashMap<>();
         
         // Get a list of all email IDs
         List<UUID> emailIds = emails.getContent().stream()
-                .map(Email::getId)
+                .map(entry -> entry.getEmail().getId())
                 .collect(Collectors.toList());
         
         // Use the attachment service to check which emails have attachments
@@ -143,7 +166,7 @@ public class WebController {
                           @AuthenticationPrincipal CustomUserDetails userDetails,
                           Model model) {
         UUID userId = userDetails.getUser().getId();
-        Optional<Email> optionalEmail = emailService.getEmailWithAttachments(id);
+        Optional<Email> optionalEmail = emailService.getEmailWithParticipants(id);
         
         if (optionalEmail.isEmpty()) {
             throw new ResourceNotFoundException("Email not found with id: " + id);
@@ -151,31 +174,39 @@ public class WebController {
         
         Email email = optionalEmail.get();
         
-        // Security check: only sender or recipient can view the email
-        if (!email.getSender().getId().equals(userId) && 
-            !email.getRecipient().getId().equals(userId)) {
-            throw new ResourceNotFoundException("Email not found with id: " + id);
-        }
+        // Security check: only users with the email in one of their mailboxes can view it
+        List<MailboxEntry> entries = emailService.getMailboxEntries(id, userId);
         
-        // If this is the recipient viewing the email, mark as read
-        if (email.getRecipient().getId().equals(userId) && !email.isRead()) {
+        // Mark as read when opened for the first time
+        if (entries.stream().anyMatch(entry -> !entry.isRead())) {
             emailService.markAsRead(id, userId);
         }
         
         // Get sender and recipient details
         User sender = email.getSender();
-        User recipient = email.getRecipient();
+        // Sent messages list their recipients in the DTO; the single recipient is only
+        // shown for rows written before that
+        User recipient = email.getRecipientCount() == null ? email.getRecipient() : null;
+        boolean isOwner = sender.getId().equals(userId);
         
         // Convert to DTO for display
         EmailDTO emailDTO = emailMapper.toDto(email);
+        if (isOwner) {
+            emailDTO.setBcc(email.getBccAddresses());
+            model.addAttribute("delivery", emailService.getDeliveries(List.of(id)).get(id));
+        }
+        
+        // Only attachment metadata is needed to render the list
+        List<AttachmentDTO> attachments = attachmentService.getAttachmentMetadata(id);
         
         model.addAttribute("email", email);
         model.addAttribute("emailDTO", emailDTO);
         model.addAttribute("sender", sender);
         model.addAttribute("recipient", recipient);
-        model.addAttribute("isOwner", email.getSender().getId().equals(userId));
-        model.addAttribute("hasAttachments", !email.getAttachments().isEmpty());
-        model.addAttribute("attachments", email.getAttachments());
+        model.addAttribute("isOwner", isOwner);
+        model.addAttribute("starred", entries.stream().anyMatch(MailboxEntry::isStarred));
+        model.addAttribute("hasAttachments", !attachments.isEmpty());
+        model.addAttribute("attachments", attachments);
         model.addAttribute("unreadCount", emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId));
         
         return "view-email";
@@ -196,7 +227,7 @@ public class WebController {
                              @AuthenticationPrincipal CustomUserDetails userDetails,
                              @RequestHeader(value = "Referer", required = false) String referer,
                              RedirectAttributes redirectAttributes) {
-        emailService.markAsUnread(id);
+        emailService.markAsUnread(id, userDetails.getUser().getId());
         redirectAttributes.addFlashAttribute("message", "Email marked as unread");
         return referer != null ? "redirect:" + referer : "redirect:/inbox";
     }
@@ -206,7 +237,7 @@ public class WebController {
                            @AuthenticationPrincipal CustomUserDetails userDetails,
                            @RequestHeader(value = "Referer", required = false) String referer,
                            RedirectAttributes redirectAttributes) {
-        emailService.toggleStar(id);
+        emailService.toggleStar(id, userDetails.getUser().getId());
         redirectAttributes.addFlashAttribute("message", "Email status updated");
         return referer != null ? "redirect:" + referer : "redirect:/inbox";
     }
@@ -236,7 +267,7 @@ public class WebController {
     /**
      * Add common model attributes for all email list views
      */
-    private void addCommonModelAttributes(Model model, Page<Email> emails, int page, UUID userId, String folderType) {
+    private void addCommonModelAttributes(Model model, Page<MailboxEntry> emails, int page, UUID userId, String folderType) {
         model.addAttribute("emails", emails);
         model.addAttribute("currentPage", page);
         model.addAttribute("totalPages", emails.getTotalPages());
@@ -0,0 +1,76 @@
+package app.emailsystem.controller;
+
+import app.emailsystem.entity.WebhookSubscription;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.EmailService;
+import app.emailsystem.service.WebhookService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Controller for a user's webhook subscriptions
+ */
+@Controller
+@RequestMapping("/webhooks")
+public class WebhookController {
+
+    private final WebhookService webhookService;
+    private final EmailService emailService;
+    private static final Logger log = LoggerFactory.getLogger(WebhookController.class);
+
+    @Autowired
+    public WebhookController(WebhookService webhookService, EmailService emailService) {
+        this.webhookService = webhookService;
+        this.emailService = emailService;
+    }
+
+    @GetMapping
+    public String webhooks(@AuthenticationPrincipal CustomUserDetails userDetails, Model model) {
+        UUID userId = userDetails.getUser().getId();
+        model.addAttribute("subscriptions", webhookService.getSubscriptions(userId));
+        model.addAttribute("events", WebhookSubscription.Event.values());
+        model.addAttribute("unreadCount", emailService.countByRecipientIdAndReadFalseAndTrashFalse(userId));
+        return "webhooks";
+    }
+
+    @PostMapping
+    public String createSubscription(@RequestParam String url,
+                                     @RequestParam(required = false) List<WebhookSubscription.Event> events,
+                                     @AuthenticationPrincipal CustomUserDetails userDetails,
+                                     RedirectAttributes redirectAttributes) {
+        try {
+            Set<WebhookSubscription.Event> chosen = events == null || events.isEmpty()
+                ? EnumSet.noneOf(WebhookSubscription.Event.class) : EnumSet.copyOf(events);
+            webhookService.createSubscription(userDetails.getUser().getId(), url, chosen);
+            redirectAttributes.addFlashAttribute("message", "Webhook added");
+        } catch (Exception e) {
+            log.error("Error creating webhook", e);
+            redirectAttributes.addFlashAttribute("error", "Could not add webhook: " + e.getMessage());
+        }
+        return "redirect:/webhooks";
+    }
+
+    @PostMapping("/{id}/delete")
+    public String deleteSubscription(@PathVariable UUID id,
+                                     @AuthenticationPrincipal CustomUserDetails userDetails,
+                                     RedirectAttributes redirectAttributes) {
+        try {
+            webhookService.deleteSubscription(userDetails.getUser().getId(), id);
+            redirectAttributes.addFlashAttribute("message", "Webhook deleted");
+        } catch (Exception e) {
+            redirectAttributes.addFlashAttribute("error", "Could not delete webhook: " + e.getMessage());
+        }
+        return "redirect:/webhooks";
+    }
+}
@@ -18,4 +18,32 @@ public class AttachmentDTO {
     private long size;
     private UUID emailId;
     private String downloadUrl;
-} 
\ No newline at end of file
+    /**
+     * Content type sniffed by the post-processing pipeline, null until the content is processed
+     */
+    private String detectedContentType;
+    private boolean thumbnailAvailable;
+    private boolean textAvailable;
+
+    /**
+     * Metadata-only constructor used by JPQL projections
+     */
+    public AttachmentDTO(UUID id, String filename, String contentType, long size, UUID emailId) {
+        this.id = id;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.emailId = emailId;
+    }
+
+    /**
+     * Projection constructor that includes the results of post-processing
+     */
+    public AttachmentDTO(UUID id, String filename, String contentType, long size, UUID emailId,
+                         String detectedContentType, Boolean thumbnailAvailable, Boolean textAvailable) {
+        this(id, filename, contentType, size, emailId);
+        this.detectedContentType = detectedContentType;
+        this.thumbnailAvailable = Boolean.TRUE.equals(thumbnailAvailable);
+        this.textAvailable = Boolean.TRUE.equals(textAvailable);
+    }
+}
@@ -0,0 +1,27 @@
+package app.emailsystem.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.UUID;
+
+/**
+ * A file the client is about to attach, identified by its SHA-256 before any bytes are sent.
+ * The server answers with {@link #attachmentId} set if it already holds the content.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ContentDigestDTO {
+    private String sha256;
+    private long size;
+    private String filename;
+    private String contentType;
+    /**
+     * The pending attachment created from the stored content, null if the file must be uploaded
+     */
+    private UUID attachmentId;
+}
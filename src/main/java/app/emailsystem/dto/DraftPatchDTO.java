@@ -0,0 +1,40 @@
+package app.emailsystem.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Changes to a draft sent by autosave. Fields left null are unchanged. The body is sent
+ * either whole in {@link #content} or, usually, as a {@link TextDelta} against the
+ * version the client last saved.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class DraftPatchDTO {
+    /**
+     * The draft version the changes were made to; ignored when creating a draft
+     */
+    private long baseVersion;
+    private String recipients;
+    private String cc;
+    private String bcc;
+    private String subject;
+    private String content;
+    private TextDelta contentDelta;
+
+    /**
+     * Replace {@link #removed} characters at {@link #offset} of the body with {@link #text}
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class TextDelta {
+        private int offset;
+        private int removed;
+        private String text;
+    }
+}
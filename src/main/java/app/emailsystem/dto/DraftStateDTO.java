@@ -0,0 +1,26 @@
+package app.emailsystem.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.UUID;
+
+/**
+ * A draft as autosave sees it. After a save only the ID and the new version are set;
+ * when a save conflicts with a newer version, the fields hold that version.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class DraftStateDTO {
+    private UUID id;
+    private long version;
+    private String recipients;
+    private String cc;
+    private String bcc;
+    private String subject;
+    private String content;
+}
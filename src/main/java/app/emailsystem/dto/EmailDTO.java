@@ -6,7 +6,9 @@ import lombok.NoArgsConstructor;
 import lombok.Builder;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Size;
+import java.time.LocalDateTime;
 import java.util.List;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.web.multipart.MultipartFile;
 
 @Data
@@ -19,6 +21,11 @@ public class EmailDTO {
     @NotBlank(message = "Recipients are required")
     private String recipients;
     
+    // Comma-separated, like recipients
+    private String cc;
+    
+    private String bcc;
+    
     @NotBlank(message = "Subject is required")
     @Size(max = 255, message = "Subject too long")
     private String subject;
@@ -36,4 +43,14 @@ public class EmailDTO {
     
     // For processing existing attachment IDs during AJAX draft saving
     private String attachmentIds;
+    
+    // Generated when the compose form is rendered, so submitting it twice sends once
+    private String idempotencyKey;
+    
+    // The draft's version when the form was rendered, for autosave
+    private long draftVersion;
+    
+    // Send later: when the email goes out, as entered in a datetime-local field; empty to send now
+    @DateTimeFormat(pattern = "yyyy-MM-dd'T'HH:mm")
+    private LocalDateTime sendAt;
 } 
\ No newline at end of file
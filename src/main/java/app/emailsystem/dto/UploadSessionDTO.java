@@ -0,0 +1,49 @@
+package app.emailsystem.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Progress of a resumable upload, see {@link app.emailsystem.entity.UploadSession}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class UploadSessionDTO {
+    private UUID id;
+    private String filename;
+    private String contentType;
+    private long size;
+    private int chunkSize;
+    private int chunkCount;
+    private long receivedBytes;
+    /**
+     * Received byte ranges, merged where chunks are adjacent
+     */
+    private List<ByteRange> receivedRanges;
+    private List<Integer> missingChunks;
+    private String state;
+    /**
+     * The pending attachment to reference when sending or saving a draft, set once committed
+     */
+    private UUID attachmentId;
+    private LocalDateTime expiresAt;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ByteRange {
+        private long start;
+        /**
+         * Exclusive end offset
+         */
+        private long end;
+    }
+}
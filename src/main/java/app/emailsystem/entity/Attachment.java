@@ -10,7 +10,10 @@ import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "attachments")
+@Table(name = "attachments", indexes = {
+    @Index(name = "idx_attachment_content_hash", columnList = "content_hash"),
+    @Index(name = "idx_attachment_uploaded_by", columnList = "uploaded_by, created_at")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -33,14 +36,27 @@ public class Attachment {
     @Column(name = "file_size", nullable = false)
     private long size;
     
-    @Lob
-    @Column(columnDefinition = "LONGBLOB")
-    private byte[] data;
+    /**
+     * SHA-256 of the content, used as the key in {@link app.emailsystem.storage.AttachmentStorage}.
+     * Null for legacy rows whose bytes are still held in {@link AttachmentPayload}.
+     */
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
     
+    /**
+     * Null while the attachment is a pending upload that no email references yet
+     */
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "email_id")
     private Email email;
     
+    /**
+     * The user who uploaded a pending attachment, see {@link UploadSession}
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "uploaded_by")
+    private User uploadedBy;
+    
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
     
@@ -0,0 +1,112 @@
+package app.emailsystem.entity;
+
+import app.emailsystem.storage.AttachmentCodec;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * A single stored copy of attachment content, shared by every attachment row
+ * with the same SHA-256. The content itself lives in the attachment storage
+ * under {@link #getStorageKey()}; this row only tracks how many attachments
+ * point at it and how the stored copy is encoded.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "attachment_blobs", indexes = {
+    @Index(name = "idx_blob_released_at", columnList = "released_at"),
+    @Index(name = "idx_blob_processing", columnList = "processing_state, next_attempt_at")
+})
+public class AttachmentBlob {
+
+    @Id
+    @Column(name = "hash", length = 64)
+    private String hash;
+
+    @Column(name = "size", nullable = false)
+    private long size;
+
+    /**
+     * Encoding of the stored copy; null for blobs written before compression was added
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "codec", length = 16)
+    private AttachmentCodec codec;
+
+    /**
+     * Size of the stored copy; null for blobs written before compression was added
+     */
+    @Column(name = "stored_size")
+    private Long storedSize;
+
+    /**
+     * CRC-32 of the original bytes; null for blobs written before it was recorded
+     */
+    @Column(name = "crc32")
+    private Long crc32;
+
+    @Column(name = "ref_count", nullable = false)
+    private int refCount;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    /**
+     * When the last reference went away; null while the blob is in use
+     */
+    @Column(name = "released_at")
+    private LocalDateTime releasedAt;
+
+    /**
+     * Progress of the background post-processing; null for blobs stored before it existed
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "processing_state", length = 16)
+    private ProcessingState processingState;
+
+    @Column(name = "processing_attempts", nullable = false)
+    private int processingAttempts;
+
+    /**
+     * Earliest time the blob may be picked up again, either after a failure or
+     * while a worker holds its lease
+     */
+    @Column(name = "next_attempt_at")
+    private LocalDateTime nextAttemptAt;
+
+    @Column(name = "processed_at")
+    private LocalDateTime processedAt;
+
+    /**
+     * Content type sniffed from the content itself
+     */
+    @Column(name = "detected_content_type", length = 100)
+    private String detectedContentType;
+
+    @Column(name = "has_thumbnail")
+    private Boolean hasThumbnail;
+
+    @Column(name = "has_text")
+    private Boolean hasText;
+
+    public enum ProcessingState {
+        PENDING, DONE, FAILED
+    }
+
+    public AttachmentCodec getEffectiveCodec() {
+        return AttachmentCodec.orIdentity(codec);
+    }
+
+    public String getStorageKey() {
+        return getEffectiveCodec().storageKey(hash);
+    }
+}
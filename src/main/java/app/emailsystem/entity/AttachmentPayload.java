@@ -0,0 +1,29 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.UUID;
+
+/**
+ * The legacy {@code attachments.data} column, mapped on its own so that loading an
+ * {@link Attachment} never pulls its bytes. Only rows created before attachment
+ * content moved to the attachment storage still hold data here, and the storage
+ * migrator clears it once the bytes have been copied.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(name = "attachments")
+public class AttachmentPayload {
+
+    @Id
+    private UUID id;
+
+    @Lob
+    @Column(name = "data", columnDefinition = "LONGBLOB")
+    private byte[] data;
+}
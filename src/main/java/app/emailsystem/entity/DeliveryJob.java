@@ -0,0 +1,130 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Outbox record of a sent message. Sending writes the message, the sender's entry and
+ * this row; the inbox entries of the recipients are added afterwards by
+ * DeliveryService, a chunk of addresses at a time.
+ *
+ * The addresses are read from the message, where they are kept as typed.
+ * {@link #position} counts how many of them, taken in To, Cc, Bcc order, have been
+ * handled, and {@link #memberCursor} how far into a distribution list delivery got, so a
+ * delivery interrupted by a restart or a failure resumes where it stopped.
+ *
+ * A job with a {@link #sendAt} is not claimed before then, and until its first chunk is
+ * delivered the sender can cancel it, which deletes the job and makes the message a
+ * draft again.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "delivery_jobs", indexes = {
+    @Index(name = "idx_delivery_job_claim", columnList = "state, next_attempt_at")
+}, uniqueConstraints = {
+    @UniqueConstraint(name = "uk_delivery_job_email", columnNames = "email_id"),
+    @UniqueConstraint(name = "uk_delivery_job_idempotency", columnNames = {"sender_id", "idempotency_key"})
+})
+public class DeliveryJob {
+
+    public enum State {
+        PENDING,
+        DONE,
+        FAILED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "email_id", nullable = false)
+    private Email email;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "sender_id", nullable = false)
+    private User sender;
+
+    /**
+     * Key the compose form was rendered with, so a form submitted twice sends once
+     */
+    @Column(name = "idempotency_key", length = 64)
+    private String idempotencyKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private State state;
+
+    /**
+     * Number of addresses handled so far
+     */
+    @Column(nullable = false)
+    private int position;
+
+    /**
+     * While the address at {@link #position} is a distribution list, the user ID of the
+     * last member delivered to; null before its first chunk
+     */
+    @Column(name = "member_cursor")
+    private UUID memberCursor;
+
+    /**
+     * Addresses that do not belong to any user, comma-separated
+     */
+    @Column(name = "unknown_addresses", columnDefinition = "TEXT")
+    private String unknownAddresses;
+
+    /**
+     * When the message goes out: the time the sender chose, or the end of the window in
+     * which a send can be undone; null if it was queued for delivery at once
+     */
+    @Column(name = "send_at")
+    private LocalDateTime sendAt;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    private LocalDateTime nextAttemptAt;
+
+    @Column(name = "last_error", length = 1000)
+    private String lastError;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "completed_at")
+    private LocalDateTime completedAt;
+
+    /**
+     * Whether the message is still held until {@link #sendAt}
+     */
+    @Transient
+    public boolean isScheduled() {
+        return state == State.PENDING && sendAt != null && sendAt.isAfter(LocalDateTime.now());
+    }
+
+    @PrePersist
+    protected void onCreate() {
+        if (createdAt == null) {
+            createdAt = LocalDateTime.now();
+        }
+        if (nextAttemptAt == null) {
+            nextAttemptAt = sendAt != null ? sendAt : createdAt;
+        }
+        if (state == null) {
+            state = State.PENDING;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A group address that expands to its members when a message sent to it is delivered.
+ * Anyone may send to a list; only its owner changes it.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "distribution_lists", indexes = {
+    @Index(name = "idx_distribution_list_owner", columnList = "owner_id")
+}, uniqueConstraints = {
+    @UniqueConstraint(name = "uk_distribution_list_address", columnNames = "address")
+})
+public class DistributionList {
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(nullable = false)
+    private String address;
+
+    @Column(nullable = false)
+    private String name;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Column(name = "member_count", nullable = false)
+    private int memberCount;
+
+    /**
+     * Incremented with every change to the members, so cached member lists on any
+     * instance can tell they are out of date
+     */
+    @Column(name = "member_version", nullable = false)
+    private long memberVersion;
+
+    @CreationTimestamp
+    @Column(nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+}
@@ -11,12 +11,18 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 
+/**
+ * A message: subject, body, sender and attachments, written once and shared by every
+ * recipient. Each user's folder and flags are kept in a {@link MailboxEntry}.
+ */
 @Getter
 @Setter
 @Entity
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "emails")
+@Table(name = "emails", indexes = {
+    @Index(name = "idx_email_broadcast", columnList = "is_broadcast, created_at")
+})
 @Builder
 public class Email {
     @Id
@@ -27,10 +33,34 @@ public class Email {
     @JoinColumn(name = "sender_id", nullable = false)
     private User sender;
 
+    /**
+     * The first To recipient, kept for rows written before the address lists below.
+     * Messages without one, such as drafts without a known recipient, point at the sender.
+     */
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "recipient_id", nullable = false)
     private User recipient;
 
+    /**
+     * Comma-separated addresses as typed by the sender. The Bcc list is only shown
+     * to the sender.
+     */
+    @Column(name = "to_addresses", columnDefinition = "TEXT")
+    private String toAddresses;
+
+    @Column(name = "cc_addresses", columnDefinition = "TEXT")
+    private String ccAddresses;
+
+    @Column(name = "bcc_addresses", columnDefinition = "TEXT")
+    private String bccAddresses;
+
+    /**
+     * Number of users the message has been delivered to so far, see DeliveryJob;
+     * null on rows written before mailbox entries existed
+     */
+    @Column(name = "recipient_count")
+    private Integer recipientCount;
+
     @Column(nullable = false)
     private String subject;
 
@@ -40,20 +70,46 @@ public class Email {
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
-    @Column(name = "is_read", nullable = false)
-    private boolean read;
-
     @Column(name = "is_sent", nullable = false)
     private boolean sent;
 
     @Column(name = "is_draft", nullable = false)
     private boolean draft;
 
+    /**
+     * A message to every user. It has no inbox entries of its own: it is merged into each
+     * inbox when the inbox is read, and a user gets an entry only once they open, star,
+     * trash or dismiss it.
+     */
+    @Column(name = "is_broadcast", nullable = false, columnDefinition = "boolean default false")
+    private boolean broadcast;
+
+    /**
+     * Sent by a vacation responder; never answered by another one, so two users away at
+     * the same time do not reply to each other
+     */
+    @Column(name = "is_auto_reply", nullable = false, columnDefinition = "boolean default false")
+    private boolean autoReply;
+
+    /**
+     * Incremented by every save of a draft, so saves from two windows cannot overwrite
+     * each other unnoticed, see DraftAutosaveService
+     */
+    @Column(name = "draft_version", nullable = false, columnDefinition = "bigint default 0")
+    private long draftVersion;
+
+    /*
+     * Flags of rows written when every recipient had a copy of the message. They are
+     * copied into mailbox entries by MailboxBackfill and are always false on new rows.
+     */
+    @Column(name = "is_read", nullable = false)
+    private boolean legacyRead;
+
     @Column(name = "is_trash", nullable = false)
-    private boolean trash;
+    private boolean legacyTrash;
 
     @Column(name = "is_starred", nullable = false)
-    private boolean starred;
+    private boolean legacyStarred;
     
     @OneToMany(mappedBy = "email", cascade = CascadeType.ALL, orphanRemoval = true)
     @Builder.Default
@@ -74,13 +130,5 @@ public class Email {
         if (createdAt == null) {
             createdAt = LocalDateTime.now();
         }
-        if (read == false && trash == false && sent == false && draft == false) {
-            // Set default values only if they haven't been explicitly set
-            read = false;
-            sent = false;
-            draft = false;
-            trash = false;
-            starred = false;
-        }
     }
 } 
\ No newline at end of file
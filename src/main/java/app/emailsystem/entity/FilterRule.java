@@ -0,0 +1,83 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A user's filter: when a message delivered to them matches the condition, the action
+ * is applied to their copy of it. Applied at delivery time, see FilterRuleService.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "filter_rules", indexes = {
+    @Index(name = "idx_filter_rule_owner", columnList = "owner_id, created_at")
+})
+public class FilterRule {
+
+    public enum Field {
+        /**
+         * The sender's address, or any address of a domain given as {@code @domain}
+         */
+        FROM,
+        /**
+         * A To or Cc address, such as a distribution list's, or a domain as for FROM
+         */
+        TO,
+        /**
+         * Text the subject contains, ignoring case
+         */
+        SUBJECT,
+        /**
+         * Text the body contains, ignoring case and formatting
+         */
+        BODY
+    }
+
+    public enum Action {
+        STAR,
+        MARK_READ,
+        TRASH,
+        LABEL
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Field field;
+
+    /**
+     * What the field is compared with, in lower case
+     */
+    @Column(name = "match_value", nullable = false, length = 255)
+    private String value;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Action action;
+
+    /**
+     * The label a LABEL rule adds the message to
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "label_id")
+    private Label label;
+
+    @CreationTimestamp
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,113 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * One user's copy of an {@link Email}: the folder it is listed in and the flags that
+ * user set on it. The message itself is shared by all its entries and never changes
+ * once sent, so a message to many recipients stores its subject and body once.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "mailbox_entries", indexes = {
+    @Index(name = "idx_mailbox_entry_listing", columnList = "owner_id, mailbox, is_trash, created_at"),
+    @Index(name = "idx_mailbox_entry_email", columnList = "email_id, owner_id")
+}, uniqueConstraints = {
+    @UniqueConstraint(name = "uk_mailbox_entry", columnNames = {"email_id", "owner_id", "mailbox"})
+})
+public class MailboxEntry {
+
+    public enum Mailbox {
+        INBOX,
+        /**
+         * Delivered messages the bulk classifier routed out of the inbox
+         */
+        BULK,
+        SENT,
+        DRAFTS,
+        /**
+         * A broadcast the owner deleted; kept so it is not merged into their inbox again
+         */
+        DISMISSED
+    }
+
+    /**
+     * What the owner did with a delivered message that the bulk classifier learned from
+     */
+    public enum Feedback {
+        /** Trashed unread: an example of bulk */
+        TRASHED_UNREAD(true),
+        /** Opened in the inbox: an example of normal mail */
+        OPENED(false),
+        /** Moved out of the Bulk folder: an example of normal mail */
+        NOT_BULK(false);
+
+        private final boolean bulk;
+
+        Feedback(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        public boolean isBulk() {
+            return bulk;
+        }
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "email_id", nullable = false)
+    private Email email;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Mailbox mailbox;
+
+    /**
+     * How the owner was addressed, null on the sender's own entry
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "recipient_type", length = 8)
+    private RecipientType recipientType;
+
+    @Column(name = "is_read", nullable = false)
+    private boolean read;
+
+    @Column(name = "is_starred", nullable = false)
+    private boolean starred;
+
+    @Column(name = "is_trash", nullable = false)
+    private boolean trash;
+
+    /**
+     * The example this entry gave the bulk classifier, if any; kept so it is given once,
+     * and taken back when the owner undoes what gave it
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name = "classifier_feedback", length = 16)
+    private Feedback classifierFeedback;
+
+    /**
+     * Copy of the message date so folders can be listed from this table alone
+     */
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
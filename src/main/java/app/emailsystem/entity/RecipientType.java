@@ -0,0 +1,11 @@
+package app.emailsystem.entity;
+
+/**
+ * How a recipient was addressed. The declaration order is the precedence used when
+ * the same user is listed more than once.
+ */
+public enum RecipientType {
+    TO,
+    CC,
+    BCC
+}
@@ -0,0 +1,114 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A resumable upload of one file, sent as numbered chunks of {@link #chunkSize} bytes
+ * (the last one may be shorter). The bytes go straight to an upload file in the
+ * attachment storage; this row only tracks which chunks have arrived, one bit each.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "upload_sessions", indexes = {
+    @Index(name = "idx_upload_session_expires_at", columnList = "expires_at")
+})
+public class UploadSession {
+
+    public enum State {
+        OPEN,
+        COMMITTED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Column(name = "file_name", nullable = false)
+    private String filename;
+
+    @Column(name = "content_type", nullable = false)
+    private String contentType;
+
+    @Column(name = "file_size", nullable = false)
+    private long size;
+
+    @Column(name = "chunk_size", nullable = false)
+    private int chunkSize;
+
+    @Column(name = "chunk_count", nullable = false)
+    private int chunkCount;
+
+    /**
+     * Bit {@code i} is set once chunk {@code i} has been written completely
+     */
+    @Column(name = "received_chunks", nullable = false, length = 2048)
+    private byte[] receivedChunks;
+
+    @Column(name = "received_bytes", nullable = false)
+    private long receivedBytes;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "state", nullable = false, length = 16)
+    private State state;
+
+    /**
+     * The pending attachment created on commit
+     */
+    @Column(name = "attachment_id")
+    private UUID attachmentId;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    public boolean isReceived(int chunk) {
+        return (receivedChunks[chunk >> 3] & (1 << (chunk & 7))) != 0;
+    }
+
+    /**
+     * Record a chunk as received
+     *
+     * @return false if it had been received before
+     */
+    public boolean markReceived(int chunk) {
+        if (isReceived(chunk)) {
+            return false;
+        }
+        receivedChunks[chunk >> 3] |= (byte) (1 << (chunk & 7));
+        receivedBytes += chunkLength(chunk);
+        return true;
+    }
+
+    public long chunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public long chunkLength(int chunk) {
+        return Math.min(chunkSize, size - chunkOffset(chunk));
+    }
+
+    public boolean isComplete() {
+        return receivedBytes == size;
+    }
+}
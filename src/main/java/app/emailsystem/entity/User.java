@@ -66,6 +66,13 @@ public class User {
 
     private LocalDateTime lastLogin;
 
+    /**
+     * Incremented with every change to the user's filter rules, so compiled rules cached
+     * on any instance can tell they are out of date; 0 while the user never had any
+     */
+    @Column(name = "filter_version", nullable = false, columnDefinition = "bigint default 0")
+    private long filterVersion;
+
     @OneToMany(mappedBy = "sender", cascade = CascadeType.ALL)
     private List<Email> sentEmails = new ArrayList<>();
 
@@ -0,0 +1,45 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * That a user's vacation responder answered a sender, so the sender is not answered
+ * again within the reply period. The sender is kept as a 64-bit hash of their address,
+ * which keeps rows small and fixed in size. Rows older than the period are deleted.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "vacation_replies", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_vacation_reply", columnNames = {"owner_id", "sender_hash"})
+}, indexes = {
+    @Index(name = "idx_vacation_reply_replied", columnList = "replied_at")
+})
+public class VacationReply {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(name = "owner_id", nullable = false)
+    private UUID ownerId;
+
+    @Column(name = "sender_hash", nullable = false)
+    private long senderHash;
+
+    /**
+     * The {@link VacationResponder#getVersion()} that replied
+     */
+    @Column(name = "responder_version", nullable = false)
+    private long responderVersion;
+
+    @Column(name = "replied_at", nullable = false)
+    private LocalDateTime repliedAt;
+}
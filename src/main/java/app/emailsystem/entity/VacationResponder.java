@@ -0,0 +1,68 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * A user's out-of-office reply, sent at most once per period to each sender of a
+ * message delivered to them while it is on, see VacationResponderService
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "vacation_responders", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_vacation_responder_owner", columnNames = "owner_id")
+})
+public class VacationResponder {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Column(nullable = false)
+    private boolean enabled;
+
+    @Column(nullable = false)
+    private String subject;
+
+    @Column(columnDefinition = "TEXT")
+    private String message;
+
+    /**
+     * When replies start, null for at once
+     */
+    @Column(name = "starts_at")
+    private LocalDateTime startsAt;
+
+    /**
+     * When replies stop, null for until turned off
+     */
+    @Column(name = "ends_at")
+    private LocalDateTime endsAt;
+
+    /**
+     * Incremented with every change, so a sender who got the previous reply gets the new
+     * one, see VacationReply
+     */
+    @Column(nullable = false, columnDefinition = "bigint default 0")
+    private long version;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public boolean isActive(LocalDateTime now) {
+        return enabled && (startsAt == null || !startsAt.isAfter(now)) && (endsAt == null || endsAt.isAfter(now));
+    }
+}
@@ -0,0 +1,97 @@
+package app.emailsystem.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A URL that is sent the changes to a user's mailbox as they happen, see WebhookService
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "webhook_subscriptions", indexes = {
+    @Index(name = "idx_webhook_subscription_owner", columnList = "owner_id, created_at")
+})
+public class WebhookSubscription {
+
+    public enum Event {
+        /**
+         * A message reached the user's inbox or Bulk folder
+         */
+        DELIVERED("email.delivered"),
+        READ("email.read"),
+        TRASHED("email.trashed"),
+        /**
+         * The message was removed from the user's mailboxes
+         */
+        DELETED("email.deleted");
+
+        private final String type;
+
+        Event(String type) {
+            this.type = type;
+        }
+
+        /**
+         * The name receivers see, such as {@code email.delivered}
+         */
+        public String getType() {
+            return type;
+        }
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "owner_id", nullable = false)
+    private User owner;
+
+    @Column(nullable = false, length = 2048)
+    private String url;
+
+    /**
+     * Key of the signature of each request, shown to the user
+     */
+    @Column(nullable = false, length = 64)
+    private String secret;
+
+    /**
+     * The events sent, one bit per {@link Event} ordinal
+     */
+    @Column(name = "event_mask", nullable = false)
+    private int eventMask;
+
+    @CreationTimestamp
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    public Set<Event> getEvents() {
+        Set<Event> events = EnumSet.noneOf(Event.class);
+        for (Event event : Event.values()) {
+            if ((eventMask & (1 << event.ordinal())) != 0) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    public static int mask(Collection<Event> events) {
+        int mask = 0;
+        for (Event event : events) {
+            mask |= 1 << event.ordinal();
+        }
+        return mask;
+    }
+}
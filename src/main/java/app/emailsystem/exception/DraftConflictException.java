@@ -0,0 +1,23 @@
+package app.emailsystem.exception;
+
+import app.emailsystem.dto.DraftStateDTO;
+
+/**
+ * Exception thrown when an autosave was made to an older version of a draft than the
+ * current one, e.g. because the draft is open in two windows
+ */
+public class DraftConflictException extends EmailSystemException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient DraftStateDTO current;
+
+    public DraftConflictException(DraftStateDTO current) {
+        super("The draft was changed in another window");
+        this.current = current;
+    }
+
+    public DraftStateDTO getCurrent() {
+        return current;
+    }
+}
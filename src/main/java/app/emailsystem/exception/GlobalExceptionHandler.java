@@ -1,10 +1,12 @@
 package app.emailsystem.exception;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.exception.JDBCConnectionException;
 import org.springframework.beans.TypeMismatchException;
 import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.orm.jpa.JpaSystemException;
 import org.springframework.security.access.AccessDeniedException;
@@ -33,6 +35,18 @@ public class GlobalExceptionHandler {
         return "error/custom-error";
     }
 
+    @ExceptionHandler(RateLimitExceededException.class)
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    public String handleRateLimitExceeded(RateLimitExceededException ex, Model model,
+                                          HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+        model.addAttribute("status", 429);
+        model.addAttribute("error", "Too Many Requests");
+        model.addAttribute("message", ex.getMessage());
+        model.addAttribute("path", request.getRequestURI());
+        return "error/custom-error";
+    }
+
     @ExceptionHandler(EmailSystemException.class)
     @ResponseStatus(HttpStatus.BAD_REQUEST)
     public String handleEmailSystemException(EmailSystemException ex, Model model, HttpServletRequest request) {
@@ -0,0 +1,23 @@
+package app.emailsystem.exception;
+
+/**
+ * Exception thrown when a user exceeds one of their send or upload rate limits
+ */
+public class RateLimitExceededException extends EmailSystemException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Seconds until the request would be allowed, for the {@code Retry-After} header
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
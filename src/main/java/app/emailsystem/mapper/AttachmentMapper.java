@@ -3,11 +3,10 @@ package app.emailsystem.mapper;
 import app.emailsystem.dto.AttachmentDTO;
 import app.emailsystem.entity.Attachment;
 import app.emailsystem.entity.Email;
+import app.emailsystem.storage.StagedAttachment;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
-import org.springframework.web.multipart.MultipartFile;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -50,23 +49,40 @@ public class AttachmentMapper {
     }
 
     /**
-     * Convert MultipartFile to Attachment entity
+     * Convert a staged upload to an Attachment entity
      *
-     * @param file The MultipartFile to convert
+     * @param staged The staged upload
      * @param email The email to associate with the attachment
      * @return The attachment entity
-     * @throws IOException If there's an error reading the file
      */
-    public Attachment toEntity(MultipartFile file, Email email) throws IOException {
-        String filename = file.getOriginalFilename();
+    public Attachment toEntity(StagedAttachment staged, Email email) {
+        String filename = staged.getFilename();
         String filePath = "/attachments/" + filename;
         
         return Attachment.builder()
                 .filename(filename)
                 .filePath(filePath)
-                .contentType(file.getContentType())
-                .size(file.getSize())
-                .data(file.getBytes())
+                .contentType(staged.getContentType())
+                .size(staged.getBlob().getSize())
+                .contentHash(staged.getBlob().getSha256())
+                .email(email)
+                .build();
+    }
+
+    /**
+     * Create another attachment row for the same stored content
+     *
+     * @param attachment The attachment to copy
+     * @param email The email to associate with the copy
+     * @return The new attachment entity
+     */
+    public Attachment copyOf(Attachment attachment, Email email) {
+        return Attachment.builder()
+                .filename(attachment.getFilename())
+                .filePath(attachment.getFilePath())
+                .contentType(attachment.getContentType())
+                .size(attachment.getSize())
+                .contentHash(attachment.getContentHash())
                 .email(email)
                 .build();
     }
@@ -2,6 +2,8 @@ package app.emailsystem.mapper;
 
 import app.emailsystem.dto.EmailDTO;
 import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.RecipientType;
 import app.emailsystem.entity.User;
 import org.springframework.stereotype.Component;
 
@@ -26,11 +28,8 @@ public class EmailMapper {
                 .subject(emailDTO.getSubject() != null ? emailDTO.getSubject() : "")
                 .content(emailDTO.getContent() != null ? emailDTO.getContent() : "")
                 .createdAt(LocalDateTime.now())
-                .read(false)
                 .sent(true)
                 .draft(false)
-                .trash(false)
-                .starred(false)
                 .build();
     }
 
@@ -44,14 +43,35 @@ public class EmailMapper {
     public Email toDraftEntity(EmailDTO emailDTO, User sender) {
         return Email.builder()
                 .sender(sender)
+                .toAddresses(emailDTO.getRecipients())
+                .ccAddresses(emailDTO.getCc())
+                .bccAddresses(emailDTO.getBcc())
                 .subject(emailDTO.getSubject() != null ? emailDTO.getSubject() : "")
                 .content(emailDTO.getContent() != null ? emailDTO.getContent() : "")
                 .createdAt(LocalDateTime.now())
-                .read(false)
                 .sent(false)
                 .draft(true)
-                .trash(false)
-                .starred(false)
+                .build();
+    }
+
+    /**
+     * Create a user's entry for a message
+     *
+     * @param email the message
+     * @param owner the user whose mailbox lists the message
+     * @param mailbox the folder it is listed in
+     * @param recipientType how the owner was addressed, null for the sender
+     * @return the mailbox entry
+     */
+    public MailboxEntry toEntry(Email email, User owner, MailboxEntry.Mailbox mailbox, RecipientType recipientType) {
+        return MailboxEntry.builder()
+                .email(email)
+                .owner(owner)
+                .mailbox(mailbox)
+                .recipientType(recipientType)
+                // The sender has read what they wrote
+                .read(recipientType == null)
+                .createdAt(email.getCreatedAt())
                 .build();
     }
 
@@ -67,10 +87,14 @@ public class EmailMapper {
         dto.setSubject(email.getSubject());
         dto.setContent(email.getContent());
         
-        if (email.getRecipient() != null && 
+        if (email.getToAddresses() != null || email.getRecipientCount() != null) {
+            dto.setRecipients(email.getToAddresses());
+        } else if (email.getRecipient() != null && 
             (email.getSender() == null || !email.getRecipient().getId().equals(email.getSender().getId()))) {
             dto.setRecipients(email.getRecipient().getEmail());
         }
+        dto.setCc(email.getCcAddresses());
+        // Bcc addresses are left out; only the sender may see them
         
         return dto;
     }
@@ -0,0 +1,21 @@
+package app.emailsystem.processing;
+
+import java.io.IOException;
+
+/**
+ * One step of the attachment post-processing pipeline.
+ *
+ * Stages run in {@link org.springframework.core.annotation.Order} order on a
+ * worker thread, never on a request thread. A stage that cannot derive anything
+ * from the content (e.g. a corrupt image) returns normally; an exception means
+ * the failure may be transient and the whole blob is retried later.
+ */
+public interface AttachmentProcessingStage {
+
+    /**
+     * Name used in logs and as the {@code stage} tag of the pipeline metrics
+     */
+    String getName();
+
+    void process(ProcessingContext context) throws IOException;
+}
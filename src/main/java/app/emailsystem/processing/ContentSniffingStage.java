@@ -0,0 +1,195 @@
+package app.emailsystem.processing;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Determines the real content type from the leading bytes of the content.
+ *
+ * The browser-supplied type is kept when the content agrees with it, e.g. a
+ * {@code text/csv} upload that sniffs as text. It is replaced when the bytes
+ * identify a different format, and downgraded to {@code application/octet-stream}
+ * when a textual type is declared for binary content.
+ */
+@Slf4j
+@Component
+@Order(1)
+public class ContentSniffingStage implements AttachmentProcessingStage {
+
+    private static final int SNIFF_BYTES = 8192;
+    private static final int MAX_ZIP_ENTRIES = 64;
+    private static final String OCTET_STREAM = "application/octet-stream";
+
+    @Override
+    public String getName() {
+        return "sniff";
+    }
+
+    @Override
+    public void process(ProcessingContext context) throws IOException {
+        byte[] head;
+        try (InputStream in = context.getContent().getInputStream()) {
+            head = in.readNBytes(SNIFF_BYTES);
+        }
+
+        String sniffed = sniff(head);
+        if ("application/zip".equals(sniffed)) {
+            sniffed = sniffZipContainer(context);
+        }
+
+        String declared = baseType(context.getDeclaredContentType());
+        String detected;
+        if (sniffed == null) {
+            detected = isTextual(declared) ? OCTET_STREAM : declared;
+        } else if ("text/plain".equals(sniffed) && isTextual(declared)) {
+            detected = declared;
+        } else {
+            detected = sniffed;
+        }
+
+        if (detected != null && !detected.equals(declared)) {
+            log.info("Blob {} declared as {} sniffed as {}", context.getHash(), declared, detected);
+        }
+        context.setDetectedContentType(detected != null ? detected : OCTET_STREAM);
+    }
+
+    /**
+     * Identify the format from magic numbers
+     *
+     * @return the content type, or null if the format is not recognised
+     */
+    static String sniff(byte[] head) {
+        if (startsWith(head, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return "image/png";
+        if (startsWith(head, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(head, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(head, 0, 'R', 'I', 'F', 'F') && startsWith(head, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+        if (startsWith(head, 0, 'R', 'I', 'F', 'F') && startsWith(head, 8, 'W', 'A', 'V', 'E')) return "audio/wav";
+        if (startsWith(head, 0, 'I', 'I', 0x2A, 0x00) || startsWith(head, 0, 'M', 'M', 0x00, 0x2A)) return "image/tiff";
+        if (startsWith(head, 0, '%', 'P', 'D', 'F', '-')) return "application/pdf";
+        if (startsWith(head, 0, 'P', 'K', 0x03, 0x04)) return "application/zip";
+        if (startsWith(head, 0, 0x1F, 0x8B)) return "application/gzip";
+        if (startsWith(head, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)) return "application/x-7z-compressed";
+        if (startsWith(head, 0, 'R', 'a', 'r', '!', 0x1A, 0x07)) return "application/x-rar-compressed";
+        if (startsWith(head, 0, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1)) return "application/x-ole-storage";
+        if (startsWith(head, 0, 0xFF, 0xFB)) return "audio/mpeg";
+        if (startsWith(head, 0, 'O', 'g', 'g', 'S')) return "audio/ogg";
+        if (startsWith(head, 4, 'f', 't', 'y', 'p')) return "video/mp4";
+        if (startsWith(head, 0, 0x1A, 0x45, 0xDF, 0xA3)) return "video/webm";
+        if (startsWith(head, 0, 0x7F, 'E', 'L', 'F')) return "application/x-executable";
+
+        if (!isText(head)) {
+            // Short signatures that plain text may also start with
+            if (startsWith(head, 0, 'B', 'M')) return "image/bmp";
+            if (startsWith(head, 0, 'I', 'D', '3')) return "audio/mpeg";
+            if (startsWith(head, 0, 'M', 'Z')) return "application/x-executable";
+            return null;
+        }
+        String prefix = new String(head, 0, Math.min(head.length, 512), StandardCharsets.UTF_8)
+                .stripLeading().toLowerCase(Locale.ROOT);
+        if (prefix.startsWith("<!doctype html") || prefix.startsWith("<html")) return "text/html";
+        if (prefix.startsWith("<svg") || (prefix.startsWith("<?xml") && prefix.contains("<svg"))) return "image/svg+xml";
+        if (prefix.startsWith("<?xml")) return "application/xml";
+        return "text/plain";
+    }
+
+    /**
+     * Tell OOXML and OpenDocument files apart from plain ZIP archives by their entries
+     */
+    private static String sniffZipContainer(ProcessingContext context) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(context.getContent().getInputStream())) {
+            ZipEntry entry;
+            int entries = 0;
+            while ((entry = zip.getNextEntry()) != null && entries++ < MAX_ZIP_ENTRIES) {
+                String name = entry.getName();
+                if (name.equals("mimetype")) {
+                    String type = new String(zip.readNBytes(100), StandardCharsets.US_ASCII).trim();
+                    if (type.startsWith("application/vnd.oasis.opendocument.")) {
+                        return type;
+                    }
+                }
+                if (name.startsWith("word/")) return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+                if (name.startsWith("xl/")) return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+                if (name.startsWith("ppt/")) return "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+            }
+        } catch (IOException e) {
+            // A damaged archive is still an archive
+            log.debug("Could not list entries of blob {}: {}", context.getHash(), e.getMessage());
+        }
+        return "application/zip";
+    }
+
+    /**
+     * Check that the bytes are valid UTF-8 without control characters other than whitespace.
+     * A multi-byte sequence cut off at the end of the sample is tolerated.
+     */
+    private static boolean isText(byte[] head) {
+        for (byte b : head) {
+            if ((b >= 0 && b < 0x09) || (b > 0x0D && b < 0x20 && b != 0x1B)) {
+                return false;
+            }
+        }
+        int length = head.length;
+        if (length == SNIFF_BYTES) {
+            // Drop a trailing partial sequence
+            int i = length - 1;
+            while (i > 0 && length - i < 4 && (head[i] & 0xC0) == 0x80) {
+                i--;
+            }
+            if ((head[i] & 0x80) != 0) {
+                length = i;
+            }
+        }
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(head, 0, length));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int... magic) {
+        if (data.length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String baseType(String contentType) {
+        if (contentType == null || contentType.isBlank()) {
+            return null;
+        }
+        int parameters = contentType.indexOf(';');
+        return (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim().toLowerCase(Locale.ROOT);
+    }
+
+    static boolean isTextual(String type) {
+        return type != null && (type.startsWith("text/")
+                || type.equals("application/json")
+                || type.equals("application/xml")
+                || type.endsWith("+xml")
+                || type.endsWith("+json")
+                || type.equals("application/javascript")
+                || type.equals("application/x-yaml")
+                || type.equals("application/x-ndjson")
+                || type.equals("application/sql"));
+    }
+}
@@ -0,0 +1,50 @@
+package app.emailsystem.processing;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.core.io.Resource;
+
+import java.nio.file.Path;
+
+/**
+ * State shared by the stages processing one blob
+ */
+@Getter
+public class ProcessingContext {
+
+    private final String hash;
+    private final String declaredContentType;
+    /**
+     * The original bytes, decoded if the blob is stored compressed
+     */
+    private final Resource content;
+    /**
+     * The stored file when it holds the original bytes, null for encoded blobs.
+     * Allows random access, e.g. for image readers.
+     */
+    private final Path file;
+    private final long size;
+
+    @Setter
+    private String detectedContentType;
+    @Setter
+    private boolean thumbnail;
+    @Setter
+    private boolean text;
+
+    public ProcessingContext(String hash, String declaredContentType, Resource content, Path file, long size) {
+        this.hash = hash;
+        this.declaredContentType = declaredContentType;
+        this.content = content;
+        this.file = file;
+        this.size = size;
+        this.detectedContentType = declaredContentType;
+    }
+
+    /**
+     * The sniffed content type, falling back to the declared one
+     */
+    public String getEffectiveContentType() {
+        return detectedContentType != null ? detectedContentType : "application/octet-stream";
+    }
+}
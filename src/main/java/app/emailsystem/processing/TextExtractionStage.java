@@ -0,0 +1,224 @@
+package app.emailsystem.processing;
+
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.DerivedArtifact;
+import app.emailsystem.text.HtmlText;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts plain text from text attachments and office documents for previews.
+ *
+ * Plain text types are copied, HTML is converted by {@link HtmlText}, XML is
+ * stripped of markup, and the text of OOXML (docx, xlsx, pptx) and OpenDocument
+ * files is read from their XML parts. Output is capped at {@code max-chars} and input per archive part at
+ * {@code max-part-bytes}, so zip bombs and huge files cost bounded work.
+ */
+@Slf4j
+@Component
+@Order(3)
+public class TextExtractionStage implements AttachmentProcessingStage {
+
+    // Elements that end a line of text in OOXML and OpenDocument markup
+    private static final Set<String> BLOCK_ELEMENTS = Set.of("p", "h", "br", "tab", "si", "tr", "row", "div", "li");
+
+    private final AttachmentStorage attachmentStorage;
+    private final XMLInputFactory xmlInputFactory;
+    private final int maxChars;
+    private final long maxPartBytes;
+
+    @Autowired
+    public TextExtractionStage(AttachmentStorage attachmentStorage,
+                               @Value("${attachment.processing.text.max-chars:100000}") int maxChars,
+                               @Value("${attachment.processing.text.max-part-bytes:33554432}") long maxPartBytes) {
+        this.attachmentStorage = attachmentStorage;
+        this.maxChars = maxChars;
+        this.maxPartBytes = maxPartBytes;
+        this.xmlInputFactory = XMLInputFactory.newFactory();
+        // Attachments are untrusted, never resolve DTDs or external entities
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    @Override
+    public String getName() {
+        return "text";
+    }
+
+    @Override
+    public void process(ProcessingContext context) throws IOException {
+        String type = context.getEffectiveContentType();
+        if (type.equals("image/svg+xml")) {
+            // Drawings get a thumbnail rather than text, if anything
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+
+        if (type.equals("text/html")) {
+            try (InputStream in = context.getContent().getInputStream()) {
+                // Markup is much longer than its text, but not unboundedly so
+                extractHtml(new LimitedInputStream(in, Math.min(maxPartBytes, maxChars * 8L)), text);
+            }
+        } else if (type.equals("application/xml") || type.equals("text/xml")
+                || type.endsWith("+xml") || type.endsWith("-flat-xml")) {
+            try (InputStream in = context.getContent().getInputStream()) {
+                extractXml(new LimitedInputStream(in, maxPartBytes), text);
+            }
+        } else if (ContentSniffingStage.isTextual(type)) {
+            try (InputStream in = context.getContent().getInputStream()) {
+                extractPlain(in, text);
+            }
+        } else if (type.startsWith("application/vnd.openxmlformats-officedocument.")
+                || type.startsWith("application/vnd.oasis.opendocument.")) {
+            extractOfficeDocument(context, type, text);
+        } else {
+            return;
+        }
+
+        String result = text.toString().strip();
+        if (result.isEmpty()) {
+            return;
+        }
+        attachmentStorage.store(DerivedArtifact.TEXT.storageKey(context.getHash()), result.getBytes(StandardCharsets.UTF_8));
+        context.setText(true);
+    }
+
+    private void extractPlain(InputStream in, StringBuilder text) throws IOException {
+        Reader reader = utf8Reader(in);
+        char[] buffer = new char[4096];
+        int read;
+        while (text.length() < maxChars && (read = reader.read(buffer, 0, Math.min(buffer.length, maxChars - text.length()))) != -1) {
+            text.append(buffer, 0, read);
+        }
+    }
+
+    private void extractHtml(InputStream in, StringBuilder text) throws IOException {
+        StringBuilder html = new StringBuilder();
+        Reader reader = utf8Reader(in);
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            html.append(buffer, 0, read);
+        }
+        text.append(HtmlText.toText(html, maxChars));
+    }
+
+    private void extractOfficeDocument(ProcessingContext context, String type, StringBuilder text) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(context.getContent().getInputStream())) {
+            ZipEntry entry;
+            while (text.length() < maxChars && (entry = zip.getNextEntry()) != null) {
+                if (isTextPart(entry.getName(), type)) {
+                    extractXml(new LimitedInputStream(zip, maxPartBytes), text);
+                    text.append('\n');
+                }
+            }
+        }
+    }
+
+    private static boolean isTextPart(String name, String type) {
+        if (type.startsWith("application/vnd.oasis.opendocument.")) {
+            return name.equals("content.xml");
+        }
+        return name.equals("word/document.xml")
+                || name.equals("xl/sharedStrings.xml")
+                || (name.startsWith("ppt/slides/slide") && name.endsWith(".xml"));
+    }
+
+    /**
+     * Collect the character data of an XML document, breaking lines after block elements.
+     * A truncated or malformed document keeps the text read so far.
+     */
+    private void extractXml(InputStream in, StringBuilder text) {
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(in);
+            while (reader.hasNext() && text.length() < maxChars) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (!reader.isWhiteSpace()) {
+                        text.append(reader.getText(), 0, Math.min(reader.getTextLength(), maxChars - text.length()));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && BLOCK_ELEMENTS.contains(reader.getLocalName())) {
+                    text.append(reader.getLocalName().equals("tab") ? '\t' : '\n');
+                }
+            }
+        } catch (XMLStreamException e) {
+            log.debug("Stopped reading XML: {}", e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    private static Reader utf8Reader(InputStream in) {
+        return new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * Ends the stream after a fixed number of bytes and leaves the underlying stream open
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            // The caller owns the underlying stream
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package app.emailsystem.processing;
+
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.DerivedArtifact;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Renders a small JPEG preview of image attachments.
+ *
+ * Images are decoded with source subsampling, so a large photo is never held
+ * in memory at full resolution, and images above {@code max-pixels} are skipped.
+ */
+@Slf4j
+@Component
+@Order(2)
+public class ThumbnailStage implements AttachmentProcessingStage {
+
+    private final AttachmentStorage attachmentStorage;
+    private final int maxDimension;
+    private final long maxPixels;
+
+    @Autowired
+    public ThumbnailStage(AttachmentStorage attachmentStorage,
+                          @Value("${attachment.processing.thumbnail.size:256}") int maxDimension,
+                          @Value("${attachment.processing.thumbnail.max-pixels:100000000}") long maxPixels) {
+        this.attachmentStorage = attachmentStorage;
+        this.maxDimension = maxDimension;
+        this.maxPixels = maxPixels;
+    }
+
+    @Override
+    public String getName() {
+        return "thumbnail";
+    }
+
+    @Override
+    public void process(ProcessingContext context) throws IOException {
+        if (!context.getEffectiveContentType().startsWith("image/")) {
+            return;
+        }
+
+        BufferedImage image;
+        if (context.getFile() != null) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(context.getFile().toFile())) {
+                image = read(input, context.getHash());
+            }
+        } else {
+            try (InputStream in = context.getContent().getInputStream();
+                 ImageInputStream input = ImageIO.createImageInputStream(in)) {
+                image = read(input, context.getHash());
+            }
+        }
+        if (image == null) {
+            return;
+        }
+
+        attachmentStorage.store(DerivedArtifact.THUMBNAIL.storageKey(context.getHash()), encode(scale(image)));
+        context.setThumbnail(true);
+    }
+
+    private BufferedImage read(ImageInputStream input, String hash) throws IOException {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            log.debug("No image reader for blob {}", hash);
+            return null;
+        }
+
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if ((long) width * height > maxPixels) {
+                log.info("Skipping thumbnail of blob {}: {}x{} is too large", hash, width, height);
+                return null;
+            }
+
+            // Decode at no more than twice the thumbnail size, the final scaling smooths the rest
+            int subsampling = Math.max(1, Math.max(width, height) / (maxDimension * 2));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or unsupported images simply get no thumbnail
+            log.info("Could not decode image blob {}: {}", hash, e.getMessage());
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private BufferedImage scale(BufferedImage source) {
+        double factor = Math.min(1.0, (double) maxDimension / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * factor));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            // JPEG has no alpha channel, transparent areas become white
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return thumbnail;
+    }
+
+    private static byte[] encode(BufferedImage thumbnail) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.8f);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(thumbnail, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package app.emailsystem.ratelimit;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per user, kept as a single timestamp so it can be updated without locks.
+ *
+ * Each bucket holds up to {@code limit} permits and refills at {@code limit} per
+ * {@code period}. Rather than a permit count and a last refill time, a bucket stores the
+ * time at which it would be full again (the generic cell rate algorithm): taking permits
+ * moves that time forward, and a request is allowed if it does not move it more than one
+ * period past now. That is one compare-and-set on an {@link AtomicLong}, so users never
+ * contend with each other and a user's concurrent requests never block.
+ *
+ * Buckets that have filled up again hold no state worth keeping and are removed by
+ * {@link #evictIdle()}.
+ */
+public class RateLimiter {
+
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private final long limit;
+    private final long periodNanos;
+    private final double nanosPerPermit;
+    private final Map<UUID, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(long limit, Duration period) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Rate limit must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.periodNanos = period.toNanos();
+        this.nanosPerPermit = (double) periodNanos / limit;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Take permits from the user's bucket if it holds enough
+     *
+     * @param permits the permits to take, at most {@link #getLimit()}
+     * @return zero if the permits were taken, otherwise how long until the bucket holds enough
+     */
+    public Duration tryAcquire(UUID userId, long permits) {
+        long cost = cost(permits);
+        while (true) {
+            AtomicLong bucket = bucket(userId);
+            long fullAt = bucket.get();
+            if (fullAt == EVICTED) {
+                buckets.remove(userId, bucket);
+                continue;
+            }
+            long now = System.nanoTime();
+            long next = Math.max(fullAt - now, 0) + now + cost;
+            if (next - now > periodNanos) {
+                return Duration.ofNanos(next - now - periodNanos);
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return Duration.ZERO;
+            }
+        }
+    }
+
+    /**
+     * Take permits even if the bucket does not hold enough, for work that was already done
+     * before its size was known. Later requests wait until the bucket has refilled.
+     */
+    public void consume(UUID userId, long permits) {
+        long cost = cost(permits);
+        while (true) {
+            AtomicLong bucket = bucket(userId);
+            long fullAt = bucket.get();
+            if (fullAt == EVICTED) {
+                buckets.remove(userId, bucket);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (bucket.compareAndSet(fullAt, Math.max(fullAt - now, 0) + now + cost)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return permits taken by {@link #tryAcquire} for a request that was then rejected
+     */
+    public void refund(UUID userId, long permits) {
+        AtomicLong bucket = buckets.get(userId);
+        if (bucket != null) {
+            long cost = cost(permits);
+            bucket.getAndUpdate(fullAt -> fullAt == EVICTED ? fullAt : fullAt - cost);
+        }
+    }
+
+    /**
+     * Remove the buckets that have refilled completely
+     *
+     * @return the number of buckets still held
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        buckets.forEach((userId, bucket) -> {
+            long fullAt = bucket.get();
+            // Marking the bucket first makes a request racing with its removal start a new one
+            if (fullAt != EVICTED && fullAt - now <= 0 && bucket.compareAndSet(fullAt, EVICTED)) {
+                buckets.remove(userId, bucket);
+            }
+        });
+        return buckets.size();
+    }
+
+    private AtomicLong bucket(UUID userId) {
+        return buckets.computeIfAbsent(userId, id -> new AtomicLong(System.nanoTime()));
+    }
+
+    private long cost(long permits) {
+        return (long) Math.ceil(permits * nanosPerPermit);
+    }
+}
@@ -0,0 +1,255 @@
+package app.emailsystem.ratelimit;
+
+import app.emailsystem.dto.EmailDTO;
+import app.emailsystem.entity.DistributionList;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.RateLimitExceededException;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.DistributionListService;
+import app.emailsystem.service.EmailService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user limits on the compose path, checked before a send or draft save opens a
+ * transaction, so one user cannot tie up the connection pool or the attachment storage.
+ *
+ * Three limits apply, each a {@link RateLimiter}: messages per minute (sends and draft
+ * saves), recipients per hour and uploaded bytes per hour. A request has to fit all three;
+ * if one rejects it, what the others took is given back. A distribution list counts as
+ * its members, since delivery expands it to them.
+ *
+ * Limits are configured per role, as {@code rate-limit.<role>.messages-per-minute} and so
+ * on, where the role is the user's authority without its {@code ROLE_} prefix. A role
+ * without its own setting uses {@code rate-limit.default.*}.
+ */
+@Slf4j
+@Component
+public class SendRateLimiter {
+
+    private static final String DEFAULT_ROLE = "default";
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final DistributionListService distributionListService;
+    private final boolean enabled;
+    private final Map<String, RoleLimits> limits = new ConcurrentHashMap<>();
+
+    @Autowired
+    public SendRateLimiter(Environment environment,
+                           MeterRegistry meterRegistry,
+                           DistributionListService distributionListService,
+                           @Value("${rate-limit.enabled:true}") boolean enabled) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.distributionListService = distributionListService;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Count a send against the user's limits
+     *
+     * @throws RateLimitExceededException if the user has to wait before sending this
+     * @throws EmailSystemException if the email is larger than a limit allows at all
+     */
+    public void checkSend(CustomUserDetails userDetails, EmailDTO emailDTO) {
+        if (!enabled) {
+            return;
+        }
+        List<String> addresses = new ArrayList<>(EmailService.splitAddresses(emailDTO.getRecipients()));
+        addresses.addAll(EmailService.splitAddresses(emailDTO.getCc()));
+        addresses.addAll(EmailService.splitAddresses(emailDTO.getBcc()));
+        check(userDetails, 1, countRecipients(addresses), uploadSize(emailDTO));
+    }
+
+    /**
+     * Count a message submitted over SMTP against the user's limits; its size counts as
+     * uploaded bytes, as attachments do on the compose form
+     */
+    public void checkSubmission(CustomUserDetails userDetails, Collection<String> recipients, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        check(userDetails, 1, countRecipients(recipients), bytes);
+    }
+
+    /**
+     * Count a draft save, or a broadcast, against the user's limits. Neither reaches
+     * recipients through delivery, so only the message and its uploads are counted.
+     */
+    public void checkDraft(CustomUserDetails userDetails, EmailDTO emailDTO) {
+        check(userDetails, 1, 0, uploadSize(emailDTO));
+    }
+
+    /**
+     * Count an upload of the given size against the user's limits
+     */
+    public void checkUpload(CustomUserDetails userDetails, long bytes) {
+        check(userDetails, 0, 0, bytes);
+    }
+
+    /**
+     * Count an upload whose size was only known once it was received. It is not
+     * rejected, but the user's next uploads wait for it.
+     */
+    public void recordUpload(CustomUserDetails userDetails, long bytes) {
+        if (enabled && bytes > 0) {
+            limitsFor(userDetails).bytes.limiter.consume(userDetails.getUser().getId(), bytes);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${rate-limit.eviction-interval-ms:600000}")
+    public void evictIdle() {
+        int held = 0;
+        for (RoleLimits role : limits.values()) {
+            held += role.messages.limiter.evictIdle() + role.recipients.limiter.evictIdle()
+                + role.bytes.limiter.evictIdle();
+        }
+        log.debug("Rate limiter holds {} active buckets", held);
+    }
+
+    private void check(CustomUserDetails userDetails, long messages, long recipients, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        UUID userId = userDetails.getUser().getId();
+        RoleLimits role = limitsFor(userDetails);
+
+        Limit[] dimensions = {role.messages, role.recipients, role.bytes};
+        long[] permits = {messages, recipients, bytes};
+        for (int i = 0; i < dimensions.length; i++) {
+            if (permits[i] <= 0) {
+                continue;
+            }
+            Limit limit = dimensions[i];
+            if (permits[i] > limit.limiter.getLimit()) {
+                refund(userId, dimensions, permits, i);
+                limit.throttled.increment();
+                throw new EmailSystemException("This exceeds your limit of " + limit.limiter.getLimit()
+                    + " " + limit.description);
+            }
+            Duration wait = limit.limiter.tryAcquire(userId, permits[i]);
+            if (!wait.isZero()) {
+                refund(userId, dimensions, permits, i);
+                limit.throttled.increment();
+                long retryAfter = Math.max(1, (wait.toMillis() + 999) / 1000);
+                log.info("Throttled user {}: {} {} exceeded, retry after {}s",
+                    userId, limit.limiter.getLimit(), limit.description, retryAfter);
+                throw new RateLimitExceededException("You have reached your limit of "
+                    + limit.limiter.getLimit() + " " + limit.description
+                    + ". Try again in " + retryAfter + " seconds.", retryAfter);
+            }
+        }
+    }
+
+    private static void refund(UUID userId, Limit[] dimensions, long[] permits, int failed) {
+        for (int i = 0; i < failed; i++) {
+            if (permits[i] > 0) {
+                dimensions[i].limiter.refund(userId, permits[i]);
+            }
+        }
+    }
+
+    /**
+     * The recipients the addresses reach: the members of each distribution list among
+     * them, and one for every other address
+     */
+    private long countRecipients(Collection<String> addresses) {
+        Set<String> lookup = new HashSet<>();
+        addresses.forEach(address -> lookup.add(address.toLowerCase(Locale.ROOT)));
+        Map<String, DistributionList> lists = distributionListService.findByAddresses(lookup);
+        long recipients = 0;
+        for (String address : addresses) {
+            DistributionList list = lists.get(address.toLowerCase(Locale.ROOT));
+            recipients += list != null ? list.getMemberCount() : 1;
+        }
+        return recipients;
+    }
+
+    private static long uploadSize(EmailDTO emailDTO) {
+        long bytes = 0;
+        if (emailDTO.getAttachments() != null) {
+            for (MultipartFile file : emailDTO.getAttachments()) {
+                bytes += file.getSize();
+            }
+        }
+        return bytes;
+    }
+
+    private RoleLimits limitsFor(CustomUserDetails userDetails) {
+        String role = DEFAULT_ROLE;
+        for (GrantedAuthority authority : userDetails.getAuthorities()) {
+            String name = authority.getAuthority();
+            if (name != null && name.startsWith("ROLE_")) {
+                role = name.substring("ROLE_".length()).toLowerCase(Locale.ROOT);
+                break;
+            }
+        }
+        return limits.computeIfAbsent(role, this::createLimits);
+    }
+
+    private RoleLimits createLimits(String role) {
+        return new RoleLimits(
+            limit(role, "messages-per-minute", 30, Duration.ofMinutes(1), "messages", "messages per minute"),
+            limit(role, "recipients-per-hour", 1000, Duration.ofHours(1), "recipients", "recipients per hour"),
+            limit(role, "upload-bytes-per-hour", 2147483648L, Duration.ofHours(1), "bytes", "bytes uploaded per hour"));
+    }
+
+    private Limit limit(String role, String property, long defaultLimit, Duration period,
+                        String dimension, String description) {
+        long fallback = environment.getProperty("rate-limit." + DEFAULT_ROLE + "." + property, Long.class, defaultLimit);
+        long value = environment.getProperty("rate-limit." + role + "." + property, Long.class, fallback);
+        Counter throttled = Counter.builder("rate.limit.throttled")
+            .description("Requests rejected by a per-user rate limit")
+            .tag("dimension", dimension)
+            .tag("role", role)
+            .register(meterRegistry);
+        return new Limit(new RateLimiter(value, period), description, throttled);
+    }
+
+    /**
+     * One limit of a role, with its own buckets
+     */
+    private static final class Limit {
+        private final RateLimiter limiter;
+        private final String description;
+        private final Counter throttled;
+
+        private Limit(RateLimiter limiter, String description, Counter throttled) {
+            this.limiter = limiter;
+            this.description = description;
+            this.throttled = throttled;
+        }
+    }
+
+    private static final class RoleLimits {
+        private final Limit messages;
+        private final Limit recipients;
+        private final Limit bytes;
+
+        private RoleLimits(Limit messages, Limit recipients, Limit bytes) {
+            this.messages = messages;
+            this.recipients = recipients;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.AttachmentBlob;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface AttachmentBlobRepository extends JpaRepository<AttachmentBlob, String> {
+
+    /**
+     * Create the blob row unless it already exists. Concurrent uploads of the same
+     * content race on the primary key, so the insert must not fail on duplicates.
+     */
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO attachment_blobs " +
+                   "(hash, size, codec, stored_size, crc32, ref_count, created_at, processing_state, processing_attempts) " +
+                   "VALUES (:hash, :size, :codec, :storedSize, :crc32, 0, :createdAt, 'PENDING', 0)", nativeQuery = true)
+    int insertIfAbsent(@Param("hash") String hash,
+                       @Param("size") long size,
+                       @Param("codec") String codec,
+                       @Param("storedSize") long storedSize,
+                       @Param("crc32") long crc32,
+                       @Param("createdAt") LocalDateTime createdAt);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM AttachmentBlob b WHERE b.hash = :hash")
+    Optional<AttachmentBlob> findByHashForUpdate(@Param("hash") String hash);
+
+    /**
+     * Find blobs whose last reference went away before the given time
+     */
+    @Query("SELECT b.hash FROM AttachmentBlob b WHERE b.refCount <= 0 AND b.releasedAt < :releasedBefore ORDER BY b.releasedAt")
+    List<String> findReleasedBefore(@Param("releasedBefore") LocalDateTime releasedBefore, Pageable pageable);
+
+    /**
+     * Find blobs that still need post-processing and are not leased by a worker.
+     * Blobs stored before post-processing existed have no state and are included.
+     */
+    @Query("SELECT b.hash FROM AttachmentBlob b " +
+           "WHERE (b.processingState IS NULL OR b.processingState = app.emailsystem.entity.AttachmentBlob.ProcessingState.PENDING) " +
+           "AND b.refCount > 0 AND (b.nextAttemptAt IS NULL OR b.nextAttemptAt <= :now) ORDER BY b.createdAt")
+    List<String> findProcessable(@Param("now") LocalDateTime now, Pageable pageable);
+
+    /**
+     * Lease a blob for post-processing. Only one worker, on any instance, wins the update.
+     *
+     * @return 1 if the lease was taken, 0 if another worker got it first
+     */
+    @Modifying
+    @Query("UPDATE AttachmentBlob b SET b.processingState = app.emailsystem.entity.AttachmentBlob.ProcessingState.PENDING, " +
+           "b.nextAttemptAt = :leaseUntil, b.processingAttempts = b.processingAttempts + 1 " +
+           "WHERE b.hash = :hash " +
+           "AND (b.processingState IS NULL OR b.processingState = app.emailsystem.entity.AttachmentBlob.ProcessingState.PENDING) " +
+           "AND (b.nextAttemptAt IS NULL OR b.nextAttemptAt <= :now)")
+    int claimForProcessing(@Param("hash") String hash, @Param("now") LocalDateTime now, @Param("leaseUntil") LocalDateTime leaseUntil);
+
+    /**
+     * Blobs in keyset order of their hash
+     */
+    @Query("SELECT b FROM AttachmentBlob b WHERE b.hash > :after ORDER BY b.hash")
+    List<AttachmentBlob> findAfter(@Param("after") String after, Pageable pageable);
+
+    @Query("SELECT b.hash FROM AttachmentBlob b WHERE b.hash IN :hashes")
+    List<String> findExistingHashes(@Param("hashes") Collection<String> hashes);
+
+    @Query("SELECT COUNT(b) FROM AttachmentBlob b " +
+           "WHERE b.processingState IS NULL OR b.processingState = app.emailsystem.entity.AttachmentBlob.ProcessingState.PENDING")
+    long countPendingProcessing();
+}
@@ -0,0 +1,31 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.AttachmentPayload;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+import java.util.UUID;
+
+public interface AttachmentPayloadRepository extends JpaRepository<AttachmentPayload, UUID> {
+
+    /**
+     * Find IDs of attachments whose bytes are still stored in the database, in ID order
+     * 
+     * @param after only IDs greater than this are returned
+     * @param pageable the maximum number of IDs to return
+     * @return list of attachment IDs
+     */
+    @Query("SELECT p.id FROM AttachmentPayload p WHERE p.data IS NOT NULL AND p.id > :after ORDER BY p.id")
+    List<UUID> findLegacyAttachmentIds(@Param("after") UUID after, Pageable pageable);
+
+    @Query("SELECT p.data FROM AttachmentPayload p WHERE p.id = :id")
+    byte[] findDataById(@Param("id") UUID id);
+
+    @Modifying
+    @Query("UPDATE AttachmentPayload p SET p.data = null WHERE p.id = :id")
+    int clearData(@Param("id") UUID id);
+}
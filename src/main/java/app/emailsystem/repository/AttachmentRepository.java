@@ -1,11 +1,19 @@
 package app.emailsystem.repository;
 
+import app.emailsystem.dto.AttachmentDTO;
 import app.emailsystem.entity.Attachment;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.UUID;
 import java.util.List;
+import java.util.Optional;
 
 public interface AttachmentRepository extends JpaRepository<Attachment, UUID> {
     List<Attachment> findByEmailId(UUID emailId);
@@ -18,4 +26,103 @@ public interface AttachmentRepository extends JpaRepository<Attachment, UUID> {
      */
     @Query("SELECT a.email.id, COUNT(a) FROM Attachment a WHERE a.email.id IN :emailIds GROUP BY a.email.id")
     List<Object[]> findEmailIdsWithAttachmentCounts(@Param("emailIds") List<UUID> emailIds);
+    
+    /**
+     * Count attachment rows per content hash for the given emails
+     * 
+     * @param emailIds the list of email IDs
+     * @return list of content hashes with reference counts as Object[]
+     */
+    @Query("SELECT a.contentHash, COUNT(a) FROM Attachment a WHERE a.email.id IN :emailIds AND a.contentHash IS NOT NULL GROUP BY a.contentHash")
+    List<Object[]> countContentHashesByEmailIds(@Param("emailIds") List<UUID> emailIds);
+    
+    /**
+     * Load attachment metadata for an email without touching the content
+     * 
+     * @param emailId the email ID
+     * @return attachment DTOs without download URLs
+     */
+    @Query("SELECT new app.emailsystem.dto.AttachmentDTO(a.id, a.filename, a.contentType, a.size, a.email.id, " +
+           "b.detectedContentType, b.hasThumbnail, b.hasText) " +
+           "FROM Attachment a LEFT JOIN AttachmentBlob b ON b.hash = a.contentHash " +
+           "WHERE a.email.id = :emailId ORDER BY a.createdAt")
+    List<AttachmentDTO> findMetadataByEmailId(@Param("emailId") UUID emailId);
+
+    /**
+     * Attachments of the given emails together with their blob rows, which are null
+     * for content that predates reference counting
+     * 
+     * @return rows of {@link Attachment} and {@link app.emailsystem.entity.AttachmentBlob}
+     */
+    @Query("SELECT a, b FROM Attachment a LEFT JOIN AttachmentBlob b ON b.hash = a.contentHash " +
+           "WHERE a.email.id IN :emailIds ORDER BY a.createdAt")
+    List<Object[]> findWithBlobsByEmailIds(@Param("emailIds") Collection<UUID> emailIds);
+
+    /**
+     * The given attachments of emails the user sent or received, e.g. to forward them
+     */
+    @Query("SELECT a FROM Attachment a WHERE a.id IN :ids " +
+           "AND EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = a.email AND m.owner.id = :userId) ORDER BY a.createdAt")
+    List<Attachment> findAccessibleByIds(@Param("ids") Collection<UUID> ids, @Param("userId") UUID userId);
+
+    /**
+     * Lock the given attachments that are pending uploads of the user, i.e. not referenced by any email yet
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT a FROM Attachment a WHERE a.id IN :ids AND a.email IS NULL AND a.uploadedBy.id = :ownerId ORDER BY a.id")
+    List<Attachment> findPendingUploadsForUpdate(@Param("ids") Collection<UUID> ids, @Param("ownerId") UUID ownerId);
+
+    /**
+     * Content hashes among the given ones that the user can already read: attachments of
+     * emails the user sent or received, and the user's own pending uploads
+     */
+    @Query("SELECT DISTINCT a.contentHash FROM Attachment a WHERE a.contentHash IN :hashes " +
+           "AND (EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = a.email AND m.owner.id = :userId) " +
+           "OR (a.email IS NULL AND a.uploadedBy.id = :userId))")
+    List<String> findAccessibleContentHashes(@Param("hashes") Collection<String> hashes, @Param("userId") UUID userId);
+
+    /**
+     * Lock pending uploads that were never attached to an email
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT a FROM Attachment a WHERE a.email IS NULL AND a.uploadedBy IS NOT NULL AND a.createdAt < :createdBefore ORDER BY a.createdAt")
+    List<Attachment> findStalePendingUploadsForUpdate(@Param("createdBefore") LocalDateTime createdBefore, Pageable pageable);
+
+    /**
+     * Attachments that belong to no email and are not pending uploads, in keyset order.
+     * Served by the index on {@code email_id}, which also holds the primary key.
+     */
+    @Query("SELECT a.id FROM Attachment a WHERE a.email IS NULL AND a.uploadedBy IS NULL AND a.id > :after ORDER BY a.id")
+    List<UUID> findDetachedIdsAfter(@Param("after") UUID after, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT a FROM Attachment a WHERE a.id = :id AND a.email IS NULL AND a.uploadedBy IS NULL AND a.createdAt < :createdBefore")
+    Optional<Attachment> findDetachedForUpdate(@Param("id") UUID id, @Param("createdBefore") LocalDateTime createdBefore);
+
+    /**
+     * Count attachment rows per content hash
+     *
+     * @return content hashes with the number of rows pointing at them as Object[]
+     */
+    @Query("SELECT a.contentHash, COUNT(a) FROM Attachment a WHERE a.contentHash IN :hashes GROUP BY a.contentHash")
+    List<Object[]> countByContentHashes(@Param("hashes") Collection<String> hashes);
+
+    long countByContentHash(String contentHash);
+
+    /**
+     * Content types declared by the uploaders of the given content, oldest first
+     */
+    @Query("SELECT a.contentType FROM Attachment a WHERE a.contentHash = :contentHash ORDER BY a.createdAt")
+    List<String> findContentTypesByContentHash(@Param("contentHash") String contentHash, Pageable pageable);
+    
+    /**
+     * Point a legacy attachment at its content in the attachment storage
+     * 
+     * @param id the attachment ID
+     * @param contentHash the storage key of the migrated content
+     * @return the number of updated rows
+     */
+    @Modifying
+    @Query("UPDATE Attachment a SET a.contentHash = :contentHash WHERE a.id = :id AND a.contentHash IS NULL")
+    int markMigrated(@Param("id") UUID id, @Param("contentHash") String contentHash);
 } 
\ No newline at end of file
@@ -0,0 +1,81 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.DeliveryJob;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface DeliveryJobRepository extends JpaRepository<DeliveryJob, UUID> {
+
+    /**
+     * Lock the next jobs due for delivery, skipping rows another worker holds.
+     * A lock timeout of -2 is Hibernate's SKIP_LOCKED, rendered as
+     * {@code FOR UPDATE SKIP LOCKED}, so concurrent workers claim different jobs
+     * without waiting on each other.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "-2"))
+    @Query("SELECT j FROM DeliveryJob j " +
+           "WHERE j.state = app.emailsystem.entity.DeliveryJob.State.PENDING AND j.nextAttemptAt <= :now " +
+           "ORDER BY j.nextAttemptAt")
+    List<DeliveryJob> claimDue(@Param("now") LocalDateTime now, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT j FROM DeliveryJob j WHERE j.id = :id")
+    Optional<DeliveryJob> findByIdForUpdate(@Param("id") UUID id);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT j FROM DeliveryJob j WHERE j.email.id = :emailId")
+    Optional<DeliveryJob> findByEmailIdForUpdate(@Param("emailId") UUID emailId);
+
+    /**
+     * IDs and due times of the pending jobs due in the given window, for the delivery
+     * timers; uses the claim index
+     *
+     * @return job IDs with their next attempt times as Object[]
+     */
+    @Query("SELECT j.id, j.nextAttemptAt FROM DeliveryJob j " +
+           "WHERE j.state = app.emailsystem.entity.DeliveryJob.State.PENDING " +
+           "AND j.nextAttemptAt > :from AND j.nextAttemptAt <= :to")
+    List<Object[]> findDueBetween(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+
+    Optional<DeliveryJob> findBySenderIdAndIdempotencyKey(UUID senderId, String idempotencyKey);
+
+    List<DeliveryJob> findByEmailIdIn(Collection<UUID> emailIds);
+
+    /**
+     * Which of the given emails still have recipients to be delivered to
+     */
+    @Query("SELECT j.email.id FROM DeliveryJob j " +
+           "WHERE j.state = app.emailsystem.entity.DeliveryJob.State.PENDING AND j.email.id IN :emailIds")
+    List<UUID> findPendingEmailIds(@Param("emailIds") Collection<UUID> emailIds);
+
+    @Query("SELECT COUNT(j) FROM DeliveryJob j WHERE j.state = app.emailsystem.entity.DeliveryJob.State.PENDING")
+    long countPending();
+
+    @Modifying
+    @Query("DELETE FROM DeliveryJob j WHERE j.email.id IN :emailIds")
+    int deleteByEmailIds(@Param("emailIds") Collection<UUID> emailIds);
+
+    /**
+     * Forget the idempotency keys of finished jobs, which only guard against a form
+     * submitted twice in a short time
+     */
+    @Modifying
+    @Query("UPDATE DeliveryJob j SET j.idempotencyKey = NULL " +
+           "WHERE j.state <> app.emailsystem.entity.DeliveryJob.State.PENDING " +
+           "AND j.idempotencyKey IS NOT NULL AND j.completedAt < :before")
+    int clearIdempotencyKeys(@Param("before") LocalDateTime before);
+}
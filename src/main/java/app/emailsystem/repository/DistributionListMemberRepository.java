@@ -0,0 +1,37 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.DistributionListMember;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface DistributionListMemberRepository extends JpaRepository<DistributionListMember, UUID> {
+
+    @Query(value = "SELECT m FROM DistributionListMember m JOIN FETCH m.user u WHERE m.list.id = :listId ORDER BY u.email",
+           countQuery = "SELECT COUNT(m) FROM DistributionListMember m WHERE m.list.id = :listId")
+    Page<DistributionListMember> findByListId(@Param("listId") UUID listId, Pageable pageable);
+
+    /**
+     * The user IDs of all members, without loading the users
+     */
+    @Query("SELECT m.user.id FROM DistributionListMember m WHERE m.list.id = :listId")
+    List<UUID> findUserIds(@Param("listId") UUID listId);
+
+    @Query("SELECT m.user.id FROM DistributionListMember m WHERE m.list.id = :listId AND m.user.id IN :userIds")
+    List<UUID> findUserIds(@Param("listId") UUID listId, @Param("userIds") Collection<UUID> userIds);
+
+    @Modifying
+    @Query("DELETE FROM DistributionListMember m WHERE m.list.id = :listId AND m.user.id = :userId")
+    int deleteByListIdAndUserId(@Param("listId") UUID listId, @Param("userId") UUID userId);
+
+    @Modifying
+    @Query("DELETE FROM DistributionListMember m WHERE m.list.id = :listId")
+    int deleteByListId(@Param("listId") UUID listId);
+}
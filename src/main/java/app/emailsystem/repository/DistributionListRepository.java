@@ -0,0 +1,29 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.DistributionList;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface DistributionListRepository extends JpaRepository<DistributionList, UUID> {
+
+    List<DistributionList> findByOwnerIdOrderByName(UUID ownerId);
+
+    List<DistributionList> findByAddressIn(Collection<String> addresses);
+
+    boolean existsByAddress(String address);
+
+    /**
+     * Lock a list so that concurrent member changes are applied, and versioned, one at a time
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM DistributionList l WHERE l.id = :id")
+    Optional<DistributionList> findByIdForUpdate(@Param("id") UUID id);
+}
@@ -1,24 +1,56 @@
 package app.emailsystem.repository;
 
 import app.emailsystem.entity.Email;
-import org.springframework.data.domain.Page;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.UUID;
 import java.util.List;
 
 public interface EmailRepository extends JpaRepository<Email, UUID> {
-    Page<Email> findByRecipientIdAndTrashFalseOrderByCreatedAtDesc(UUID userId, Pageable pageable);
     
-    @Query("SELECT e FROM Email e JOIN FETCH e.sender WHERE e.recipient.id = :userId AND e.trash = false ORDER BY e.createdAt DESC")
-    List<Email> findInboxEmailsWithSender(@Param("userId") UUID userId);
+    /**
+     * Find which of the given emails the user sent or received, with their subjects
+     * 
+     * @return rows of email ID and subject
+     */
+    @Query("SELECT e.id, e.subject FROM Email e WHERE e.id IN :ids " +
+           "AND EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = e AND m.owner.id = :userId)")
+    List<Object[]> findAccessibleSubjects(@Param("ids") Collection<UUID> ids, @Param("userId") UUID userId);
     
-    Page<Email> findBySenderIdAndSentTrueAndTrashFalseOrderByCreatedAtDesc(UUID userId, Pageable pageable);
-    Page<Email> findBySenderIdAndDraftTrueAndTrashFalseOrderByCreatedAtDesc(UUID userId, Pageable pageable);
-    Page<Email> findByTrashTrueAndSenderIdOrTrashTrueAndRecipientIdOrderByCreatedAtDesc(UUID senderId, UUID recipientId, Pageable pageable);
+    /**
+     * Lock the given emails, in ID order so concurrent deletes cannot deadlock
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT e FROM Email e WHERE e.id IN :ids ORDER BY e.id")
+    List<Email> findAllForUpdate(@Param("ids") Collection<UUID> ids);
     
-    // Count unread emails
-    long countByRecipientIdAndReadFalseAndTrashFalse(UUID userId);
-} 
\ No newline at end of file
+    /**
+     * Emails written before mailbox entries existed, which have none. Broadcasts may
+     * have none either and are left out.
+     */
+    @Query("SELECT e FROM Email e JOIN FETCH e.sender JOIN FETCH e.recipient WHERE e.id > :after " +
+           "AND e.broadcast = false AND NOT EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = e) ORDER BY e.id")
+    List<Email> findWithoutEntries(@Param("after") UUID after, Pageable pageable);
+
+    /**
+     * Broadcasts since the given time that are in none of the user's mailboxes, newest first
+     */
+    @Query("SELECT e FROM Email e JOIN FETCH e.sender JOIN FETCH e.recipient " +
+           "WHERE e.broadcast = true AND e.createdAt >= :since " +
+           "AND NOT EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = e AND m.owner.id = :userId) " +
+           "ORDER BY e.createdAt DESC")
+    List<Email> findUnseenBroadcasts(@Param("userId") UUID userId, @Param("since") LocalDateTime since,
+                                     Pageable pageable);
+
+    @Query("SELECT COUNT(e) FROM Email e WHERE e.broadcast = true AND e.createdAt >= :since " +
+           "AND NOT EXISTS (SELECT m.id FROM MailboxEntry m WHERE m.email = e AND m.owner.id = :userId)")
+    long countUnseenBroadcasts(@Param("userId") UUID userId, @Param("since") LocalDateTime since);
+
+    boolean existsByIdAndBroadcastTrueAndCreatedAtAfter(UUID id, LocalDateTime since);
+}
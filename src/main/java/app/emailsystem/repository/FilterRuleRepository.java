@@ -0,0 +1,24 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.FilterRule;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface FilterRuleRepository extends JpaRepository<FilterRule, UUID> {
+
+    @Query("SELECT r FROM FilterRule r LEFT JOIN FETCH r.label WHERE r.owner.id = :ownerId ORDER BY r.createdAt")
+    List<FilterRule> findByOwnerId(@Param("ownerId") UUID ownerId);
+
+    /**
+     * The rules of all the given users, for compiling them at once
+     */
+    @Query("SELECT r FROM FilterRule r WHERE r.owner.id IN :ownerIds ORDER BY r.createdAt")
+    List<FilterRule> findByOwnerIdIn(@Param("ownerIds") Collection<UUID> ownerIds);
+
+    long countByOwnerId(UUID ownerId);
+}
@@ -3,9 +3,22 @@ package app.emailsystem.repository;
 import app.emailsystem.entity.Label;
 import app.emailsystem.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 public interface LabelRepository extends JpaRepository<Label, UUID> {
     List<Label> findByUser(User user);
+
+    Optional<Label> findByUserIdAndName(UUID userId, String name);
+
+    /**
+     * Add an email to a label without loading the label's emails; adding it twice is a no-op
+     */
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO email_labels (label_id, email_id) VALUES (:labelId, :emailId)", nativeQuery = true)
+    int addEmail(@Param("labelId") UUID labelId, @Param("emailId") UUID emailId);
 } 
\ No newline at end of file
@@ -0,0 +1,86 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.MailboxEntry;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+public interface MailboxEntryRepository extends JpaRepository<MailboxEntry, UUID> {
+
+    /**
+     * A folder of the user, newest first, with the messages and their senders
+     */
+    @Query(value = "SELECT m FROM MailboxEntry m JOIN FETCH m.email e JOIN FETCH e.sender JOIN FETCH e.recipient " +
+                   "WHERE m.owner.id = :ownerId AND m.mailbox = :mailbox AND m.trash = false ORDER BY m.createdAt DESC",
+           countQuery = "SELECT COUNT(m) FROM MailboxEntry m " +
+                        "WHERE m.owner.id = :ownerId AND m.mailbox = :mailbox AND m.trash = false")
+    Page<MailboxEntry> findFolder(@Param("ownerId") UUID ownerId, @Param("mailbox") MailboxEntry.Mailbox mailbox,
+                                  Pageable pageable);
+
+    @Query(value = "SELECT m FROM MailboxEntry m JOIN FETCH m.email e JOIN FETCH e.sender JOIN FETCH e.recipient " +
+                   "WHERE m.owner.id = :ownerId AND m.trash = true ORDER BY m.createdAt DESC",
+           countQuery = "SELECT COUNT(m) FROM MailboxEntry m WHERE m.owner.id = :ownerId AND m.trash = true")
+    Page<MailboxEntry> findTrash(@Param("ownerId") UUID ownerId, Pageable pageable);
+
+    List<MailboxEntry> findByEmailIdAndOwnerId(UUID emailId, UUID ownerId);
+
+    boolean existsByEmailIdAndOwnerId(UUID emailId, UUID ownerId);
+
+    @Query("SELECT m.email.id FROM MailboxEntry m WHERE m.owner.id = :ownerId AND m.trash = true")
+    List<UUID> findTrashedEmailIds(@Param("ownerId") UUID ownerId);
+
+    long countByOwnerIdAndMailboxAndReadFalseAndTrashFalse(UUID ownerId, MailboxEntry.Mailbox mailbox);
+
+    /**
+     * Number of the user's entries in a folder newer than the given time, used to place
+     * broadcasts among them
+     */
+    @Query("SELECT COUNT(m) FROM MailboxEntry m WHERE m.owner.id = :ownerId AND m.mailbox = :mailbox " +
+           "AND m.trash = false AND m.createdAt > :createdAt")
+    long countNewer(@Param("ownerId") UUID ownerId, @Param("mailbox") MailboxEntry.Mailbox mailbox,
+                    @Param("createdAt") LocalDateTime createdAt);
+
+    /**
+     * Turn the user's inbox entries of broadcasts among the given emails into dismissed
+     * entries, instead of deleting them
+     */
+    @Modifying
+    @Query("UPDATE MailboxEntry m SET m.mailbox = app.emailsystem.entity.MailboxEntry.Mailbox.DISMISSED, " +
+           "m.trash = false, m.read = true " +
+           "WHERE m.owner.id = :ownerId AND m.mailbox = app.emailsystem.entity.MailboxEntry.Mailbox.INBOX " +
+           "AND (:trashedOnly = false OR m.trash = true) " +
+           "AND m.email.id IN (SELECT e.id FROM Email e WHERE e.broadcast = true AND e.id IN :emailIds)")
+    int dismissBroadcasts(@Param("ownerId") UUID ownerId, @Param("emailIds") Collection<UUID> emailIds,
+                          @Param("trashedOnly") boolean trashedOnly);
+
+    @Modifying
+    @Query("DELETE FROM MailboxEntry m WHERE m.owner.id = :ownerId AND m.email.id IN :emailIds " +
+           "AND m.mailbox <> app.emailsystem.entity.MailboxEntry.Mailbox.DISMISSED")
+    int deleteByOwnerIdAndEmailIds(@Param("ownerId") UUID ownerId, @Param("emailIds") Collection<UUID> emailIds);
+
+    @Modifying
+    @Query("DELETE FROM MailboxEntry m WHERE m.owner.id = :ownerId AND m.trash = true AND m.email.id IN :emailIds")
+    int deleteTrashedByOwnerIdAndEmailIds(@Param("ownerId") UUID ownerId, @Param("emailIds") Collection<UUID> emailIds);
+
+    /**
+     * Which of the given emails still have an entry in some mailbox
+     */
+    @Query("SELECT DISTINCT m.email.id FROM MailboxEntry m WHERE m.email.id IN :emailIds")
+    List<UUID> findReferencedEmailIds(@Param("emailIds") Collection<UUID> emailIds);
+
+    /**
+     * Which of the given users already have the email in one of the given mailboxes
+     */
+    @Query("SELECT m.owner.id FROM MailboxEntry m " +
+           "WHERE m.email.id = :emailId AND m.mailbox IN :mailboxes AND m.owner.id IN :ownerIds")
+    List<UUID> findOwnerIds(@Param("emailId") UUID emailId, @Param("mailboxes") Collection<MailboxEntry.Mailbox> mailboxes,
+                            @Param("ownerIds") Collection<UUID> ownerIds);
+}
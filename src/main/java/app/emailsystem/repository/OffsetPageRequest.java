@@ -0,0 +1,67 @@
+package app.emailsystem.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+/**
+ * A {@link Pageable} starting at any offset rather than at a multiple of its size, for
+ * paging one source of a list merged from several
+ */
+public class OffsetPageRequest implements Pageable {
+
+    private final long offset;
+    private final int size;
+
+    public OffsetPageRequest(long offset, int size) {
+        if (offset < 0 || size < 1) {
+            throw new IllegalArgumentException("Offset must not be negative and size must be positive");
+        }
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return (int) (offset / size);
+    }
+
+    @Override
+    public int getPageSize() {
+        return size;
+    }
+
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public Sort getSort() {
+        return Sort.unsorted();
+    }
+
+    @Override
+    public Pageable next() {
+        return new OffsetPageRequest(offset + size, size);
+    }
+
+    @Override
+    public Pageable previousOrFirst() {
+        return hasPrevious() ? new OffsetPageRequest(Math.max(0, offset - size), size) : first();
+    }
+
+    @Override
+    public Pageable first() {
+        return new OffsetPageRequest(0, size);
+    }
+
+    @Override
+    public Pageable withPage(int pageNumber) {
+        return new OffsetPageRequest((long) pageNumber * size, size);
+    }
+
+    @Override
+    public boolean hasPrevious() {
+        return offset > 0;
+    }
+}
@@ -0,0 +1,30 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.UploadSession;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface UploadSessionRepository extends JpaRepository<UploadSession, UUID> {
+
+    @Query("SELECT s FROM UploadSession s WHERE s.id = :id AND s.owner.id = :ownerId")
+    Optional<UploadSession> findByIdAndOwnerId(@Param("id") UUID id, @Param("ownerId") UUID ownerId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT s FROM UploadSession s WHERE s.id = :id AND s.owner.id = :ownerId")
+    Optional<UploadSession> findByIdAndOwnerIdForUpdate(@Param("id") UUID id, @Param("ownerId") UUID ownerId);
+
+    @Query("SELECT COUNT(s) FROM UploadSession s WHERE s.owner.id = :ownerId AND s.state = app.emailsystem.entity.UploadSession.State.OPEN")
+    long countOpenByOwnerId(@Param("ownerId") UUID ownerId);
+
+    @Query("SELECT s.id FROM UploadSession s WHERE s.expiresAt < :now ORDER BY s.expiresAt")
+    List<UUID> findExpired(@Param("now") LocalDateTime now, Pageable pageable);
+}
@@ -2,10 +2,27 @@ package app.emailsystem.repository;
 
 import app.emailsystem.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 public interface UserRepository extends JpaRepository<User, UUID> {
     Optional<User> findByEmail(String email);
+    List<User> findByEmailIn(Collection<String> emails);
     boolean existsByEmail(String email);
+
+    /**
+     * The filter versions of those of the given users that ever had filter rules, as
+     * {@code [userId, filterVersion]} rows
+     */
+    @Query("SELECT u.id, u.filterVersion FROM User u WHERE u.id IN :userIds AND u.filterVersion > 0")
+    List<Object[]> findFilterVersions(@Param("userIds") Collection<UUID> userIds);
+
+    @Modifying
+    @Query("UPDATE User u SET u.filterVersion = u.filterVersion + 1 WHERE u.id = :userId")
+    int incrementFilterVersion(@Param("userId") UUID userId);
 } 
\ No newline at end of file
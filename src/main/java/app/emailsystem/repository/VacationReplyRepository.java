@@ -0,0 +1,37 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.VacationReply;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public interface VacationReplyRepository extends JpaRepository<VacationReply, UUID> {
+
+    /**
+     * Record a first reply to the sender; 0 if the sender was answered before
+     */
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO vacation_replies (id, owner_id, sender_hash, responder_version, replied_at) " +
+                   "VALUES (:id, :ownerId, :senderHash, :version, :now)", nativeQuery = true)
+    int insertIgnore(@Param("id") UUID id, @Param("ownerId") UUID ownerId, @Param("senderHash") long senderHash,
+                     @Param("version") long version, @Param("now") LocalDateTime now);
+
+    /**
+     * Record another reply to the sender if the last one is older than the period or was
+     * sent by an earlier version of the responder; 0 if not
+     */
+    @Modifying
+    @Query("UPDATE VacationReply r SET r.repliedAt = :now, r.responderVersion = :version " +
+           "WHERE r.ownerId = :ownerId AND r.senderHash = :senderHash " +
+           "AND (r.repliedAt < :before OR r.responderVersion <> :version)")
+    int renew(@Param("ownerId") UUID ownerId, @Param("senderHash") long senderHash,
+              @Param("version") long version, @Param("now") LocalDateTime now, @Param("before") LocalDateTime before);
+
+    @Modifying
+    @Query(value = "DELETE FROM vacation_replies WHERE replied_at < :before LIMIT :limit", nativeQuery = true)
+    int deleteExpired(@Param("before") LocalDateTime before, @Param("limit") int limit);
+}
@@ -0,0 +1,23 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.VacationResponder;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface VacationResponderRepository extends JpaRepository<VacationResponder, UUID> {
+
+    Optional<VacationResponder> findByOwnerId(UUID ownerId);
+
+    /**
+     * Owner ID, version, start and end of the responders that are on and have not ended
+     */
+    @Query("SELECT r.owner.id, r.version, r.startsAt, r.endsAt FROM VacationResponder r " +
+           "WHERE r.enabled = true AND (r.endsAt IS NULL OR r.endsAt > :now)")
+    List<Object[]> findEnabled(@Param("now") LocalDateTime now);
+}
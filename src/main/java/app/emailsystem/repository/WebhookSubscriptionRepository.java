@@ -0,0 +1,21 @@
+package app.emailsystem.repository;
+
+import app.emailsystem.entity.WebhookSubscription;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+import java.util.UUID;
+
+public interface WebhookSubscriptionRepository extends JpaRepository<WebhookSubscription, UUID> {
+
+    List<WebhookSubscription> findByOwnerIdOrderByCreatedAt(UUID ownerId);
+
+    long countByOwnerId(UUID ownerId);
+
+    /**
+     * ID, owner ID, URL, secret and event mask of every subscription
+     */
+    @Query("SELECT s.id, s.owner.id, s.url, s.secret, s.eventMask FROM WebhookSubscription s")
+    List<Object[]> findAllEndpoints();
+}
@@ -0,0 +1,185 @@
+package app.emailsystem.rules;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a set of patterns occur in a text, in one pass over the text however
+ * many patterns there are (the Aho-Corasick automaton).
+ *
+ * The patterns form a trie; each node also links to the node of its longest proper
+ * suffix that is in the trie (its failure link), and to the nearest such node where a
+ * pattern ends (its output link). Matching follows one edge per character of the text,
+ * falling back along failure links where there is none, and reports the patterns ending
+ * at the current node and along its output links.
+ *
+ * The edges are stored in three flat arrays, each node's edges sorted by character, so
+ * an automaton of a few thousand patterns takes a few arrays rather than a map per node.
+ * Matching is case-sensitive; callers normalise patterns and text alike. Instances are
+ * immutable and may be shared between threads.
+ */
+public final class AhoCorasick {
+
+    private static final int ROOT = 0;
+    private static final int LINEAR_SEARCH_EDGES = 8;
+
+    private final int patternCount;
+    /** The edges of node n are at indexes edgeStart[n] to edgeStart[n + 1] */
+    private final int[] edgeStart;
+    private final char[] edgeChar;
+    private final int[] edgeTarget;
+    private final int[] failure;
+    /** The nearest node along the failure links where a pattern ends, -1 if none */
+    private final int[] outputLink;
+    /** The patterns ending at node n are at indexes outputStart[n] to outputStart[n + 1] */
+    private final int[] outputStart;
+    private final int[] outputPattern;
+
+    /**
+     * @param patterns the patterns, identified by their index; empty ones never match
+     */
+    public AhoCorasick(List<String> patterns) {
+        this.patternCount = patterns.size();
+
+        // Trie
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        children.add(new TreeMap<>());
+        ends.add(new ArrayList<>());
+        for (int pattern = 0; pattern < patterns.size(); pattern++) {
+            String text = patterns.get(pattern);
+            if (text.isEmpty()) {
+                continue;
+            }
+            int node = ROOT;
+            for (int i = 0; i < text.length(); i++) {
+                Integer child = children.get(node).get(text.charAt(i));
+                if (child == null) {
+                    child = children.size();
+                    children.add(new TreeMap<>());
+                    ends.add(new ArrayList<>());
+                    children.get(node).put(text.charAt(i), child);
+                }
+                node = child;
+            }
+            ends.get(node).add(pattern);
+        }
+
+        int nodes = children.size();
+        edgeStart = new int[nodes + 1];
+        outputStart = new int[nodes + 1];
+        int edges = 0;
+        int outputs = 0;
+        for (int node = 0; node < nodes; node++) {
+            edgeStart[node] = edges;
+            outputStart[node] = outputs;
+            edges += children.get(node).size();
+            outputs += ends.get(node).size();
+        }
+        edgeStart[nodes] = edges;
+        outputStart[nodes] = outputs;
+        edgeChar = new char[edges];
+        edgeTarget = new int[edges];
+        outputPattern = new int[outputs];
+        for (int node = 0; node < nodes; node++) {
+            int edge = edgeStart[node];
+            for (Map.Entry<Character, Integer> child : children.get(node).entrySet()) {
+                edgeChar[edge] = child.getKey();
+                edgeTarget[edge] = child.getValue();
+                edge++;
+            }
+            int output = outputStart[node];
+            for (int pattern : ends.get(node)) {
+                outputPattern[output++] = pattern;
+            }
+        }
+
+        // Failure and output links, breadth first so a node's suffixes are linked before it
+        failure = new int[nodes];
+        outputLink = new int[nodes];
+        outputLink[ROOT] = -1;
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int edge = edgeStart[ROOT]; edge < edgeStart[ROOT + 1]; edge++) {
+            failure[edgeTarget[edge]] = ROOT;
+            outputLink[edgeTarget[edge]] = -1;
+            queue.add(edgeTarget[edge]);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int edge = edgeStart[node]; edge < edgeStart[node + 1]; edge++) {
+                int child = edgeTarget[edge];
+                int fallback = failure[node];
+                int target;
+                while ((target = next(fallback, edgeChar[edge])) < 0 && fallback != ROOT) {
+                    fallback = failure[fallback];
+                }
+                failure[child] = target >= 0 ? target : ROOT;
+                int suffix = failure[child];
+                outputLink[child] = outputStart[suffix] < outputStart[suffix + 1] ? suffix : outputLink[suffix];
+                queue.add(child);
+            }
+        }
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return the indexes of the patterns that occur in the text
+     */
+    public BitSet match(CharSequence text) {
+        BitSet found = new BitSet(patternCount);
+        if (patternCount == 0) {
+            return found;
+        }
+        int node = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int target;
+            while ((target = next(node, c)) < 0 && node != ROOT) {
+                node = failure[node];
+            }
+            node = target >= 0 ? target : ROOT;
+            for (int output = node; output >= 0; output = outputLink[output]) {
+                for (int j = outputStart[output]; j < outputStart[output + 1]; j++) {
+                    found.set(outputPattern[j]);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The node reached from the given one by the character, -1 if it has no such edge
+     */
+    private int next(int node, char c) {
+        int from = edgeStart[node];
+        int to = edgeStart[node + 1];
+        if (to - from <= LINEAR_SEARCH_EDGES) {
+            for (int edge = from; edge < to; edge++) {
+                if (edgeChar[edge] == c) {
+                    return edgeTarget[edge];
+                }
+            }
+            return -1;
+        }
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            char key = edgeChar[middle];
+            if (key < c) {
+                from = middle + 1;
+            } else if (key > c) {
+                to = middle;
+            } else {
+                return edgeTarget[middle];
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,199 @@
+package app.emailsystem.rules;
+
+import app.emailsystem.entity.FilterRule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * One user's filter rules, compiled so that matching a message costs about the same
+ * whether the user has one rule or a thousand.
+ *
+ * Address rules are looked up in hash maps by the message's addresses and their
+ * domains. Subject and body rules are patterns of an {@link AhoCorasick} automaton per
+ * field, which reads the subject, or body, once for all of them. Immutable, so a
+ * compiled set is shared by all delivery workers.
+ */
+public final class CompiledRules {
+
+    public static final CompiledRules EMPTY = new CompiledRules(List.of());
+
+    private static final int[] NONE = new int[0];
+
+    private final FilterRule.Action[] actions;
+    private final UUID[] labelIds;
+    private final Map<String, int[]> from;
+    private final Map<String, int[]> to;
+    private final AhoCorasick subject;
+    private final int[] subjectRules;
+    private final AhoCorasick body;
+    private final int[] bodyRules;
+
+    /**
+     * @param rules the rules, with their values normalised as {@link FilterMessage} normalises messages
+     */
+    public CompiledRules(List<FilterRule> rules) {
+        actions = new FilterRule.Action[rules.size()];
+        labelIds = new UUID[rules.size()];
+        Map<String, List<Integer>> fromRules = new HashMap<>();
+        Map<String, List<Integer>> toRules = new HashMap<>();
+        List<String> subjectPatterns = new ArrayList<>();
+        List<Integer> subjectIndex = new ArrayList<>();
+        List<String> bodyPatterns = new ArrayList<>();
+        List<Integer> bodyIndex = new ArrayList<>();
+
+        for (int i = 0; i < rules.size(); i++) {
+            FilterRule rule = rules.get(i);
+            actions[i] = rule.getAction();
+            labelIds[i] = rule.getLabel() != null ? rule.getLabel().getId() : null;
+            switch (rule.getField()) {
+                case FROM -> fromRules.computeIfAbsent(rule.getValue(), value -> new ArrayList<>()).add(i);
+                case TO -> toRules.computeIfAbsent(rule.getValue(), value -> new ArrayList<>()).add(i);
+                case SUBJECT -> {
+                    subjectPatterns.add(rule.getValue());
+                    subjectIndex.add(i);
+                }
+                case BODY -> {
+                    bodyPatterns.add(rule.getValue());
+                    bodyIndex.add(i);
+                }
+            }
+        }
+        from = index(fromRules);
+        to = index(toRules);
+        subject = subjectPatterns.isEmpty() ? null : new AhoCorasick(subjectPatterns);
+        subjectRules = toArray(subjectIndex);
+        body = bodyPatterns.isEmpty() ? null : new AhoCorasick(bodyPatterns);
+        bodyRules = toArray(bodyIndex);
+    }
+
+    public int size() {
+        return actions.length;
+    }
+
+    /**
+     * @return what the matching rules do to the recipient's copy of the message
+     */
+    public Actions match(FilterMessage message) {
+        if (actions.length == 0) {
+            return Actions.NONE;
+        }
+        BitSet matched = new BitSet(actions.length);
+        if (!from.isEmpty()) {
+            lookup(from, message.getFrom(), matched);
+        }
+        if (!to.isEmpty()) {
+            for (String address : message.getTo()) {
+                lookup(to, address, matched);
+            }
+        }
+        if (subject != null) {
+            BitSet patterns = subject.match(message.getSubject());
+            for (int p = patterns.nextSetBit(0); p >= 0; p = patterns.nextSetBit(p + 1)) {
+                matched.set(subjectRules[p]);
+            }
+        }
+        if (body != null) {
+            BitSet patterns = body.match(message.getBody());
+            for (int p = patterns.nextSetBit(0); p >= 0; p = patterns.nextSetBit(p + 1)) {
+                matched.set(bodyRules[p]);
+            }
+        }
+        if (matched.isEmpty()) {
+            return Actions.NONE;
+        }
+
+        boolean star = false;
+        boolean read = false;
+        boolean trash = false;
+        Set<UUID> labels = new LinkedHashSet<>();
+        for (int rule = matched.nextSetBit(0); rule >= 0; rule = matched.nextSetBit(rule + 1)) {
+            switch (actions[rule]) {
+                case STAR -> star = true;
+                case MARK_READ -> read = true;
+                case TRASH -> trash = true;
+                case LABEL -> {
+                    if (labelIds[rule] != null) {
+                        labels.add(labelIds[rule]);
+                    }
+                }
+            }
+        }
+        return new Actions(star, read, trash, List.copyOf(labels));
+    }
+
+    /**
+     * Match an address, and its domain as {@code @domain}
+     */
+    private static void lookup(Map<String, int[]> index, String address, BitSet matched) {
+        for (int rule : index.getOrDefault(address, NONE)) {
+            matched.set(rule);
+        }
+        int at = address.lastIndexOf('@');
+        if (at > 0) {
+            for (int rule : index.getOrDefault(address.substring(at), NONE)) {
+                matched.set(rule);
+            }
+        }
+    }
+
+    private static Map<String, int[]> index(Map<String, List<Integer>> rules) {
+        Map<String, int[]> index = new HashMap<>();
+        rules.forEach((value, indexes) -> index.put(value, toArray(indexes)));
+        return index;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * The combined actions of the rules a message matched
+     */
+    public static final class Actions {
+
+        public static final Actions NONE = new Actions(false, false, false, List.of());
+
+        private final boolean star;
+        private final boolean read;
+        private final boolean trash;
+        private final List<UUID> labelIds;
+
+        public Actions(boolean star, boolean read, boolean trash, List<UUID> labelIds) {
+            this.star = star;
+            this.read = read;
+            this.trash = trash;
+            this.labelIds = labelIds;
+        }
+
+        public boolean isStar() {
+            return star;
+        }
+
+        public boolean isRead() {
+            return read;
+        }
+
+        public boolean isTrash() {
+            return trash;
+        }
+
+        public List<UUID> getLabelIds() {
+            return labelIds;
+        }
+
+        public boolean isEmpty() {
+            return !star && !read && !trash && labelIds.isEmpty();
+        }
+    }
+}
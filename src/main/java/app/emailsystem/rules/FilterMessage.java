@@ -0,0 +1,64 @@
+package app.emailsystem.rules;
+
+import app.emailsystem.entity.Email;
+import app.emailsystem.service.EmailService;
+import app.emailsystem.text.HtmlText;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The parts of a message filter rules look at, normalised once per message for all
+ * its recipients: addresses and subject in lower case, and the body as lower-case text
+ * without its markup, prepared only if a recipient has body rules.
+ */
+public final class FilterMessage {
+
+    private final String from;
+    private final List<String> to;
+    private final String subject;
+    private final String html;
+    private String body;
+
+    public FilterMessage(String from, List<String> to, String subject, String html) {
+        this.from = lowerCase(from);
+        this.to = new ArrayList<>(to.size());
+        to.forEach(address -> this.to.add(lowerCase(address)));
+        this.subject = lowerCase(subject);
+        this.html = html;
+    }
+
+    /**
+     * The message as seen by its recipients: Bcc addresses are not part of it
+     */
+    public static FilterMessage of(Email email) {
+        List<String> to = new ArrayList<>(EmailService.splitAddresses(email.getToAddresses()));
+        to.addAll(EmailService.splitAddresses(email.getCcAddresses()));
+        return new FilterMessage(email.getSender().getEmail(), to, email.getSubject(), email.getContent());
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public List<String> getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getBody() {
+        if (body == null) {
+            // Lines joined, so a phrase matches across a line break in the markup
+            body = lowerCase(html == null ? null : HtmlText.toText(html).replace('\n', ' '));
+        }
+        return body;
+    }
+
+    private static String lowerCase(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+}
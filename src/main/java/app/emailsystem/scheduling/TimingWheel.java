@@ -0,0 +1,184 @@
+package app.emailsystem.scheduling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel: timers keyed by an ID, each firing once at its deadline.
+ *
+ * Time advances in ticks of {@code tickMillis}. The wheel has four levels of 64 slots;
+ * level 0 holds the timers due in the next 64 ticks, one slot per tick, and each level
+ * above covers 64 times the span of the one below. A timer is put into the slot of the
+ * lowest level that reaches its deadline, and when a level's slot comes up, its timers
+ * are moved down into the level below (cascaded). Scheduling and cancelling take
+ * constant time whatever the number of timers, and advancing a tick only touches the
+ * timers that are due or cascading. Deadlines further away than the top level reaches,
+ * about 19 days with 100 ms ticks, are parked as far out as it reaches and placed again
+ * when they come up.
+ *
+ * Each slot is a doubly linked list and each key maps to its node, so cancelling a timer
+ * unlinks it directly. Methods are synchronized; all of them are short.
+ *
+ * @param <K> the timer key
+ */
+public class TimingWheel<K> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    private final Node<K>[][] wheel;
+    private final Map<K, Node<K>> timers = new HashMap<>();
+    /** The next tick to be processed by {@link #advance} */
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.wheel = new Node[LEVELS][SLOTS];
+        for (Node<K>[] level : wheel) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Node<>(null, 0);
+            }
+        }
+        this.currentTick = Math.floorDiv(startMillis, tickMillis);
+    }
+
+    /**
+     * Schedule a timer, replacing the key's previous one. A deadline already passed fires
+     * at the next tick.
+     *
+     * @param deadlineMillis when the timer fires, in epoch milliseconds
+     */
+    public synchronized void schedule(K key, long deadlineMillis) {
+        Node<K> previous = timers.remove(key);
+        if (previous != null) {
+            previous.unlink();
+        }
+        // Rounded up, so a timer never fires before its deadline
+        Node<K> node = new Node<>(key, Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis));
+        timers.put(key, node);
+        place(node);
+    }
+
+    /**
+     * @return whether the key had a timer that had not fired yet
+     */
+    public synchronized boolean cancel(K key) {
+        Node<K> node = timers.remove(key);
+        if (node == null) {
+            return false;
+        }
+        node.unlink();
+        return true;
+    }
+
+    public synchronized int size() {
+        return timers.size();
+    }
+
+    /**
+     * Process the ticks up to the given time
+     *
+     * @return the keys of the timers that fired, ordered by the tick they were due in
+     */
+    public synchronized List<K> advance(long nowMillis) {
+        long nowTick = Math.floorDiv(nowMillis, tickMillis);
+        List<K> fired = new ArrayList<>();
+        while (currentTick <= nowTick) {
+            int index = (int) (currentTick & MASK);
+            if (index == 0) {
+                cascade(1);
+            }
+            Node<K> head = wheel[0][index];
+            Node<K> node = head.next;
+            while (node != head) {
+                Node<K> next = node.next;
+                node.unlink();
+                if (node.deadline > currentTick) {
+                    // Parked beyond the top level's reach
+                    place(node);
+                } else {
+                    timers.remove(node.key);
+                    fired.add(node.key);
+                }
+                node = next;
+            }
+            currentTick++;
+        }
+        return fired;
+    }
+
+    /**
+     * Move the timers of the level's current slot down a level, and those of the level
+     * above too if this level has wrapped around
+     */
+    private void cascade(int level) {
+        int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+        Node<K> head = wheel[level][index];
+        Node<K> node = head.next;
+        while (node != head) {
+            Node<K> next = node.next;
+            node.unlink();
+            place(node);
+            node = next;
+        }
+        if (index == 0 && level + 1 < LEVELS) {
+            cascade(level + 1);
+        }
+    }
+
+    private void place(Node<K> node) {
+        long delta = node.deadline - currentTick;
+        long tick = node.deadline;
+        int level = 0;
+        if (delta < 0) {
+            tick = currentTick;
+        } else if (delta >= MAX_SPAN) {
+            tick = currentTick + MAX_SPAN - 1;
+            level = LEVELS - 1;
+        } else {
+            while (delta >= 1L << (BITS * (level + 1))) {
+                level++;
+            }
+        }
+        wheel[level][(int) ((tick >>> (BITS * level)) & MASK)].append(node);
+    }
+
+    /**
+     * A timer, or the head of a slot's circular list
+     */
+    private static final class Node<K> {
+        private final K key;
+        private final long deadline;
+        private Node<K> prev = this;
+        private Node<K> next = this;
+
+        private Node(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        private void append(Node<K> node) {
+            node.prev = prev;
+            node.next = this;
+            prev.next = node;
+            prev = node;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.AttachmentBlob;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.repository.AttachmentBlobRepository;
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.DerivedArtifact;
+import app.emailsystem.storage.StagedBlob;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Reference counting for content-addressed attachment blobs.
+ *
+ * Every attachment row that points at a blob holds one reference. A blob whose
+ * count drops to zero is kept for a grace period and then deleted from the
+ * attachment storage by {@link #purgeReleasedBlobs()}. All count changes take a
+ * row lock on the blob, so a purge never removes content that a concurrent send
+ * has just started referencing.
+ */
+@Slf4j
+@Service
+@Transactional
+public class AttachmentBlobService {
+
+    private static final int PURGE_BATCH_SIZE = 100;
+
+    private final AttachmentBlobRepository blobRepository;
+    private final AttachmentStorage attachmentStorage;
+    private final TransactionTemplate purgeTransaction;
+    private final long releaseGraceMillis;
+    private final Counter reclaimedBytes;
+
+    @Autowired
+    public AttachmentBlobService(AttachmentBlobRepository blobRepository,
+                                 AttachmentStorage attachmentStorage,
+                                 PlatformTransactionManager transactionManager,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${attachment.storage.release-grace-ms:3600000}") long releaseGraceMillis) {
+        this.blobRepository = blobRepository;
+        this.attachmentStorage = attachmentStorage;
+        this.purgeTransaction = new TransactionTemplate(transactionManager);
+        this.purgeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.releaseGraceMillis = releaseGraceMillis;
+        this.reclaimedBytes = Counter.builder("attachment.storage.reclaimed")
+            .description("Bytes of stored attachment content deleted after its last reference went away")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Add references to the blob holding the staged content, creating the blob if this is
+     * the first copy. The staged file becomes the stored copy only when the storage does not
+     * hold the content yet; otherwise it is discarded and the existing encoding is kept.
+     *
+     * @param staged the staged content
+     * @param references the number of attachment rows that will point at the blob
+     * @return the blob
+     */
+    public AttachmentBlob acquire(StagedBlob staged, int references) {
+        String hash = staged.getSha256();
+        blobRepository.insertIfAbsent(hash, staged.getSize(), staged.getCodec().name(),
+            staged.getStoredSize(), staged.getCrc32(), LocalDateTime.now());
+        AttachmentBlob blob = blobRepository.findByHashForUpdate(hash)
+            .orElseThrow(() -> new EmailSystemException("Attachment blob disappeared: " + hash));
+
+        try {
+            if (attachmentStorage.exists(blob.getStorageKey())) {
+                attachmentStorage.discard(staged);
+            } else {
+                // Also restores the content if a purge removed the file but rolled back
+                attachmentStorage.promote(staged);
+                blob.setCodec(staged.getCodec());
+                blob.setStoredSize(staged.getStoredSize());
+            }
+        } catch (IOException e) {
+            log.error("Failed to store attachment content {}", hash, e);
+            throw new EmailSystemException("Failed to save attachments", e);
+        }
+
+        if (blob.getCrc32() == null) {
+            blob.setCrc32(staged.getCrc32());
+        }
+        blob.setRefCount(blob.getRefCount() + references);
+        blob.setReleasedAt(null);
+        log.debug("Blob {} now has {} references", hash, blob.getRefCount());
+        return blob;
+    }
+
+    /**
+     * Add references to content that is already stored, e.g. when an existing attachment is reused
+     *
+     * @param hash the content hash
+     * @param references the number of new attachment rows pointing at the blob
+     */
+    public void retain(String hash, int references) {
+        if (!retainIfStored(hash, null, references)) {
+            throw new EmailSystemException("Attachment content no longer available");
+        }
+    }
+
+    /**
+     * Add references to content if it is still stored
+     *
+     * @param hash the content hash
+     * @param size the expected size of the content, null to skip the check
+     * @param references the number of new attachment rows pointing at the blob
+     * @return false if the content is not stored or has a different size
+     */
+    public boolean retainIfStored(String hash, Long size, int references) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findByHashForUpdate(hash);
+        if (blobOpt.isEmpty()) {
+            return false;
+        }
+        AttachmentBlob blob = blobOpt.get();
+        if ((size != null && blob.getSize() != size) || !attachmentStorage.exists(blob.getStorageKey())) {
+            return false;
+        }
+        blob.setRefCount(blob.getRefCount() + references);
+        blob.setReleasedAt(null);
+        return true;
+    }
+
+    /**
+     * Look up the blob row for content, e.g. to find out how it is encoded
+     *
+     * @param hash the content hash
+     * @return the blob, empty for content that predates reference counting
+     */
+    @Transactional(readOnly = true)
+    public Optional<AttachmentBlob> findBlob(String hash) {
+        return blobRepository.findById(hash);
+    }
+
+    /**
+     * Drop references to blobs. Callers pass a sorted map so that locks are always
+     * taken in the same order and concurrent releases cannot deadlock.
+     *
+     * @param references number of released references per content hash
+     */
+    public void release(Map<String, Long> references) {
+        for (Map.Entry<String, Long> entry : references.entrySet()) {
+            release(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void release(String hash, long references) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findByHashForUpdate(hash);
+        if (blobOpt.isEmpty()) {
+            log.warn("Released references to unknown blob {}", hash);
+            return;
+        }
+
+        AttachmentBlob blob = blobOpt.get();
+        blob.setRefCount((int) Math.max(0, blob.getRefCount() - references));
+        if (blob.getRefCount() == 0) {
+            blob.setReleasedAt(LocalDateTime.now());
+            log.debug("Blob {} has no references left", hash);
+        }
+    }
+
+    /**
+     * Delete blobs that have had no references for longer than the grace period
+     */
+    @Scheduled(initialDelayString = "${attachment.storage.purge-interval-ms:300000}",
+               fixedDelayString = "${attachment.storage.purge-interval-ms:300000}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void purgeReleasedBlobs() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(Duration.ofMillis(releaseGraceMillis));
+        List<String> hashes = blobRepository.findReleasedBefore(cutoff, PageRequest.of(0, PURGE_BATCH_SIZE));
+        if (hashes.isEmpty()) {
+            return;
+        }
+
+        int purged = 0;
+        for (String hash : hashes) {
+            try {
+                if (Boolean.TRUE.equals(purgeTransaction.execute(status -> purge(hash, cutoff)))) {
+                    purged++;
+                }
+            } catch (Exception e) {
+                log.error("Failed to purge blob {}: {}", hash, e.getMessage(), e);
+            }
+        }
+        log.info("Purged {} unreferenced attachment blobs", purged);
+    }
+
+    private boolean purge(String hash, LocalDateTime cutoff) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findByHashForUpdate(hash);
+        if (blobOpt.isEmpty()) {
+            return false;
+        }
+        
+        // Re-check under the lock, the blob may have been referenced again since it was listed
+        AttachmentBlob blob = blobOpt.get();
+        if (blob.getRefCount() > 0 || blob.getReleasedAt() == null || blob.getReleasedAt().isAfter(cutoff)) {
+            return false;
+        }
+
+        // The file is deleted while the row lock is held, so a concurrent acquire
+        // waits and then restores the content from its own staged copy
+        try {
+            attachmentStorage.delete(blob.getStorageKey());
+            for (DerivedArtifact artifact : DerivedArtifact.values()) {
+                attachmentStorage.delete(artifact.storageKey(hash));
+            }
+        } catch (IOException e) {
+            throw new EmailSystemException("Failed to delete blob " + hash, e);
+        }
+        blobRepository.delete(blob);
+        reclaimedBytes.increment(blob.getStoredSize() != null ? blob.getStoredSize() : blob.getSize());
+        return true;
+    }
+}
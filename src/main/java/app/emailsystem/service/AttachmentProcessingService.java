@@ -0,0 +1,267 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.AttachmentBlob;
+import app.emailsystem.processing.AttachmentProcessingStage;
+import app.emailsystem.processing.ProcessingContext;
+import app.emailsystem.repository.AttachmentBlobRepository;
+import app.emailsystem.repository.AttachmentRepository;
+import app.emailsystem.storage.AttachmentCodec;
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.DecodedResource;
+import app.emailsystem.storage.DerivedArtifact;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background post-processing of stored attachment content: content sniffing,
+ * thumbnails and text extraction, see {@link AttachmentProcessingStage}.
+ *
+ * Sending an email only inserts the blob row in state PENDING; the work happens
+ * here on a bounded worker pool. The poller never fetches more blobs than there
+ * are free worker and queue slots, so a backlog stays in the database rather than
+ * in memory. A blob is leased with a conditional update before it is processed,
+ * which also keeps several application instances from processing it twice, and
+ * failures are retried with exponential backoff up to {@code max-attempts}.
+ *
+ * Results are recorded per blob, since everything derived depends only on the content.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "attachment.processing.enabled", havingValue = "true", matchIfMissing = true)
+public class AttachmentProcessingService {
+
+    private static final Duration MAX_RETRY_DELAY = Duration.ofHours(6);
+
+    private final AttachmentBlobRepository blobRepository;
+    private final AttachmentRepository attachmentRepository;
+    private final AttachmentStorage attachmentStorage;
+    private final List<AttachmentProcessingStage> stages;
+    private final MeterRegistry meterRegistry;
+    private final TransactionTemplate transaction;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore capacity;
+    private final int maxAttempts;
+    private final Duration lease;
+    private final Duration retryDelay;
+
+    private final Counter completed;
+    private final Counter retried;
+    private final Counter failed;
+    private final Counter saturated;
+
+    @Autowired
+    public AttachmentProcessingService(AttachmentBlobRepository blobRepository,
+                                       AttachmentRepository attachmentRepository,
+                                       AttachmentStorage attachmentStorage,
+                                       List<AttachmentProcessingStage> stages,
+                                       MeterRegistry meterRegistry,
+                                       PlatformTransactionManager transactionManager,
+                                       @Value("${attachment.processing.workers:2}") int workers,
+                                       @Value("${attachment.processing.queue-capacity:32}") int queueCapacity,
+                                       @Value("${attachment.processing.max-attempts:5}") int maxAttempts,
+                                       @Value("${attachment.processing.lease-ms:600000}") long leaseMillis,
+                                       @Value("${attachment.processing.retry-delay-ms:30000}") long retryDelayMillis) {
+        this.blobRepository = blobRepository;
+        this.attachmentRepository = attachmentRepository;
+        this.attachmentStorage = attachmentStorage;
+        this.stages = stages;
+        this.meterRegistry = meterRegistry;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.maxAttempts = maxAttempts;
+        this.lease = Duration.ofMillis(leaseMillis);
+        this.retryDelay = Duration.ofMillis(retryDelayMillis);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "attachment-processing-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // One permit per worker and queue slot, so submitting never blocks or gets rejected
+        this.capacity = new Semaphore(workers + queueCapacity);
+
+        this.completed = outcomeCounter("done");
+        this.retried = outcomeCounter("retry");
+        this.failed = outcomeCounter("failed");
+        this.saturated = Counter.builder("attachment.processing.saturated")
+                .description("Polls skipped because all workers and queue slots were busy")
+                .register(meterRegistry);
+        Gauge.builder("attachment.processing.in.flight", capacity, permits -> workers + queueCapacity - permits.availablePermits())
+                .description("Blobs queued or being processed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Hand the next pending blobs to the workers, as many as there is room for
+     */
+    @Scheduled(initialDelayString = "${attachment.processing.poll-interval-ms:2000}",
+               fixedDelayString = "${attachment.processing.poll-interval-ms:2000}")
+    public void poll() {
+        int free = capacity.availablePermits();
+        if (free == 0) {
+            saturated.increment();
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        List<String> hashes = blobRepository.findProcessable(now, PageRequest.of(0, free));
+        for (String hash : hashes) {
+            if (!capacity.tryAcquire()) {
+                saturated.increment();
+                return;
+            }
+            Integer claimed = transaction.execute(status ->
+                    blobRepository.claimForProcessing(hash, now, now.plus(lease)));
+            if (claimed == null || claimed == 0) {
+                capacity.release();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        process(hash);
+                    } finally {
+                        capacity.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; the lease expires and the blob is picked up again later
+                capacity.release();
+                return;
+            }
+        }
+    }
+
+    private void process(String hash) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findById(hash);
+        if (blobOpt.isEmpty()) {
+            return;
+        }
+        AttachmentBlob blob = blobOpt.get();
+        String declaredType = attachmentRepository.findContentTypesByContentHash(hash, PageRequest.of(0, 1))
+                .stream().findFirst().orElse(null);
+
+        AttachmentCodec codec = blob.getEffectiveCodec();
+        Resource stored = attachmentStorage.load(blob.getStorageKey());
+        Resource content = codec == AttachmentCodec.IDENTITY ? stored : new DecodedResource(stored, codec, blob.getSize());
+        Path file = codec == AttachmentCodec.IDENTITY ? attachmentStorage.resolve(blob.getStorageKey()) : null;
+        ProcessingContext context = new ProcessingContext(hash, declaredType, content, file, blob.getSize());
+
+        try {
+            if (!stored.exists()) {
+                throw new IOException("Stored content is missing");
+            }
+            for (AttachmentProcessingStage stage : stages) {
+                runStage(stage, context);
+            }
+            transaction.executeWithoutResult(status -> complete(hash, context));
+            completed.increment();
+        } catch (Exception e) {
+            log.warn("Processing of blob {} failed: {}", hash, e.getMessage());
+            transaction.executeWithoutResult(status -> fail(hash));
+        }
+    }
+
+    private void runStage(AttachmentProcessingStage stage, ProcessingContext context) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            stage.process(context);
+            outcome = "success";
+        } finally {
+            sample.stop(Timer.builder("attachment.processing.stage")
+                    .description("Time spent in one stage of attachment post-processing")
+                    .tag("stage", stage.getName())
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
+    }
+
+    private void complete(String hash, ProcessingContext context) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findByHashForUpdate(hash);
+        if (blobOpt.isEmpty()) {
+            // Purged while it was being processed, the artifacts would never be cleaned up
+            deleteArtifacts(hash);
+            return;
+        }
+        AttachmentBlob blob = blobOpt.get();
+        blob.setDetectedContentType(context.getDetectedContentType());
+        blob.setHasThumbnail(context.isThumbnail());
+        blob.setHasText(context.isText());
+        blob.setProcessingState(AttachmentBlob.ProcessingState.DONE);
+        blob.setProcessedAt(LocalDateTime.now());
+        blob.setNextAttemptAt(null);
+    }
+
+    private void fail(String hash) {
+        blobRepository.findByHashForUpdate(hash).ifPresent(blob -> {
+            if (blob.getProcessingAttempts() >= maxAttempts) {
+                log.error("Giving up processing blob {} after {} attempts", hash, blob.getProcessingAttempts());
+                blob.setProcessingState(AttachmentBlob.ProcessingState.FAILED);
+                blob.setNextAttemptAt(null);
+                failed.increment();
+                return;
+            }
+            Duration delay = retryDelay.multipliedBy(1L << Math.min(blob.getProcessingAttempts() - 1, 16));
+            if (delay.compareTo(MAX_RETRY_DELAY) > 0) {
+                delay = MAX_RETRY_DELAY;
+            }
+            blob.setNextAttemptAt(LocalDateTime.now().plus(delay));
+            retried.increment();
+        });
+    }
+
+    private void deleteArtifacts(String hash) {
+        for (DerivedArtifact artifact : DerivedArtifact.values()) {
+            try {
+                attachmentStorage.delete(artifact.storageKey(hash));
+            } catch (IOException e) {
+                log.warn("Failed to delete {} of blob {}: {}", artifact, hash, e.getMessage());
+            }
+        }
+    }
+
+    private Counter outcomeCounter(String outcome) {
+        return Counter.builder("attachment.processing.blobs")
+                .description("Blobs leaving the post-processing pipeline")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            // Unfinished blobs keep their lease and are retried after it expires
+            executor.shutdownNow();
+        }
+    }
+}
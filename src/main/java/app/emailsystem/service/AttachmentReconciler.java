@@ -0,0 +1,318 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.Attachment;
+import app.emailsystem.entity.AttachmentBlob;
+import app.emailsystem.repository.AttachmentBlobRepository;
+import app.emailsystem.repository.AttachmentRepository;
+import app.emailsystem.storage.AttachmentStorage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Finds attachment data that nothing refers to any more and removes it.
+ *
+ * Three kinds of leftovers are reconciled, each walked incrementally in keyset order
+ * so that no run scans a whole table or directory tree:
+ * <ul>
+ *   <li>attachment rows that belong to no email and are not pending uploads; their
+ *       blob reference is released and legacy rows take their inline bytes with them</li>
+ *   <li>blobs whose reference count disagrees with the attachment rows pointing at them;
+ *       the count is corrected and blobs left without references are handed to the
+ *       regular purge in {@link AttachmentBlobService}</li>
+ *   <li>stored files without a blob row or any attachment pointing at them, and staged
+ *       files of uploads that never completed</li>
+ * </ul>
+ * Every fix runs in its own short transaction that locks a single row, and nothing younger
+ * than the grace period is touched, so in-flight sends and uploads are never affected.
+ * Rows and files are examined at a capped rate.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "attachment.reconciliation.enabled", havingValue = "true", matchIfMissing = true)
+public class AttachmentReconciler {
+
+    private static final UUID FIRST_ID = new UUID(0L, 0L);
+    private static final String FIRST_HASH = "";
+    private static final int HASH_LENGTH = 64;
+
+    private final AttachmentRepository attachmentRepository;
+    private final AttachmentBlobRepository blobRepository;
+    private final AttachmentBlobService attachmentBlobService;
+    private final AttachmentStorage attachmentStorage;
+    private final TransactionTemplate transaction;
+    private final int chunkSize;
+    private final long maxRowsPerSecond;
+    private final Duration grace;
+
+    private final Counter detachedAttachments;
+    private final Counter repairedBlobs;
+    private final Counter orphanedFiles;
+    private final Counter reclaimedAttachmentBytes;
+    private final Counter reclaimedFileBytes;
+    private final Counter reclaimedStagingBytes;
+
+    // Keyset positions of the three walks; each starts over when it reaches the end
+    private UUID attachmentCursor = FIRST_ID;
+    private String blobCursor = FIRST_HASH;
+    private String fileCursor = FIRST_HASH;
+
+    @Autowired
+    public AttachmentReconciler(AttachmentRepository attachmentRepository,
+                                AttachmentBlobRepository blobRepository,
+                                AttachmentBlobService attachmentBlobService,
+                                AttachmentStorage attachmentStorage,
+                                PlatformTransactionManager transactionManager,
+                                MeterRegistry meterRegistry,
+                                @Value("${attachment.reconciliation.chunk-size:500}") int chunkSize,
+                                @Value("${attachment.reconciliation.max-rows-per-second:2000}") long maxRowsPerSecond,
+                                @Value("${attachment.reconciliation.grace-ms:86400000}") long graceMillis) {
+        this.attachmentRepository = attachmentRepository;
+        this.blobRepository = blobRepository;
+        this.attachmentBlobService = attachmentBlobService;
+        this.attachmentStorage = attachmentStorage;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.grace = Duration.ofMillis(graceMillis);
+
+        this.detachedAttachments = removedCounter(meterRegistry, "attachment");
+        this.orphanedFiles = removedCounter(meterRegistry, "file");
+        this.repairedBlobs = Counter.builder("attachment.reconciliation.repaired")
+                .description("Blobs whose reference count was corrected")
+                .register(meterRegistry);
+        this.reclaimedAttachmentBytes = reclaimedCounter(meterRegistry, "attachment");
+        this.reclaimedFileBytes = reclaimedCounter(meterRegistry, "file");
+        this.reclaimedStagingBytes = reclaimedCounter(meterRegistry, "staging");
+    }
+
+    /**
+     * Reconcile the next chunk of each walk
+     */
+    @Scheduled(initialDelayString = "${attachment.reconciliation.initial-delay-ms:300000}",
+               fixedDelayString = "${attachment.reconciliation.interval-ms:300000}")
+    public void reconcile() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(grace);
+        try {
+            reconcileDetachedAttachments(cutoff);
+            reconcileBlobReferences(cutoff);
+            reconcileStoredFiles(cutoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reconcileDetachedAttachments(LocalDateTime cutoff) throws InterruptedException {
+        long started = System.nanoTime();
+        List<UUID> ids = attachmentRepository.findDetachedIdsAfter(attachmentCursor, PageRequest.of(0, chunkSize));
+        if (ids.isEmpty()) {
+            attachmentCursor = FIRST_ID;
+            return;
+        }
+        attachmentCursor = ids.get(ids.size() - 1);
+
+        int removed = 0;
+        for (UUID id : ids) {
+            try {
+                if (Boolean.TRUE.equals(transaction.execute(status -> removeDetached(id, cutoff)))) {
+                    removed++;
+                }
+            } catch (Exception e) {
+                log.error("Failed to remove detached attachment {}: {}", id, e.getMessage(), e);
+            }
+        }
+        if (removed > 0) {
+            log.info("Removed {} attachments that belonged to no email", removed);
+        }
+        throttle(ids.size(), started);
+    }
+
+    private boolean removeDetached(UUID id, LocalDateTime cutoff) {
+        // Re-check under the lock, the row may have been attached to an email since it was listed
+        Optional<Attachment> attachmentOpt = attachmentRepository.findDetachedForUpdate(id, cutoff);
+        if (attachmentOpt.isEmpty()) {
+            return false;
+        }
+        Attachment attachment = attachmentOpt.get();
+        if (attachment.getContentHash() != null) {
+            attachmentBlobService.release(Map.of(attachment.getContentHash(), 1L));
+        } else {
+            // Legacy row, its bytes live in the row itself
+            reclaimedAttachmentBytes.increment(attachment.getSize());
+        }
+        attachmentRepository.delete(attachment);
+        detachedAttachments.increment();
+        return true;
+    }
+
+    private void reconcileBlobReferences(LocalDateTime cutoff) throws InterruptedException {
+        long started = System.nanoTime();
+        List<AttachmentBlob> blobs = blobRepository.findAfter(blobCursor, PageRequest.of(0, chunkSize));
+        if (blobs.isEmpty()) {
+            blobCursor = FIRST_HASH;
+            return;
+        }
+        blobCursor = blobs.get(blobs.size() - 1).getHash();
+
+        Map<String, Long> references = countReferences(blobs.stream().map(AttachmentBlob::getHash).collect(Collectors.toSet()));
+        int repaired = 0;
+        for (AttachmentBlob blob : blobs) {
+            long actual = references.getOrDefault(blob.getHash(), 0L);
+            boolean unreleased = actual == 0 && blob.getReleasedAt() == null;
+            if (blob.getCreatedAt().isAfter(cutoff) || (blob.getRefCount() == actual && !unreleased)) {
+                continue;
+            }
+            try {
+                if (Boolean.TRUE.equals(transaction.execute(status -> repairReferences(blob.getHash())))) {
+                    repaired++;
+                }
+            } catch (Exception e) {
+                log.error("Failed to reconcile references of blob {}: {}", blob.getHash(), e.getMessage(), e);
+            }
+        }
+        if (repaired > 0) {
+            log.warn("Corrected the reference count of {} attachment blobs", repaired);
+        }
+        throttle(blobs.size(), started);
+    }
+
+    private boolean repairReferences(String hash) {
+        Optional<AttachmentBlob> blobOpt = blobRepository.findByHashForUpdate(hash);
+        if (blobOpt.isEmpty()) {
+            return false;
+        }
+        // Counted again under the blob lock, which every send and delete takes before changing rows
+        AttachmentBlob blob = blobOpt.get();
+        int actual = (int) attachmentRepository.countByContentHash(hash);
+        boolean changed = false;
+        if (blob.getRefCount() != actual) {
+            log.debug("Blob {} has {} references but {} attachments", hash, blob.getRefCount(), actual);
+            blob.setRefCount(actual);
+            changed = true;
+        }
+        if (actual == 0 && blob.getReleasedAt() == null) {
+            blob.setReleasedAt(LocalDateTime.now());
+            changed = true;
+        } else if (actual > 0 && blob.getReleasedAt() != null) {
+            blob.setReleasedAt(null);
+            changed = true;
+        }
+        if (changed) {
+            repairedBlobs.increment();
+        }
+        return changed;
+    }
+
+    private void reconcileStoredFiles(LocalDateTime cutoff) throws InterruptedException {
+        long started = System.nanoTime();
+        Instant modifiedBefore = cutoff.atZone(ZoneId.systemDefault()).toInstant();
+        List<String> keys;
+        try {
+            keys = attachmentStorage.listKeys(fileCursor, chunkSize);
+            if (keys.isEmpty()) {
+                fileCursor = FIRST_HASH;
+                // Once per pass over the storage, also clear out abandoned staging files
+                reclaimedStagingBytes.increment(attachmentStorage.purgeStagingFiles(modifiedBefore));
+                return;
+            }
+        } catch (IOException e) {
+            log.error("Failed to list the attachment storage: {}", e.getMessage(), e);
+            return;
+        }
+        fileCursor = keys.get(keys.size() - 1);
+
+        Set<String> hashes = keys.stream().map(key -> key.substring(0, HASH_LENGTH)).collect(Collectors.toSet());
+        Set<String> known = new HashSet<>(blobRepository.findExistingHashes(hashes));
+        // Content stored before reference counting has no blob row but is still referenced
+        known.addAll(countReferences(hashes).keySet());
+
+        int removed = 0;
+        for (String key : keys) {
+            if (known.contains(key.substring(0, HASH_LENGTH))) {
+                continue;
+            }
+            Path file = attachmentStorage.resolve(key);
+            try {
+                // Young files may belong to a send whose blob row is not committed yet
+                if (!Files.getLastModifiedTime(file).toInstant().isBefore(modifiedBefore)) {
+                    continue;
+                }
+                long size = Files.size(file);
+                attachmentStorage.delete(key);
+                reclaimedFileBytes.increment(size);
+                orphanedFiles.increment();
+                removed++;
+            } catch (NoSuchFileException e) {
+                // Deleted meanwhile
+            } catch (IOException e) {
+                log.error("Failed to delete orphaned attachment file {}: {}", key, e.getMessage());
+            }
+        }
+        if (removed > 0) {
+            log.info("Deleted {} stored attachment files that nothing refers to", removed);
+        }
+        throttle(keys.size(), started);
+    }
+
+    private Map<String, Long> countReferences(Set<String> hashes) {
+        Map<String, Long> references = new HashMap<>();
+        for (Object[] row : attachmentRepository.countByContentHashes(hashes)) {
+            references.put((String) row[0], (Long) row[1]);
+        }
+        return references;
+    }
+
+    /**
+     * Sleep long enough to keep the examination rate below the configured limit
+     */
+    private void throttle(int rows, long startedNanos) throws InterruptedException {
+        if (maxRowsPerSecond <= 0) {
+            return;
+        }
+        long budgetMillis = rows * 1000L / maxRowsPerSecond;
+        long elapsedMillis = (System.nanoTime() - startedNanos) / 1_000_000;
+        if (budgetMillis > elapsedMillis) {
+            Thread.sleep(budgetMillis - elapsedMillis);
+        }
+    }
+
+    private static Counter removedCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("attachment.reconciliation.removed")
+                .description("Orphaned attachment rows and stored files removed")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+
+    private static Counter reclaimedCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("attachment.reconciliation.reclaimed")
+                .description("Bytes freed by removing orphaned attachment data")
+                .baseUnit("bytes")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+}
@@ -1,27 +1,56 @@
 package app.emailsystem.service;
 
 import app.emailsystem.dto.AttachmentDTO;
+import app.emailsystem.dto.ContentDigestDTO;
 import app.emailsystem.entity.Attachment;
+import app.emailsystem.entity.AttachmentBlob;
 import app.emailsystem.entity.Email;
+import app.emailsystem.entity.User;
 import app.emailsystem.exception.EmailSystemException;
 import app.emailsystem.exception.ResourceNotFoundException;
 import app.emailsystem.mapper.AttachmentMapper;
+import app.emailsystem.repository.AttachmentPayloadRepository;
 import app.emailsystem.repository.AttachmentRepository;
+import app.emailsystem.repository.EmailRepository;
+import app.emailsystem.repository.MailboxEntryRepository;
+import app.emailsystem.storage.AttachmentArchive;
+import app.emailsystem.storage.AttachmentCodec;
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.CompressionPolicy;
+import app.emailsystem.storage.DecodedResource;
+import app.emailsystem.storage.DerivedArtifact;
+import app.emailsystem.storage.StagedAttachment;
+import app.emailsystem.storage.StagedBlob;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -31,48 +60,446 @@ import java.util.stream.Collectors;
 public class AttachmentService {
 
     private final AttachmentRepository attachmentRepository;
+    private final AttachmentPayloadRepository attachmentPayloadRepository;
     private final AttachmentMapper attachmentMapper;
+    private final AttachmentStorage attachmentStorage;
+    private final AttachmentBlobService attachmentBlobService;
+    private final EmailRepository emailRepository;
+    private final MailboxEntryRepository mailboxEntryRepository;
+    private final CompressionPolicy compressionPolicy;
+    private final int maxArchiveEmails;
 
     @Autowired
-    public AttachmentService(AttachmentRepository attachmentRepository, AttachmentMapper attachmentMapper) {
+    public AttachmentService(AttachmentRepository attachmentRepository, AttachmentPayloadRepository attachmentPayloadRepository,
+                             AttachmentMapper attachmentMapper, AttachmentStorage attachmentStorage,
+                             AttachmentBlobService attachmentBlobService, EmailRepository emailRepository,
+                             MailboxEntryRepository mailboxEntryRepository, CompressionPolicy compressionPolicy,
+                             @Value("${attachment.archive.max-emails:100}") int maxArchiveEmails) {
         this.attachmentRepository = attachmentRepository;
+        this.attachmentPayloadRepository = attachmentPayloadRepository;
         this.attachmentMapper = attachmentMapper;
+        this.attachmentStorage = attachmentStorage;
+        this.attachmentBlobService = attachmentBlobService;
+        this.emailRepository = emailRepository;
+        this.mailboxEntryRepository = mailboxEntryRepository;
+        this.compressionPolicy = compressionPolicy;
+        this.maxArchiveEmails = maxArchiveEmails;
+    }
+
+    /**
+     * Stream uploaded files into the attachment storage.
+     * Runs outside any transaction so no database connection is held while
+     * the request body is copied to disk.
+     * 
+     * @param files the uploaded files, empty parts are skipped
+     * @return the staged uploads, to be passed to {@link #saveAttachments(Email, List)}
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<StagedAttachment> stageAttachments(List<MultipartFile> files) {
+        if (files == null || files.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        List<StagedAttachment> staged = new ArrayList<>();
+        
+        for (MultipartFile file : files) {
+            if (file == null || file.isEmpty()) {
+                continue;
+            }
+            try (InputStream content = file.getInputStream()) {
+                StagedBlob blob = attachmentStorage.stage(content, file.getContentType());
+                staged.add(new StagedAttachment(file.getOriginalFilename(), file.getContentType(), blob));
+                log.debug("Staged attachment: {} ({} bytes)", file.getOriginalFilename(), blob.getSize());
+            } catch (IOException e) {
+                discardStaged(staged);
+                log.error("Failed to stage attachment {}", file.getOriginalFilename(), e);
+                throw new EmailSystemException("Failed to save attachments", e);
+            }
+        }
+        
+        return staged;
+    }
+
+    /**
+     * Stream one attachment read from elsewhere than a form, such as a part of a
+     * submitted MIME message, into the attachment storage
+     *
+     * @param content the content, read until EOF but not closed
+     * @return the staged attachment, to be passed to {@link #saveAttachments(Email, List)}
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StagedAttachment stageAttachment(InputStream content, String filename, String contentType) {
+        try {
+            StagedBlob blob = attachmentStorage.stage(content, contentType);
+            log.debug("Staged attachment: {} ({} bytes)", filename, blob.getSize());
+            return new StagedAttachment(filename, contentType, blob);
+        } catch (IOException e) {
+            log.error("Failed to stage attachment {}", filename, e);
+            throw new EmailSystemException("Failed to save attachments", e);
+        }
+    }
+
+    /**
+     * Delete staged uploads that were not promoted, e.g. because the email could not be saved
+     * 
+     * @param staged the staged uploads
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void discardStaged(List<StagedAttachment> staged) {
+        if (staged == null) {
+            return;
+        }
+        for (StagedAttachment attachment : staged) {
+            attachmentStorage.discard(attachment.getBlob());
+        }
     }
 
     /**
      * Save attachments for an email
      * 
      * @param email the email to which attachments belong
-     * @param files the files to save
+     * @param staged the staged uploads to attach
      * @return list of saved attachment entities
      */
-    public List<Attachment> saveAttachments(Email email, List<MultipartFile> files) {
-        if (files == null || files.isEmpty()) {
+    public List<Attachment> saveAttachments(Email email, List<StagedAttachment> staged) {
+        return saveAttachments(List.of(email), staged);
+    }
+
+    /**
+     * Attach the same staged uploads to several emails, e.g. the copies of a message
+     * sent to multiple recipients. Each distinct content is stored once and every
+     * email gets a lightweight attachment row pointing at it.
+     * 
+     * @param emails the emails to which the attachments belong
+     * @param staged the staged uploads to attach
+     * @return list of saved attachment entities
+     */
+    public List<Attachment> saveAttachments(List<Email> emails, List<StagedAttachment> staged) {
+        return saveAttachments(emails, staged, List.of(), null);
+    }
+
+    /**
+     * Attach staged uploads and existing attachments, referenced by ID, to several emails.
+     * <ul>
+     *   <li>A pending upload of the sender, see {@link #savePendingUpload}, becomes the
+     *       attachment of the first email and the other emails get copies.</li>
+     *   <li>An attachment of an email the sender sent or received, e.g. when forwarding
+     *       or when a draft is saved again, is linked: every email gets a new row pointing
+     *       at the same stored content, and no bytes are copied.</li>
+     * </ul>
+     * IDs the sender has no access to are ignored.
+     * 
+     * @param emails the emails to which the attachments belong
+     * @param staged the staged uploads to attach, may be empty
+     * @param attachmentIds the IDs of pending uploads or existing attachments to attach, may be empty
+     * @param ownerId the sender
+     * @return list of saved attachment entities
+     */
+    public List<Attachment> saveAttachments(List<Email> emails, List<StagedAttachment> staged,
+                                            List<UUID> attachmentIds, UUID ownerId) {
+        boolean byId = !emails.isEmpty() && attachmentIds != null && !attachmentIds.isEmpty();
+        List<Attachment> pending = byId ? attachmentRepository.findPendingUploadsForUpdate(attachmentIds, ownerId) : List.of();
+        List<Attachment> linked = byId ? linkableAttachments(attachmentIds, pending, ownerId) : List.of();
+        if (byId && pending.size() + linked.size() < new HashSet<>(attachmentIds).size()) {
+            log.warn("User {} referenced attachments they cannot access, ignoring them", ownerId);
+        }
+        if (emails.isEmpty() || ((staged == null || staged.isEmpty()) && pending.isEmpty() && linked.isEmpty())) {
             return new ArrayList<>();
         }
 
-        List<Attachment> savedAttachments = new ArrayList<>();
+        Map<String, List<StagedAttachment>> stagedByHash = new HashMap<>();
+        if (staged != null) {
+            for (StagedAttachment upload : staged) {
+                stagedByHash.computeIfAbsent(upload.getBlob().getSha256(), key -> new ArrayList<>()).add(upload);
+            }
+        }
+        Map<String, List<Attachment>> pendingByHash = new HashMap<>();
+        for (Attachment upload : pending) {
+            pendingByHash.computeIfAbsent(upload.getContentHash(), key -> new ArrayList<>()).add(upload);
+        }
+        Map<String, List<Attachment>> linkedByHash = new HashMap<>();
+        for (Attachment source : linked) {
+            linkedByHash.computeIfAbsent(source.getContentHash(), key -> new ArrayList<>()).add(source);
+        }
+
+        // Lock blobs in hash order so concurrent sends cannot deadlock
+        Set<String> hashes = new TreeSet<>(stagedByHash.keySet());
+        hashes.addAll(pendingByHash.keySet());
+        hashes.addAll(linkedByHash.keySet());
 
-        try {
-            for (MultipartFile file : files) {
-                if (!file.isEmpty()) {
-                    Attachment attachment = attachmentMapper.toEntity(file, email);
-                    savedAttachments.add(attachmentRepository.save(attachment));
-                    log.info("Saved attachment: {} for email ID: {}", file.getOriginalFilename(), email.getId());
+        List<Email> copies = emails.subList(1, emails.size());
+        List<Attachment> attachments = new ArrayList<>();
+        for (String hash : hashes) {
+            for (StagedAttachment upload : stagedByHash.getOrDefault(hash, List.of())) {
+                attachmentBlobService.acquire(upload.getBlob(), emails.size());
+                for (Email email : emails) {
+                    attachments.add(attachmentMapper.toEntity(upload, email));
                 }
             }
+
+            List<Attachment> sources = linkedByHash.getOrDefault(hash, List.of());
+            if (!sources.isEmpty()) {
+                attachmentBlobService.retain(hash, sources.size() * emails.size());
+                for (Attachment source : sources) {
+                    for (Email email : emails) {
+                        attachments.add(attachmentMapper.copyOf(source, email));
+                    }
+                }
+            }
+
+            List<Attachment> uploads = pendingByHash.getOrDefault(hash, List.of());
+            if (uploads.isEmpty()) {
+                continue;
+            }
+            if (!copies.isEmpty()) {
+                attachmentBlobService.retain(hash, uploads.size() * copies.size());
+            }
+            for (Attachment upload : uploads) {
+                // The pending row already holds its reference
+                upload.setEmail(emails.get(0));
+                attachments.add(upload);
+                for (Email email : copies) {
+                    attachments.add(attachmentMapper.copyOf(upload, email));
+                }
+            }
+        }
+
+        List<Attachment> savedAttachments = attachmentRepository.saveAll(attachments);
+        log.info("Saved {} attachments ({} uploaded before, {} linked) for {} emails",
+            attachments.size() / emails.size(), pending.size(), linked.size(), emails.size());
+        return savedAttachments;
+    }
+
+    /**
+     * Existing attachments of emails the user can read, with their content in the attachment
+     * storage. Legacy attachments whose bytes are still in the database are migrated first,
+     * since content can only be shared once it is stored by hash.
+     */
+    private List<Attachment> linkableAttachments(List<UUID> ids, List<Attachment> pending, UUID userId) {
+        Set<UUID> remaining = new LinkedHashSet<>(ids);
+        pending.forEach(upload -> remaining.remove(upload.getId()));
+        if (remaining.isEmpty()) {
+            return List.of();
+        }
+
+        List<Attachment> linked = new ArrayList<>();
+        for (Attachment source : attachmentRepository.findAccessibleByIds(remaining, userId)) {
+            if (source.getContentHash() == null && !migrateForLinking(source)) {
+                continue;
+            }
+            linked.add(source);
+        }
+        return linked;
+    }
+
+    private boolean migrateForLinking(Attachment source) {
+        byte[] data = attachmentPayloadRepository.findDataById(source.getId());
+        if (data == null) {
+            log.warn("Attachment {} has no content, not linking it", source.getId());
+            return false;
+        }
+        try {
+            StagedBlob blob = attachmentStorage.stage(new ByteArrayInputStream(data), source.getContentType());
+            try {
+                completeMigration(source.getId(), blob);
+            } catch (RuntimeException e) {
+                attachmentStorage.discard(blob);
+                throw e;
+            }
+            // Same content whether this call or the background migrator won the race
+            source.setContentHash(blob.getSha256());
+            return true;
         } catch (IOException e) {
-            log.error("Failed to save attachments", e);
             throw new EmailSystemException("Failed to save attachments", e);
         }
+    }
 
-        return savedAttachments;
+    /**
+     * Create the attachment for a completed resumable upload. It is not referenced by
+     * any email yet and can only be seen by the uploader, who attaches it by ID when
+     * sending an email or saving a draft.
+     *
+     * @param blob the staged content
+     * @param filename the original file name
+     * @param contentType the declared content type
+     * @param owner the uploader
+     * @return the pending attachment
+     */
+    public Attachment savePendingUpload(StagedBlob blob, String filename, String contentType, User owner) {
+        attachmentBlobService.acquire(blob, 1);
+        Attachment attachment = attachmentMapper.toEntity(new StagedAttachment(filename, contentType, blob), null);
+        attachment.setUploadedBy(owner);
+        return attachmentRepository.save(attachment);
     }
 
     /**
-     * Get attachment by ID
+     * Create pending attachments for files whose content the user already has access to,
+     * so that attaching them again does not upload the bytes again. Only content reachable
+     * through the user's own emails or uploads qualifies: knowing a hash is not proof of
+     * having the content, so hashes of other users' files are answered as unknown.
+     *
+     * @param files the files about to be attached, with valid lowercase SHA-256 digests
+     * @param owner the user attaching the files
+     * @return the files, with the ID of the pending attachment set for each one whose content is stored
+     */
+    public List<ContentDigestDTO> savePendingReferences(List<ContentDigestDTO> files, User owner) {
+        Set<String> accessible = new HashSet<>(attachmentRepository.findAccessibleContentHashes(
+            files.stream().map(ContentDigestDTO::getSha256).collect(Collectors.toSet()), owner.getId()));
+
+        // Lock blobs in hash order so concurrent sends cannot deadlock
+        List<ContentDigestDTO> ordered = new ArrayList<>(files);
+        ordered.sort(Comparator.comparing(ContentDigestDTO::getSha256));
+        for (ContentDigestDTO file : ordered) {
+            if (!accessible.contains(file.getSha256())
+                    || !attachmentBlobService.retainIfStored(file.getSha256(), file.getSize(), 1)) {
+                continue;
+            }
+            Attachment attachment = attachmentRepository.save(Attachment.builder()
+                .filename(file.getFilename())
+                .contentType(file.getContentType())
+                .size(file.getSize())
+                .contentHash(file.getSha256())
+                .uploadedBy(owner)
+                .build());
+            file.setAttachmentId(attachment.getId());
+        }
+        return files;
+    }
+
+    /**
+     * Delete a pending upload of the user, unless it has been attached to an email in the meantime
+     *
+     * @param id the attachment ID
+     * @param ownerId the uploader
+     */
+    public void discardPendingUpload(UUID id, UUID ownerId) {
+        deletePendingUploads(attachmentRepository.findPendingUploadsForUpdate(List.of(id), ownerId));
+    }
+
+    /**
+     * Delete pending uploads that were never attached to an email
+     *
+     * @param createdBefore only uploads completed before this time are deleted
+     * @param limit the maximum number of uploads to delete
+     * @return the number of deleted uploads
+     */
+    public int deleteStalePendingUploads(LocalDateTime createdBefore, int limit) {
+        List<Attachment> stale = attachmentRepository.findStalePendingUploadsForUpdate(createdBefore, PageRequest.of(0, limit));
+        deletePendingUploads(stale);
+        return stale.size();
+    }
+
+    private void deletePendingUploads(List<Attachment> uploads) {
+        if (uploads.isEmpty()) {
+            return;
+        }
+        Map<String, Long> references = new TreeMap<>();
+        for (Attachment upload : uploads) {
+            references.merge(upload.getContentHash(), 1L, Long::sum);
+        }
+        attachmentBlobService.release(references);
+        attachmentRepository.deleteAll(uploads);
+    }
+
+    /**
+     * Parse the comma-separated attachment IDs posted by the compose form, skipping malformed ones
+     *
+     * @param attachmentIds the IDs, may be null
+     * @return the distinct IDs in order
+     */
+    public List<UUID> parseAttachmentIds(String attachmentIds) {
+        if (attachmentIds == null || attachmentIds.isBlank()) {
+            return List.of();
+        }
+        Set<UUID> ids = new LinkedHashSet<>();
+        for (String id : attachmentIds.split(",")) {
+            if (id.isBlank()) {
+                continue;
+            }
+            try {
+                ids.add(UUID.fromString(id.trim()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring malformed attachment ID: {}", id);
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Make the attachments of a draft that is saved again match the compose form: its
+     * attachments whose IDs the form no longer lists are removed, the ones it still lists
+     * are kept as they are, and new uploads and other listed attachments are added, see
+     * {@link #saveAttachments(List, List, List, UUID)}.
+     *
+     * @param draft the draft being saved
+     * @param staged the staged uploads to add, may be empty
+     * @param attachmentIds the IDs of all attachments the draft should have besides the staged ones
+     * @param ownerId the draft's sender
+     */
+    public void replaceAttachments(Email draft, List<StagedAttachment> staged, List<UUID> attachmentIds, UUID ownerId) {
+        Set<UUID> listed = new HashSet<>(attachmentIds);
+        Set<UUID> current = new HashSet<>();
+        List<Attachment> removed = new ArrayList<>();
+        for (Attachment attachment : attachmentRepository.findByEmailId(draft.getId())) {
+            current.add(attachment.getId());
+            if (!listed.contains(attachment.getId())) {
+                removed.add(attachment);
+            }
+        }
+        if (!removed.isEmpty()) {
+            Map<String, Long> references = new TreeMap<>();
+            for (Attachment attachment : removed) {
+                if (attachment.getContentHash() != null) {
+                    references.merge(attachment.getContentHash(), 1L, Long::sum);
+                }
+            }
+            attachmentBlobService.release(references);
+            attachmentRepository.deleteAll(removed);
+            log.debug("Removed {} attachments from draft {}", removed.size(), draft.getId());
+        }
+        List<UUID> added = attachmentIds.stream().filter(id -> !current.contains(id)).toList();
+        saveAttachments(List.of(draft), staged, added, ownerId);
+    }
+
+    /**
+     * Release the blob references held by the attachments of the given emails.
+     * Must be called before the emails are deleted.
+     * 
+     * @param emailIds the IDs of the emails about to be deleted
+     */
+    public void releaseAttachments(List<UUID> emailIds) {
+        if (emailIds.isEmpty()) {
+            return;
+        }
+        
+        Map<String, Long> references = new TreeMap<>();
+        for (Object[] row : attachmentRepository.countContentHashesByEmailIds(emailIds)) {
+            references.put((String) row[0], (Long) row[1]);
+        }
+        attachmentBlobService.release(references);
+    }
+
+    /**
+     * Point a legacy attachment at its migrated content and take a reference on the blob
      * 
      * @param id the attachment ID
+     * @param blob the staged content read from the database column
+     * @return false if the attachment was already migrated
+     */
+    public boolean completeMigration(UUID id, StagedBlob blob) {
+        if (attachmentRepository.markMigrated(id, blob.getSha256()) == 0) {
+            attachmentStorage.discard(blob);
+            return false;
+        }
+        attachmentBlobService.acquire(blob, 1);
+        attachmentPayloadRepository.clearData(id);
+        return true;
+    }
+
+    /**
+     * Get attachment by ID
+     *
+     * @param id the attachment ID
      * @return the attachment
      */
     public Attachment getAttachment(UUID id) {
@@ -80,6 +507,37 @@ public class AttachmentService {
                 .orElseThrow(() -> new ResourceNotFoundException("Attachment", "id", id));
     }
 
+    /**
+     * Get an attachment after verifying that the email it belongs to is in one of the
+     * user's mailboxes
+     *
+     * @param id the attachment ID
+     * @param userId the ID of the user requesting the attachment
+     * @return the attachment
+     * @throws ResourceNotFoundException if the attachment does not exist or the user has no access to it
+     */
+    @Transactional(readOnly = true)
+    public Attachment getAccessibleAttachment(UUID id, UUID userId) {
+        Attachment attachment = getAttachment(id);
+        
+        Email email = attachment.getEmail();
+        if (email == null && attachment.getUploadedBy() != null && attachment.getUploadedBy().getId().equals(userId)) {
+            // A pending upload, visible to the uploader only
+            return attachment;
+        }
+        if (email == null) {
+            log.warn("Attachment has no associated email: {}", id);
+            throw new ResourceNotFoundException("Invalid attachment");
+        }
+        
+        if (!mailboxEntryRepository.existsByEmailIdAndOwnerId(email.getId(), userId)) {
+            log.warn("User {} attempted to access attachment {} without permission", userId, id);
+            throw new ResourceNotFoundException("Attachment not found");
+        }
+        
+        return attachment;
+    }
+
     /**
      * Get attachment as resource for downloading
      * 
@@ -87,8 +545,229 @@ public class AttachmentService {
      * @return the resource
      */
     public Resource getAttachmentAsResource(UUID id) {
-        Attachment attachment = getAttachment(id);
-        return new ByteArrayResource(attachment.getData());
+        return getAttachmentAsResource(getAttachment(id));
+    }
+
+    /**
+     * Get attachment content as a resource for downloading.
+     * Content held in the attachment storage is streamed from disk and decoded on the
+     * way if it is stored compressed; legacy rows that have not been migrated yet are
+     * served from the database column.
+     *
+     * @param attachment the attachment
+     * @return the resource, always holding the original bytes
+     */
+    @Transactional(readOnly = true)
+    public Resource getAttachmentAsResource(Attachment attachment) {
+        if (attachment.getContentHash() != null) {
+            return storedContent(attachment.getContentHash(),
+                attachmentBlobService.findBlob(attachment.getContentHash()).orElse(null));
+        }
+        byte[] data = attachmentPayloadRepository.findDataById(attachment.getId());
+        if (data == null) {
+            throw new ResourceNotFoundException("Attachment content not found");
+        }
+        return new ByteArrayResource(data);
+    }
+
+    /**
+     * The original bytes of stored content, decoded if the blob is stored compressed
+     *
+     * @param hash the content hash
+     * @param blob the blob row, null for content that predates reference counting
+     */
+    private Resource storedContent(String hash, AttachmentBlob blob) {
+        if (blob == null || blob.getEffectiveCodec() == AttachmentCodec.IDENTITY) {
+            return attachmentStorage.load(hash);
+        }
+        return new DecodedResource(attachmentStorage.load(blob.getStorageKey()), blob.getEffectiveCodec(), blob.getSize());
+    }
+
+    /**
+     * Collect the attachments of one or more emails into a ZIP archive.
+     * 
+     * Access is checked once per email, for all of them in a single query, and all
+     * attachments are then loaded together with their blobs. The archive reads content
+     * from the storage only while it is being written, after this transaction has ended.
+     * With several emails, each gets a folder named after its subject.
+     *
+     * @param emailIds the emails, in the order their attachments should appear
+     * @param userId the user requesting the archive
+     * @return the archive
+     * @throws ResourceNotFoundException if an email is missing or not accessible, or there are no attachments
+     */
+    @Transactional(readOnly = true)
+    public AttachmentArchive buildArchive(List<UUID> emailIds, UUID userId) {
+        Set<UUID> ids = new LinkedHashSet<>(emailIds);
+        if (ids.isEmpty()) {
+            throw new EmailSystemException("No emails selected");
+        }
+        if (ids.size() > maxArchiveEmails) {
+            throw new EmailSystemException("Attachments of at most " + maxArchiveEmails + " emails can be downloaded at once");
+        }
+
+        Map<UUID, String> subjects = new HashMap<>();
+        for (Object[] row : emailRepository.findAccessibleSubjects(ids, userId)) {
+            subjects.put((UUID) row[0], (String) row[1]);
+        }
+        if (subjects.size() != ids.size()) {
+            log.warn("User {} requested attachments of emails they cannot access", userId);
+            throw new ResourceNotFoundException("Email not found");
+        }
+
+        Map<UUID, List<Object[]>> rowsByEmail = new HashMap<>();
+        for (Object[] row : attachmentRepository.findWithBlobsByEmailIds(ids)) {
+            Attachment attachment = (Attachment) row[0];
+            rowsByEmail.computeIfAbsent(attachment.getEmail().getId(), key -> new ArrayList<>()).add(row);
+        }
+
+        boolean folders = ids.size() > 1;
+        Set<String> usedNames = new HashSet<>();
+        List<AttachmentArchive.Entry> entries = new ArrayList<>();
+        for (UUID emailId : ids) {
+            List<Object[]> rows = rowsByEmail.getOrDefault(emailId, List.of());
+            if (rows.isEmpty()) {
+                continue;
+            }
+            String folder = folders ? uniqueArchiveName(archiveName(subjects.get(emailId), "email"), usedNames) + "/" : "";
+            for (Object[] row : rows) {
+                Attachment attachment = (Attachment) row[0];
+                String name = uniqueArchiveName(folder + archiveName(attachment.getFilename(), "attachment"), usedNames);
+                entries.add(archiveEntry(name, attachment, (AttachmentBlob) row[1]));
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new ResourceNotFoundException("No attachments found");
+        }
+
+        String filename = folders
+            ? "attachments.zip"
+            : archiveName(subjects.get(ids.iterator().next()), "email") + " - attachments.zip";
+        log.info("Prepared archive of {} attachments from {} emails for user {}", entries.size(), ids.size(), userId);
+        return new AttachmentArchive(filename, entries);
+    }
+
+    private AttachmentArchive.Entry archiveEntry(String name, Attachment attachment, AttachmentBlob blob) {
+        String contentType = attachment.getContentType();
+        Long crc32 = null;
+        Resource content;
+
+        if (attachment.getContentHash() == null) {
+            content = new LegacyPayloadResource(attachment.getId());
+        } else {
+            content = storedContent(attachment.getContentHash(), blob);
+            if (blob != null) {
+                crc32 = blob.getCrc32();
+                if (blob.getDetectedContentType() != null) {
+                    contentType = blob.getDetectedContentType();
+                }
+            }
+        }
+
+        // Deflating JPEGs, videos or archives again costs CPU and saves nothing
+        boolean compress = !compressionPolicy.isCompressedType(contentType);
+        return new AttachmentArchive.Entry(name, content, attachment.getSize(), crc32, compress, attachment.getCreatedAt());
+    }
+
+    /**
+     * Reduce a user-supplied name to a single safe path segment
+     */
+    private static String archiveName(String name, String fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        String segment = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1)
+            .replaceAll("[\\p{Cntrl}:*?\"<>|]", "_")
+            .strip();
+        while (segment.startsWith(".")) {
+            segment = segment.substring(1);
+        }
+        if (segment.isBlank()) {
+            return fallback;
+        }
+        return segment.length() > 120 ? segment.substring(0, 120) : segment;
+    }
+
+    /**
+     * Append a counter to names that are already taken, ignoring case
+     */
+    private static String uniqueArchiveName(String name, Set<String> usedNames) {
+        if (usedNames.add(name.toLowerCase(Locale.ROOT))) {
+            return name;
+        }
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        String base = dot > slash + 1 ? name.substring(0, dot) : name;
+        String extension = dot > slash + 1 ? name.substring(dot) : "";
+        for (int i = 2; ; i++) {
+            String candidate = base + " (" + i + ")" + extension;
+            if (usedNames.add(candidate.toLowerCase(Locale.ROOT))) {
+                return candidate;
+            }
+        }
+    }
+
+    /**
+     * Content of an attachment that is still held in the database column, read when the archive is written
+     */
+    private class LegacyPayloadResource extends AbstractResource {
+        private final UUID attachmentId;
+
+        LegacyPayloadResource(UUID attachmentId) {
+            this.attachmentId = attachmentId;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            byte[] data = attachmentPayloadRepository.findDataById(attachmentId);
+            if (data == null) {
+                throw new FileNotFoundException("Attachment content not found: " + attachmentId);
+            }
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public String getDescription() {
+            return "legacy attachment " + attachmentId;
+        }
+    }
+
+    /**
+     * Get the stored copy of attachment content if it is encoded with the given HTTP
+     * content coding, so clients that accept the coding can be sent the stored bytes as is
+     *
+     * @param attachment the attachment
+     * @param contentEncoding the content coding, e.g. {@code gzip}
+     * @return the encoded resource, empty if the content is not stored with that coding
+     */
+    @Transactional(readOnly = true)
+    public Optional<Resource> getEncodedAttachmentResource(Attachment attachment, String contentEncoding) {
+        if (attachment.getContentHash() == null) {
+            return Optional.empty();
+        }
+        return attachmentBlobService.findBlob(attachment.getContentHash())
+            .filter(blob -> contentEncoding.equals(blob.getEffectiveCodec().getContentEncoding()))
+            .map(blob -> attachmentStorage.load(blob.getStorageKey()));
+    }
+
+    /**
+     * Get an artifact derived from attachment content by the post-processing pipeline
+     *
+     * @param attachment the attachment
+     * @param artifact the kind of artifact
+     * @return the artifact, empty if the content has not been processed or yields no such artifact
+     */
+    @Transactional(readOnly = true)
+    public Optional<Resource> getDerivedArtifact(Attachment attachment, DerivedArtifact artifact) {
+        if (attachment.getContentHash() == null) {
+            return Optional.empty();
+        }
+        return attachmentBlobService.findBlob(attachment.getContentHash())
+            .filter(blob -> switch (artifact) {
+                case THUMBNAIL -> Boolean.TRUE.equals(blob.getHasThumbnail());
+                case TEXT -> Boolean.TRUE.equals(blob.getHasText());
+            })
+            .map(blob -> attachmentStorage.load(artifact.storageKey(blob.getHash())));
     }
 
     /**
@@ -102,11 +781,7 @@ public class AttachmentService {
         
         // Add download URLs
         for (AttachmentDTO dto : dtos) {
-            String downloadUrl = ServletUriComponentsBuilder.fromCurrentContextPath()
-                    .path("/attachment/")
-                    .path(dto.getId().toString())
-                    .toUriString();
-            dto.setDownloadUrl(downloadUrl);
+            dto.setDownloadUrl(buildDownloadUrl(dto.getId()));
         }
         
         return dtos;
@@ -122,22 +797,45 @@ public class AttachmentService {
         AttachmentDTO dto = attachmentMapper.toDto(attachment);
         
         // Add download URL
-        String downloadUrl = ServletUriComponentsBuilder.fromCurrentContextPath()
-                .path("/attachment/")
-                .path(attachment.getId().toString())
-                .toUriString();
-        dto.setDownloadUrl(downloadUrl);
+        dto.setDownloadUrl(buildDownloadUrl(attachment.getId()));
         
         return dto;
     }
 
+    /**
+     * Get the attachments of an email for display. Only metadata columns are
+     * read, the content stays in the attachment storage.
+     * 
+     * @param emailId the email ID
+     * @return list of attachment DTOs with download URLs
+     */
+    @Transactional(readOnly = true)
+    public List<AttachmentDTO> getAttachmentMetadata(UUID emailId) {
+        List<AttachmentDTO> dtos = attachmentRepository.findMetadataByEmailId(emailId);
+        for (AttachmentDTO dto : dtos) {
+            dto.setDownloadUrl(buildDownloadUrl(dto.getId()));
+        }
+        return dtos;
+    }
+
+    private String buildDownloadUrl(UUID attachmentId) {
+        return ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/attachment/")
+                .path(attachmentId.toString())
+                .toUriString();
+    }
+
     /**
      * Delete attachment
      * 
      * @param id the attachment ID
      */
     public void deleteAttachment(UUID id) {
-        attachmentRepository.deleteById(id);
+        Attachment attachment = getAttachment(id);
+        if (attachment.getContentHash() != null) {
+            attachmentBlobService.release(Map.of(attachment.getContentHash(), 1L));
+        }
+        attachmentRepository.delete(attachment);
         log.info("Deleted attachment with ID: {}", id);
     }
 
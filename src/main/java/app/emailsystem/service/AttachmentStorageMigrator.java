@@ -0,0 +1,133 @@
+package app.emailsystem.service;
+
+import app.emailsystem.repository.AttachmentPayloadRepository;
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.StagedBlob;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Moves attachment bytes that are still stored in the {@code attachments.data} column
+ * into the attachment storage while the application is running.
+ *
+ * Each run handles at most one batch of rows. Every row is read, written to the storage
+ * and updated in its own short transaction, and the copy rate is capped so the migration
+ * does not compete with user traffic for disk and database bandwidth.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "attachment.storage.migration.enabled", havingValue = "true", matchIfMissing = true)
+public class AttachmentStorageMigrator {
+
+    private static final UUID FIRST_ID = new UUID(0L, 0L);
+
+    private final AttachmentPayloadRepository attachmentPayloadRepository;
+    private final AttachmentStorage attachmentStorage;
+    private final AttachmentService attachmentService;
+    private final int batchSize;
+    private final long maxBytesPerSecond;
+
+    // Keyset position so rows that keep failing do not block the rest of the table
+    private UUID cursor = FIRST_ID;
+
+    @Autowired
+    public AttachmentStorageMigrator(AttachmentPayloadRepository attachmentPayloadRepository,
+                                     AttachmentStorage attachmentStorage,
+                                     AttachmentService attachmentService,
+                                     @Value("${attachment.storage.migration.batch-size:50}") int batchSize,
+                                     @Value("${attachment.storage.migration.max-bytes-per-second:5242880}") long maxBytesPerSecond) {
+        this.attachmentPayloadRepository = attachmentPayloadRepository;
+        this.attachmentStorage = attachmentStorage;
+        this.attachmentService = attachmentService;
+        this.batchSize = batchSize;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Migrate the next batch of legacy attachments
+     */
+    @Scheduled(initialDelayString = "${attachment.storage.migration.initial-delay-ms:60000}",
+               fixedDelayString = "${attachment.storage.migration.interval-ms:60000}")
+    public void migrateBatch() {
+        List<UUID> ids = attachmentPayloadRepository.findLegacyAttachmentIds(cursor, PageRequest.of(0, batchSize));
+        if (ids.isEmpty()) {
+            // Start over from the beginning to retry rows that failed earlier
+            cursor = FIRST_ID;
+            return;
+        }
+        cursor = ids.get(ids.size() - 1);
+
+        log.info("Migrating {} attachments to the attachment storage", ids.size());
+        int migrated = 0;
+
+        for (UUID id : ids) {
+            long started = System.nanoTime();
+            long bytes;
+            try {
+                bytes = migrate(id);
+                migrated++;
+            } catch (Exception e) {
+                log.error("Failed to migrate attachment {}: {}", id, e.getMessage(), e);
+                // Leave the row in the database, it is retried on the next run
+                continue;
+            }
+
+            if (!throttle(bytes, started)) {
+                break;
+            }
+        }
+
+        log.info("Migrated {} of {} attachments to the attachment storage", migrated, ids.size());
+    }
+
+    private long migrate(UUID id) throws IOException {
+        byte[] data = attachmentPayloadRepository.findDataById(id);
+        if (data == null) {
+            return 0;
+        }
+
+        String contentType = attachmentService.getAttachment(id).getContentType();
+        StagedBlob blob = attachmentStorage.stage(new ByteArrayInputStream(data), contentType);
+        try {
+            if (!attachmentService.completeMigration(id, blob)) {
+                log.debug("Attachment {} was migrated concurrently", id);
+            }
+        } catch (RuntimeException e) {
+            attachmentStorage.discard(blob);
+            throw e;
+        }
+        return data.length;
+    }
+
+    /**
+     * Sleep long enough to keep the copy rate below the configured limit
+     *
+     * @return false if the thread was interrupted and the batch should stop
+     */
+    private boolean throttle(long bytes, long startedNanos) {
+        if (maxBytesPerSecond <= 0) {
+            return true;
+        }
+        long budgetMillis = bytes * 1000 / maxBytesPerSecond;
+        long elapsedMillis = (System.nanoTime() - startedNanos) / 1_000_000;
+        if (budgetMillis > elapsedMillis) {
+            try {
+                Thread.sleep(budgetMillis - elapsedMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
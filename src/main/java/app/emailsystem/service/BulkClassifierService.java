@@ -0,0 +1,244 @@
+package app.emailsystem.service;
+
+import app.emailsystem.classifier.BulkModel;
+import app.emailsystem.entity.Email;
+import app.emailsystem.repository.EmailRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Routes bulk messages, such as automated notices, to recipients' Bulk folder rather
+ * than their inbox, see {@link BulkModel}.
+ *
+ * The delivery workers score each message once, as they deliver it, see
+ * {@link DeliveryService}; scoring reads only the in-memory model. The model learns from
+ * what users do with delivered mail: a message trashed unread is an example of bulk, one
+ * opened in the inbox or moved out of the Bulk folder an example of normal mail. Each
+ * user's entry of a message gives at most one example, and undoing what gave it, such as
+ * restoring the message or marking it unread, takes the example back, see
+ * {@link EmailService}. Those events are handed to a single trainer thread through a
+ * bounded queue once the change commits, so neither requests nor delivery wait for
+ * training, and events beyond the queue are dropped. Until the model has seen
+ * {@code min-examples} of either kind, nothing is routed.
+ *
+ * The model is kept per instance and written to {@code snapshot-path} every
+ * {@code snapshot-interval-ms} when it changed, and on shutdown, and read back at startup.
+ */
+@Slf4j
+@Service
+public class BulkClassifierService {
+
+    private final EmailRepository emailRepository;
+    private final TransactionTemplate readOnly;
+    private final boolean enabled;
+    private final double threshold;
+    private final long minExamples;
+    private final int maxVocabulary;
+    private final Path snapshotPath;
+    private final BulkModel model;
+    private final ThreadPoolExecutor trainer;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private final Timer scoreTimer;
+    private final Counter routed;
+    private final Counter trainedBulk;
+    private final Counter trainedNormal;
+    private final Counter retracted;
+    private final Counter dropped;
+
+    @Autowired
+    public BulkClassifierService(EmailRepository emailRepository,
+                                 PlatformTransactionManager transactionManager,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${classifier.enabled:true}") boolean enabled,
+                                 @Value("${classifier.bulk-threshold:0.95}") double threshold,
+                                 @Value("${classifier.min-examples:50}") long minExamples,
+                                 @Value("${classifier.max-tokens:1000}") int maxTokens,
+                                 @Value("${classifier.max-vocabulary:500000}") int maxVocabulary,
+                                 @Value("${classifier.snapshot-path:data/classifier/bulk-model.bin}") String snapshotPath,
+                                 @Value("${classifier.queue-size:10000}") int queueSize) {
+        this.emailRepository = emailRepository;
+        this.readOnly = new TransactionTemplate(transactionManager);
+        this.readOnly.setReadOnly(true);
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.minExamples = minExamples;
+        this.maxVocabulary = maxVocabulary;
+        this.snapshotPath = Paths.get(snapshotPath);
+        this.model = new BulkModel(maxTokens);
+        load();
+
+        this.trainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "classifier-trainer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.scoreTimer = Timer.builder("classifier.score")
+                .description("Time to score a delivered message")
+                .register(meterRegistry);
+        this.routed = Counter.builder("classifier.routed")
+                .description("Messages routed to the recipients' Bulk folder")
+                .register(meterRegistry);
+        this.trainedBulk = trainedCounter(meterRegistry, "bulk");
+        this.trainedNormal = trainedCounter(meterRegistry, "normal");
+        this.retracted = Counter.builder("classifier.retracted")
+                .description("Examples the bulk classifier unlearned because the user undid them")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("classifier.feedback.dropped")
+                .description("Feedback events dropped because the trainer was behind")
+                .register(meterRegistry);
+        Gauge.builder("classifier.vocabulary", model, BulkModel::getVocabularySize)
+                .description("Distinct tokens known to the bulk classifier")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Whether the message should go to its recipients' Bulk folder
+     */
+    public boolean isBulk(Email email) {
+        if (!enabled || model.getBulkMessages() < minExamples || model.getNormalMessages() < minExamples) {
+            return false;
+        }
+        long started = System.nanoTime();
+        double score = model.score(email.getSender().getEmail(), email.getSubject(), email.getContent());
+        scoreTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        if (score < threshold) {
+            return false;
+        }
+        routed.increment();
+        log.debug("Email {} scored {} and goes to bulk", email.getId(), score);
+        return true;
+    }
+
+    @TransactionalEventListener
+    public void onFeedback(ClassifierFeedbackEvent event) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            trainer.execute(() -> train(event));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    private void train(ClassifierFeedbackEvent event) {
+        try {
+            Boolean trained = readOnly.execute(status -> emailRepository.findById(event.getEmailId())
+                    .map(email -> {
+                        if (event.getRetracted() != null) {
+                            model.train(email.getSender().getEmail(), email.getSubject(), email.getContent(),
+                                    event.getRetracted().isBulk(), -1);
+                        }
+                        if (event.getExample() != null) {
+                            model.train(email.getSender().getEmail(), email.getSubject(), email.getContent(),
+                                    event.getExample().isBulk(), 1);
+                        }
+                        return true;
+                    })
+                    .orElse(false));
+            if (Boolean.TRUE.equals(trained)) {
+                if (event.getRetracted() != null) {
+                    retracted.increment();
+                }
+                if (event.getExample() != null) {
+                    (event.getExample().isBulk() ? trainedBulk : trainedNormal).increment();
+                }
+                dirty.set(true);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not train the bulk classifier on email {}: {}", event.getEmailId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Write the model if it changed since the last snapshot, dropping rare tokens first
+     * once the vocabulary outgrows {@code max-vocabulary}
+     */
+    @Scheduled(initialDelayString = "${classifier.snapshot-interval-ms:300000}",
+               fixedDelayString = "${classifier.snapshot-interval-ms:300000}")
+    public void snapshot() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        int pruned = model.limitVocabulary(maxVocabulary);
+        if (pruned > 0) {
+            log.info("Dropped {} rare tokens from the bulk classifier", pruned);
+        }
+        try {
+            Files.createDirectories(snapshotPath.toAbsolutePath().getParent());
+            Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                model.writeTo(out);
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Wrote bulk classifier snapshot, {} bulk and {} normal examples",
+                    model.getBulkMessages(), model.getNormalMessages());
+        } catch (IOException e) {
+            dirty.set(true);
+            log.error("Could not write bulk classifier snapshot {}", snapshotPath, e);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(snapshotPath)) {
+            log.info("No bulk classifier snapshot at {}, starting untrained", snapshotPath);
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            model.readFrom(in);
+            log.info("Loaded bulk classifier snapshot, {} bulk and {} normal examples, {} tokens",
+                    model.getBulkMessages(), model.getNormalMessages(), model.getVocabularySize());
+        } catch (IOException e) {
+            log.error("Could not read bulk classifier snapshot {}, starting untrained", snapshotPath, e);
+        }
+    }
+
+    /**
+     * Finish queued training and keep it
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        trainer.shutdown();
+        if (!trainer.awaitTermination(10, TimeUnit.SECONDS)) {
+            trainer.shutdownNow();
+        }
+        snapshot();
+    }
+
+    private static Counter trainedCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("classifier.trained")
+                .description("Messages the bulk classifier learned from")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,29 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.MailboxEntry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Published when a user's handling of a delivered message says whether it is bulk, or
+ * takes back what it said before, so {@link BulkClassifierService} can learn from it
+ * once the change commits
+ */
+@Getter
+@AllArgsConstructor
+public class ClassifierFeedbackEvent {
+
+    private final UUID emailId;
+
+    /**
+     * The new example, null if the change only takes one back
+     */
+    private final MailboxEntry.Feedback example;
+
+    /**
+     * The example the user's entry gave before, to be taken back, or null
+     */
+    private final MailboxEntry.Feedback retracted;
+}
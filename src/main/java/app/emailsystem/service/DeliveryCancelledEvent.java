@@ -0,0 +1,16 @@
+package app.emailsystem.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Published when the sender cancels a scheduled send, so its delivery timer is removed
+ */
+@Getter
+@AllArgsConstructor
+public class DeliveryCancelledEvent {
+
+    private final UUID jobId;
+}
@@ -0,0 +1,24 @@
+package app.emailsystem.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Published when a send queues a {@link app.emailsystem.entity.DeliveryJob}, so the
+ * delivery workers can start as soon as the send commits, or as soon as the job is due,
+ * instead of at their next poll
+ */
+@Getter
+@AllArgsConstructor
+public class DeliveryQueuedEvent {
+
+    private final UUID jobId;
+
+    /**
+     * When the job becomes due, null if it is due at once
+     */
+    private final LocalDateTime sendAt;
+}
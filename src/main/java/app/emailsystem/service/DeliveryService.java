@@ -0,0 +1,535 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.DeliveryJob;
+import app.emailsystem.entity.DistributionList;
+import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.RecipientType;
+import app.emailsystem.entity.User;
+import app.emailsystem.entity.WebhookSubscription;
+import app.emailsystem.mapper.EmailMapper;
+import app.emailsystem.repository.DeliveryJobRepository;
+import app.emailsystem.repository.MailboxEntryRepository;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.rules.FilterMessage;
+import app.emailsystem.scheduling.TimingWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers queued emails to their recipients, see {@link DeliveryJob}.
+ *
+ * Each worker repeatedly claims the next due job with {@code FOR UPDATE SKIP LOCKED},
+ * resolves the next {@code chunk-size} addresses with one query, inserts the inbox
+ * entries and advances the job's position, all in one short transaction. An address of
+ * a {@link DistributionList} is expanded the same way, {@code chunk-size} members per
+ * transaction, so memory and transaction length stay bounded whatever the list's size. Workers on
+ * this or any other instance never wait on each other's jobs, and a crash loses at
+ * most the chunk in progress, which is simply delivered again. A user who already has
+ * the message in their inbox is skipped, so a chunk delivered twice adds no entries.
+ * A message the bulk classifier scores as bulk goes to the recipients' Bulk folder rather
+ * than their inbox, see {@link BulkClassifierService}, and recipients' filter rules act
+ * on their entries before they are inserted, see {@link FilterRuleService}. Recipients
+ * away on vacation answer the sender after the chunk commits, see
+ * {@link VacationResponderService}.
+ *
+ * A worker keeps going while there are jobs and starts another while workers are
+ * free, so the pool grows with the backlog. The poll only restarts the pool after
+ * idle periods, restarts and jobs queued on other instances. On shutdown the workers
+ * finish the chunk they hold and stop; remaining jobs are picked up on the next start.
+ *
+ * Jobs due later, scheduled sends, sends held for their undo window and retries, wake the
+ * workers through a {@link TimingWheel} at the moment they become due, one wake-up per
+ * tick however many jobs it has, after which the workers claim the due jobs as usual.
+ * The wheel only holds the jobs due within {@code timer-horizon-ms}; it is filled from
+ * the claim index at startup and then once per horizon, so neither restarts nor the
+ * number of scheduled sends require a query per message.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "delivery.enabled", havingValue = "true", matchIfMissing = true)
+public class DeliveryService {
+
+    private static final Duration MAX_RETRY_DELAY = Duration.ofHours(1);
+    /** The mailboxes a delivered message may be in, depending on the classifier */
+    private static final List<MailboxEntry.Mailbox> DELIVERED_TO = List.of(MailboxEntry.Mailbox.INBOX, MailboxEntry.Mailbox.BULK);
+
+    private final DeliveryJobRepository deliveryJobRepository;
+    private final MailboxEntryRepository mailboxEntryRepository;
+    private final UserRepository userRepository;
+    private final EmailService emailService;
+    private final DistributionListService distributionListService;
+    private final FilterRuleService filterRuleService;
+    private final BulkClassifierService bulkClassifierService;
+    private final VacationResponderService vacationResponderService;
+    private final EmailMapper emailMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final MeterRegistry meterRegistry;
+    private final TransactionTemplate transaction;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore capacity;
+    private final int chunkSize;
+    private final int maxAttempts;
+    private final Duration retryDelay;
+    private final Duration idempotencyTtl;
+    private final Duration timerHorizon;
+    private final TimingWheel<UUID> timers;
+    private final ScheduledExecutorService ticker;
+    private volatile boolean draining;
+
+    private final Counter delivered;
+    private final Counter unknown;
+    private final Counter listMembers;
+    private final Counter completed;
+    private final Counter retried;
+    private final Counter failed;
+
+    @Autowired
+    public DeliveryService(DeliveryJobRepository deliveryJobRepository,
+                           MailboxEntryRepository mailboxEntryRepository,
+                           UserRepository userRepository,
+                           EmailService emailService,
+                           DistributionListService distributionListService,
+                           FilterRuleService filterRuleService,
+                           BulkClassifierService bulkClassifierService,
+                           VacationResponderService vacationResponderService,
+                           EmailMapper emailMapper,
+                           ApplicationEventPublisher eventPublisher,
+                           MeterRegistry meterRegistry,
+                           PlatformTransactionManager transactionManager,
+                           @Value("${delivery.workers:4}") int workers,
+                           @Value("${delivery.chunk-size:500}") int chunkSize,
+                           @Value("${delivery.max-attempts:8}") int maxAttempts,
+                           @Value("${delivery.retry-delay-ms:5000}") long retryDelayMillis,
+                           @Value("${delivery.idempotency-ttl-ms:86400000}") long idempotencyTtlMillis,
+                           @Value("${delivery.timer-tick-ms:100}") long timerTickMillis,
+                           @Value("${delivery.timer-horizon-ms:3600000}") long timerHorizonMillis) {
+        this.deliveryJobRepository = deliveryJobRepository;
+        this.mailboxEntryRepository = mailboxEntryRepository;
+        this.userRepository = userRepository;
+        this.emailService = emailService;
+        this.distributionListService = distributionListService;
+        this.filterRuleService = filterRuleService;
+        this.bulkClassifierService = bulkClassifierService;
+        this.vacationResponderService = vacationResponderService;
+        this.emailMapper = emailMapper;
+        this.eventPublisher = eventPublisher;
+        this.meterRegistry = meterRegistry;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = Duration.ofMillis(retryDelayMillis);
+        this.idempotencyTtl = Duration.ofMillis(idempotencyTtlMillis);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "delivery-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        // One permit per worker, so the queue never holds more than a worker about to start
+        this.capacity = new Semaphore(workers);
+
+        this.timerHorizon = Duration.ofMillis(timerHorizonMillis);
+        this.timers = new TimingWheel<>(timerTickMillis, System.currentTimeMillis());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delivery-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(this::tick, timerTickMillis, timerTickMillis, TimeUnit.MILLISECONDS);
+
+        this.delivered = Counter.builder("email.delivery.recipients")
+                .description("Inbox entries written by the delivery workers")
+                .register(meterRegistry);
+        this.unknown = Counter.builder("email.delivery.unknown")
+                .description("Addresses that did not belong to any user")
+                .register(meterRegistry);
+        this.listMembers = Counter.builder("email.delivery.list.members")
+                .description("Distribution list members expanded by the delivery workers")
+                .register(meterRegistry);
+        this.completed = outcomeCounter("done");
+        this.retried = outcomeCounter("retry");
+        this.failed = outcomeCounter("failed");
+        Gauge.builder("email.delivery.workers.active", capacity, permits -> workers - permits.availablePermits())
+                .description("Delivery workers currently running")
+                .register(meterRegistry);
+        Gauge.builder("email.delivery.backlog", deliveryJobRepository, DeliveryJobRepository::countPending)
+                .description("Emails not yet delivered to all their recipients")
+                .register(meterRegistry);
+        Gauge.builder("email.delivery.timers", timers, TimingWheel::size)
+                .description("Delivery jobs waiting for their send time or next attempt")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start delivering as soon as the send that queued the job has committed
+     */
+    @TransactionalEventListener
+    public void onDeliveryQueued(DeliveryQueuedEvent event) {
+        if (event.getSendAt() != null && event.getSendAt().isAfter(LocalDateTime.now())) {
+            timers.schedule(event.getJobId(), epochMillis(event.getSendAt()));
+        } else {
+            startWorker();
+        }
+    }
+
+    @TransactionalEventListener
+    public void onDeliveryCancelled(DeliveryCancelledEvent event) {
+        timers.cancel(event.getJobId());
+    }
+
+    /**
+     * Set timers for the jobs due within the next two horizons, at startup and then once
+     * per horizon, so every job is in the wheel well before it is due. Jobs already in the
+     * wheel are simply scheduled again.
+     */
+    @Scheduled(fixedDelayString = "${delivery.timer-horizon-ms:3600000}")
+    public void loadTimers() {
+        LocalDateTime now = LocalDateTime.now();
+        List<Object[]> due = transaction.execute(status ->
+                deliveryJobRepository.findDueBetween(now, now.plus(timerHorizon.multipliedBy(2))));
+        if (due == null) {
+            return;
+        }
+        for (Object[] row : due) {
+            timers.schedule((UUID) row[0], epochMillis((LocalDateTime) row[1]));
+        }
+        log.debug("Loaded {} delivery timers, {} pending", due.size(), timers.size());
+    }
+
+    private void tick() {
+        try {
+            if (!timers.advance(System.currentTimeMillis()).isEmpty()) {
+                // The first worker starts others while there is work, see work()
+                startWorker();
+            }
+        } catch (RuntimeException e) {
+            // Would cancel the timer task
+            log.error("Delivery timer failed", e);
+        }
+    }
+
+    private static long epochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Restart the workers for jobs left by a restart and jobs queued on other instances
+     */
+    @Scheduled(initialDelayString = "${delivery.poll-interval-ms:5000}",
+               fixedDelayString = "${delivery.poll-interval-ms:5000}")
+    public void poll() {
+        startWorker();
+    }
+
+    /**
+     * Forget idempotency keys of finished sends, see {@link DeliveryJob#getIdempotencyKey()}
+     */
+    @Scheduled(initialDelay = 600000, fixedDelay = 3600000)
+    public void expireIdempotencyKeys() {
+        Integer cleared = transaction.execute(status ->
+                deliveryJobRepository.clearIdempotencyKeys(LocalDateTime.now().minus(idempotencyTtl)));
+        if (cleared != null && cleared > 0) {
+            log.debug("Cleared {} expired idempotency keys", cleared);
+        }
+    }
+
+    private void startWorker() {
+        if (draining || !capacity.tryAcquire()) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    work();
+                } finally {
+                    capacity.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            capacity.release();
+        }
+    }
+
+    /**
+     * Deliver chunks until no job is due or the application shuts down
+     */
+    private void work() {
+        boolean first = true;
+        while (!draining) {
+            AtomicReference<UUID> jobId = new AtomicReference<>();
+            try {
+                Boolean claimed = transaction.execute(status -> deliverNextChunk(jobId));
+                if (!Boolean.TRUE.equals(claimed)) {
+                    return;
+                }
+            } catch (Exception e) {
+                if (jobId.get() == null) {
+                    log.warn("Claiming a delivery job failed: {}", e.getMessage());
+                    return;
+                }
+                log.warn("Delivery of job {} failed: {}", jobId.get(), e.getMessage());
+                transaction.executeWithoutResult(status -> fail(jobId.get(), e));
+            }
+            if (first) {
+                // There is work, so let another worker help with it
+                startWorker();
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Claim the next due job and deliver its next chunk: up to {@code chunk-size} plain
+     * addresses, or as many members of the distribution list it has reached
+     *
+     * @return false if no job was due
+     */
+    private boolean deliverNextChunk(AtomicReference<UUID> claimedId) {
+        List<DeliveryJob> due = deliveryJobRepository.claimDue(LocalDateTime.now(), PageRequest.of(0, 1));
+        if (due.isEmpty()) {
+            return false;
+        }
+        DeliveryJob job = due.get(0);
+        claimedId.set(job.getId());
+        Email email = job.getEmail();
+
+        List<Map.Entry<RecipientType, String>> addresses = addresses(email);
+        List<Map.Entry<RecipientType, String>> window =
+                addresses.subList(job.getPosition(), Math.min(job.getPosition() + chunkSize, addresses.size()));
+
+        // Addresses compare case-insensitively, as the database collation does
+        Set<String> lookup = new HashSet<>();
+        window.forEach(address -> lookup.add(address.getValue().toLowerCase(Locale.ROOT)));
+        Map<String, DistributionList> lists = distributionListService.findByAddresses(lookup);
+
+        // Normalised once for the recipients' filter rules, and scored once for the chunk
+        FilterMessage message = FilterMessage.of(email);
+        MailboxEntry.Mailbox mailbox = bulkClassifierService.isBulk(email)
+                ? MailboxEntry.Mailbox.BULK : MailboxEntry.Mailbox.INBOX;
+
+        int listIndex = 0;
+        while (listIndex < window.size() && !lists.containsKey(window.get(listIndex).getValue().toLowerCase(Locale.ROOT))) {
+            listIndex++;
+        }
+        if (listIndex == 0 && !window.isEmpty()) {
+            Map.Entry<RecipientType, String> address = window.get(0);
+            deliverToListMembers(job, email, message, mailbox, address.getKey(), lists.get(address.getValue().toLowerCase(Locale.ROOT)));
+        } else {
+            deliverToUsers(job, email, message, mailbox, window.subList(0, listIndex));
+        }
+        job.setAttempts(0);
+        job.setLastError(null);
+
+        if (job.getPosition() == addresses.size()) {
+            job.setState(DeliveryJob.State.DONE);
+            job.setCompletedAt(LocalDateTime.now());
+            deliveryJobRepository.saveAndFlush(job);
+            completed.increment();
+            Timer.builder("email.delivery.lag")
+                    .description("Time from an email's send time to its delivery to the last recipient")
+                    .register(meterRegistry)
+                    .record(Duration.between(job.getSendAt() != null ? job.getSendAt() : job.getCreatedAt(),
+                            job.getCompletedAt()));
+            log.info("Email {} delivered to {} recipients", email.getId(), email.getRecipientCount());
+            // The sender may have deleted the message while nobody had received it yet
+            emailService.deleteIfUnreferenced(email.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Deliver to addresses of individual users and advance past them
+     */
+    private void deliverToUsers(DeliveryJob job, Email email, FilterMessage message, MailboxEntry.Mailbox mailbox,
+                                List<Map.Entry<RecipientType, String>> chunk) {
+        Set<String> lookup = new HashSet<>();
+        chunk.forEach(address -> lookup.add(address.getValue().toLowerCase(Locale.ROOT)));
+        Map<String, User> users = new HashMap<>();
+        if (!lookup.isEmpty()) {
+            for (User user : userRepository.findByEmailIn(lookup)) {
+                users.put(user.getEmail().toLowerCase(Locale.ROOT), user);
+            }
+        }
+        // Users addressed in an earlier chunk, or by a chunk delivered before a crash, keep that entry
+        Set<UUID> addressed = existingRecipients(email, users.values().stream().map(User::getId).toList());
+
+        List<MailboxEntry> entries = new ArrayList<>();
+        Set<String> unknownAddresses = new LinkedHashSet<>();
+        for (Map.Entry<RecipientType, String> address : chunk) {
+            User user = users.get(address.getValue().toLowerCase(Locale.ROOT));
+            if (user == null) {
+                unknownAddresses.add(address.getValue());
+            } else if (addressed.add(user.getId())) {
+                entries.add(entry(job, email, user, mailbox, address.getKey()));
+            }
+        }
+        saveEntries(email, message, entries);
+        // Members of a distribution list are not answered, as subscribers of a mailing list are not
+        vacationResponderService.collect(email, entries);
+
+        if (!unknownAddresses.isEmpty()) {
+            String previous = job.getUnknownAddresses();
+            job.setUnknownAddresses((previous != null ? previous + ", " : "") + String.join(", ", unknownAddresses));
+            unknown.increment(unknownAddresses.size());
+        }
+        job.setPosition(job.getPosition() + chunk.size());
+        job.setMemberCursor(null);
+    }
+
+    /**
+     * Deliver to the next chunk of members of a distribution list, and advance past the
+     * list once its last member is reached. Members are referenced by ID, the users are
+     * not loaded.
+     */
+    private void deliverToListMembers(DeliveryJob job, Email email, FilterMessage message,
+                                      MailboxEntry.Mailbox mailbox, RecipientType type, DistributionList list) {
+        List<UUID> members = distributionListService.nextMembers(list, job.getMemberCursor(), chunkSize);
+        Set<UUID> addressed = existingRecipients(email, members);
+
+        List<MailboxEntry> entries = new ArrayList<>();
+        for (UUID member : members) {
+            if (addressed.add(member)) {
+                entries.add(entry(job, email, userRepository.getReferenceById(member), mailbox, type));
+            }
+        }
+        saveEntries(email, message, entries);
+
+        if (members.size() < chunkSize) {
+            job.setPosition(job.getPosition() + 1);
+            job.setMemberCursor(null);
+        } else {
+            job.setMemberCursor(members.get(members.size() - 1));
+        }
+        listMembers.increment(members.size());
+    }
+
+    private Set<UUID> existingRecipients(Email email, List<UUID> userIds) {
+        Set<UUID> existing = new HashSet<>();
+        if (!userIds.isEmpty()) {
+            existing.addAll(mailboxEntryRepository.findOwnerIds(email.getId(), DELIVERED_TO, userIds));
+        }
+        return existing;
+    }
+
+    private MailboxEntry entry(DeliveryJob job, Email email, User user, MailboxEntry.Mailbox mailbox, RecipientType type) {
+        // The first To recipient delivered to replaces the sender as the message's recipient
+        if (type == RecipientType.TO && email.getRecipient().getId().equals(job.getSender().getId())) {
+            email.setRecipient(user);
+        }
+        return emailMapper.toEntry(email, user, mailbox, type);
+    }
+
+    private void saveEntries(Email email, FilterMessage message, List<MailboxEntry> entries) {
+        filterRuleService.applyRules(email, message, entries);
+        mailboxEntryRepository.saveAll(entries);
+        email.setRecipientCount((email.getRecipientCount() != null ? email.getRecipientCount() : 0) + entries.size());
+        delivered.increment(entries.size());
+        if (!entries.isEmpty()) {
+            List<UUID> ownerIds = entries.stream().map(entry -> entry.getOwner().getId()).toList();
+            eventPublisher.publishEvent(new MailboxEvent(WebhookSubscription.Event.DELIVERED, ownerIds,
+                List.of(email.getId()), Instant.now(), email.getSender().getEmail(), email.getSubject()));
+        }
+    }
+
+    /**
+     * The message's addresses in To, Cc, Bcc order, the order positions refer to
+     */
+    private static List<Map.Entry<RecipientType, String>> addresses(Email email) {
+        List<Map.Entry<RecipientType, String>> addresses = new ArrayList<>();
+        EmailService.splitAddresses(email.getToAddresses())
+                .forEach(address -> addresses.add(new AbstractMap.SimpleImmutableEntry<>(RecipientType.TO, address)));
+        EmailService.splitAddresses(email.getCcAddresses())
+                .forEach(address -> addresses.add(new AbstractMap.SimpleImmutableEntry<>(RecipientType.CC, address)));
+        EmailService.splitAddresses(email.getBccAddresses())
+                .forEach(address -> addresses.add(new AbstractMap.SimpleImmutableEntry<>(RecipientType.BCC, address)));
+        return addresses;
+    }
+
+    private void fail(UUID jobId, Exception error) {
+        deliveryJobRepository.findByIdForUpdate(jobId).ifPresent(job -> {
+            job.setAttempts(job.getAttempts() + 1);
+            String message = String.valueOf(error.getMessage());
+            job.setLastError(message.length() > 1000 ? message.substring(0, 1000) : message);
+            if (job.getAttempts() >= maxAttempts) {
+                log.error("Giving up delivering email {} after {} attempts, {} addresses handled",
+                        job.getEmail().getId(), job.getAttempts(), job.getPosition());
+                job.setState(DeliveryJob.State.FAILED);
+                job.setCompletedAt(LocalDateTime.now());
+                failed.increment();
+                return;
+            }
+            Duration delay = retryDelay.multipliedBy(1L << Math.min(job.getAttempts() - 1, 16));
+            if (delay.compareTo(MAX_RETRY_DELAY) > 0) {
+                delay = MAX_RETRY_DELAY;
+            }
+            job.setNextAttemptAt(LocalDateTime.now().plus(delay));
+            timers.schedule(jobId, epochMillis(job.getNextAttemptAt()));
+            retried.increment();
+        });
+    }
+
+    private Counter outcomeCounter(String outcome) {
+        return Counter.builder("email.delivery.jobs")
+                .description("Emails leaving the delivery queue")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Stop claiming jobs and let the workers finish the chunk they hold
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        draining = true;
+        ticker.shutdownNow();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            // An interrupted chunk rolls back and is delivered again after the restart
+            executor.shutdownNow();
+        }
+    }
+}
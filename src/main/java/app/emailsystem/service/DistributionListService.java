@@ -0,0 +1,273 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.DistributionList;
+import app.emailsystem.entity.DistributionListMember;
+import app.emailsystem.entity.User;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.DistributionListMemberRepository;
+import app.emailsystem.repository.DistributionListRepository;
+import app.emailsystem.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Distribution lists: group addresses that expand to their members at delivery time,
+ * see {@link DeliveryService}.
+ *
+ * Delivery reads a list's members a chunk at a time from a cache of their sorted user
+ * IDs, so delivering to a large list loads neither the users nor the member rows, and a
+ * list sent to repeatedly is read from the database once per change. Every change bumps
+ * {@link DistributionList#getMemberVersion()}, which is checked on each read, so caches on
+ * other instances see the change too.
+ */
+@Slf4j
+@Service
+@Transactional
+public class DistributionListService {
+
+    private final DistributionListRepository listRepository;
+    private final DistributionListMemberRepository memberRepository;
+    private final UserRepository userRepository;
+    private final int cacheSize;
+    private final Map<UUID, CachedMembers> cache;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+
+    @Autowired
+    public DistributionListService(DistributionListRepository listRepository,
+                                   DistributionListMemberRepository memberRepository,
+                                   UserRepository userRepository,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${distribution.list.cache-size:64}") int cacheSize) {
+        this.listRepository = listRepository;
+        this.memberRepository = memberRepository;
+        this.userRepository = userRepository;
+        this.cacheSize = cacheSize;
+        // Access-ordered, so the least recently delivered list is evicted first
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CachedMembers> eldest) {
+                return size() > DistributionListService.this.cacheSize;
+            }
+        };
+        this.cacheHits = cacheCounter(meterRegistry, "hit");
+        this.cacheMisses = cacheCounter(meterRegistry, "miss");
+    }
+
+    @Transactional(readOnly = true)
+    public List<DistributionList> getLists(UUID ownerId) {
+        return listRepository.findByOwnerIdOrderByName(ownerId);
+    }
+
+    /**
+     * Get a list the user owns
+     *
+     * @throws ResourceNotFoundException if there is no such list or the user does not own it
+     */
+    @Transactional(readOnly = true)
+    public DistributionList getList(UUID listId, UUID ownerId) {
+        return listRepository.findById(listId)
+            .filter(list -> list.getOwner().getId().equals(ownerId))
+            .orElseThrow(() -> new ResourceNotFoundException("Distribution list", "id", listId));
+    }
+
+    @Transactional(readOnly = true)
+    public Page<DistributionListMember> getMembers(UUID listId, UUID ownerId, int page, int size) {
+        getList(listId, ownerId);
+        return memberRepository.findByListId(listId, PageRequest.of(page, size));
+    }
+
+    /**
+     * Create an empty list
+     *
+     * @throws EmailSystemException if the address is already used by a user or another list
+     */
+    public DistributionList createList(UUID ownerId, String name, String address) {
+        if (name == null || name.isBlank() || address == null || address.isBlank()) {
+            throw new EmailSystemException("Name and address are required");
+        }
+        String trimmed = address.trim();
+        if (userRepository.existsByEmail(trimmed) || listRepository.existsByAddress(trimmed)) {
+            throw new EmailSystemException("Address already in use: " + trimmed);
+        }
+        User owner = userRepository.findById(ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+
+        log.info("Creating distribution list {} for user {}", trimmed, ownerId);
+        return listRepository.save(DistributionList.builder()
+            .owner(owner)
+            .name(name.trim())
+            .address(trimmed)
+            .build());
+    }
+
+    /**
+     * Add the users with the given comma-separated addresses to the list. Addresses of
+     * existing members are ignored.
+     *
+     * @return the addresses that do not belong to any user
+     */
+    public List<String> addMembers(UUID listId, UUID ownerId, String addresses) {
+        DistributionList list = lockList(listId, ownerId);
+
+        List<String> requested = EmailService.splitAddresses(addresses);
+        Set<String> lookup = new HashSet<>();
+        requested.forEach(address -> lookup.add(address.toLowerCase(Locale.ROOT)));
+        Map<String, User> users = new HashMap<>();
+        if (!lookup.isEmpty()) {
+            for (User user : userRepository.findByEmailIn(lookup)) {
+                users.put(user.getEmail().toLowerCase(Locale.ROOT), user);
+            }
+        }
+
+        Set<String> unknown = new LinkedHashSet<>();
+        Map<UUID, User> candidates = new LinkedHashMap<>();
+        for (String address : requested) {
+            User user = users.get(address.toLowerCase(Locale.ROOT));
+            if (user == null) {
+                unknown.add(address);
+            } else {
+                candidates.put(user.getId(), user);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            memberRepository.findUserIds(listId, candidates.keySet()).forEach(candidates::remove);
+        }
+
+        List<DistributionListMember> members = new ArrayList<>(candidates.size());
+        candidates.values().forEach(user -> members.add(DistributionListMember.builder().list(list).user(user).build()));
+        memberRepository.saveAll(members);
+        if (!members.isEmpty()) {
+            list.setMemberCount(list.getMemberCount() + members.size());
+            membersChanged(list);
+        }
+        log.info("Added {} members to distribution list {}", members.size(), list.getAddress());
+        return new ArrayList<>(unknown);
+    }
+
+    public void removeMember(UUID listId, UUID ownerId, UUID userId) {
+        DistributionList list = lockList(listId, ownerId);
+        if (memberRepository.deleteByListIdAndUserId(listId, userId) > 0) {
+            list.setMemberCount(list.getMemberCount() - 1);
+            membersChanged(list);
+        }
+    }
+
+    public void deleteList(UUID listId, UUID ownerId) {
+        DistributionList list = lockList(listId, ownerId);
+        log.info("Deleting distribution list {}", list.getAddress());
+        memberRepository.deleteByListId(listId);
+        listRepository.delete(list);
+        evict(listId);
+    }
+
+    /**
+     * The lists among the given addresses, by lower-case address
+     */
+    @Transactional(readOnly = true)
+    public Map<String, DistributionList> findByAddresses(Collection<String> addresses) {
+        Map<String, DistributionList> lists = new HashMap<>();
+        if (!addresses.isEmpty()) {
+            for (DistributionList list : listRepository.findByAddressIn(addresses)) {
+                lists.put(list.getAddress().toLowerCase(Locale.ROOT), list);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * The next members of the list after the given user ID, in a fixed order
+     *
+     * @param list the list, as read in the caller's transaction
+     * @param after the last member returned by the previous call, null to start
+     * @param limit the most members to return
+     * @return the user IDs; fewer than {@code limit} when the end of the list is reached
+     */
+    @Transactional(readOnly = true)
+    public List<UUID> nextMembers(DistributionList list, UUID after, int limit) {
+        UUID[] members = memberIds(list);
+        int from = 0;
+        if (after != null) {
+            int index = Arrays.binarySearch(members, after);
+            // A member removed since the previous chunk is not found; continue after where it was
+            from = index >= 0 ? index + 1 : -index - 1;
+        }
+        int to = Math.min(from + limit, members.length);
+        return Arrays.asList(members).subList(from, to);
+    }
+
+    private UUID[] memberIds(DistributionList list) {
+        synchronized (cache) {
+            CachedMembers cached = cache.get(list.getId());
+            if (cached != null && cached.version == list.getMemberVersion()) {
+                cacheHits.increment();
+                return cached.userIds;
+            }
+        }
+        cacheMisses.increment();
+        UUID[] userIds = memberRepository.findUserIds(list.getId()).toArray(new UUID[0]);
+        Arrays.sort(userIds);
+        synchronized (cache) {
+            cache.put(list.getId(), new CachedMembers(list.getMemberVersion(), userIds));
+        }
+        return userIds;
+    }
+
+    private DistributionList lockList(UUID listId, UUID ownerId) {
+        return listRepository.findByIdForUpdate(listId)
+            .filter(list -> list.getOwner().getId().equals(ownerId))
+            .orElseThrow(() -> new ResourceNotFoundException("Distribution list", "id", listId));
+    }
+
+    private void membersChanged(DistributionList list) {
+        list.setMemberVersion(list.getMemberVersion() + 1);
+        evict(list.getId());
+    }
+
+    private void evict(UUID listId) {
+        synchronized (cache) {
+            cache.remove(listId);
+        }
+    }
+
+    private static Counter cacheCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("distribution.list.cache")
+            .description("Member list reads served from, or loaded into, the cache")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Sorted member user IDs of a list at one version
+     */
+    private static final class CachedMembers {
+        private final long version;
+        private final UUID[] userIds;
+
+        private CachedMembers(long version, UUID[] userIds) {
+            this.version = version;
+            this.userIds = userIds;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package app.emailsystem.service;
+
+import app.emailsystem.dto.DraftPatchDTO;
+import app.emailsystem.dto.DraftStateDTO;
+import app.emailsystem.dto.EmailDTO;
+import app.emailsystem.entity.Email;
+import app.emailsystem.exception.DraftConflictException;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Draft autosave: small patches applied to a draft in memory and written to its row
+ * at most once per {@code debounce-ms} of quiet, or every {@code max-delay-ms} while
+ * the user keeps typing. A draft autosaved every few seconds therefore stays one row
+ * and costs one short update every few seconds; its attachments are not touched.
+ *
+ * Every patch names the version it was made to, and is rejected with a
+ * {@link DraftConflictException} if the draft has moved on since, e.g. because it is
+ * open in two windows. The buffered version is written along with the fields, and only
+ * if the row still has the version the buffer was loaded at, so a draft saved through
+ * the compose form or on another instance in the meantime is never overwritten; the
+ * buffer is dropped instead and the next patch conflicts.
+ *
+ * Buffers are bounded: a draft's fields may hold at most {@code max-chars} characters
+ * each, and a user has at most {@code max-drafts-per-user} drafts buffered; opening
+ * another writes and forgets the one they edited least recently.
+ *
+ * Anything that reads or replaces a draft from the database calls {@link #flush} first.
+ */
+@Slf4j
+@Service
+public class DraftAutosaveService {
+
+    private final EmailService emailService;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final long idleMillis;
+    private final int maxChars;
+    private final int maxDraftsPerUser;
+    private final Map<UUID, PendingDraft> drafts = new ConcurrentHashMap<>();
+    /** The number of drafts each user has in {@link #drafts} */
+    private final Map<UUID, Integer> buffered = new ConcurrentHashMap<>();
+    private final Counter patches;
+    private final Counter writes;
+    private final Counter conflicts;
+
+    @Autowired
+    public DraftAutosaveService(EmailService emailService,
+                                MeterRegistry meterRegistry,
+                                @Value("${draft.autosave.debounce-ms:2000}") long debounceMillis,
+                                @Value("${draft.autosave.max-delay-ms:10000}") long maxDelayMillis,
+                                @Value("${draft.autosave.idle-ms:300000}") long idleMillis,
+                                @Value("${draft.autosave.max-chars:65535}") int maxChars,
+                                @Value("${draft.autosave.max-drafts-per-user:5}") int maxDraftsPerUser) {
+        this.emailService = emailService;
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.idleMillis = idleMillis;
+        this.maxChars = maxChars;
+        this.maxDraftsPerUser = maxDraftsPerUser;
+        this.patches = Counter.builder("draft.autosave.patches")
+            .description("Autosave patches applied to drafts")
+            .register(meterRegistry);
+        this.writes = Counter.builder("draft.autosave.writes")
+            .description("Draft rows written by autosave")
+            .register(meterRegistry);
+        this.conflicts = Counter.builder("draft.autosave.conflicts")
+            .description("Autosave patches made to an outdated draft version")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Create a draft from the first autosave of a compose form
+     */
+    public DraftStateDTO create(UUID ownerId, DraftPatchDTO patch) {
+        EmailDTO emailDTO = new EmailDTO();
+        emailDTO.setRecipients(patch.getRecipients());
+        emailDTO.setCc(patch.getCc());
+        emailDTO.setBcc(patch.getBcc());
+        emailDTO.setSubject(patch.getSubject());
+        emailDTO.setContent(patch.getContent());
+        Email draft = emailService.saveDraft(emailDTO, ownerId, List.of());
+        return DraftStateDTO.builder().id(draft.getId()).version(draft.getDraftVersion()).build();
+    }
+
+    /**
+     * Apply a patch to the user's draft
+     *
+     * @return the draft's ID and new version
+     * @throws ResourceNotFoundException if the user has no such draft
+     * @throws DraftConflictException if the patch was made to another version than the current one
+     * @throws EmailSystemException if the patch makes a field longer than {@code max-chars}
+     */
+    public DraftStateDTO patch(UUID ownerId, UUID draftId, DraftPatchDTO patch) {
+        while (true) {
+            PendingDraft draft = drafts.get(draftId);
+            if (draft == null) {
+                PendingDraft loaded = new PendingDraft(emailService.getDraft(draftId, ownerId), ownerId);
+                draft = drafts.putIfAbsent(draftId, loaded);
+                if (draft == null) {
+                    draft = loaded;
+                    if (buffered.merge(ownerId, 1, Integer::sum) > maxDraftsPerUser) {
+                        flushLeastRecent(ownerId, draftId);
+                    }
+                }
+            }
+            synchronized (draft) {
+                if (draft.dropped) {
+                    // Written and evicted, or dropped, since it was looked up
+                    continue;
+                }
+                if (!draft.ownerId.equals(ownerId)) {
+                    throw new ResourceNotFoundException("Draft", "id", draftId);
+                }
+                if (patch.getBaseVersion() != draft.version) {
+                    conflicts.increment();
+                    throw new DraftConflictException(draft.state(draftId));
+                }
+                if (draft.apply(patch, maxChars)) {
+                    long now = System.currentTimeMillis();
+                    if (!draft.dirty) {
+                        draft.dirtySince = now;
+                    }
+                    draft.dirty = true;
+                    draft.changedAt = now;
+                    draft.version++;
+                }
+                draft.touchedAt = System.currentTimeMillis();
+                patches.increment();
+                return DraftStateDTO.builder().id(draftId).version(draft.version).build();
+            }
+        }
+    }
+
+    /**
+     * Write the draft's buffered changes now and forget them, before the draft is read,
+     * saved, sent or deleted through {@link EmailService}
+     */
+    public void flush(UUID draftId) {
+        PendingDraft draft = drafts.get(draftId);
+        if (draft == null) {
+            return;
+        }
+        synchronized (draft) {
+            if (!draft.dropped) {
+                write(draftId, draft);
+                drop(draftId, draft);
+            }
+        }
+    }
+
+    /**
+     * Write the drafts whose edits have paused for {@code debounce-ms}, or have waited
+     * {@code max-delay-ms}, and forget the drafts nobody has edited for a while
+     */
+    @Scheduled(fixedDelayString = "${draft.autosave.flush-interval-ms:500}")
+    public void flushDue() {
+        long now = System.currentTimeMillis();
+        drafts.forEach((draftId, draft) -> {
+            synchronized (draft) {
+                if (draft.dropped) {
+                    return;
+                }
+                if (draft.dirty && (now - draft.changedAt >= debounceMillis || now - draft.dirtySince >= maxDelayMillis)) {
+                    write(draftId, draft);
+                }
+                if (!draft.dirty && now - draft.touchedAt >= idleMillis) {
+                    drop(draftId, draft);
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        drafts.keySet().forEach(this::flush);
+    }
+
+    /**
+     * Write a buffered draft; called holding its lock. A draft that can no longer be
+     * written is dropped, a failed write is tried again on the next flush.
+     */
+    private void write(UUID draftId, PendingDraft draft) {
+        if (!draft.dirty) {
+            return;
+        }
+        try {
+            if (emailService.updateDraft(draft.ownerId, draft.toEmailDTO(draftId), draft.writtenVersion, draft.version)) {
+                draft.writtenVersion = draft.version;
+                draft.dirty = false;
+                writes.increment();
+            } else {
+                log.info("Draft {} was saved, sent or deleted elsewhere, discarding its autosaved changes", draftId);
+                drop(draftId, draft);
+            }
+        } catch (EmailSystemException | DataAccessException e) {
+            log.warn("Autosave of draft {} failed, will retry: {}", draftId, e.getMessage());
+        }
+    }
+
+    private void drop(UUID draftId, PendingDraft draft) {
+        draft.dropped = true;
+        if (drafts.remove(draftId, draft)) {
+            buffered.computeIfPresent(draft.ownerId, (ownerId, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Write and forget the user's buffered draft, other than the given one, that was
+     * patched least recently
+     */
+    private void flushLeastRecent(UUID ownerId, UUID keep) {
+        UUID leastRecent = null;
+        long touchedAt = Long.MAX_VALUE;
+        for (Map.Entry<UUID, PendingDraft> entry : drafts.entrySet()) {
+            PendingDraft draft = entry.getValue();
+            if (draft.ownerId.equals(ownerId) && !entry.getKey().equals(keep) && draft.touchedAt < touchedAt) {
+                leastRecent = entry.getKey();
+                touchedAt = draft.touchedAt;
+            }
+        }
+        if (leastRecent != null) {
+            flush(leastRecent);
+        }
+    }
+
+    /**
+     * A draft's fields as last patched
+     */
+    private static final class PendingDraft {
+        private final UUID ownerId;
+        private String recipients;
+        private String cc;
+        private String bcc;
+        private String subject;
+        private String content;
+        private long version;
+        /** The version the row has */
+        private long writtenVersion;
+        private boolean dirty;
+        private boolean dropped;
+        private long dirtySince;
+        private long changedAt;
+        private volatile long touchedAt = System.currentTimeMillis();
+
+        private PendingDraft(Email draft, UUID ownerId) {
+            this.ownerId = ownerId;
+            this.recipients = draft.getToAddresses();
+            this.cc = draft.getCcAddresses();
+            this.bcc = draft.getBccAddresses();
+            this.subject = draft.getSubject();
+            this.content = draft.getContent() != null ? draft.getContent() : "";
+            this.version = draft.getDraftVersion();
+            this.writtenVersion = version;
+        }
+
+        /**
+         * @return whether anything changed
+         * @throws EmailSystemException if the delta does not fit the body, or a field
+         *                              would be longer than {@code maxChars}
+         */
+        private boolean apply(DraftPatchDTO patch, int maxChars) {
+            String newContent = content;
+            if (patch.getContent() != null) {
+                newContent = patch.getContent();
+            } else if (patch.getContentDelta() != null) {
+                DraftPatchDTO.TextDelta delta = patch.getContentDelta();
+                int end = delta.getOffset() + delta.getRemoved();
+                if (delta.getOffset() < 0 || delta.getRemoved() < 0 || end > content.length()) {
+                    throw new EmailSystemException("Invalid change to the draft body");
+                }
+                newContent = content.substring(0, delta.getOffset())
+                    + Objects.toString(delta.getText(), "") + content.substring(end);
+            }
+            String newRecipients = patch.getRecipients() != null ? patch.getRecipients() : recipients;
+            String newCc = patch.getCc() != null ? patch.getCc() : cc;
+            String newBcc = patch.getBcc() != null ? patch.getBcc() : bcc;
+            String newSubject = patch.getSubject() != null ? patch.getSubject() : subject;
+            for (String field : new String[] {newContent, newRecipients, newCc, newBcc, newSubject}) {
+                if (field != null && field.length() > maxChars) {
+                    throw new EmailSystemException("The draft is too long to save, at most " + maxChars
+                        + " characters per field");
+                }
+            }
+            boolean changed = !newContent.equals(content) || !Objects.equals(newRecipients, recipients)
+                || !Objects.equals(newCc, cc) || !Objects.equals(newBcc, bcc) || !Objects.equals(newSubject, subject);
+            content = newContent;
+            recipients = newRecipients;
+            cc = newCc;
+            bcc = newBcc;
+            subject = newSubject;
+            return changed;
+        }
+
+        private EmailDTO toEmailDTO(UUID draftId) {
+            EmailDTO emailDTO = new EmailDTO();
+            emailDTO.setId(draftId.toString());
+            emailDTO.setRecipients(recipients);
+            emailDTO.setCc(cc);
+            emailDTO.setBcc(bcc);
+            emailDTO.setSubject(subject);
+            emailDTO.setContent(content);
+            return emailDTO;
+        }
+
+        private DraftStateDTO state(UUID draftId) {
+            return DraftStateDTO.builder()
+                .id(draftId)
+                .version(version)
+                .recipients(recipients)
+                .cc(cc)
+                .bcc(bcc)
+                .subject(subject)
+                .content(content)
+                .build();
+        }
+    }
+}
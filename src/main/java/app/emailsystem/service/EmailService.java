@@ -2,29 +2,45 @@ package app.emailsystem.service;
 
 import app.emailsystem.dto.EmailDTO;
 import app.emailsystem.entity.Attachment;
+import app.emailsystem.entity.DeliveryJob;
 import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.RecipientType;
 import app.emailsystem.entity.User;
+import app.emailsystem.entity.WebhookSubscription;
 import app.emailsystem.exception.EmailSystemException;
 import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.DeliveryJobRepository;
 import app.emailsystem.repository.EmailRepository;
+import app.emailsystem.repository.MailboxEntryRepository;
+import app.emailsystem.repository.OffsetPageRequest;
 import app.emailsystem.repository.UserRepository;
+import app.emailsystem.storage.StagedAttachment;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.List;
 import java.util.ArrayList;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.multipart.MultipartFile;
 import app.emailsystem.mapper.EmailMapper;
 import org.hibernate.Hibernate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -33,53 +49,117 @@ import java.util.stream.Collectors;
 public class EmailService {
     
     private final EmailRepository emailRepository;
+    private final MailboxEntryRepository mailboxEntryRepository;
     private final UserRepository userRepository;
+    private final DeliveryJobRepository deliveryJobRepository;
     private final AttachmentService attachmentService;
     private final EmailMapper emailMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Set<String> broadcastSenders;
+    private final Duration broadcastVisibility;
+    private final int maxVisibleBroadcasts;
+    private final Duration undoWindow;
+    private final Duration maxScheduleAhead;
 
     @Autowired
-    public EmailService(EmailRepository emailRepository, UserRepository userRepository, AttachmentService attachmentService, EmailMapper emailMapper) {
+    public EmailService(EmailRepository emailRepository, MailboxEntryRepository mailboxEntryRepository,
+                        UserRepository userRepository, DeliveryJobRepository deliveryJobRepository,
+                        AttachmentService attachmentService, EmailMapper emailMapper,
+                        ApplicationEventPublisher eventPublisher,
+                        @Value("${broadcast.senders:}") String broadcastSenders,
+                        @Value("${broadcast.visible-days:30}") int broadcastVisibleDays,
+                        @Value("${broadcast.max-visible:20}") int maxVisibleBroadcasts,
+                        @Value("${delivery.undo-window-ms:10000}") long undoWindowMillis,
+                        @Value("${delivery.max-schedule-days:365}") int maxScheduleDays) {
         this.emailRepository = emailRepository;
+        this.mailboxEntryRepository = mailboxEntryRepository;
         this.userRepository = userRepository;
+        this.deliveryJobRepository = deliveryJobRepository;
         this.attachmentService = attachmentService;
         this.emailMapper = emailMapper;
+        this.eventPublisher = eventPublisher;
+        this.broadcastSenders = splitAddresses(broadcastSenders).stream()
+            .map(address -> address.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toSet());
+        this.broadcastVisibility = Duration.ofDays(broadcastVisibleDays);
+        this.maxVisibleBroadcasts = maxVisibleBroadcasts;
+        this.undoWindow = Duration.ofMillis(undoWindowMillis);
+        this.maxScheduleAhead = Duration.ofDays(maxScheduleDays);
     }
 
     private static final int PAGE_SIZE = 20;
+    private static final int TRASH_BATCH_SIZE = 500;
 
     /**
-     * Get inbox emails with eager loading of senders and recipients
+     * Get the user's inbox, newest first, with the messages and their senders loaded.
+     * Broadcasts the user has not interacted with have no entry; they are merged in here
+     * as unsaved, unread entries at the position their date gives them.
      */
     @Transactional(readOnly = true)
-    public Page<Email> getInboxEmails(UUID userId, int page, int size) {
+    public Page<MailboxEntry> getInboxEmails(UUID userId, int page, int size) {
         log.debug("Fetching inbox emails for user: {} with page size: {}", userId, size);
         
         try {
-            Page<Email> emails = emailRepository.findByRecipientIdAndTrashFalseOrderByCreatedAtDesc(
-                userId,
-                PageRequest.of(page, size)
-            );
-            
-            // Initialize sender and recipient for each email to avoid LazyInitializationExceptions
-            for (Email email : emails.getContent()) {
-                if (email.getSender() != null) {
-                    Hibernate.initialize(email.getSender());
-                }
-                if (email.getRecipient() != null) {
-                    Hibernate.initialize(email.getRecipient());
-                }
+            List<Email> broadcasts = emailRepository.findUnseenBroadcasts(
+                userId, broadcastsSince(), PageRequest.of(0, maxVisibleBroadcasts));
+            if (broadcasts.isEmpty()) {
+                Page<MailboxEntry> entries = mailboxEntryRepository.findFolder(
+                    userId, MailboxEntry.Mailbox.INBOX, PageRequest.of(page, size));
+                
+                log.debug("Found {} inbox emails (page {}, size {}) for user {}", 
+                        entries.getContent().size(), page, size, userId);
+                
+                return entries;
             }
-            
-            log.debug("Found {} inbox emails (page {}, size {}) for user {}", 
-                    emails.getContent().size(), page, size, userId);
-            
-            return emails;
+            return mergeBroadcasts(userId, broadcasts, page, size);
         } catch (Exception e) {
             log.error("Error fetching inbox emails: {}", e.getMessage(), e);
             // Return empty page in case of error
             return Page.empty(PageRequest.of(page, size));
         }
     }
+    
+    /**
+     * One page of the inbox merged from the user's entries and the given broadcasts.
+     * A broadcast's position is its rank among the broadcasts plus the number of entries
+     * newer than it, so only the entries that fall on the page are read.
+     */
+    private Page<MailboxEntry> mergeBroadcasts(UUID userId, List<Email> broadcasts, int page, int size) {
+        int start = page * size;
+        int broadcastsBefore = 0;
+        Map<Integer, Email> broadcastsOnPage = new HashMap<>();
+        for (int i = 0; i < broadcasts.size(); i++) {
+            Email broadcast = broadcasts.get(i);
+            long position = i + mailboxEntryRepository.countNewer(
+                userId, MailboxEntry.Mailbox.INBOX, broadcast.getCreatedAt());
+            if (position < start) {
+                broadcastsBefore++;
+            } else if (position < start + size) {
+                broadcastsOnPage.put((int) (position - start), broadcast);
+            }
+        }
+        
+        int entriesOnPage = size - broadcastsOnPage.size();
+        Page<MailboxEntry> entries = mailboxEntryRepository.findFolder(userId, MailboxEntry.Mailbox.INBOX,
+            new OffsetPageRequest(start - broadcastsBefore, Math.max(entriesOnPage, 1)));
+        
+        User owner = userRepository.getReferenceById(userId);
+        List<MailboxEntry> merged = new ArrayList<>(size);
+        int next = 0;
+        for (int slot = 0; slot < size; slot++) {
+            Email broadcast = broadcastsOnPage.get(slot);
+            if (broadcast != null) {
+                merged.add(emailMapper.toEntry(broadcast, owner, MailboxEntry.Mailbox.INBOX, RecipientType.TO));
+            } else if (next < entriesOnPage && next < entries.getContent().size()) {
+                merged.add(entries.getContent().get(next++));
+            }
+        }
+        return new PageImpl<>(merged, PageRequest.of(page, size), entries.getTotalElements() + broadcasts.size());
+    }
+    
+    private LocalDateTime broadcastsSince() {
+        return LocalDateTime.now().minus(broadcastVisibility);
+    }
 
     /**
      * Find recipient user by email
@@ -96,108 +176,249 @@ public class EmailService {
         return recipient.get();
     }
 
+    /**
+     * Queue an email for every recipient listed in the DTO, To, Cc and Bcc.
+     * Only the message, the sender's entry in the sent folder, the attachment rows and a
+     * {@link DeliveryJob} are written here; {@link DeliveryService} resolves the addresses
+     * and adds the recipients' entries afterwards, in chunks. The time this takes therefore
+     * does not depend on the number of recipients.
+     * Attachment content must already be staged through
+     * {@link AttachmentService#stageAttachments(List)}, so this transaction only
+     * writes rows.
+     *
+     * @param senderId the sender user ID
+     * @param emailDTO the email to send
+     * @param attachments the staged attachments, may be empty; attachments listed in
+     *                    {@link EmailDTO#getAttachmentIds()} are attached as well
+     * @return the queued message, or the message already sent with the same idempotency key
+     * @throws EmailSystemException if no address is given
+     */
     @Transactional
-    public List<Email> sendEmail(UUID senderId, EmailDTO emailDTO) {
+    public SendResult sendEmail(UUID senderId, EmailDTO emailDTO, List<StagedAttachment> attachments) {
         log.info("Sending internal email from user {} to recipients {}", senderId, emailDTO.getRecipients());
         
         User sender = userRepository.findById(senderId)
             .orElseThrow(() -> new ResourceNotFoundException("User", "id", senderId));
         
-        // Parse recipients
-        String[] recipientEmails = emailDTO.getRecipients().split(",");
-        List<Email> savedEmails = new ArrayList<>();
-        
-        // Process each recipient
-        for (String recipientEmail : recipientEmails) {
-            String email = recipientEmail.trim();
-            if (!email.isEmpty()) {
-                try {
-                    // Find recipient user
-                    User recipient = findRecipient(email);
-                    
-                    // Use the mapper to create the email entity
-                    Email emailEntity = emailMapper.toEntity(emailDTO, sender);
-                    emailEntity.setRecipient(recipient);
-                    
-                    // Save to database
-                    Email savedEmail = emailRepository.save(emailEntity);
-                    log.debug("Email saved with ID: {}, Sender: {}, Recipient: {}", 
-                        savedEmail.getId(), savedEmail.getSender().getEmail(), savedEmail.getRecipient().getEmail());
-                    
-                    // Save attachments if any
-                    if (emailDTO.getAttachments() != null && !emailDTO.getAttachments().isEmpty()) {
-                        attachmentService.saveAttachments(savedEmail, emailDTO.getAttachments());
-                    }
-                    
-                    // Force a flush to ensure the email is saved to the database
-                    emailRepository.flush();
-                    
-                    savedEmails.add(savedEmail);
-                    log.info("Email saved successfully for recipient: {}", email);
-                } catch (ResourceNotFoundException e) {
-                    log.warn("Recipient not found with email: {}", email);
-                    // Continue with other recipients even if one is not found
-                } catch (Exception e) {
-                    log.error("Error saving email to recipient {}: {}", email, e.getMessage(), e);
-                }
+        String idempotencyKey = normalizeIdempotencyKey(emailDTO.getIdempotencyKey());
+        if (idempotencyKey != null) {
+            Optional<DeliveryJob> previous = deliveryJobRepository.findBySenderIdAndIdempotencyKey(senderId, idempotencyKey);
+            if (previous.isPresent()) {
+                log.info("Email {} was already sent with idempotency key {}", previous.get().getEmail().getId(), idempotencyKey);
+                return new SendResult(previous.get().getEmail(), true, previous.get().getSendAt());
             }
         }
         
-        // Return error if no valid recipients
-        if (savedEmails.isEmpty()) {
-            log.warn("No valid recipients found, email not sent");
-            throw new EmailSystemException("No valid system users found with the provided email addresses");
+        List<String> to = splitAddresses(emailDTO.getRecipients());
+        List<String> cc = splitAddresses(emailDTO.getCc());
+        List<String> bcc = splitAddresses(emailDTO.getBcc());
+        if (to.isEmpty() && cc.isEmpty() && bcc.isEmpty()) {
+            throw new EmailSystemException("No recipients given");
         }
+        LocalDateTime now = LocalDateTime.now();
+        boolean scheduled = emailDTO.getSendAt() != null && emailDTO.getSendAt().isAfter(now.plus(undoWindow));
+        if (scheduled && emailDTO.getSendAt().isAfter(now.plus(maxScheduleAhead))) {
+            throw new EmailSystemException("Emails can be scheduled at most " + maxScheduleAhead.toDays() + " days ahead");
+        }
+        // Held for the undo window at least, unless there is none
+        LocalDateTime sendAt = scheduled ? emailDTO.getSendAt() : undoWindow.isZero() ? null : now.plus(undoWindow);
+        
+        Email message = emailMapper.toEntity(emailDTO, sender);
+        if (scheduled) {
+            // Dated when it goes out, in the sender's folder as in the recipients' inboxes
+            message.setCreatedAt(sendAt);
+        }
+        // Not null in the schema; points at the first To recipient once it is delivered
+        message.setRecipient(sender);
+        message.setToAddresses(joinAddresses(to));
+        message.setCcAddresses(joinAddresses(cc));
+        message.setBccAddresses(joinAddresses(bcc));
+        message.setRecipientCount(0);
+        Email savedMessage = emailRepository.save(message);
+        mailboxEntryRepository.save(emailMapper.toEntry(savedMessage, sender, MailboxEntry.Mailbox.SENT, null));
+        
+        // Attachments belong to the message, so they are stored once however many recipients it has
+        attachmentService.saveAttachments(List.of(savedMessage), attachments,
+            attachmentService.parseAttachmentIds(emailDTO.getAttachmentIds()), senderId);
+        
+        // A second submission of the same form racing this one fails on the unique key
+        DeliveryJob job = deliveryJobRepository.save(DeliveryJob.builder()
+            .email(savedMessage)
+            .sender(sender)
+            .idempotencyKey(idempotencyKey)
+            .sendAt(sendAt)
+            .build());
+        eventPublisher.publishEvent(new DeliveryQueuedEvent(job.getId(), sendAt));
         
-        // Log the number of emails that were sent
-        log.info("Successfully sent {} emails", savedEmails.size());
-        return savedEmails;
+        log.info("Email {} queued for {} addresses{}", savedMessage.getId(), to.size() + cc.size() + bcc.size(),
+            scheduled ? ", to be sent at " + sendAt : "");
+        return new SendResult(savedMessage, false, sendAt);
+    }
+    
+    /**
+     * Cancel a send whose delivery has not started, within its undo window or before its
+     * scheduled time. The delivery job is deleted and the message becomes one of the
+     * sender's drafts again.
+     *
+     * @return the message, now a draft
+     * @throws ResourceNotFoundException if the user sent no such email
+     * @throws EmailSystemException if delivery has already started
+     */
+    @Transactional
+    public Email cancelSend(UUID emailId, UUID userId) {
+        // Waits for a worker delivering the job's first chunk, which then shows in its position
+        DeliveryJob job = deliveryJobRepository.findByEmailIdForUpdate(emailId)
+            .filter(candidate -> candidate.getSender().getId().equals(userId))
+            .orElseThrow(() -> new ResourceNotFoundException("Sent email", "id", emailId));
+        Email email = job.getEmail();
+        if (job.getState() != DeliveryJob.State.PENDING || job.getPosition() > 0 || job.getMemberCursor() != null
+                || (email.getRecipientCount() != null && email.getRecipientCount() > 0)) {
+            throw new EmailSystemException("This email is already being delivered and can no longer be cancelled");
+        }
+        deliveryJobRepository.delete(job);
+        
+        email.setSent(false);
+        email.setDraft(true);
+        email.setCreatedAt(LocalDateTime.now());
+        List<MailboxEntry> entries = mailboxEntryRepository.findByEmailIdAndOwnerId(emailId, userId);
+        if (entries.isEmpty()) {
+            mailboxEntryRepository.save(emailMapper.toEntry(email, email.getSender(), MailboxEntry.Mailbox.DRAFTS, null));
+        }
+        for (MailboxEntry entry : entries) {
+            entry.setMailbox(MailboxEntry.Mailbox.DRAFTS);
+            entry.setTrash(false);
+            entry.setCreatedAt(email.getCreatedAt());
+        }
+        eventPublisher.publishEvent(new DeliveryCancelledEvent(job.getId()));
+        
+        log.info("Sending of email {} cancelled by user {}", emailId, userId);
+        return email;
+    }
+    
+    /**
+     * Queue a vacation responder's reply from the user to the sender of the given email.
+     * The reply is marked so that responders never answer it.
+     */
+    @Transactional
+    public Email sendAutoReply(UUID userId, UUID emailId, String subject, String content) {
+        Email original = emailRepository.findById(emailId)
+            .orElseThrow(() -> new ResourceNotFoundException("Email", "id", emailId));
+        EmailDTO reply = EmailDTO.builder()
+            .recipients(original.getSender().getEmail())
+            .subject(subject)
+            .content(content)
+            .build();
+        Email sent = sendEmail(userId, reply, List.of()).getEmail();
+        sent.setAutoReply(true);
+        log.info("Vacation reply {} of user {} queued for email {}", sent.getId(), userId, emailId);
+        return sent;
     }
 
+    /**
+     * Whether the user already sent an email with the given idempotency key
+     */
+    @Transactional(readOnly = true)
+    public boolean isAlreadySent(UUID senderId, String idempotencyKey) {
+        String key = normalizeIdempotencyKey(idempotencyKey);
+        return key != null && deliveryJobRepository.findBySenderIdAndIdempotencyKey(senderId, key).isPresent();
+    }
+    
+    /**
+     * Whether the user may send broadcasts, see {@code broadcast.senders}
+     */
+    @Transactional(readOnly = true)
+    public boolean canBroadcast(UUID userId) {
+        return !broadcastSenders.isEmpty() && userRepository.findById(userId)
+            .map(user -> broadcastSenders.contains(user.getEmail().toLowerCase(Locale.ROOT)))
+            .orElse(false);
+    }
+    
+    /**
+     * Send a message to every user. It is written once with the sender's entry and
+     * attachments; no entry is written for the recipients, see {@link #getInboxEmails}.
+     *
+     * @throws EmailSystemException if the user may not send broadcasts
+     */
+    @Transactional
+    public Email sendBroadcast(UUID senderId, EmailDTO emailDTO, List<StagedAttachment> attachments) {
+        if (!canBroadcast(senderId)) {
+            throw new EmailSystemException("You are not allowed to send broadcasts");
+        }
+        User sender = userRepository.getReferenceById(senderId);
+        
+        Email message = emailMapper.toEntity(emailDTO, sender);
+        message.setRecipient(sender);
+        message.setBroadcast(true);
+        message.setRecipientCount(0);
+        Email savedMessage = emailRepository.save(message);
+        mailboxEntryRepository.save(emailMapper.toEntry(savedMessage, sender, MailboxEntry.Mailbox.SENT, null));
+        attachmentService.saveAttachments(List.of(savedMessage), attachments,
+            attachmentService.parseAttachmentIds(emailDTO.getAttachmentIds()), senderId);
+        
+        log.info("Broadcast {} sent by user {}", savedMessage.getId(), senderId);
+        return savedMessage;
+    }
+    
+    private static String normalizeIdempotencyKey(String key) {
+        if (key == null || key.isBlank()) {
+            return null;
+        }
+        key = key.trim();
+        return key.length() > 64 ? key.substring(0, 64) : key;
+    }
+    
+    /**
+     * Split a comma-separated address list, dropping blanks
+     */
+    public static List<String> splitAddresses(String addresses) {
+        if (addresses == null || addresses.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(addresses.split(","))
+            .map(String::trim)
+            .filter(address -> !address.isEmpty())
+            .collect(Collectors.toList());
+    }
+    
+    private static String joinAddresses(List<String> addresses) {
+        return addresses.isEmpty() ? null : String.join(", ", addresses);
+    }
+
+    /**
+     * Save the DTO as a draft of the sender. The addresses are kept as typed
+     * and nothing is delivered until the draft is sent.
+     *
+     * A draft of the sender named by {@link EmailDTO#getId()} is updated in place. Its
+     * attachments still listed in {@link EmailDTO#getAttachmentIds()} are kept as they
+     * are, see {@link AttachmentService#replaceAttachments}.
+     *
+     * @param emailDTO the draft content
+     * @param senderId the sender user ID
+     * @param attachments the staged attachments, may be empty
+     * @return the saved draft
+     */
     @Transactional
-    public Email saveDraft(EmailDTO emailDTO, UUID senderId) {
+    public Email saveDraft(EmailDTO emailDTO, UUID senderId, List<StagedAttachment> attachments) {
         log.info("Saving draft for user: {}", senderId);
         try {
             User sender = userRepository.findById(senderId)
                 .orElseThrow(() -> new ResourceNotFoundException("User", "id", senderId));
+            List<UUID> attachmentIds = attachmentService.parseAttachmentIds(emailDTO.getAttachmentIds());
             
             // If we're updating an existing draft
-            Email existingDraft = null;
-            if (emailDTO.getId() != null && !emailDTO.getId().isEmpty()) {
-                try {
-                    UUID draftId = UUID.fromString(emailDTO.getId());
-                    Optional<Email> existingDraftOpt = emailRepository.findById(draftId);
-                    
-                    if (existingDraftOpt.isPresent() && existingDraftOpt.get().isDraft()) {
-                        existingDraft = existingDraftOpt.get();
-                        log.debug("Updating existing draft with ID: {}", draftId);
-                    }
-                } catch (IllegalArgumentException e) {
-                    log.warn("Invalid draft ID format: {}", emailDTO.getId());
-                }
+            Email existingDraft = findDraftForUpdate(emailDTO.getId(), senderId);
+            if (existingDraft != null) {
+                log.debug("Updating existing draft with ID: {}", existingDraft.getId());
+                applyDraft(existingDraft, emailDTO);
+                existingDraft.setDraftVersion(existingDraft.getDraftVersion() + 1);
+                attachmentService.replaceAttachments(existingDraft, attachments, attachmentIds, senderId);
+                emailRepository.flush();
+                return existingDraft;
             }
             
             // Use the mapper to create a draft email
             Email draft = emailMapper.toDraftEntity(emailDTO, sender);
-                
-            // Set recipient if provided
-            if (emailDTO.getRecipients() != null && !emailDTO.getRecipients().isEmpty()) {
-                String primaryRecipient = emailDTO.getRecipients().split(",")[0].trim();
-                try {
-                    User recipient = findRecipient(primaryRecipient);
-                    draft.setRecipient(recipient);
-                } catch (EmailSystemException e) {
-                    // If recipient doesn't exist yet, we still save the draft without a recipient
-                    log.info("Recipient email not found in system, saving draft without recipient: {}", primaryRecipient);
-                    
-                    // Set a temporary recipient as sender (we need a not-null recipient due to DB constraint)
-                    // This will be replaced when the draft is sent
-                    draft.setRecipient(sender);
-                }
-            } else {
-                // Set a temporary recipient as sender (we need a not-null recipient due to DB constraint)
-                draft.setRecipient(sender);
-            }
+            draft.setRecipient(draftRecipient(emailDTO.getRecipients(), sender));
             
             // Double-check createdAt is set before saving
             if (draft.getCreatedAt() == null) {
@@ -205,18 +426,10 @@ public class EmailService {
             }
             
             Email savedDraft = emailRepository.save(draft);
+            mailboxEntryRepository.save(emailMapper.toEntry(savedDraft, sender, MailboxEntry.Mailbox.DRAFTS, null));
             
-            // Process attachmentIds (existing attachments to keep)
-            if (emailDTO.getAttachmentIds() != null && !emailDTO.getAttachmentIds().isEmpty()) {
-                log.debug("Processing existing attachment IDs: {}", emailDTO.getAttachmentIds());
-                // Logic for handling existing attachments if needed
-            }
-            
-            // Save new attachments if any
-            if (emailDTO.getAttachments() != null && !emailDTO.getAttachments().isEmpty()) {
-                log.debug("Processing {} new attachments", emailDTO.getAttachments().size());
-                attachmentService.saveAttachments(savedDraft, emailDTO.getAttachments());
-            }
+            // Save new attachments and previously uploaded ones referenced by ID
+            attachmentService.saveAttachments(List.of(savedDraft), attachments, attachmentIds, senderId);
             
             // Force a flush to ensure the draft is saved to the database
             emailRepository.flush();
@@ -227,30 +440,110 @@ public class EmailService {
             throw new EmailSystemException("Failed to save draft: " + e.getMessage());
         }
     }
+    
+    /**
+     * Get a draft of the user
+     *
+     * @throws ResourceNotFoundException if the user has no such draft
+     */
+    @Transactional(readOnly = true)
+    public Email getDraft(UUID draftId, UUID senderId) {
+        return emailRepository.findById(draftId)
+            .filter(email -> email.isDraft() && email.getSender().getId().equals(senderId))
+            .orElseThrow(() -> new ResourceNotFoundException("Draft", "id", draftId));
+    }
+    
+    /**
+     * Write the fields of a draft saved by autosave, unless the draft was saved, sent or
+     * deleted since the version the autosave started from. Attachments are not changed.
+     *
+     * @param draft the draft's ID and fields
+     * @param expectedVersion the version the changes were made to
+     * @param newVersion the version to give the draft
+     * @return whether the draft was written
+     */
+    @Transactional
+    public boolean updateDraft(UUID senderId, EmailDTO draft, long expectedVersion, long newVersion) {
+        Email existing = findDraftForUpdate(draft.getId(), senderId);
+        if (existing == null || existing.getDraftVersion() != expectedVersion) {
+            return false;
+        }
+        applyDraft(existing, draft);
+        existing.setDraftVersion(newVersion);
+        return true;
+    }
+    
+    /**
+     * The user's draft with the given ID, locked; null if there is none
+     */
+    private Email findDraftForUpdate(String draftId, UUID senderId) {
+        if (draftId == null || draftId.isEmpty()) {
+            return null;
+        }
+        UUID id;
+        try {
+            id = UUID.fromString(draftId);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid draft ID format: {}", draftId);
+            return null;
+        }
+        return emailRepository.findAllForUpdate(List.of(id)).stream()
+            .filter(email -> email.isDraft() && email.getSender().getId().equals(senderId))
+            .findFirst()
+            .orElse(null);
+    }
+    
+    private void applyDraft(Email draft, EmailDTO emailDTO) {
+        if (!Objects.equals(draft.getToAddresses(), emailDTO.getRecipients())) {
+            draft.setRecipient(draftRecipient(emailDTO.getRecipients(), draft.getSender()));
+        }
+        draft.setToAddresses(emailDTO.getRecipients());
+        draft.setCcAddresses(emailDTO.getCc());
+        draft.setBccAddresses(emailDTO.getBcc());
+        draft.setSubject(emailDTO.getSubject() != null ? emailDTO.getSubject() : "");
+        draft.setContent(emailDTO.getContent() != null ? emailDTO.getContent() : "");
+    }
+    
+    /**
+     * The user the draft's first address belongs to, or the sender as a placeholder
+     * (recipient is not null in the schema) until the draft is sent
+     */
+    private User draftRecipient(String recipients, User sender) {
+        if (recipients == null || recipients.isEmpty()) {
+            return sender;
+        }
+        String primaryRecipient = recipients.split(",")[0].trim();
+        Optional<User> recipient = userRepository.findByEmail(primaryRecipient);
+        if (recipient.isEmpty()) {
+            // If recipient doesn't exist yet, we still save the draft without a recipient
+            log.info("Recipient email not found in system, saving draft without recipient: {}", primaryRecipient);
+        }
+        return recipient.orElse(sender);
+    }
 
     @Transactional(readOnly = true)
     public Optional<Email> getEmail(UUID id) {
         log.debug("Getting email with id: {}", id);
         Optional<Email> emailOpt = emailRepository.findById(id);
         
-        if (emailOpt.isPresent()) {
-            Email email = emailOpt.get();
-            // Load the attachments to avoid LazyInitializationException
-            email.getAttachments().size();
-        }
+        // Load the sender to avoid LazyInitializationException
+        emailOpt.ifPresent(email -> Hibernate.initialize(email.getSender()));
         
         return emailOpt;
     }
 
+    /**
+     * Get an email with its sender and recipient loaded for display.
+     * Attachments are not loaded; use {@link AttachmentService#getAttachmentMetadata(UUID)}
+     * to list them without reading their content.
+     */
     @Transactional(readOnly = true)
-    public Optional<Email> getEmailWithAttachments(UUID id) {
-        log.debug("Getting email with attachments for id: {}", id);
+    public Optional<Email> getEmailWithParticipants(UUID id) {
+        log.debug("Getting email with participants for id: {}", id);
         Optional<Email> emailOpt = emailRepository.findById(id);
         
         if (emailOpt.isPresent()) {
             Email email = emailOpt.get();
-            // Load the attachments eagerly to avoid LazyInitializationException
-            email.getAttachments().size();
             
             // Load sender and recipient to avoid LazyInitializationException
             if (email.getSender() != null) {
@@ -266,161 +559,301 @@ public class EmailService {
     }
 
     /**
-     * Get sent emails with eager loading of senders and recipients
+     * Get the messages the user sent, each listed once whatever its number of recipients
      */
     @Transactional(readOnly = true)
-    public Page<Email> getSentEmails(UUID userId, int page, int size) {
+    public Page<MailboxEntry> getSentEmails(UUID userId, int page, int size) {
         log.debug("Fetching sent emails for user: {}", userId);
-        Page<Email> emails = emailRepository.findBySenderIdAndSentTrueAndTrashFalseOrderByCreatedAtDesc(
-            userId, 
-            PageRequest.of(page, size)
-        );
-        
-        // Initialize recipient for each email to avoid LazyInitializationExceptions
-        for (Email email : emails.getContent()) {
-            if (email.getRecipient() != null) {
-                Hibernate.initialize(email.getRecipient());
-            }
-        }
-        
-        return emails;
+        return mailboxEntryRepository.findFolder(userId, MailboxEntry.Mailbox.SENT, PageRequest.of(page, size));
     }
 
     /**
-     * Get draft emails with eager loading of recipients
+     * Get the user's drafts
      */
     @Transactional(readOnly = true)
-    public Page<Email> getDraftEmails(UUID userId, int page, int size) {
+    public Page<MailboxEntry> getDraftEmails(UUID userId, int page, int size) {
         log.debug("Fetching draft emails for user: {}", userId);
-        Page<Email> emails = emailRepository.findBySenderIdAndDraftTrueAndTrashFalseOrderByCreatedAtDesc(
-            userId, 
-            PageRequest.of(page, size)
-        );
-        
-        // Initialize recipient for each email to avoid LazyInitializationExceptions
-        for (Email email : emails.getContent()) {
-            if (email.getRecipient() != null) {
-                Hibernate.initialize(email.getRecipient());
-            }
-        }
-        
-        return emails;
+        return mailboxEntryRepository.findFolder(userId, MailboxEntry.Mailbox.DRAFTS, PageRequest.of(page, size));
+    }
+
+    /**
+     * Get the messages the bulk classifier routed out of the user's inbox
+     */
+    @Transactional(readOnly = true)
+    public Page<MailboxEntry> getBulkEmails(UUID userId, int page, int size) {
+        log.debug("Fetching bulk emails for user: {}", userId);
+        return mailboxEntryRepository.findFolder(userId, MailboxEntry.Mailbox.BULK, PageRequest.of(page, size));
     }
 
     /**
-     * Get trash emails with eager loading of senders and recipients
+     * Get the emails the user moved to trash from any folder
      */
     @Transactional(readOnly = true)
-    public Page<Email> getTrashEmails(UUID userId, int page, int size) {
+    public Page<MailboxEntry> getTrashEmails(UUID userId, int page, int size) {
         log.debug("Fetching trash emails for user: {}", userId);
-        Page<Email> emails = emailRepository.findByTrashTrueAndSenderIdOrTrashTrueAndRecipientIdOrderByCreatedAtDesc(
-            userId, userId, PageRequest.of(page, size)
-        );
-        
-        // Initialize sender and recipient for each email to avoid LazyInitializationExceptions
-        for (Email email : emails.getContent()) {
-            if (email.getSender() != null) {
-                Hibernate.initialize(email.getSender());
-            }
-            if (email.getRecipient() != null) {
-                Hibernate.initialize(email.getRecipient());
-            }
+        return mailboxEntryRepository.findTrash(userId, PageRequest.of(page, size));
+    }
+
+    /**
+     * Delivery state of the given sent emails by email ID; emails sent before the
+     * delivery queue existed have none
+     */
+    @Transactional(readOnly = true)
+    public Map<UUID, DeliveryJob> getDeliveries(List<UUID> emailIds) {
+        if (emailIds.isEmpty()) {
+            return Map.of();
         }
-        
-        return emails;
+        return deliveryJobRepository.findByEmailIdIn(emailIds).stream()
+            .collect(Collectors.toMap(job -> job.getEmail().getId(), job -> job));
+    }
+
+    /**
+     * Check whether the email is in one of the user's mailboxes, including the trash,
+     * or is a broadcast still shown in every inbox
+     */
+    @Transactional(readOnly = true)
+    public boolean canRead(UUID emailId, UUID userId) {
+        return mailboxEntryRepository.existsByEmailIdAndOwnerId(emailId, userId)
+            || emailRepository.existsByIdAndBroadcastTrueAndCreatedAtAfter(emailId, broadcastsSince());
     }
 
+    /**
+     * Move the email to trash. A delivered message trashed unread teaches the bulk
+     * classifier what bulk looks like.
+     */
     @Transactional
-    public void moveToTrash(UUID emailId) {
+    public void moveToTrash(UUID emailId, UUID userId) {
         log.info("Moving email to trash, id: {}", emailId);
-        Email email = getEmailById(emailId);
-        email.setTrash(true);
-        emailRepository.save(email);
+        List<MailboxEntry> unreadDeliveries = new ArrayList<>();
+        boolean trashed = false;
+        for (MailboxEntry entry : getMailboxEntries(emailId, userId)) {
+            if (isDelivered(entry) && !entry.isRead() && !entry.isTrash()) {
+                unreadDeliveries.add(entry);
+            }
+            trashed |= !entry.isTrash();
+            entry.setTrash(true);
+        }
+        recordFeedback(emailId, unreadDeliveries, MailboxEntry.Feedback.TRASHED_UNREAD);
+        if (trashed) {
+            eventPublisher.publishEvent(new MailboxEvent(WebhookSubscription.Event.TRASHED, userId, List.of(emailId)));
+        }
     }
 
+    /**
+     * Restore the email from trash, taking back what trashing it unread taught the
+     * bulk classifier
+     */
     @Transactional
-    public void restoreFromTrash(UUID emailId) {
+    public void restoreFromTrash(UUID emailId, UUID userId) {
         log.info("Restoring email from trash, id: {}", emailId);
-        Email email = getEmailById(emailId);
-        email.setTrash(false);
-        emailRepository.save(email);
+        List<MailboxEntry> entries = getMailboxEntries(emailId, userId);
+        entries.forEach(entry -> entry.setTrash(false));
+        recordFeedback(emailId, withFeedback(entries, MailboxEntry.Feedback.TRASHED_UNREAD), null);
     }
 
+    /**
+     * Mark the email as read. A message opened in the inbox teaches the bulk classifier
+     * what normal mail looks like.
+     */
     @Transactional
-    public Email markAsRead(UUID id, UUID userId) {
+    public void markAsRead(UUID id, UUID userId) {
         log.info("Marking email {} as read for user: {}", id, userId);
-        Email email = emailRepository.findById(id)
-            .orElseThrow(() -> new ResourceNotFoundException("Email not found with id: " + id));
-
-        if (!email.getRecipient().getId().equals(userId)) {
-            throw new EmailSystemException("You don't have permission to mark this email as read");
+        List<MailboxEntry> opened = new ArrayList<>();
+        boolean unread = false;
+        for (MailboxEntry entry : getMailboxEntries(id, userId)) {
+            if (entry.getMailbox() == MailboxEntry.Mailbox.INBOX && !entry.isRead() && !entry.isTrash()
+                    && entry.getClassifierFeedback() == null) {
+                opened.add(entry);
+            }
+            unread |= !entry.isRead();
+            entry.setRead(true);
+        }
+        recordFeedback(id, opened, MailboxEntry.Feedback.OPENED);
+        if (unread) {
+            eventPublisher.publishEvent(new MailboxEvent(WebhookSubscription.Event.READ, userId, List.of(id)));
         }
-
-        email.setRead(true);
-        return emailRepository.save(email);
     }
 
+    /**
+     * Mark the email as unread, taking back what opening it taught the bulk classifier
+     */
     @Transactional
-    public void markAsUnread(UUID emailId) {
+    public void markAsUnread(UUID emailId, UUID userId) {
         log.info("Marking email as unread, id: {}", emailId);
-        Email email = getEmailById(emailId);
-        email.setRead(false);
-        emailRepository.save(email);
+        List<MailboxEntry> entries = getMailboxEntries(emailId, userId);
+        entries.forEach(entry -> entry.setRead(false));
+        recordFeedback(emailId, withFeedback(entries, MailboxEntry.Feedback.OPENED), null);
     }
 
     @Transactional
-    public void toggleStar(UUID emailId) {
+    public void toggleStar(UUID emailId, UUID userId) {
         log.info("Toggling star for email, id: {}", emailId);
-        Email email = getEmailById(emailId);
-        email.setStarred(!email.isStarred());
-        emailRepository.save(email);
+        List<MailboxEntry> entries = getMailboxEntries(emailId, userId);
+        boolean starred = entries.stream().noneMatch(MailboxEntry::isStarred);
+        entries.forEach(entry -> entry.setStarred(starred));
     }
 
+    /**
+     * Move a message the classifier sent to the Bulk folder back to the inbox, and teach
+     * the classifier it was normal mail
+     *
+     * @throws ResourceNotFoundException if the email is not in the user's Bulk folder
+     */
     @Transactional
-    public void deleteEmail(UUID id, UUID userId) {
-        log.info("Deleting email with id: {} for user: {}", id, userId);
-        Email email = emailRepository.findById(id)
-            .orElseThrow(() -> new ResourceNotFoundException("Email not found with id: " + id));
+    public void markNotBulk(UUID emailId, UUID userId) {
+        log.info("Moving email {} from bulk to inbox for user: {}", emailId, userId);
+        List<MailboxEntry> entries = getMailboxEntries(emailId, userId).stream()
+            .filter(entry -> entry.getMailbox() == MailboxEntry.Mailbox.BULK)
+            .collect(Collectors.toList());
+        if (entries.isEmpty()) {
+            throw new ResourceNotFoundException("Email not found with id: " + emailId);
+        }
+        entries.forEach(entry -> entry.setMailbox(MailboxEntry.Mailbox.INBOX));
+        recordFeedback(emailId, entries, MailboxEntry.Feedback.NOT_BULK);
+    }
 
-        if (!email.getRecipient().getId().equals(userId) && !email.getSender().getId().equals(userId)) {
-            throw new EmailSystemException("You don't have permission to delete this email");
+    /**
+     * Record on the user's entries what their handling of the email taught the bulk
+     * classifier, and have it learn that once the change commits. The new example
+     * replaces the one the entries gave before, so however often the user changes their
+     * mind, each message counts at most once per user in the shared model.
+     *
+     * @param entries the user's entries of the email the handling applies to
+     * @param example the example they now give, null to take back the earlier one
+     */
+    private void recordFeedback(UUID emailId, List<MailboxEntry> entries, MailboxEntry.Feedback example) {
+        MailboxEntry.Feedback retracted = null;
+        boolean changed = false;
+        for (MailboxEntry entry : entries) {
+            if (entry.getClassifierFeedback() != example) {
+                if (!changed) {
+                    retracted = entry.getClassifierFeedback();
+                    changed = true;
+                }
+                entry.setClassifierFeedback(example);
+            }
         }
+        if (changed) {
+            eventPublisher.publishEvent(new ClassifierFeedbackEvent(emailId, example, retracted));
+        }
+    }
+
+    private static List<MailboxEntry> withFeedback(List<MailboxEntry> entries, MailboxEntry.Feedback feedback) {
+        return entries.stream()
+            .filter(entry -> entry.getClassifierFeedback() == feedback)
+            .collect(Collectors.toList());
+    }
+
+    private static boolean isDelivered(MailboxEntry entry) {
+        return entry.getMailbox() == MailboxEntry.Mailbox.INBOX || entry.getMailbox() == MailboxEntry.Mailbox.BULK;
+    }
 
-        emailRepository.delete(email);
+    /**
+     * Remove the email from the user's mailboxes. The message is deleted with the
+     * last entry that refers to it.
+     */
+    @Transactional
+    public void deleteEmail(UUID id, UUID userId) {
+        log.info("Deleting email with id: {} for user: {}", id, userId);
+        getMailboxEntries(id, userId);
+        removeEntries(userId, List.of(id), false);
     }
 
     @Transactional
     public void permanentlyDeleteEmail(UUID id, UUID userId) {
         log.info("Permanently deleting email with id: {} for user: {}", id, userId);
-        Email email = emailRepository.findById(id)
-            .orElseThrow(() -> new ResourceNotFoundException("Email not found with id: " + id));
+        if (getMailboxEntries(id, userId).stream().noneMatch(MailboxEntry::isTrash)) {
+            throw new EmailSystemException("Email must be in trash to be permanently deleted");
+        }
 
-        if (!email.getRecipient().getId().equals(userId) && !email.getSender().getId().equals(userId)) {
-            throw new EmailSystemException("You don't have permission to delete this email");
+        removeEntries(userId, List.of(id), true);
+    }
+
+    /**
+     * The user's entries for an email, usually one; two when users send to themselves.
+     * A broadcast the user has not interacted with before gets its entry here, since
+     * every caller is about to read or change the user's state for it.
+     *
+     * @throws ResourceNotFoundException if the email is not in any of the user's mailboxes
+     */
+    public List<MailboxEntry> getMailboxEntries(UUID emailId, UUID userId) {
+        List<MailboxEntry> entries = mailboxEntryRepository.findByEmailIdAndOwnerId(emailId, userId);
+        if (entries.isEmpty()) {
+            if (emailRepository.existsByIdAndBroadcastTrueAndCreatedAtAfter(emailId, broadcastsSince())) {
+                MailboxEntry entry = mailboxEntryRepository.save(emailMapper.toEntry(
+                    emailRepository.getReferenceById(emailId), userRepository.getReferenceById(userId),
+                    MailboxEntry.Mailbox.INBOX, RecipientType.TO));
+                return new ArrayList<>(List.of(entry));
+            }
+            throw new ResourceNotFoundException("Email not found with id: " + emailId);
         }
-        
-        if (!email.isTrash()) {
-            throw new EmailSystemException("Email must be in trash to be permanently deleted");
+        return entries;
+    }
+
+    /**
+     * Delete the user's entries for the given emails, then the emails nobody refers to any more.
+     * The emails are locked first so that two users removing the last two entries of the same
+     * email cannot both miss the other's delete and leave the email behind.
+     */
+    private void removeEntries(UUID userId, List<UUID> emailIds, boolean trashedOnly) {
+        eventPublisher.publishEvent(new MailboxEvent(WebhookSubscription.Event.DELETED, userId, List.copyOf(emailIds)));
+        List<Email> emails = emailRepository.findAllForUpdate(emailIds);
+        // A deleted broadcast would otherwise be merged into the inbox again
+        mailboxEntryRepository.dismissBroadcasts(userId, emailIds, trashedOnly);
+        if (trashedOnly) {
+            mailboxEntryRepository.deleteTrashedByOwnerIdAndEmailIds(userId, emailIds);
+        } else {
+            mailboxEntryRepository.deleteByOwnerIdAndEmailIds(userId, emailIds);
         }
+        deleteUnreferenced(emails);
+    }
 
-        emailRepository.delete(email);
+    /**
+     * Delete the email if no mailbox refers to it and its delivery is finished, as
+     * happens when the sender deletes a message before any recipient received it
+     */
+    @Transactional
+    public void deleteIfUnreferenced(UUID emailId) {
+        deleteUnreferenced(emailRepository.findAllForUpdate(List.of(emailId)));
     }
 
-    private Email getEmailById(UUID id) {
-        log.debug("Fetching email with id: {}", id);
-        return emailRepository.findById(id)
-            .orElseThrow(() -> new ResourceNotFoundException("Email not found with id: " + id));
+    /**
+     * Delete those of the locked emails that have no entry left. Emails still being
+     * delivered are kept, their recipients are about to get entries.
+     */
+    private void deleteUnreferenced(List<Email> emails) {
+        if (emails.isEmpty()) {
+            return;
+        }
+        List<UUID> emailIds = emails.stream().map(Email::getId).collect(Collectors.toList());
+        Set<UUID> referenced = new HashSet<>(mailboxEntryRepository.findReferencedEmailIds(emailIds));
+        referenced.addAll(deliveryJobRepository.findPendingEmailIds(emailIds));
+        List<Email> orphaned = emails.stream()
+            // Broadcasts are shown to users without entries and are kept
+            .filter(email -> !email.isBroadcast() && !referenced.contains(email.getId()))
+            .collect(Collectors.toList());
+        if (orphaned.isEmpty()) {
+            return;
+        }
+
+        List<UUID> orphanedIds = orphaned.stream().map(Email::getId).collect(Collectors.toList());
+        deliveryJobRepository.deleteByEmailIds(orphanedIds);
+        attachmentService.releaseAttachments(orphanedIds);
+        emailRepository.deleteAll(orphaned);
+        log.debug("Deleted {} emails no mailbox refers to", orphaned.size());
     }
     
     /**
-     * Count unread emails for a user
+     * Count unread emails for a user, including broadcasts they have not opened
      * 
      * @param userId the user ID
      * @return the number of unread emails
      */
     public long countByRecipientIdAndReadFalseAndTrashFalse(UUID userId) {
         log.debug("Counting unread emails for user: {}", userId);
-        return emailRepository.countByRecipientIdAndReadFalseAndTrashFalse(userId);
+        long broadcasts = Math.min(emailRepository.countUnseenBroadcasts(userId, broadcastsSince()), maxVisibleBroadcasts);
+        return mailboxEntryRepository.countByOwnerIdAndMailboxAndReadFalseAndTrashFalse(userId, MailboxEntry.Mailbox.INBOX)
+            + broadcasts;
     }
     
     /**
@@ -433,41 +866,30 @@ public class EmailService {
     public int emptyTrash(UUID userId) {
         log.info("Emptying trash for user: {}", userId);
         
-        // Find all emails in trash for this user (either as sender or recipient)
-        Page<Email> trashEmails = emailRepository.findByTrashTrueAndSenderIdOrTrashTrueAndRecipientIdOrderByCreatedAtDesc(
-            userId, userId, PageRequest.of(0, Integer.MAX_VALUE));
+        // Sorted so that every batch locks its emails in the same global order
+        List<UUID> emailIds = mailboxEntryRepository.findTrashedEmailIds(userId).stream()
+            .distinct()
+            .sorted()
+            .collect(Collectors.toList());
         
-        int count = 0;
-        for (Email email : trashEmails.getContent()) {
-            emailRepository.delete(email);
-            count++;
+        // Keep the IN lists and lock sets bounded
+        for (int from = 0; from < emailIds.size(); from += TRASH_BATCH_SIZE) {
+            removeEntries(userId, emailIds.subList(from, Math.min(from + TRASH_BATCH_SIZE, emailIds.size())), true);
         }
         
-        log.info("Deleted {} emails from trash for user: {}", count, userId);
-        return count;
+        log.info("Deleted {} emails from trash for user: {}", emailIds.size(), userId);
+        return emailIds.size();
     }
 
     /**
-     * Get inbox emails with sender eagerly loaded, limited by count
+     * Get the most recent inbox emails with their senders loaded
      */
     @Transactional(readOnly = true)
     public List<Email> getInboxEmailsWithSender(UUID userId, int limit) {
         log.debug("Fetching {} recent inbox emails with sender for user: {}", limit, userId);
-        List<Email> emails = emailRepository.findInboxEmailsWithSender(userId);
-        
-        // Limit the number of emails returned
-        if (emails.size() > limit) {
-            emails = emails.subList(0, limit);
-        }
-        
-        // Eagerly initialize the sender for each email to avoid LazyInitializationExceptions
-        for (Email email : emails) {
-            if (email.getSender() != null) {
-                Hibernate.initialize(email.getSender());
-            }
-        }
-        
-        return emails;
+        return getInboxEmails(userId, 0, limit).getContent().stream()
+            .map(MailboxEntry::getEmail)
+            .collect(Collectors.toList());
     }
 
     /**
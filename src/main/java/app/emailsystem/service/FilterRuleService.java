@@ -0,0 +1,269 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.Email;
+import app.emailsystem.entity.FilterRule;
+import app.emailsystem.entity.Label;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.User;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.FilterRuleRepository;
+import app.emailsystem.repository.LabelRepository;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.rules.CompiledRules;
+import app.emailsystem.rules.FilterMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users' filter rules, applied to their copy of each message as it is delivered, see
+ * {@link DeliveryService}.
+ *
+ * A user's rules are compiled into {@link CompiledRules}, so a message is matched
+ * against all of them in one pass over its subject and body, and kept in a cache of the
+ * most recently delivered-to users. Every change bumps {@link User#getFilterVersion()},
+ * which delivery reads for each chunk of recipients together with one query, so caches
+ * on other instances see the change too. Recipients who never had rules cost nothing
+ * beyond that query.
+ */
+@Slf4j
+@Service
+@Transactional
+public class FilterRuleService {
+
+    private final FilterRuleRepository ruleRepository;
+    private final LabelRepository labelRepository;
+    private final UserRepository userRepository;
+    private final int maxRules;
+    private final int cacheSize;
+    private final Map<UUID, CachedRules> cache;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Timer matchTimer;
+    private final Map<FilterRule.Action, Counter> applied = new HashMap<>();
+
+    @Autowired
+    public FilterRuleService(FilterRuleRepository ruleRepository,
+                             LabelRepository labelRepository,
+                             UserRepository userRepository,
+                             MeterRegistry meterRegistry,
+                             @Value("${filter.max-rules:1000}") int maxRules,
+                             @Value("${filter.cache-size:1024}") int cacheSize) {
+        this.ruleRepository = ruleRepository;
+        this.labelRepository = labelRepository;
+        this.userRepository = userRepository;
+        this.maxRules = maxRules;
+        this.cacheSize = cacheSize;
+        // Access-ordered, so the user delivered to least recently is evicted first
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CachedRules> eldest) {
+                return size() > FilterRuleService.this.cacheSize;
+            }
+        };
+        this.cacheHits = cacheCounter(meterRegistry, "hit");
+        this.cacheMisses = cacheCounter(meterRegistry, "miss");
+        this.matchTimer = Timer.builder("filter.rules.match")
+            .description("Time to match a message against one recipient's filter rules")
+            .register(meterRegistry);
+        for (FilterRule.Action action : FilterRule.Action.values()) {
+            applied.put(action, Counter.builder("filter.rules.applied")
+                .description("Filter actions applied to delivered messages")
+                .tag("action", action.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry));
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public List<FilterRule> getRules(UUID ownerId) {
+        return ruleRepository.findByOwnerId(ownerId);
+    }
+
+    /**
+     * Add a rule. A LABEL rule names its label, which is created if the user has none
+     * of that name.
+     *
+     * @throws EmailSystemException if the rule is incomplete or the user has too many rules
+     */
+    public FilterRule createRule(UUID ownerId, FilterRule.Field field, String value,
+                                 FilterRule.Action action, String labelName) {
+        if (field == null || action == null || value == null || value.isBlank()) {
+            throw new EmailSystemException("A condition and an action are required");
+        }
+        String normalized = value.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        if (normalized.length() > 255) {
+            throw new EmailSystemException("The condition may be at most 255 characters");
+        }
+        if ((field == FilterRule.Field.FROM || field == FilterRule.Field.TO)
+                && (normalized.indexOf('@') < 0 || normalized.contains(" "))) {
+            throw new EmailSystemException("Enter an address, or a domain as @example.com");
+        }
+        if (action == FilterRule.Action.LABEL && (labelName == null || labelName.isBlank())) {
+            throw new EmailSystemException("Enter the label to apply");
+        }
+        if (ruleRepository.countByOwnerId(ownerId) >= maxRules) {
+            throw new EmailSystemException("You can have at most " + maxRules + " filter rules");
+        }
+        User owner = userRepository.findById(ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+
+        Label label = null;
+        if (action == FilterRule.Action.LABEL) {
+            String name = labelName.trim();
+            label = labelRepository.findByUserIdAndName(ownerId, name)
+                .orElseGet(() -> labelRepository.save(Label.builder()
+                    .user(owner)
+                    .name(name)
+                    .color("#6c757d")
+                    .build()));
+        }
+
+        FilterRule rule = ruleRepository.save(FilterRule.builder()
+            .owner(owner)
+            .field(field)
+            .value(normalized)
+            .action(action)
+            .label(label)
+            .build());
+        rulesChanged(ownerId);
+        log.info("Added filter rule {} {} -> {} for user {}", field, normalized, action, ownerId);
+        return rule;
+    }
+
+    public void deleteRule(UUID ownerId, UUID ruleId) {
+        FilterRule rule = ruleRepository.findById(ruleId)
+            .filter(candidate -> candidate.getOwner().getId().equals(ownerId))
+            .orElseThrow(() -> new ResourceNotFoundException("Filter rule", "id", ruleId));
+        ruleRepository.delete(rule);
+        rulesChanged(ownerId);
+    }
+
+    /**
+     * Apply the recipients' rules to their new inbox entries, before they are saved,
+     * and add the message to the labels the rules name. Runs in the caller's delivery
+     * transaction.
+     */
+    public void applyRules(Email email, FilterMessage message, List<MailboxEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Map<UUID, MailboxEntry> byOwner = new HashMap<>();
+        entries.forEach(entry -> byOwner.put(entry.getOwner().getId(), entry));
+        Map<UUID, Long> versions = new HashMap<>();
+        for (Object[] row : userRepository.findFilterVersions(byOwner.keySet())) {
+            versions.put((UUID) row[0], (Long) row[1]);
+        }
+        if (versions.isEmpty()) {
+            return;
+        }
+
+        Set<UUID> labels = new LinkedHashSet<>();
+        compiledRules(versions).forEach((ownerId, rules) -> {
+            long started = System.nanoTime();
+            CompiledRules.Actions actions = rules.match(message);
+            matchTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            if (actions.isEmpty()) {
+                return;
+            }
+            MailboxEntry entry = byOwner.get(ownerId);
+            if (actions.isStar()) {
+                entry.setStarred(true);
+                applied.get(FilterRule.Action.STAR).increment();
+            }
+            if (actions.isRead()) {
+                entry.setRead(true);
+                applied.get(FilterRule.Action.MARK_READ).increment();
+            }
+            if (actions.isTrash()) {
+                entry.setTrash(true);
+                applied.get(FilterRule.Action.TRASH).increment();
+            }
+            labels.addAll(actions.getLabelIds());
+        });
+        for (UUID labelId : labels) {
+            labelRepository.addEmail(labelId, email.getId());
+            applied.get(FilterRule.Action.LABEL).increment();
+        }
+    }
+
+    /**
+     * The compiled rules of the given users at the given versions, compiling those
+     * missing from the cache with one query
+     */
+    private Map<UUID, CompiledRules> compiledRules(Map<UUID, Long> versions) {
+        Map<UUID, CompiledRules> compiled = new HashMap<>();
+        Set<UUID> missing = new LinkedHashSet<>();
+        synchronized (cache) {
+            versions.forEach((ownerId, version) -> {
+                CachedRules cached = cache.get(ownerId);
+                if (cached != null && cached.version == version) {
+                    compiled.put(ownerId, cached.rules);
+                } else {
+                    missing.add(ownerId);
+                }
+            });
+        }
+        cacheHits.increment(compiled.size());
+        if (missing.isEmpty()) {
+            return compiled;
+        }
+        cacheMisses.increment(missing.size());
+
+        Map<UUID, List<FilterRule>> loaded = new HashMap<>();
+        for (FilterRule rule : ruleRepository.findByOwnerIdIn(missing)) {
+            loaded.computeIfAbsent(rule.getOwner().getId(), id -> new ArrayList<>()).add(rule);
+        }
+        for (UUID ownerId : missing) {
+            List<FilterRule> ownerRules = loaded.get(ownerId);
+            compiled.put(ownerId, ownerRules == null ? CompiledRules.EMPTY : new CompiledRules(ownerRules));
+        }
+        synchronized (cache) {
+            missing.forEach(ownerId -> cache.put(ownerId, new CachedRules(versions.get(ownerId), compiled.get(ownerId))));
+        }
+        return compiled;
+    }
+
+    private void rulesChanged(UUID ownerId) {
+        userRepository.incrementFilterVersion(ownerId);
+        synchronized (cache) {
+            cache.remove(ownerId);
+        }
+    }
+
+    private static Counter cacheCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("filter.rules.cache")
+            .description("Recipients whose compiled filter rules were found in, or loaded into, the cache")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    /**
+     * A user's compiled rules at one version
+     */
+    private static final class CachedRules {
+        private final long version;
+        private final CompiledRules rules;
+
+        private CachedRules(long version, CompiledRules rules) {
+            this.version = version;
+            this.rules = rules;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.RecipientType;
+import app.emailsystem.mapper.EmailMapper;
+import app.emailsystem.repository.EmailRepository;
+import app.emailsystem.repository.MailboxEntryRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Creates mailbox entries for emails written when every recipient had a full copy of
+ * the message and its flags lived on the email row.
+ *
+ * Each legacy email gets an entry for its sender, in the sent or drafts folder, and one
+ * for its recipient in the inbox, both carrying the old flags. Copies of the same message
+ * to several recipients stay separate messages. New emails always have entries, so once
+ * a pass finds nothing left the backfill stops querying.
+ */
+@Slf4j
+@Component
+public class MailboxBackfill {
+
+    private static final UUID FIRST_ID = new UUID(0L, 0L);
+
+    private final EmailRepository emailRepository;
+    private final MailboxEntryRepository mailboxEntryRepository;
+    private final EmailMapper emailMapper;
+    private final TransactionTemplate transaction;
+    private final int batchSize;
+
+    private volatile boolean done;
+
+    @Autowired
+    public MailboxBackfill(EmailRepository emailRepository, MailboxEntryRepository mailboxEntryRepository,
+                           EmailMapper emailMapper, PlatformTransactionManager transactionManager,
+                           @Value("${mailbox.backfill.batch-size:500}") int batchSize) {
+        this.emailRepository = emailRepository;
+        this.mailboxEntryRepository = mailboxEntryRepository;
+        this.emailMapper = emailMapper;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Backfill all legacy emails, one transaction per batch
+     */
+    @Scheduled(initialDelayString = "${mailbox.backfill.initial-delay-ms:5000}",
+               fixedDelayString = "${mailbox.backfill.interval-ms:300000}")
+    public void backfill() {
+        if (done) {
+            return;
+        }
+
+        UUID cursor = FIRST_ID;
+        long total = 0;
+        try {
+            while (true) {
+                UUID after = cursor;
+                List<Email> emails = transaction.execute(status -> backfillBatch(after));
+                if (emails.isEmpty()) {
+                    break;
+                }
+                total += emails.size();
+                cursor = emails.get(emails.size() - 1).getId();
+            }
+        } catch (RuntimeException e) {
+            log.error("Mailbox backfill stopped after {} emails: {}", total, e.getMessage(), e);
+            // Batches already committed are not found again, the next run picks up the rest
+            return;
+        }
+
+        if (total > 0) {
+            log.info("Created mailbox entries for {} legacy emails", total);
+        }
+        done = true;
+    }
+
+    private List<Email> backfillBatch(UUID after) {
+        List<Email> emails = emailRepository.findWithoutEntries(after, PageRequest.of(0, batchSize));
+        List<MailboxEntry> entries = new ArrayList<>(emails.size() * 2);
+
+        for (Email email : emails) {
+            MailboxEntry own = emailMapper.toEntry(email, email.getSender(),
+                email.isDraft() ? MailboxEntry.Mailbox.DRAFTS : MailboxEntry.Mailbox.SENT, null);
+            own.setStarred(email.isLegacyStarred());
+            own.setTrash(email.isLegacyTrash());
+            entries.add(own);
+
+            if (email.isDraft()) {
+                continue;
+            }
+            MailboxEntry received = emailMapper.toEntry(email, email.getRecipient(),
+                MailboxEntry.Mailbox.INBOX, RecipientType.TO);
+            received.setRead(email.isLegacyRead());
+            received.setStarred(email.isLegacyStarred());
+            received.setTrash(email.isLegacyTrash());
+            entries.add(received);
+
+            email.setToAddresses(email.getRecipient().getEmail());
+            email.setRecipientCount(1);
+        }
+
+        mailboxEntryRepository.saveAll(entries);
+        return emails;
+    }
+}
@@ -0,0 +1,42 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.WebhookSubscription;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Published when messages reach, or change in, users' mailboxes, so
+ * {@link WebhookService} can tell their webhooks once the change commits. Stands for
+ * every pair of a user and an email given, which is one email delivered to a chunk of
+ * users, or one user's change to one or more emails.
+ */
+@Getter
+@AllArgsConstructor
+public class MailboxEvent {
+
+    private final WebhookSubscription.Event type;
+
+    private final List<UUID> userIds;
+
+    private final List<UUID> emailIds;
+
+    private final Instant occurredAt;
+
+    /**
+     * The sender's address, for deliveries only
+     */
+    private final String from;
+
+    /**
+     * The subject, for deliveries only
+     */
+    private final String subject;
+
+    public MailboxEvent(WebhookSubscription.Event type, UUID userId, List<UUID> emailIds) {
+        this(type, List.of(userId), emailIds, Instant.now(), null, null);
+    }
+}
@@ -0,0 +1,25 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.Email;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Outcome of {@link EmailService#sendEmail}: the queued message, and whether it had
+ * already been sent by an earlier submission of the same compose form
+ */
+@Getter
+@AllArgsConstructor
+public class SendResult {
+
+    private final Email email;
+    private final boolean duplicate;
+
+    /**
+     * When the message goes out, null if delivery started at once; until then the
+     * send can be cancelled, see {@link EmailService#cancelSend}
+     */
+    private final LocalDateTime sendAt;
+}
@@ -0,0 +1,478 @@
+package app.emailsystem.service;
+
+import app.emailsystem.dto.ContentDigestDTO;
+import app.emailsystem.dto.UploadSessionDTO;
+import app.emailsystem.entity.Attachment;
+import app.emailsystem.entity.UploadSession;
+import app.emailsystem.entity.User;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.UploadSessionRepository;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.storage.AttachmentStorage;
+import app.emailsystem.storage.StagedBlob;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable uploads of attachments too large for a single multipart request.
+ *
+ * A client creates a session, PUTs numbered chunks in any order and as often as it
+ * needs to, and commits once every chunk has arrived. Chunks are streamed to their
+ * offset in an upload file through a fixed-size buffer, outside any transaction, so
+ * neither memory nor database connections grow with the file. Only after a chunk is
+ * written completely is it marked as received, so a chunk cut off by a dropped
+ * connection is simply sent again. A chunk that has been received is never written
+ * again, so a resend that is cut off or fails its checksum cannot damage it.
+ *
+ * Committing stages the file like any other attachment and creates a pending
+ * attachment owned by the uploader, which emails and drafts reference by ID.
+ * Before uploading, clients can {@link #negotiate} with the digests of their files
+ * and skip the upload entirely for content the server already holds.
+ */
+@Slf4j
+@Service
+@Transactional
+public class UploadSessionService {
+
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+    /**
+     * One bit per chunk in {@link UploadSession#getReceivedChunks()}
+     */
+    private static final int MAX_CHUNKS = 2048 * 8;
+    private static final int CLEANUP_BATCH_SIZE = 100;
+    private static final int MAX_NEGOTIATED_FILES = 100;
+    private static final Pattern SHA256_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final UserRepository userRepository;
+    private final AttachmentService attachmentService;
+    private final AttachmentStorage attachmentStorage;
+    private final TransactionTemplate transaction;
+    private final long maxSize;
+    private final int defaultChunkSize;
+    private final int maxOpenSessions;
+    private final Duration sessionTtl;
+    private final Duration pendingTtl;
+    private final Counter negotiatedKnown;
+    private final Counter negotiatedUnknown;
+    private final Counter deduplicatedBytes;
+
+    @Autowired
+    public UploadSessionService(UploadSessionRepository uploadSessionRepository,
+                                UserRepository userRepository,
+                                AttachmentService attachmentService,
+                                AttachmentStorage attachmentStorage,
+                                PlatformTransactionManager transactionManager,
+                                MeterRegistry meterRegistry,
+                                @Value("${attachment.upload.max-size:4294967296}") long maxSize,
+                                @Value("${attachment.upload.chunk-size:8388608}") int defaultChunkSize,
+                                @Value("${attachment.upload.max-open-sessions:20}") int maxOpenSessions,
+                                @Value("${attachment.upload.session-ttl-ms:86400000}") long sessionTtlMillis,
+                                @Value("${attachment.upload.pending-ttl-ms:604800000}") long pendingTtlMillis) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.userRepository = userRepository;
+        this.attachmentService = attachmentService;
+        this.attachmentStorage = attachmentStorage;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.maxSize = maxSize;
+        this.defaultChunkSize = defaultChunkSize;
+        this.maxOpenSessions = maxOpenSessions;
+        this.sessionTtl = Duration.ofMillis(sessionTtlMillis);
+        this.pendingTtl = Duration.ofMillis(pendingTtlMillis);
+        this.negotiatedKnown = negotiatedCounter(meterRegistry, "known");
+        this.negotiatedUnknown = negotiatedCounter(meterRegistry, "unknown");
+        this.deduplicatedBytes = Counter.builder("attachment.upload.deduplicated")
+            .description("Bytes that did not have to be uploaded because the content was already stored")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    private static Counter negotiatedCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("attachment.upload.negotiated")
+            .description("Files checked against stored content before upload")
+            .tag("outcome", outcome)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Find out which files the server already holds before uploading them. Each file
+     * whose content is stored and accessible to the user becomes a pending attachment
+     * right away; only the others need to be uploaded.
+     *
+     * @param ownerId the uploading user
+     * @param files the files with their SHA-256 digests and sizes
+     * @return the files, with {@link ContentDigestDTO#getAttachmentId()} set for the ones that need no upload
+     */
+    public List<ContentDigestDTO> negotiate(UUID ownerId, List<ContentDigestDTO> files) {
+        if (files == null || files.isEmpty()) {
+            return List.of();
+        }
+        if (files.size() > MAX_NEGOTIATED_FILES) {
+            throw new EmailSystemException("At most " + MAX_NEGOTIATED_FILES + " files can be checked at once");
+        }
+        for (ContentDigestDTO file : files) {
+            String sha256 = file.getSha256() == null ? "" : file.getSha256().trim().toLowerCase(Locale.ROOT);
+            if (!SHA256_PATTERN.matcher(sha256).matches()) {
+                throw new EmailSystemException("Invalid SHA-256 digest: " + file.getSha256());
+            }
+            if (file.getSize() <= 0) {
+                throw new EmailSystemException("File is empty");
+            }
+            file.setSha256(sha256);
+            file.setFilename(cleanFilename(file.getFilename()));
+            file.setContentType(cleanContentType(file.getContentType()));
+            file.setAttachmentId(null);
+        }
+        User owner = userRepository.findById(ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+
+        List<ContentDigestDTO> result = attachmentService.savePendingReferences(files, owner);
+        for (ContentDigestDTO file : result) {
+            if (file.getAttachmentId() != null) {
+                negotiatedKnown.increment();
+                deduplicatedBytes.increment(file.getSize());
+            } else {
+                negotiatedUnknown.increment();
+            }
+        }
+        log.debug("User {} negotiated {} files, {} already stored", ownerId, result.size(),
+            result.stream().filter(file -> file.getAttachmentId() != null).count());
+        return result;
+    }
+
+    /**
+     * Start a resumable upload
+     *
+     * @param ownerId the uploading user
+     * @param filename the original file name
+     * @param contentType the declared content type, may be null
+     * @param size the exact size of the file in bytes
+     * @param chunkSize the preferred chunk size, null for the default; it is adjusted to the allowed range
+     * @return the new session
+     */
+    public UploadSessionDTO create(UUID ownerId, String filename, String contentType, long size, Integer chunkSize) {
+        filename = cleanFilename(filename);
+        if (size <= 0) {
+            throw new EmailSystemException("File is empty");
+        }
+        if (size > maxSize) {
+            throw new EmailSystemException("File exceeds the maximum upload size of " + maxSize + " bytes");
+        }
+        if (uploadSessionRepository.countOpenByOwnerId(ownerId) >= maxOpenSessions) {
+            throw new EmailSystemException("Too many uploads in progress");
+        }
+        User owner = userRepository.findById(ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+
+        // Large files get larger chunks so the received bitmap stays bounded
+        long chunk = Math.max(chunkSize != null ? chunkSize : defaultChunkSize, (size + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        chunk = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunk));
+        long chunkCount = (size + chunk - 1) / chunk;
+        if (chunkCount > MAX_CHUNKS) {
+            throw new EmailSystemException("File is too large to upload in chunks");
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        UploadSession session = UploadSession.builder()
+            .owner(owner)
+            .filename(filename)
+            .contentType(cleanContentType(contentType))
+            .size(size)
+            .chunkSize((int) chunk)
+            .chunkCount((int) chunkCount)
+            .receivedChunks(new byte[(int) ((chunkCount + 7) / 8)])
+            .receivedBytes(0)
+            .state(UploadSession.State.OPEN)
+            .createdAt(now)
+            .updatedAt(now)
+            .expiresAt(now.plus(sessionTtl))
+            .build();
+        session = uploadSessionRepository.save(session);
+        log.info("User {} started upload {} of {} ({} bytes in {} chunks)",
+            ownerId, session.getId(), filename, size, chunkCount);
+        return toDto(session);
+    }
+
+    /**
+     * Get the progress of an upload, e.g. to find the chunks to send again after an interruption
+     *
+     * @param ownerId the uploading user
+     * @param sessionId the upload session
+     * @return the session
+     */
+    @Transactional(readOnly = true)
+    public UploadSessionDTO getStatus(UUID ownerId, UUID sessionId) {
+        return toDto(findSession(ownerId, sessionId));
+    }
+
+    /**
+     * Write one chunk of an upload. Runs outside any transaction; the session row is
+     * only locked briefly afterwards to mark the chunk as received. A chunk received
+     * before is left as it is and its content ignored, e.g. when a client sends it again
+     * because the answer to the first request was lost.
+     *
+     * @param ownerId the uploading user
+     * @param sessionId the upload session
+     * @param index the chunk number, starting at 0
+     * @param content the chunk body, exactly as long as the chunk
+     * @param sha256 the expected hex SHA-256 of the chunk, null to skip the check
+     * @return the session
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public UploadSessionDTO receiveChunk(UUID ownerId, UUID sessionId, int index, InputStream content, String sha256) {
+        UploadSession session = findSession(ownerId, sessionId);
+        requireOpen(session);
+        if (index < 0 || index >= session.getChunkCount()) {
+            throw new EmailSystemException("Chunk " + index + " is out of range");
+        }
+        if (session.isReceived(index)) {
+            return toDto(session);
+        }
+
+        MessageDigest digest = sha256 != null ? newDigest() : null;
+        try {
+            attachmentStorage.writeUploadChunk(sessionId, session.chunkOffset(index), content,
+                session.chunkLength(index), digest);
+        } catch (IOException e) {
+            log.warn("Failed to write chunk {} of upload {}: {}", index, sessionId, e.getMessage());
+            throw new EmailSystemException("Failed to store chunk " + index + ": " + e.getMessage(), e);
+        }
+        if (digest != null && !HexFormat.of().formatHex(digest.digest()).equalsIgnoreCase(sha256.trim())) {
+            throw new EmailSystemException("Checksum mismatch for chunk " + index);
+        }
+
+        return transaction.execute(status -> {
+            UploadSession locked = findSessionForUpdate(ownerId, sessionId);
+            requireOpen(locked);
+            if (locked.markReceived(index)) {
+                LocalDateTime now = LocalDateTime.now();
+                locked.setUpdatedAt(now);
+                locked.setExpiresAt(now.plus(sessionTtl));
+            }
+            return toDto(locked);
+        });
+    }
+
+    /**
+     * Turn a completely received upload into a pending attachment. Committing again
+     * returns the same attachment.
+     *
+     * @param ownerId the uploading user
+     * @param sessionId the upload session
+     * @param sha256 the expected hex SHA-256 of the whole file, null to skip the check
+     * @return the session, with the ID of the pending attachment
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public UploadSessionDTO commit(UUID ownerId, UUID sessionId, String sha256) {
+        UploadSession session = findSession(ownerId, sessionId);
+        if (session.getState() == UploadSession.State.COMMITTED) {
+            return toDto(session);
+        }
+        if (!session.isComplete()) {
+            throw new EmailSystemException("Upload is incomplete, " + (session.getSize() - session.getReceivedBytes())
+                + " bytes are missing");
+        }
+
+        StagedBlob staged;
+        try {
+            staged = attachmentStorage.stageUpload(sessionId, session.getContentType());
+        } catch (IOException e) {
+            log.error("Failed to stage upload {}", sessionId, e);
+            throw new EmailSystemException("Failed to save attachment", e);
+        }
+        if (staged.getSize() != session.getSize()
+                || (sha256 != null && !staged.getSha256().equalsIgnoreCase(sha256.trim()))) {
+            attachmentStorage.discard(staged);
+            throw new EmailSystemException("Uploaded content does not match the declared size or checksum");
+        }
+
+        UploadSessionDTO committed;
+        try {
+            committed = transaction.execute(status -> {
+                UploadSession locked = findSessionForUpdate(ownerId, sessionId);
+                if (locked.getState() == UploadSession.State.COMMITTED) {
+                    // Lost a race with a concurrent commit
+                    return toDto(locked);
+                }
+                Attachment attachment = attachmentService.savePendingUpload(staged,
+                    locked.getFilename(), locked.getContentType(), locked.getOwner());
+                LocalDateTime now = LocalDateTime.now();
+                locked.setState(UploadSession.State.COMMITTED);
+                locked.setAttachmentId(attachment.getId());
+                locked.setUpdatedAt(now);
+                locked.setExpiresAt(now.plus(pendingTtl));
+                return toDto(locked);
+            });
+        } finally {
+            // Nothing is left to delete once the content has been promoted
+            attachmentStorage.discard(staged);
+        }
+
+        deleteUploadFile(sessionId);
+        log.info("Committed upload {} as attachment {}", sessionId, committed.getAttachmentId());
+        return committed;
+    }
+
+    /**
+     * Cancel an upload and delete what was received. A committed upload's pending
+     * attachment is deleted too unless it has been attached to an email.
+     *
+     * @param ownerId the uploading user
+     * @param sessionId the upload session
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void abort(UUID ownerId, UUID sessionId) {
+        transaction.executeWithoutResult(status -> {
+            UploadSession session = findSessionForUpdate(ownerId, sessionId);
+            if (session.getAttachmentId() != null) {
+                attachmentService.discardPendingUpload(session.getAttachmentId(), ownerId);
+            }
+            uploadSessionRepository.delete(session);
+        });
+        deleteUploadFile(sessionId);
+        log.info("User {} aborted upload {}", ownerId, sessionId);
+    }
+
+    /**
+     * Delete a pending attachment of the user that is not referenced by any email
+     *
+     * @param ownerId the uploading user
+     * @param attachmentId the pending attachment
+     */
+    public void discardPendingAttachment(UUID ownerId, UUID attachmentId) {
+        attachmentService.discardPendingUpload(attachmentId, ownerId);
+    }
+
+    /**
+     * Delete expired sessions with their upload files, and pending uploads that were never attached
+     */
+    @Scheduled(initialDelayString = "${attachment.upload.cleanup-interval-ms:600000}",
+               fixedDelayString = "${attachment.upload.cleanup-interval-ms:600000}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void cleanupExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        List<UUID> expired = uploadSessionRepository.findExpired(now, PageRequest.of(0, CLEANUP_BATCH_SIZE));
+        for (UUID sessionId : expired) {
+            try {
+                transaction.executeWithoutResult(status -> uploadSessionRepository.findById(sessionId)
+                    .filter(session -> session.getExpiresAt().isBefore(now))
+                    .ifPresent(uploadSessionRepository::delete));
+                deleteUploadFile(sessionId);
+            } catch (Exception e) {
+                log.error("Failed to delete expired upload {}: {}", sessionId, e.getMessage(), e);
+            }
+        }
+
+        Integer stale = transaction.execute(status ->
+            attachmentService.deleteStalePendingUploads(now.minus(pendingTtl), CLEANUP_BATCH_SIZE));
+        if (!expired.isEmpty() || (stale != null && stale > 0)) {
+            log.info("Deleted {} expired upload sessions and {} unused uploads", expired.size(), stale);
+        }
+    }
+
+    private UploadSession findSession(UUID ownerId, UUID sessionId) {
+        return uploadSessionRepository.findByIdAndOwnerId(sessionId, ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("Upload", "id", sessionId));
+    }
+
+    private UploadSession findSessionForUpdate(UUID ownerId, UUID sessionId) {
+        return uploadSessionRepository.findByIdAndOwnerIdForUpdate(sessionId, ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("Upload", "id", sessionId));
+    }
+
+    private static String cleanFilename(String filename) {
+        if (filename == null || filename.isBlank()) {
+            throw new EmailSystemException("File name is required");
+        }
+        filename = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1).strip();
+        if (filename.isEmpty() || filename.length() > 255) {
+            throw new EmailSystemException("Invalid file name");
+        }
+        return filename;
+    }
+
+    private static String cleanContentType(String contentType) {
+        return contentType == null || contentType.isBlank() ? "application/octet-stream" : contentType;
+    }
+
+    private static void requireOpen(UploadSession session) {
+        if (session.getState() != UploadSession.State.OPEN) {
+            throw new EmailSystemException("Upload has already been committed");
+        }
+    }
+
+    private void deleteUploadFile(UUID sessionId) {
+        try {
+            attachmentStorage.deleteUpload(sessionId);
+        } catch (IOException e) {
+            log.warn("Failed to delete upload file {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    private UploadSessionDTO toDto(UploadSession session) {
+        List<UploadSessionDTO.ByteRange> ranges = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int chunk = 0; chunk < session.getChunkCount(); chunk++) {
+            if (!session.isReceived(chunk)) {
+                missing.add(chunk);
+                continue;
+            }
+            long start = session.chunkOffset(chunk);
+            long end = start + session.chunkLength(chunk);
+            UploadSessionDTO.ByteRange last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last.getEnd() == start) {
+                last.setEnd(end);
+            } else {
+                ranges.add(new UploadSessionDTO.ByteRange(start, end));
+            }
+        }
+
+        return UploadSessionDTO.builder()
+            .id(session.getId())
+            .filename(session.getFilename())
+            .contentType(session.getContentType())
+            .size(session.getSize())
+            .chunkSize(session.getChunkSize())
+            .chunkCount(session.getChunkCount())
+            .receivedBytes(session.getReceivedBytes())
+            .receivedRanges(ranges)
+            .missingChunks(missing)
+            .state(session.getState().name())
+            .attachmentId(session.getAttachmentId())
+            .expiresAt(session.getExpiresAt())
+            .build();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import app.emailsystem.dto.UserDTO;
 import app.emailsystem.entity.User;
 import app.emailsystem.exception.EmailSystemException;
 import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.DistributionListRepository;
 import app.emailsystem.repository.UserRepository;
 import app.emailsystem.security.CustomUserDetails;
 import lombok.RequiredArgsConstructor;
@@ -25,11 +26,14 @@ import java.util.UUID;
 @Service
 public class UserService implements UserDetailsService {
     private final UserRepository userRepository;
+    private final DistributionListRepository distributionListRepository;
     private final PasswordEncoder passwordEncoder;
 
     @Autowired
-    public UserService(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    public UserService(UserRepository userRepository, DistributionListRepository distributionListRepository,
+                       PasswordEncoder passwordEncoder) {
         this.userRepository = userRepository;
+        this.distributionListRepository = distributionListRepository;
         this.passwordEncoder = passwordEncoder;
     }
 
@@ -37,7 +41,8 @@ public class UserService implements UserDetailsService {
     public User createUser(UserDTO userDTO) {
         log.info("Creating new user with email: {}", userDTO.getEmail());
         // First check if the email exists to avoid transaction issues
-        boolean exists = userRepository.existsByEmail(userDTO.getEmail());
+        boolean exists = userRepository.existsByEmail(userDTO.getEmail())
+            || distributionListRepository.existsByAddress(userDTO.getEmail());
         if (exists) {
             throw new EmailSystemException("Email already exists");
         }
@@ -91,7 +96,8 @@ public class UserService implements UserDetailsService {
             .orElseThrow(() -> new ResourceNotFoundException("User", "id", id));
         
         if (!user.getEmail().equals(userDTO.getEmail()) && 
-            userRepository.existsByEmail(userDTO.getEmail())) {
+            (userRepository.existsByEmail(userDTO.getEmail())
+                || distributionListRepository.existsByAddress(userDTO.getEmail()))) {
             throw new EmailSystemException("Email already exists");
         }
 
@@ -0,0 +1,25 @@
+package app.emailsystem.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Published when a delivered message reached users whose vacation responders should
+ * answer its sender, so the replies are sent once the delivery commits
+ */
+@Getter
+@AllArgsConstructor
+public class VacationReplyEvent {
+
+    private final UUID emailId;
+
+    private final long senderHash;
+
+    /**
+     * The version of each answering user's responder, by user ID
+     */
+    private final Map<UUID, Long> responderVersions;
+}
@@ -0,0 +1,422 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.Email;
+import app.emailsystem.entity.MailboxEntry;
+import app.emailsystem.entity.RecipientType;
+import app.emailsystem.entity.User;
+import app.emailsystem.entity.VacationResponder;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.repository.VacationReplyRepository;
+import app.emailsystem.repository.VacationResponderRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Out-of-office replies: while a user's {@link VacationResponder} is on, the sender of a
+ * message delivered to them gets its reply, at most once per {@code reply-period-days}.
+ *
+ * Delivery asks {@link #collect} which recipients of a chunk should answer, see
+ * {@link DeliveryService}, and that costs no query: the responders that are on are kept
+ * in memory, reloaded every {@code refresh-interval-ms} for changes made on other
+ * instances, and the senders answered recently are kept in a bounded cache whose entries
+ * expire with the period. A sender found there is skipped; otherwise the cache takes the
+ * sender at once, so further deliveries from them are skipped too, and the reply is
+ * handed to a single responder thread once the delivery commits. That thread records the
+ * reply in {@code vacation_replies}, which holds a fixed-size row per user and sender and
+ * decides across instances and restarts, and queues the reply as the user's message.
+ * The send that caused it never waits for any of this.
+ *
+ * As mailing list software does, responders leave alone messages reaching the user as
+ * Bcc or through a distribution list, messages from automated senders, and other
+ * responders' replies.
+ */
+@Slf4j
+@Service
+public class VacationResponderService {
+
+    private static final int MAX_MESSAGE_LENGTH = 10000;
+    private static final int CLEANUP_BATCH_SIZE = 1000;
+    private static final List<String> AUTOMATED_SENDERS =
+            List.of("noreply", "no-reply", "donotreply", "do-not-reply", "mailer-daemon", "postmaster");
+
+    private final VacationResponderRepository responderRepository;
+    private final VacationReplyRepository replyRepository;
+    private final UserRepository userRepository;
+    private final EmailService emailService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate transaction;
+    private final Duration replyPeriod;
+    private final int cacheSize;
+    private final ThreadPoolExecutor responder;
+
+    /**
+     * The responders that are on, or scheduled to be, by user ID; replaced, never changed,
+     * and only while holding this service's lock
+     */
+    private volatile Map<UUID, Window> enabled = Map.of();
+    /** When each recent reply stops counting, in epoch milliseconds */
+    private final Map<ReplyKey, Long> replied;
+
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter sent;
+    private final Counter dropped;
+
+    @Autowired
+    public VacationResponderService(VacationResponderRepository responderRepository,
+                                    VacationReplyRepository replyRepository,
+                                    UserRepository userRepository,
+                                    EmailService emailService,
+                                    ApplicationEventPublisher eventPublisher,
+                                    PlatformTransactionManager transactionManager,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${vacation.reply-period-days:4}") int replyPeriodDays,
+                                    @Value("${vacation.cache-size:100000}") int cacheSize,
+                                    @Value("${vacation.queue-size:10000}") int queueSize) {
+        this.responderRepository = responderRepository;
+        this.replyRepository = replyRepository;
+        this.userRepository = userRepository;
+        this.emailService = emailService;
+        this.eventPublisher = eventPublisher;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.replyPeriod = Duration.ofDays(replyPeriodDays);
+        this.cacheSize = cacheSize;
+        // Access-ordered, so the sender answered or skipped least recently is evicted first
+        this.replied = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ReplyKey, Long> eldest) {
+                return size() > VacationResponderService.this.cacheSize;
+            }
+        };
+        this.responder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "vacation-responder");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.cacheHits = cacheCounter(meterRegistry, "hit");
+        this.cacheMisses = cacheCounter(meterRegistry, "miss");
+        this.sent = Counter.builder("vacation.replies.sent")
+                .description("Vacation replies queued for delivery")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("vacation.replies.dropped")
+                .description("Vacation replies dropped because the responder thread was behind")
+                .register(meterRegistry);
+    }
+
+    @Transactional(readOnly = true)
+    public Optional<VacationResponder> getResponder(UUID ownerId) {
+        return responderRepository.findByOwnerId(ownerId);
+    }
+
+    /**
+     * Create or change the user's responder. Every change counts as a new reply, so
+     * senders answered by the previous one are answered again.
+     *
+     * @throws EmailSystemException if the responder is incomplete or ends before it starts
+     */
+    @Transactional
+    public VacationResponder saveResponder(UUID ownerId, boolean on, String subject, String message,
+                                           LocalDateTime startsAt, LocalDateTime endsAt) {
+        String trimmedSubject = subject != null ? subject.trim() : "";
+        if (on && trimmedSubject.isEmpty()) {
+            throw new EmailSystemException("Enter the subject of the reply");
+        }
+        if (trimmedSubject.length() > 255) {
+            throw new EmailSystemException("The subject may be at most 255 characters");
+        }
+        if (message != null && message.length() > MAX_MESSAGE_LENGTH) {
+            throw new EmailSystemException("The message may be at most " + MAX_MESSAGE_LENGTH + " characters");
+        }
+        if (startsAt != null && endsAt != null && !endsAt.isAfter(startsAt)) {
+            throw new EmailSystemException("The last day must be after the first");
+        }
+        VacationResponder responder = responderRepository.findByOwnerId(ownerId).orElseGet(() -> {
+            User owner = userRepository.findById(ownerId)
+                .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+            return VacationResponder.builder().owner(owner).build();
+        });
+        responder.setEnabled(on);
+        responder.setSubject(trimmedSubject);
+        responder.setMessage(message);
+        responder.setStartsAt(startsAt);
+        responder.setEndsAt(endsAt);
+        responder.setVersion(responder.getVersion() + 1);
+        responder = responderRepository.save(responder);
+
+        // Used here once the change commits; other instances see it at their next refresh
+        Window window = on ? new Window(responder.getVersion(), startsAt, endsAt) : null;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                synchronized (VacationResponderService.this) {
+                    Map<UUID, Window> updated = new HashMap<>(enabled);
+                    if (window != null) {
+                        updated.put(ownerId, window);
+                    } else {
+                        updated.remove(ownerId);
+                    }
+                    enabled = updated;
+                }
+            }
+        });
+        log.info("Vacation responder of user {} {}", ownerId, on ? "on" : "off");
+        return responder;
+    }
+
+    /**
+     * Reload the responders that are on, at startup and then every {@code refresh-interval-ms}.
+     * Reads under the lock, so a change committed while it reads is applied after it
+     * rather than overwritten by what it read.
+     */
+    @Scheduled(fixedDelayString = "${vacation.refresh-interval-ms:60000}")
+    public synchronized void refresh() {
+        List<Object[]> rows = transaction.execute(status -> responderRepository.findEnabled(LocalDateTime.now()));
+        if (rows == null) {
+            return;
+        }
+        Map<UUID, Window> loaded = new HashMap<>();
+        for (Object[] row : rows) {
+            loaded.put((UUID) row[0], new Window((Long) row[1], (LocalDateTime) row[2], (LocalDateTime) row[3]));
+        }
+        enabled = loaded;
+    }
+
+    /**
+     * Find the recipients of a delivered message who should answer its sender, and have
+     * them answer once the caller's delivery transaction commits. Called with the chunk's
+     * new entries; reads nothing from the database.
+     */
+    public void collect(Email email, List<MailboxEntry> entries) {
+        Map<UUID, Window> windows = enabled;
+        if (windows.isEmpty() || entries.isEmpty() || email.isAutoReply() || email.isBroadcast()) {
+            return;
+        }
+        User sender = email.getSender();
+        String address = sender.getEmail().toLowerCase(Locale.ROOT);
+        if (isAutomated(address)) {
+            return;
+        }
+        long senderHash = hash(address);
+        LocalDateTime now = LocalDateTime.now();
+        long nowMillis = System.currentTimeMillis();
+
+        Map<UUID, Long> versions = new HashMap<>();
+        for (MailboxEntry entry : entries) {
+            UUID ownerId = entry.getOwner().getId();
+            Window window = windows.get(ownerId);
+            if (window == null || !window.isActive(now) || ownerId.equals(sender.getId())
+                    || entry.getMailbox() != MailboxEntry.Mailbox.INBOX || entry.isTrash()
+                    || (entry.getRecipientType() != RecipientType.TO && entry.getRecipientType() != RecipientType.CC)) {
+                continue;
+            }
+            if (remember(new ReplyKey(ownerId, senderHash, window.version), nowMillis)) {
+                versions.put(ownerId, window.version);
+            }
+        }
+        if (!versions.isEmpty()) {
+            eventPublisher.publishEvent(new VacationReplyEvent(email.getId(), senderHash, versions));
+        }
+    }
+
+    @TransactionalEventListener
+    public void onReply(VacationReplyEvent event) {
+        try {
+            responder.execute(() -> reply(event));
+        } catch (RejectedExecutionException e) {
+            dropped.increment(event.getResponderVersions().size());
+            forget(event);
+        }
+    }
+
+    /**
+     * Record and queue each user's reply, in a transaction per user, unless the sender
+     * was answered within the period, possibly by another instance or before a restart
+     */
+    private void reply(VacationReplyEvent event) {
+        event.getResponderVersions().forEach((ownerId, version) -> {
+            try {
+                Boolean queued = transaction.execute(status -> {
+                    LocalDateTime now = LocalDateTime.now();
+                    boolean first = replyRepository.insertIgnore(UUID.randomUUID(), ownerId, event.getSenderHash(), version, now) == 1
+                        || replyRepository.renew(ownerId, event.getSenderHash(), version, now, now.minus(replyPeriod)) == 1;
+                    if (!first) {
+                        return false;
+                    }
+                    // Turned off, or ended, since the delivery
+                    VacationResponder current = responderRepository.findByOwnerId(ownerId)
+                        .filter(candidate -> candidate.isActive(now))
+                        .orElse(null);
+                    if (current == null) {
+                        status.setRollbackOnly();
+                        return false;
+                    }
+                    emailService.sendAutoReply(ownerId, event.getEmailId(), current.getSubject(), current.getMessage());
+                    return true;
+                });
+                if (Boolean.TRUE.equals(queued)) {
+                    sent.increment();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not send the vacation reply of user {} to email {}: {}",
+                        ownerId, event.getEmailId(), e.getMessage());
+                synchronized (replied) {
+                    replied.remove(new ReplyKey(ownerId, event.getSenderHash(), version));
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the records of replies older than the period, in batches
+     */
+    @Scheduled(initialDelay = 600000, fixedDelay = 3600000)
+    public void deleteExpiredReplies() {
+        LocalDateTime before = LocalDateTime.now().minus(replyPeriod);
+        int total = 0;
+        Integer deleted;
+        do {
+            deleted = transaction.execute(status -> replyRepository.deleteExpired(before, CLEANUP_BATCH_SIZE));
+            total += deleted != null ? deleted : 0;
+        } while (deleted != null && deleted == CLEANUP_BATCH_SIZE);
+        if (total > 0) {
+            log.debug("Deleted {} expired vacation reply records", total);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        responder.shutdown();
+        if (!responder.awaitTermination(10, TimeUnit.SECONDS)) {
+            responder.shutdownNow();
+        }
+    }
+
+    /**
+     * Note a reply to the sender unless one was noted within the period
+     *
+     * @return whether the sender should be answered
+     */
+    private boolean remember(ReplyKey key, long nowMillis) {
+        synchronized (replied) {
+            Long expires = replied.get(key);
+            if (expires != null && expires > nowMillis) {
+                cacheHits.increment();
+                return false;
+            }
+            replied.put(key, nowMillis + replyPeriod.toMillis());
+        }
+        cacheMisses.increment();
+        return true;
+    }
+
+    private void forget(VacationReplyEvent event) {
+        synchronized (replied) {
+            event.getResponderVersions().forEach((ownerId, version) ->
+                    replied.remove(new ReplyKey(ownerId, event.getSenderHash(), version)));
+        }
+    }
+
+    private static boolean isAutomated(String address) {
+        int at = address.indexOf('@');
+        String local = at >= 0 ? address.substring(0, at) : address;
+        return AUTOMATED_SENDERS.stream().anyMatch(local::startsWith);
+    }
+
+    /**
+     * 64-bit FNV-1a of the address, the sender's key in {@code vacation_replies}
+     */
+    static long hash(String address) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < address.length(); i++) {
+            hash = (hash ^ address.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static Counter cacheCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("vacation.replies.cache")
+                .description("Deliveries whose sender was, or was not, answered recently according to the cache")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * When a responder that is on replies
+     */
+    private static final class Window {
+        private final long version;
+        private final LocalDateTime startsAt;
+        private final LocalDateTime endsAt;
+
+        private Window(long version, LocalDateTime startsAt, LocalDateTime endsAt) {
+            this.version = version;
+            this.startsAt = startsAt;
+            this.endsAt = endsAt;
+        }
+
+        private boolean isActive(LocalDateTime now) {
+            return (startsAt == null || !startsAt.isAfter(now)) && (endsAt == null || endsAt.isAfter(now));
+        }
+    }
+
+    /**
+     * A reply of one version of a user's responder to one sender
+     */
+    private static final class ReplyKey {
+        private final UUID ownerId;
+        private final long senderHash;
+        private final long version;
+
+        private ReplyKey(UUID ownerId, long senderHash, long version) {
+            this.ownerId = ownerId;
+            this.senderHash = senderHash;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ReplyKey key)) {
+                return false;
+            }
+            return senderHash == key.senderHash && version == key.version && ownerId.equals(key.ownerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ownerId, senderHash, version);
+        }
+    }
+}
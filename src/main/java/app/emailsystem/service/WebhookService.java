@@ -0,0 +1,321 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.User;
+import app.emailsystem.entity.WebhookSubscription;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.ResourceNotFoundException;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.repository.WebhookSubscriptionRepository;
+import app.emailsystem.webhook.BlockedAddressException;
+import app.emailsystem.webhook.HttpWebhookTransport;
+import app.emailsystem.webhook.WebhookAddressPolicy;
+import app.emailsystem.webhook.WebhookDispatcher;
+import app.emailsystem.webhook.WebhookEndpoint;
+import app.emailsystem.webhook.WebhookEvent;
+import app.emailsystem.webhook.WebhookSettings;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Webhooks: users subscribe URLs to changes in their mailbox, such as messages delivered
+ * to them, read or deleted, and each change is posted there as JSON.
+ *
+ * {@link EmailService} and the delivery workers publish a {@link MailboxEvent} with the
+ * change; once it commits, the subscriptions of the users concerned are looked up in
+ * memory, reloaded every {@code refresh-interval-ms} for changes made on other
+ * instances, and the events handed to a {@link WebhookDispatcher}, which batches and
+ * sends them from its own threads, see there. The request or delivery that raised an
+ * event never waits for, or fails with, its webhooks; events a subscription cannot keep
+ * up with are dropped and counted.
+ *
+ * URLs whose host resolves to a private or local address are refused, when subscribing
+ * and before each request, unless the host is one of {@code allowed-hosts}, see
+ * {@link WebhookAddressPolicy}.
+ */
+@Slf4j
+@Service
+public class WebhookService {
+
+    private static final int MAX_URL_LENGTH = 2048;
+
+    private final WebhookSubscriptionRepository subscriptionRepository;
+    private final UserRepository userRepository;
+    private final TransactionTemplate readOnly;
+    private final boolean enabled;
+    private final int maxSubscriptions;
+    private final WebhookAddressPolicy addressPolicy;
+    private final WebhookDispatcher dispatcher;
+    private final SecureRandom random = new SecureRandom();
+
+    /** The subscriptions by owner ID; replaced, never changed */
+    private volatile Map<UUID, List<Subscriber>> subscribers = Map.of();
+
+    @Autowired
+    public WebhookService(WebhookSubscriptionRepository subscriptionRepository,
+                          UserRepository userRepository,
+                          PlatformTransactionManager transactionManager,
+                          ObjectMapper objectMapper,
+                          MeterRegistry meterRegistry,
+                          @Value("${webhook.enabled:true}") boolean enabled,
+                          @Value("${webhook.max-subscriptions:10}") int maxSubscriptions,
+                          @Value("${webhook.allowed-hosts:}") List<String> allowedHosts,
+                          @Value("${webhook.workers:8}") int workers,
+                          @Value("${webhook.queue-size:10000}") int queueSize,
+                          @Value("${webhook.max-batch-size:100}") int maxBatchSize,
+                          @Value("${webhook.linger-ms:200}") long lingerMillis,
+                          @Value("${webhook.max-concurrency:2}") int maxConcurrency,
+                          @Value("${webhook.max-attempts:6}") int maxAttempts,
+                          @Value("${webhook.initial-backoff-ms:1000}") long initialBackoffMillis,
+                          @Value("${webhook.max-backoff-ms:60000}") long maxBackoffMillis,
+                          @Value("${webhook.timeout-ms:10000}") long timeoutMillis) {
+        this.subscriptionRepository = subscriptionRepository;
+        this.userRepository = userRepository;
+        this.readOnly = new TransactionTemplate(transactionManager);
+        this.readOnly.setReadOnly(true);
+        this.enabled = enabled;
+        this.maxSubscriptions = maxSubscriptions;
+        this.addressPolicy = new WebhookAddressPolicy(allowedHosts);
+        this.dispatcher = new WebhookDispatcher(
+                new HttpWebhookTransport(objectMapper, Duration.ofMillis(timeoutMillis), addressPolicy),
+                WebhookSettings.builder()
+                        .workers(workers)
+                        .queueSize(queueSize)
+                        .maxBatchSize(maxBatchSize)
+                        .linger(Duration.ofMillis(lingerMillis))
+                        .maxConcurrency(maxConcurrency)
+                        .maxAttempts(maxAttempts)
+                        .initialBackoff(Duration.ofMillis(initialBackoffMillis))
+                        .maxBackoff(Duration.ofMillis(maxBackoffMillis))
+                        .build());
+
+        eventCounter(meterRegistry, "sent", WebhookDispatcher::getSent);
+        eventCounter(meterRegistry, "dropped", WebhookDispatcher::getDropped);
+        eventCounter(meterRegistry, "failed", WebhookDispatcher::getFailed);
+        FunctionCounter.builder("webhook.requests", dispatcher, WebhookDispatcher::getRequests)
+                .description("Webhook requests made, one per batch and attempt")
+                .register(meterRegistry);
+        FunctionCounter.builder("webhook.retries", dispatcher, WebhookDispatcher::getRetried)
+                .description("Webhook batches sent again after a failure")
+                .register(meterRegistry);
+        Gauge.builder("webhook.pending", dispatcher, WebhookDispatcher::getPending)
+                .description("Webhook events waiting to be sent")
+                .register(meterRegistry);
+    }
+
+    @Transactional(readOnly = true)
+    public List<WebhookSubscription> getSubscriptions(UUID ownerId) {
+        return subscriptionRepository.findByOwnerIdOrderByCreatedAt(ownerId);
+    }
+
+    /**
+     * Subscribe a URL to the given events of the user's mailbox. The subscription gets a
+     * random secret that signs its requests.
+     *
+     * @throws EmailSystemException if the URL is not an http or https URL, its host does
+     *                              not resolve or resolves to a private or local address,
+     *                              no event is chosen or the user has too many subscriptions
+     */
+    @Transactional
+    public WebhookSubscription createSubscription(UUID ownerId, String url, Set<WebhookSubscription.Event> events) {
+        String trimmed = url != null ? url.trim() : "";
+        if (trimmed.length() > MAX_URL_LENGTH) {
+            throw new EmailSystemException("The URL may be at most " + MAX_URL_LENGTH + " characters");
+        }
+        String host;
+        try {
+            URI uri = new URI(trimmed);
+            String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "";
+            if (!(scheme.equals("http") || scheme.equals("https")) || uri.getHost() == null) {
+                throw new EmailSystemException("Enter an http or https URL");
+            }
+            host = uri.getHost();
+        } catch (URISyntaxException e) {
+            throw new EmailSystemException("Enter an http or https URL");
+        }
+        try {
+            addressPolicy.check(host);
+        } catch (BlockedAddressException e) {
+            throw new EmailSystemException("Webhooks cannot be sent to private or local addresses");
+        } catch (IOException e) {
+            throw new EmailSystemException("The host " + host + " could not be found");
+        }
+        if (events == null || events.isEmpty()) {
+            throw new EmailSystemException("Choose at least one event");
+        }
+        if (subscriptionRepository.countByOwnerId(ownerId) >= maxSubscriptions) {
+            throw new EmailSystemException("You can have at most " + maxSubscriptions + " webhooks");
+        }
+        User owner = userRepository.findById(ownerId)
+            .orElseThrow(() -> new ResourceNotFoundException("User", "id", ownerId));
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        WebhookSubscription subscription = subscriptionRepository.save(WebhookSubscription.builder()
+            .owner(owner)
+            .url(trimmed)
+            .secret(HexFormat.of().formatHex(secret))
+            .eventMask(WebhookSubscription.mask(events))
+            .build());
+        // Other instances see the change at their next refresh
+        subscriptionsChanged(ownerId, null);
+        log.info("Webhook {} of user {} subscribed to {}", subscription.getId(), ownerId, events);
+        return subscription;
+    }
+
+    @Transactional
+    public void deleteSubscription(UUID ownerId, UUID subscriptionId) {
+        WebhookSubscription subscription = subscriptionRepository.findById(subscriptionId)
+            .filter(candidate -> candidate.getOwner().getId().equals(ownerId))
+            .orElseThrow(() -> new ResourceNotFoundException("Webhook", "id", subscriptionId));
+        subscriptionRepository.delete(subscription);
+        subscriptionsChanged(ownerId, subscriptionId);
+        log.info("Webhook {} of user {} deleted", subscriptionId, ownerId);
+    }
+
+    /**
+     * Reload all subscriptions, at startup and then every {@code refresh-interval-ms}
+     */
+    @Scheduled(fixedDelayString = "${webhook.refresh-interval-ms:60000}")
+    public void refresh() {
+        List<Object[]> rows = readOnly.execute(status -> subscriptionRepository.findAllEndpoints());
+        if (rows == null) {
+            return;
+        }
+        Map<UUID, List<Subscriber>> loaded = new HashMap<>();
+        for (Object[] row : rows) {
+            WebhookEndpoint endpoint = new WebhookEndpoint((UUID) row[0], (String) row[2], (String) row[3]);
+            loaded.computeIfAbsent((UUID) row[1], owner -> new ArrayList<>())
+                .add(new Subscriber(endpoint, (Integer) row[4]));
+        }
+        Map<UUID, List<Subscriber>> previous;
+        synchronized (this) {
+            previous = subscribers;
+            subscribers = loaded;
+        }
+        // Queues of subscriptions deleted on other instances
+        Set<UUID> present = new HashSet<>();
+        loaded.values().forEach(owned -> owned.forEach(subscriber -> present.add(subscriber.endpoint.getId())));
+        for (List<Subscriber> owned : previous.values()) {
+            for (Subscriber subscriber : owned) {
+                if (!present.contains(subscriber.endpoint.getId())) {
+                    dispatcher.remove(subscriber.endpoint.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand the change to the dispatcher once it commits, for each subscription that
+     * wants it
+     */
+    @TransactionalEventListener
+    public void onMailboxEvent(MailboxEvent event) {
+        Map<UUID, List<Subscriber>> current = subscribers;
+        if (!enabled || current.isEmpty()) {
+            return;
+        }
+        int bit = 1 << event.getType().ordinal();
+        String occurredAt = event.getOccurredAt().toString();
+        for (UUID userId : event.getUserIds()) {
+            List<Subscriber> owned = current.get(userId);
+            if (owned == null) {
+                continue;
+            }
+            for (Subscriber subscriber : owned) {
+                if ((subscriber.eventMask & bit) == 0) {
+                    continue;
+                }
+                for (UUID emailId : event.getEmailIds()) {
+                    dispatcher.offer(subscriber.endpoint, new WebhookEvent(event.getType().getType(), userId, emailId,
+                            occurredAt, event.getFrom(), event.getSubject()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Send what is queued, without retrying
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        dispatcher.stop();
+    }
+
+    /**
+     * Load the owner's subscriptions as the current transaction sees them, and use them
+     * once it commits; if it rolls back, nothing changes
+     *
+     * @param removedId the subscription deleted, whose queue is dropped, or null
+     */
+    private void subscriptionsChanged(UUID ownerId, UUID removedId) {
+        List<Subscriber> owned = new ArrayList<>();
+        for (WebhookSubscription subscription : subscriptionRepository.findByOwnerIdOrderByCreatedAt(ownerId)) {
+            owned.add(new Subscriber(
+                new WebhookEndpoint(subscription.getId(), subscription.getUrl(), subscription.getSecret()),
+                subscription.getEventMask()));
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                synchronized (WebhookService.this) {
+                    Map<UUID, List<Subscriber>> updated = new HashMap<>(subscribers);
+                    if (owned.isEmpty()) {
+                        updated.remove(ownerId);
+                    } else {
+                        updated.put(ownerId, owned);
+                    }
+                    subscribers = updated;
+                }
+                if (removedId != null) {
+                    dispatcher.remove(removedId);
+                }
+            }
+        });
+    }
+
+    private void eventCounter(MeterRegistry meterRegistry, String outcome, ToDoubleFunction<WebhookDispatcher> count) {
+        FunctionCounter.builder("webhook.events", dispatcher, count)
+                .description("Webhook events by what became of them")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static final class Subscriber {
+        private final WebhookEndpoint endpoint;
+        private final int eventMask;
+
+        private Subscriber(WebhookEndpoint endpoint, int eventMask) {
+            this.endpoint = endpoint;
+            this.eventMask = eventMask;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package app.emailsystem.smtp;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The addresses an SMTP client gave for one message, as opposed to those in its headers
+ */
+@Getter
+@AllArgsConstructor
+public class SmtpEnvelope {
+
+    private final String from;
+
+    /**
+     * The RCPT TO addresses, in order, without duplicates
+     */
+    private final List<String> recipients;
+}
@@ -0,0 +1,36 @@
+package app.emailsystem.smtp;
+
+import lombok.Getter;
+
+/**
+ * A command or message the SMTP server rejects, with the reply the client gets
+ */
+@Getter
+public class SmtpException extends RuntimeException {
+
+    /**
+     * The reply code; 4xx asks the client to try again later, 5xx not to
+     */
+    private final int code;
+
+    /**
+     * The enhanced status code of RFC 3463, such as {@code 5.7.1}
+     */
+    private final String status;
+
+    public SmtpException(int code, String status, String message) {
+        super(message);
+        this.code = code;
+        this.status = status;
+    }
+
+    public SmtpException(int code, String status, String message, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+        this.status = status;
+    }
+
+    String reply() {
+        return code + " " + status + " " + getMessage();
+    }
+}
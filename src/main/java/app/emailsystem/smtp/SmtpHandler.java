@@ -0,0 +1,25 @@
+package app.emailsystem.smtp;
+
+import java.nio.file.Path;
+
+/**
+ * What the {@link SmtpServer} does with credentials and messages. Called on the server's
+ * worker threads, never on the thread serving the connections, so implementations may
+ * block.
+ */
+public interface SmtpHandler {
+
+    /**
+     * @return the user, null if the credentials are wrong
+     */
+    SmtpSender authenticate(String username, String password);
+
+    /**
+     * Accept a received message for delivery
+     *
+     * @param message the message as received, dot-unstuffed; deleted once this returns
+     * @return an identifier of the queued message, reported to the client
+     * @throws SmtpException if the message is rejected
+     */
+    String submit(SmtpSender sender, SmtpEnvelope envelope, Path message, long size);
+}
@@ -0,0 +1,21 @@
+package app.emailsystem.smtp;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * The user an SMTP session authenticated as
+ */
+@Getter
+@AllArgsConstructor
+public class SmtpSender {
+
+    private final UUID userId;
+
+    /**
+     * The user's address, the only one they may give as MAIL FROM
+     */
+    private final String address;
+}
@@ -0,0 +1,341 @@
+package app.emailsystem.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An SMTP submission server (RFC 6409) for programs, such as build servers, that send
+ * mail into the system, see {@link SmtpSession} for the protocol.
+ *
+ * One thread serves all connections with a NIO selector: it reads commands, answers
+ * them, and streams message data into a spool file as it arrives, so a connection costs
+ * a session object and its buffers rather than a thread. Whatever may block, checking a
+ * password or handing a received message to the {@link SmtpHandler}, runs on a small
+ * pool of workers; the connection stops being read meanwhile, and its reply is written
+ * by the selector thread once the worker is done. Connections are only accepted from
+ * {@link SmtpSettings#getAllowedNetworks()}.
+ */
+@Slf4j
+public class SmtpServer {
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final SmtpHandler handler;
+    private final SmtpSettings settings;
+    private final List<Network> allowedNetworks = new ArrayList<>();
+    private final ThreadPoolExecutor workers;
+    /** Work for the selector thread from the workers */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** Only touched by the selector thread */
+    private final Set<SmtpSession> sessions = new HashSet<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong messages = new AtomicLong();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    public SmtpServer(SmtpHandler handler, SmtpSettings settings) {
+        this.handler = handler;
+        this.settings = settings;
+        for (String network : settings.getAllowedNetworks()) {
+            allowedNetworks.add(Network.parse(network.trim()));
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(settings.getWorkers(), settings.getWorkers(), 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(settings.getQueueSize()),
+                runnable -> {
+                    Thread worker = new Thread(runnable, "smtp-worker-" + threadNumber.incrementAndGet());
+                    worker.setDaemon(true);
+                    return worker;
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(settings.getSpoolDirectory());
+        sweepSpool();
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(settings.getBindAddress(), settings.getPort()), 128);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::run, "smtp-selector");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("SMTP submission server listening on {}", serverChannel.getLocalAddress());
+    }
+
+    /**
+     * Stop accepting connections, close the open ones and wait briefly for messages
+     * being handed over
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        thread.join(5000);
+        workers.shutdown();
+        if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+        log.info("SMTP submission server stopped");
+    }
+
+    /**
+     * The port the server listens on, the one chosen if port 0 was configured
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Messages handed to the handler since the start
+     */
+    public long getMessages() {
+        return messages.get();
+    }
+
+    SmtpHandler getHandler() {
+        return handler;
+    }
+
+    SmtpSettings getSettings() {
+        return settings;
+    }
+
+    void messageSubmitted() {
+        messages.incrementAndGet();
+    }
+
+    /**
+     * Run blocking work of a session on a worker, then its completion on the selector thread
+     *
+     * @return false if the workers are saturated and the work was not started
+     */
+    boolean execute(Runnable work, Runnable completion) {
+        try {
+            workers.execute(() -> {
+                try {
+                    work.run();
+                } finally {
+                    tasks.add(completion);
+                    selector.wakeup();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        serve((SmtpSession) key.attachment(), key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("SMTP selector loop failed", e);
+            }
+        }
+        for (SmtpSession session : new ArrayList<>(sessions)) {
+            session.close("421 4.3.2 Service shutting down");
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Could not close the SMTP server socket", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        if (allowedNetworks.stream().noneMatch(network -> network.contains(remote))) {
+            log.warn("Refused SMTP connection from {}", remote);
+            refuse(channel, "554 5.7.1 Access denied");
+            return;
+        }
+        if (sessions.size() >= settings.getMaxConnections()) {
+            refuse(channel, "421 4.3.2 Too many connections, try again later");
+            return;
+        }
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        SmtpSession session = new SmtpSession(this, channel, key, remote);
+        key.attach(session);
+        sessions.add(session);
+        connections.incrementAndGet();
+        session.greet();
+    }
+
+    /**
+     * Delete spool files left behind by a previous run that stopped mid-message
+     */
+    private void sweepSpool() throws IOException {
+        int deleted = 0;
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(settings.getSpoolDirectory(), "smtp-*.eml")) {
+            for (Path file : stale) {
+                try {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                } catch (IOException e) {
+                    log.warn("Could not delete SMTP spool file {}", file, e);
+                }
+            }
+        }
+        if (deleted > 0) {
+            log.info("Deleted {} SMTP spool files left behind", deleted);
+        }
+    }
+
+    private static void refuse(SocketChannel channel, String reply) {
+        try (channel) {
+            // Best effort; a client that does not read it just sees the connection close
+            channel.write(ByteBuffer.wrap((reply + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            log.debug("Could not refuse SMTP connection: {}", e.getMessage());
+        }
+    }
+
+    private void serve(SmtpSession session, SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                session.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.onReadable();
+            }
+        } catch (IOException e) {
+            log.debug("SMTP connection from {} failed: {}", session.getRemote(), e.getMessage());
+            session.close(null);
+        }
+    }
+
+    private void closeIdle(long now) {
+        long timeout = settings.getIdleTimeout().toMillis();
+        for (SmtpSession session : new ArrayList<>(sessions)) {
+            if (session.isIdleSince(now - timeout)) {
+                session.close("421 4.4.2 Idle for too long, closing connection");
+            }
+        }
+    }
+
+    void closed(SmtpSession session) {
+        if (sessions.remove(session)) {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * A block of addresses in CIDR notation
+     */
+    private static final class Network {
+        private final byte[] address;
+        private final int prefix;
+
+        private Network(byte[] address, int prefix) {
+            this.address = address;
+            this.prefix = prefix;
+        }
+
+        static Network parse(String cidr) {
+            int slash = cidr.indexOf('/');
+            try {
+                byte[] address = InetAddress.getByName(slash >= 0 ? cidr.substring(0, slash) : cidr).getAddress();
+                int prefix = slash >= 0 ? Integer.parseInt(cidr.substring(slash + 1)) : address.length * 8;
+                if (prefix < 0 || prefix > address.length * 8) {
+                    throw new IllegalArgumentException("Invalid network " + cidr);
+                }
+                return new Network(address, prefix);
+            } catch (UnknownHostException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid network " + cidr, e);
+            }
+        }
+
+        boolean contains(InetAddress candidate) {
+            byte[] bytes = candidate.getAddress();
+            if (bytes.length != address.length) {
+                return false;
+            }
+            int full = prefix / 8;
+            for (int i = 0; i < full; i++) {
+                if (bytes[i] != address[i]) {
+                    return false;
+                }
+            }
+            int rest = prefix % 8;
+            if (rest == 0) {
+                return true;
+            }
+            int mask = 0xFF << (8 - rest);
+            return (bytes[full] & mask) == (address[full] & mask);
+        }
+    }
+}
@@ -0,0 +1,838 @@
+package app.emailsystem.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One SMTP connection of an {@link SmtpServer}: the protocol state, and the buffers in
+ * between. Only ever touched by the selector thread, apart from the blocking work handed
+ * to a worker, during which the session is {@link State#BUSY} and not read.
+ *
+ * Commands are answered in the order they arrive, and the replies to all commands read
+ * at once are written at once, which is all PIPELINING (RFC 2920) asks of a server.
+ * Message data, whether sent with DATA or in BDAT chunks (RFC 3030, CHUNKING), is
+ * written to a spool file as it arrives, DATA dot-unstuffed on the way, so a message
+ * is never held in memory. Sending requires AUTH PLAIN or LOGIN, and MAIL FROM has to
+ * be the authenticated user's own address.
+ */
+@Slf4j
+final class SmtpSession {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_AUTH_FAILURES = 3;
+
+    private enum State {
+        COMMAND,
+        AUTH_PLAIN,
+        AUTH_LOGIN_USERNAME,
+        AUTH_LOGIN_PASSWORD,
+        DATA,
+        BDAT,
+        /** Waiting for a worker; nothing is read */
+        BUSY,
+        CLOSED
+    }
+
+    /** Where DATA is relative to a possible terminating {@code CRLF.CRLF} */
+    private static final int TEXT = 0;
+    private static final int CR = 1;
+    private static final int LINE_START = 2;
+    private static final int DOT = 3;
+    private static final int DOT_CR = 4;
+    private static final int END = 5;
+
+    private final SmtpServer server;
+    private final SmtpSettings settings;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetAddress remote;
+    private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final StringBuilder replies = new StringBuilder();
+    private ByteBuffer out;
+    private State state = State.COMMAND;
+    private long lastActive = System.currentTimeMillis();
+
+    private boolean greeted;
+    private int authFailures;
+    private String authUsername;
+    private volatile SmtpSender sender;
+
+    private String from;
+    private final Set<String> recipients = new LinkedHashSet<>();
+    private Path spoolFile;
+    private FileChannel spool;
+    private final ByteBuffer spoolBuffer = ByteBuffer.allocate(SPOOL_BUFFER_SIZE);
+    private long messageSize;
+    private SmtpException messageError;
+    private int dataState;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    private boolean chunking;
+
+    SmtpSession(SmtpServer server, SocketChannel channel, SelectionKey key, InetAddress remote) {
+        this.server = server;
+        this.settings = server.getSettings();
+        this.channel = channel;
+        this.key = key;
+        this.remote = remote;
+    }
+
+    InetAddress getRemote() {
+        return remote;
+    }
+
+    boolean isIdleSince(long time) {
+        return state != State.BUSY && lastActive < time;
+    }
+
+    void greet() throws IOException {
+        reply("220 " + settings.getHostname() + " ESMTP ready");
+        flush();
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(in);
+        if (read < 0) {
+            close(null);
+            return;
+        }
+        lastActive = System.currentTimeMillis();
+        process();
+        flush();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Handle all complete commands and data in the read buffer
+     */
+    private void process() throws IOException {
+        in.flip();
+        try {
+            while (in.hasRemaining() && state != State.BUSY && state != State.CLOSED) {
+                if (state == State.DATA) {
+                    receiveData();
+                } else if (state == State.BDAT) {
+                    receiveChunk();
+                } else {
+                    String line = readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    if (state == State.COMMAND) {
+                        command(line);
+                    } else {
+                        authResponse(line);
+                    }
+                }
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * The next line of the read buffer without its CRLF, null if it is not complete yet
+     */
+    private String readLine() {
+        int start = in.position();
+        for (int i = start; i < in.limit() - 1; i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                byte[] line = new byte[i - start];
+                in.get(line);
+                in.position(i + 2);
+                return new String(line, StandardCharsets.UTF_8);
+            }
+        }
+        if (start == 0 && in.limit() == in.capacity()) {
+            // A full buffer without a line end is not SMTP
+            close("500 5.5.2 Line too long");
+        }
+        return null;
+    }
+
+    private void command(String line) throws IOException {
+        int space = line.indexOf(' ');
+        String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+        String argument = space < 0 ? "" : line.substring(space + 1).trim();
+        switch (verb) {
+            case "EHLO" -> ehlo(argument);
+            case "HELO" -> {
+                resetTransaction();
+                greeted = true;
+                reply("250 " + settings.getHostname());
+            }
+            case "AUTH" -> auth(argument);
+            case "MAIL" -> mail(argument);
+            case "RCPT" -> rcpt(argument);
+            case "DATA" -> data();
+            case "BDAT" -> bdat(argument);
+            case "RSET" -> {
+                resetTransaction();
+                reply("250 2.0.0 Ok");
+            }
+            case "NOOP" -> reply("250 2.0.0 Ok");
+            case "VRFY" -> reply("252 2.5.0 Cannot verify addresses, send the message");
+            case "HELP" -> reply("214 2.0.0 See RFC 5321");
+            case "QUIT" -> close("221 2.0.0 Bye");
+            default -> reply("500 5.5.2 Command not recognized");
+        }
+    }
+
+    private void ehlo(String domain) {
+        if (domain.isEmpty()) {
+            reply("501 5.5.4 EHLO requires a domain");
+            return;
+        }
+        resetTransaction();
+        greeted = true;
+        reply("250-" + settings.getHostname() + " greets " + domain);
+        reply("250-PIPELINING");
+        reply("250-SIZE " + settings.getMaxMessageSize());
+        reply("250-8BITMIME");
+        reply("250-CHUNKING");
+        reply("250-ENHANCEDSTATUSCODES");
+        reply("250 AUTH PLAIN LOGIN");
+    }
+
+    private void auth(String argument) {
+        if (!greeted) {
+            reply("503 5.5.1 Send EHLO first");
+            return;
+        }
+        if (sender != null) {
+            reply("503 5.5.1 Already authenticated");
+            return;
+        }
+        if (from != null) {
+            reply("503 5.5.1 Not during a mail transaction");
+            return;
+        }
+        int space = argument.indexOf(' ');
+        String mechanism = (space < 0 ? argument : argument.substring(0, space)).toUpperCase(Locale.ROOT);
+        String initial = space < 0 ? null : argument.substring(space + 1).trim();
+        switch (mechanism) {
+            case "PLAIN" -> {
+                if (initial == null) {
+                    state = State.AUTH_PLAIN;
+                    reply("334 ");
+                } else {
+                    authPlain(initial);
+                }
+            }
+            case "LOGIN" -> {
+                if (initial == null) {
+                    state = State.AUTH_LOGIN_USERNAME;
+                    reply("334 VXNlcm5hbWU6");
+                } else {
+                    authLoginUsername(initial);
+                }
+            }
+            default -> reply("504 5.5.4 Unrecognized authentication mechanism");
+        }
+    }
+
+    private void authResponse(String line) {
+        State step = state;
+        state = State.COMMAND;
+        if (line.equals("*")) {
+            reply("501 5.0.0 Authentication cancelled");
+            return;
+        }
+        switch (step) {
+            case AUTH_PLAIN -> authPlain(line);
+            case AUTH_LOGIN_USERNAME -> authLoginUsername(line);
+            case AUTH_LOGIN_PASSWORD -> authenticate(authUsername, decode(line));
+            default -> throw new IllegalStateException(step.name());
+        }
+    }
+
+    private void authPlain(String response) {
+        String decoded = decode(response);
+        if (decoded == null) {
+            return;
+        }
+        // authorization identity NUL authentication identity NUL password
+        String[] parts = decoded.split("\0", -1);
+        if (parts.length != 3) {
+            reply("501 5.5.2 Malformed PLAIN response");
+            return;
+        }
+        if (!parts[0].isEmpty() && !parts[0].equalsIgnoreCase(parts[1])) {
+            // Acting for another user is not supported
+            reply("535 5.7.8 Authorization identity must be the authenticated user");
+            countAuthFailure();
+            return;
+        }
+        authenticate(parts[1], parts[2]);
+    }
+
+    private void authLoginUsername(String response) {
+        authUsername = decode(response);
+        if (authUsername != null) {
+            state = State.AUTH_LOGIN_PASSWORD;
+            reply("334 UGFzc3dvcmQ6");
+        }
+    }
+
+    private String decode(String base64) {
+        try {
+            return new String(Base64.getDecoder().decode(base64.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            state = State.COMMAND;
+            reply("501 5.5.2 Invalid base64");
+            return null;
+        }
+    }
+
+    /**
+     * Check the credentials on a worker, since password hashes are slow by design
+     */
+    private void authenticate(String username, String password) {
+        if (password == null) {
+            return;
+        }
+        String[] result = new String[1];
+        offload(() -> {
+            SmtpSender authenticated = server.getHandler().authenticate(username, password);
+            if (authenticated != null) {
+                sender = authenticated;
+                result[0] = "235 2.7.0 Authentication successful";
+            } else {
+                result[0] = "535 5.7.8 Authentication credentials invalid";
+            }
+        }, result, () -> {
+            if (sender == null) {
+                countAuthFailure();
+            }
+        }, () -> { });
+    }
+
+    /**
+     * Close the connection, once the pending replies are written, after too many failed logins
+     */
+    private void countAuthFailure() {
+        if (++authFailures >= MAX_AUTH_FAILURES) {
+            log.warn("Closing SMTP connection from {} after {} failed logins", remote, authFailures);
+            state = State.CLOSED;
+        }
+    }
+
+    private void mail(String argument) {
+        if (sender == null) {
+            reply("530 5.7.0 Authentication required");
+            return;
+        }
+        if (from != null) {
+            reply("503 5.5.1 Nested MAIL command");
+            return;
+        }
+        if (!argument.toUpperCase(Locale.ROOT).startsWith("FROM:")) {
+            reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+            return;
+        }
+        String rest = argument.substring(5).trim();
+        String address = path(rest);
+        if (address == null) {
+            reply("501 5.1.7 Bad sender address syntax");
+            return;
+        }
+        for (String parameter : rest.substring(rest.indexOf('>') + 1).trim().split("\\s+")) {
+            if (parameter.toUpperCase(Locale.ROOT).startsWith("SIZE=")) {
+                long declared;
+                try {
+                    declared = Long.parseLong(parameter.substring(5));
+                } catch (NumberFormatException e) {
+                    reply("501 5.5.4 Invalid SIZE");
+                    return;
+                }
+                if (declared > settings.getMaxMessageSize()) {
+                    reply("552 5.3.4 Message size exceeds " + settings.getMaxMessageSize() + " bytes");
+                    return;
+                }
+            }
+        }
+        if (!address.equalsIgnoreCase(sender.getAddress())) {
+            reply("553 5.7.1 Sender address not owned by " + sender.getAddress());
+            return;
+        }
+        from = address;
+        reply("250 2.1.0 Ok");
+    }
+
+    private void rcpt(String argument) {
+        if (from == null) {
+            reply("503 5.5.1 Need MAIL command");
+            return;
+        }
+        if (!argument.toUpperCase(Locale.ROOT).startsWith("TO:")) {
+            reply("501 5.5.4 Syntax: RCPT TO:<address>");
+            return;
+        }
+        String address = path(argument.substring(3).trim());
+        if (address == null || address.indexOf('@') <= 0) {
+            reply("501 5.1.3 Bad recipient address syntax");
+            return;
+        }
+        if (recipients.size() >= settings.getMaxRecipients()) {
+            reply("452 4.5.3 Too many recipients");
+            return;
+        }
+        // Unknown users are reported by delivery, as for the compose form
+        recipients.add(address.toLowerCase(Locale.ROOT));
+        reply("250 2.1.5 Ok");
+    }
+
+    /**
+     * The address of {@code <address> [parameters]}, null if malformed
+     */
+    private static String path(String text) {
+        if (!text.startsWith("<")) {
+            return null;
+        }
+        int end = text.indexOf('>');
+        if (end < 0) {
+            return null;
+        }
+        String address = text.substring(1, end).trim();
+        // A source route, @a,@b:user@c, is ignored as RFC 5321 asks
+        int colon = address.indexOf(':');
+        if (address.startsWith("@") && colon > 0) {
+            address = address.substring(colon + 1);
+        }
+        return address.isEmpty() ? null : address;
+    }
+
+    private void data() throws IOException {
+        if (from == null) {
+            reply("503 5.5.1 Need MAIL command");
+            return;
+        }
+        if (recipients.isEmpty()) {
+            reply("554 5.5.1 No valid recipients");
+            return;
+        }
+        if (chunking) {
+            reply("503 5.5.1 DATA not allowed after BDAT");
+            return;
+        }
+        if (!openSpool()) {
+            return;
+        }
+        dataState = LINE_START;
+        state = State.DATA;
+        reply("354 End data with <CR><LF>.<CR><LF>");
+    }
+
+    private void bdat(String argument) throws IOException {
+        String[] parts = argument.split("\\s+");
+        long size;
+        try {
+            size = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0 || parts.length > 2 || (parts.length == 2 && !parts[1].equalsIgnoreCase("LAST"))) {
+            // Where the chunk ends is unknown, so nothing after it can be read
+            close("501 5.5.4 Syntax: BDAT size [LAST]");
+            return;
+        }
+        chunkRemaining = size;
+        lastChunk = parts.length == 2;
+        // The chunk is read in any case, and the error reported once it is
+        if (from == null) {
+            messageError = new SmtpException(503, "5.5.1", "Need MAIL command");
+        } else if (recipients.isEmpty()) {
+            messageError = new SmtpException(554, "5.5.1", "No valid recipients");
+        } else if (!chunking) {
+            chunking = true;
+            openSpool();
+        }
+        state = State.BDAT;
+        if (size == 0) {
+            chunkReceived();
+        }
+    }
+
+    private boolean openSpool() throws IOException {
+        try {
+            spoolFile = Files.createTempFile(settings.getSpoolDirectory(), "smtp-", ".eml");
+            spool = FileChannel.open(spoolFile, StandardOpenOption.WRITE);
+            spoolBuffer.clear();
+            messageSize = 0;
+            return true;
+        } catch (IOException e) {
+            log.error("Could not create SMTP spool file", e);
+            deleteSpool();
+            if (state == State.COMMAND && !chunking) {
+                reply("451 4.3.0 Cannot accept messages now");
+            } else {
+                messageError = new SmtpException(451, "4.3.0", "Cannot accept messages now");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Copy DATA from the read buffer to the spool, undoing dot-stuffing, up to the
+     * terminating line with a single dot
+     */
+    private void receiveData() throws IOException {
+        int position = in.position();
+        int limit = in.limit();
+        int at = dataState;
+        while (position < limit && at != END) {
+            if (at == TEXT) {
+                // Most of a message is text within lines, copied as a run
+                int run = position;
+                while (run < limit && in.get(run) != '\r') {
+                    run++;
+                }
+                spoolBytes(position, run);
+                position = run;
+                if (run < limit) {
+                    spoolByte((byte) '\r');
+                    position++;
+                    at = CR;
+                }
+                continue;
+            }
+            byte b = in.get(position++);
+            switch (at) {
+                case CR -> {
+                    spoolByte(b);
+                    at = b == '\n' ? LINE_START : b == '\r' ? CR : TEXT;
+                }
+                case LINE_START -> {
+                    if (b == '.') {
+                        at = DOT;
+                    } else {
+                        spoolByte(b);
+                        at = b == '\r' ? CR : TEXT;
+                    }
+                }
+                case DOT -> {
+                    if (b == '\r') {
+                        at = DOT_CR;
+                    } else {
+                        // A stuffed dot; the byte after it is data
+                        spoolByte(b);
+                        at = TEXT;
+                    }
+                }
+                case DOT_CR -> {
+                    if (b == '\n') {
+                        at = END;
+                    } else {
+                        // A line of a single dot and a bare CR, kept as data
+                        spoolByte((byte) '\r');
+                        spoolByte(b);
+                        at = b == '\r' ? CR : TEXT;
+                    }
+                }
+                default -> throw new IllegalStateException();
+            }
+        }
+        in.position(position);
+        dataState = at;
+        if (at == END) {
+            messageReceived();
+        }
+    }
+
+    /**
+     * Copy the current BDAT chunk from the read buffer to the spool
+     */
+    private void receiveChunk() throws IOException {
+        int length = (int) Math.min(chunkRemaining, in.remaining());
+        if (spool != null && messageError == null) {
+            if (messageSize + length > settings.getMaxMessageSize()) {
+                messageError = new SmtpException(552, "5.3.4", "Message size exceeds " + settings.getMaxMessageSize() + " bytes");
+            } else {
+                writeSpool(in.duplicate().limit(in.position() + length));
+                messageSize += length;
+            }
+        }
+        in.position(in.position() + length);
+        chunkRemaining -= length;
+        if (chunkRemaining == 0) {
+            chunkReceived();
+        }
+    }
+
+    private void chunkReceived() throws IOException {
+        if (messageError != null) {
+            reply(messageError.reply());
+            resetTransaction();
+            state = State.COMMAND;
+        } else if (lastChunk) {
+            messageReceived();
+        } else {
+            state = State.COMMAND;
+            reply("250 2.0.0 Chunk received, " + messageSize + " octets so far");
+        }
+    }
+
+    /**
+     * Spool the read buffer's bytes from {@code from} to {@code to}
+     */
+    private void spoolBytes(int from, int to) throws IOException {
+        if (from == to || messageError != null || spool == null) {
+            return;
+        }
+        messageSize += to - from;
+        if (messageSize > settings.getMaxMessageSize()) {
+            messageError = new SmtpException(552, "5.3.4", "Message size exceeds " + settings.getMaxMessageSize() + " bytes");
+            return;
+        }
+        writeSpool(in.duplicate().limit(to).position(from));
+    }
+
+    private void spoolByte(byte b) throws IOException {
+        if (messageError != null || spool == null) {
+            return;
+        }
+        if (++messageSize > settings.getMaxMessageSize()) {
+            messageError = new SmtpException(552, "5.3.4", "Message size exceeds " + settings.getMaxMessageSize() + " bytes");
+            return;
+        }
+        if (!spoolBuffer.hasRemaining()) {
+            spoolBuffer.flip();
+            writeFully(spoolBuffer);
+            spoolBuffer.clear();
+        }
+        spoolBuffer.put(b);
+    }
+
+    private void writeSpool(ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > spoolBuffer.remaining()) {
+            spoolBuffer.flip();
+            writeFully(spoolBuffer);
+            spoolBuffer.clear();
+        }
+        if (bytes.remaining() > spoolBuffer.capacity()) {
+            writeFully(bytes);
+        } else {
+            spoolBuffer.put(bytes);
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        try {
+            while (bytes.hasRemaining()) {
+                spool.write(bytes);
+            }
+        } catch (IOException e) {
+            log.error("Could not write SMTP spool file {}", spoolFile, e);
+            messageError = new SmtpException(451, "4.3.0", "Cannot accept messages now");
+        }
+    }
+
+    /**
+     * The whole message is in the spool; hand it to the handler on a worker
+     */
+    private void messageReceived() throws IOException {
+        if (messageError == null) {
+            spoolBuffer.flip();
+            writeFully(spoolBuffer);
+        }
+        closeSpool();
+        if (messageError != null) {
+            reply(messageError.reply());
+            resetTransaction();
+            state = State.COMMAND;
+            return;
+        }
+        Path message = spoolFile;
+        long size = messageSize;
+        SmtpEnvelope envelope = new SmtpEnvelope(from, new ArrayList<>(recipients));
+        SmtpSender submitter = sender;
+        // The worker owns the spool file from here, unless it cannot take the message
+        spoolFile = null;
+        String[] result = new String[1];
+        offload(() -> {
+            try {
+                String id = server.getHandler().submit(submitter, envelope, message, size);
+                server.messageSubmitted();
+                result[0] = "250 2.0.0 Ok: queued as " + id;
+            } finally {
+                delete(message);
+            }
+        }, result, this::resetTransaction, () -> {
+            delete(message);
+            resetTransaction();
+        });
+    }
+
+    /**
+     * Run blocking work on a worker and reply with its result when it is done. The
+     * work puts its reply in {@code result[0]}, or throws an {@link SmtpException}.
+     *
+     * @param then     run on the selector thread once the work is done
+     * @param rejected run instead of the work and {@code then} if the workers are saturated
+     */
+    private void offload(Runnable work, String[] result, Runnable then, Runnable rejected) {
+        state = State.BUSY;
+        key.interestOps(0);
+        boolean started = server.execute(() -> {
+            try {
+                work.run();
+            } catch (SmtpException e) {
+                result[0] = e.reply();
+            } catch (RuntimeException e) {
+                log.error("SMTP command from {} failed", remote, e);
+                result[0] = "451 4.3.0 Internal error, try again later";
+            }
+        }, () -> resume(result[0], then));
+        if (!started) {
+            // Still within process(), which carries on with the next command
+            state = State.COMMAND;
+            reply("451 4.3.2 Server busy, try again later");
+            rejected.run();
+        }
+    }
+
+    /**
+     * Continue after blocking work, on the selector thread
+     */
+    private void resume(String result, Runnable then) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.COMMAND;
+        reply(result);
+        then.run();
+        lastActive = System.currentTimeMillis();
+        try {
+            if (state != State.CLOSED) {
+                // Commands pipelined behind the one that blocked
+                process();
+            }
+            flush();
+        } catch (IOException e) {
+            close(null);
+        }
+    }
+
+    private void resetTransaction() {
+        from = null;
+        recipients.clear();
+        closeSpool();
+        deleteSpool();
+        messageError = null;
+        messageSize = 0;
+        chunking = false;
+        lastChunk = false;
+    }
+
+    private void closeSpool() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                log.warn("Could not close SMTP spool file {}", spoolFile, e);
+            }
+            spool = null;
+        }
+    }
+
+    private void deleteSpool() {
+        if (spoolFile != null) {
+            delete(spoolFile);
+            spoolFile = null;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete SMTP spool file {}", file, e);
+        }
+    }
+
+    private void reply(String line) {
+        replies.append(line).append("\r\n");
+    }
+
+    /**
+     * Write the pending replies; what the socket does not take now is written when it
+     * becomes writable, and nothing more is read until then
+     */
+    private void flush() throws IOException {
+        if (state == State.CLOSED && out == null && replies.length() == 0) {
+            return;
+        }
+        if (replies.length() > 0) {
+            byte[] bytes = replies.toString().getBytes(StandardCharsets.UTF_8);
+            replies.setLength(0);
+            if (out == null || !out.hasRemaining()) {
+                out = ByteBuffer.wrap(bytes);
+            } else {
+                ByteBuffer joined = ByteBuffer.allocate(out.remaining() + bytes.length);
+                joined.put(out).put(bytes).flip();
+                out = joined;
+            }
+        }
+        if (out != null) {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out = null;
+        }
+        if (state == State.CLOSED) {
+            closeChannel();
+        } else {
+            key.interestOps(state == State.BUSY ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Close the connection, after the given reply if not null
+     */
+    void close(String finalReply) {
+        state = State.CLOSED;
+        if (finalReply != null) {
+            reply(finalReply);
+            try {
+                flush();
+                return;
+            } catch (IOException e) {
+                log.debug("Could not send final SMTP reply to {}: {}", remote, e.getMessage());
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        closeSpool();
+        deleteSpool();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Could not close SMTP connection from {}: {}", remote, e.getMessage());
+        }
+        server.closed(this);
+    }
+}
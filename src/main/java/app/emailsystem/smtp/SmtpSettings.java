@@ -0,0 +1,63 @@
+package app.emailsystem.smtp;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Settings of an {@link SmtpServer}, see {@code smtp.*} in application.properties
+ */
+@Getter
+@Builder
+public class SmtpSettings {
+
+    @Builder.Default
+    private final String hostname = "localhost";
+
+    @Builder.Default
+    private final String bindAddress = "127.0.0.1";
+
+    /**
+     * 0 for any free port
+     */
+    @Builder.Default
+    private final int port = 2525;
+
+    /**
+     * Networks clients may connect from, as CIDR blocks such as {@code 10.0.0.0/8}
+     */
+    @Builder.Default
+    private final List<String> allowedNetworks = List.of("127.0.0.0/8", "::1/128");
+
+    @Builder.Default
+    private final long maxMessageSize = 50L * 1024 * 1024;
+
+    @Builder.Default
+    private final int maxRecipients = 500;
+
+    @Builder.Default
+    private final int maxConnections = 256;
+
+    /**
+     * Threads that check credentials and hand received messages to the {@link SmtpHandler}
+     */
+    @Builder.Default
+    private final int workers = 8;
+
+    /**
+     * Messages waiting for a worker beyond which clients are asked to try again later
+     */
+    @Builder.Default
+    private final int queueSize = 256;
+
+    @Builder.Default
+    private final Duration idleTimeout = Duration.ofMinutes(5);
+
+    /**
+     * Where messages are written while they are received
+     */
+    private final Path spoolDirectory;
+}
@@ -0,0 +1,233 @@
+package app.emailsystem.smtp;
+
+import app.emailsystem.dto.EmailDTO;
+import app.emailsystem.entity.User;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.exception.RateLimitExceededException;
+import app.emailsystem.ratelimit.SendRateLimiter;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.security.CustomUserDetails;
+import app.emailsystem.service.AttachmentService;
+import app.emailsystem.service.EmailService;
+import app.emailsystem.service.SendResult;
+import app.emailsystem.storage.StagedAttachment;
+import app.emailsystem.text.HtmlText;
+import jakarta.mail.Address;
+import jakarta.mail.BodyPart;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Sends the messages submitted to the {@link SmtpServer} the way the compose form does:
+ * the same rate limits, attachment staging and {@link EmailService#sendEmail}, so
+ * delivery, filters and everything after it do not know how a message was written.
+ *
+ * The envelope decides who gets a message; its headers only decide how: recipients
+ * named in To or Cc are sent to as such, the others as Bcc. The body is the message's
+ * first plain text part, or its first HTML part as text; every other part with content
+ * is an attachment. The Message-ID, hashed, is the idempotency key, so a client that
+ * submits a message again after losing our reply does not send it twice.
+ */
+@Slf4j
+@Component
+public class SmtpSubmissionHandler implements SmtpHandler {
+
+    private static final int MAX_SUBJECT_LENGTH = 255;
+
+    private final UserRepository userRepository;
+    private final PasswordEncoder passwordEncoder;
+    private final EmailService emailService;
+    private final AttachmentService attachmentService;
+    private final SendRateLimiter sendRateLimiter;
+    private final Session session = Session.getInstance(new Properties());
+
+    @Autowired
+    public SmtpSubmissionHandler(UserRepository userRepository, PasswordEncoder passwordEncoder,
+                                 EmailService emailService, AttachmentService attachmentService,
+                                 SendRateLimiter sendRateLimiter) {
+        this.userRepository = userRepository;
+        this.passwordEncoder = passwordEncoder;
+        this.emailService = emailService;
+        this.attachmentService = attachmentService;
+        this.sendRateLimiter = sendRateLimiter;
+    }
+
+    @Override
+    public SmtpSender authenticate(String username, String password) {
+        return userRepository.findByEmail(username.trim().toLowerCase(Locale.ROOT))
+            .filter(User::isActive)
+            .filter(user -> passwordEncoder.matches(password, user.getPassword()))
+            .map(user -> new SmtpSender(user.getId(), user.getEmail()))
+            .orElse(null);
+    }
+
+    @Override
+    public String submit(SmtpSender sender, SmtpEnvelope envelope, Path message, long size) {
+        User user = userRepository.findById(sender.getUserId())
+            .filter(User::isActive)
+            .orElseThrow(() -> new SmtpException(535, "5.7.8", "Account no longer active"));
+        try {
+            sendRateLimiter.checkSubmission(new CustomUserDetails(user), envelope.getRecipients(), size);
+        } catch (RateLimitExceededException e) {
+            throw new SmtpException(451, "4.7.1", e.getMessage(), e);
+        } catch (EmailSystemException e) {
+            throw new SmtpException(552, "5.3.4", e.getMessage(), e);
+        }
+
+        List<StagedAttachment> staged = new ArrayList<>();
+        // Parts are read from the spool file as they are needed, not copied into memory
+        try (SharedFileInputStream in = new SharedFileInputStream(message.toFile())) {
+            MimeMessage mime = new MimeMessage(session, in);
+            EmailDTO emailDTO = toEmail(mime, envelope, staged);
+            SendResult result = emailService.sendEmail(sender.getUserId(), emailDTO, staged);
+            log.info("Email {} submitted over SMTP by user {}{}", result.getEmail().getId(), sender.getUserId(),
+                result.isDuplicate() ? " again" : "");
+            return result.getEmail().getId().toString();
+        } catch (DataIntegrityViolationException e) {
+            // The same message submitted twice at once, and the other one went out
+            throw new SmtpException(451, "4.3.0", "Message is being submitted on another connection", e);
+        } catch (EmailSystemException e) {
+            throw new SmtpException(554, "5.6.0", e.getMessage(), e);
+        } catch (MessagingException e) {
+            throw new SmtpException(554, "5.6.0", "Malformed message: " + e.getMessage(), e);
+        } catch (IOException e) {
+            log.error("Could not read SMTP message {}", message, e);
+            throw new SmtpException(451, "4.3.0", "Cannot read message, try again later", e);
+        } finally {
+            // Anything still staged was not attached to a saved email
+            attachmentService.discardStaged(staged);
+        }
+    }
+
+    private EmailDTO toEmail(MimeMessage mime, SmtpEnvelope envelope, List<StagedAttachment> staged)
+            throws MessagingException, IOException {
+        Set<String> to = headerAddresses(mime, "To");
+        Set<String> cc = headerAddresses(mime, "Cc");
+        List<String> envelopeTo = new ArrayList<>();
+        List<String> envelopeCc = new ArrayList<>();
+        List<String> envelopeBcc = new ArrayList<>();
+        for (String recipient : envelope.getRecipients()) {
+            if (to.contains(recipient)) {
+                envelopeTo.add(recipient);
+            } else if (cc.contains(recipient)) {
+                envelopeCc.add(recipient);
+            } else {
+                envelopeBcc.add(recipient);
+            }
+        }
+
+        Body body = new Body();
+        readPart(mime, body, staged);
+        String content = body.text != null ? body.text : body.html != null ? HtmlText.toText(body.html) : "";
+
+        String subject = mime.getSubject();
+        if (subject == null || subject.isBlank()) {
+            subject = "(no subject)";
+        } else if (subject.length() > MAX_SUBJECT_LENGTH) {
+            subject = subject.substring(0, MAX_SUBJECT_LENGTH);
+        }
+
+        String messageId = mime.getMessageID();
+        return EmailDTO.builder()
+            .recipients(String.join(",", envelopeTo))
+            .cc(String.join(",", envelopeCc))
+            .bcc(String.join(",", envelopeBcc))
+            .subject(subject)
+            .content(content)
+            .idempotencyKey(messageId == null ? null : sha256(messageId.trim()))
+            .build();
+    }
+
+    private static Set<String> headerAddresses(MimeMessage mime, String header) throws MessagingException {
+        Set<String> addresses = new LinkedHashSet<>();
+        String value = mime.getHeader(header, ",");
+        if (value == null) {
+            return addresses;
+        }
+        try {
+            for (Address address : InternetAddress.parseHeader(value, false)) {
+                if (address instanceof InternetAddress internet && internet.getAddress() != null) {
+                    addresses.add(internet.getAddress().toLowerCase(Locale.ROOT));
+                }
+            }
+        } catch (AddressException e) {
+            // Unparsable headers do not stop the message; its recipients go as Bcc
+            log.debug("Ignoring malformed {} header: {}", header, e.getMessage());
+        }
+        return addresses;
+    }
+
+    /**
+     * Take the body from the part, or stage it as an attachment, walking into multiparts
+     */
+    private void readPart(Part part, Body body, List<StagedAttachment> staged) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                BodyPart child = multipart.getBodyPart(i);
+                readPart(child, body, staged);
+            }
+            return;
+        }
+        boolean attachment = Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+        if (!attachment && part.isMimeType("text/plain") && body.text == null) {
+            body.text = part.getContent().toString();
+            return;
+        }
+        if (!attachment && part.isMimeType("text/html") && body.html == null) {
+            body.html = part.getContent().toString();
+            return;
+        }
+        String filename = part.getFileName();
+        if (filename == null) {
+            filename = part.isMimeType("message/rfc822") ? "message.eml" : "part-" + (staged.size() + 1);
+        }
+        String contentType = part.getContentType() == null ? null
+            : part.getContentType().split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        try (InputStream content = part.getInputStream()) {
+            staged.add(attachmentService.stageAttachment(content, filename, contentType));
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The message's text as it is found
+     */
+    private static final class Body {
+        private String text;
+        private String html;
+    }
+}
@@ -0,0 +1,93 @@
+package app.emailsystem.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A ZIP archive of attachments that is written straight to an output stream.
+ *
+ * Entries are copied through a single buffer, so memory use does not depend on
+ * the number or size of the files. Content whose format is compressed already
+ * goes into STORED entries; their CRC-32 comes from the blob row where it was
+ * recorded at upload, and is only computed with an extra read for older blobs.
+ */
+@Getter
+@RequiredArgsConstructor
+public class AttachmentArchive {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String filename;
+    private final List<Entry> entries;
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Entry {
+        private final String name;
+        private final Resource content;
+        private final long size;
+        /**
+         * CRC-32 of the content, null if unknown
+         */
+        private final Long crc32;
+        private final boolean compress;
+        private final LocalDateTime lastModified;
+    }
+
+    /**
+     * Write the archive. The stream is finished but not closed.
+     *
+     * @param out the target stream
+     * @throws IOException if content cannot be read or the stream cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ZipOutputStream zip = new ZipOutputStream(out);
+
+        for (Entry entry : entries) {
+            ZipEntry zipEntry = new ZipEntry(entry.getName());
+            if (entry.getLastModified() != null) {
+                zipEntry.setTimeLocal(entry.getLastModified());
+            }
+            if (!entry.isCompress()) {
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(entry.getSize());
+                zipEntry.setCompressedSize(entry.getSize());
+                zipEntry.setCrc(entry.getCrc32() != null ? entry.getCrc32() : checksum(entry.getContent(), buffer));
+            }
+
+            zip.putNextEntry(zipEntry);
+            try (InputStream in = entry.getContent().getInputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    zip.write(buffer, 0, read);
+                }
+            }
+            zip.closeEntry();
+        }
+
+        zip.finish();
+        zip.flush();
+    }
+
+    private static long checksum(Resource content, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = content.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,67 @@
+package app.emailsystem.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of attachment content at rest. The codec is part of the storage key,
+ * so a stored file always tells how it has to be decoded.
+ */
+public enum AttachmentCodec {
+
+    IDENTITY(null, ""),
+
+    GZIP("gzip", ".gz") {
+        @Override
+        public InputStream decode(InputStream encoded) throws IOException {
+            return new GZIPInputStream(encoded, BUFFER_SIZE);
+        }
+
+        @Override
+        public OutputStream encode(OutputStream target) throws IOException {
+            return new GZIPOutputStream(target, BUFFER_SIZE);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String contentEncoding;
+    private final String keySuffix;
+
+    AttachmentCodec(String contentEncoding, String keySuffix) {
+        this.contentEncoding = contentEncoding;
+        this.keySuffix = keySuffix;
+    }
+
+    /**
+     * The HTTP Content-Encoding token matching this codec, or null if the content is stored raw
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * The storage key of content with the given hash encoded with this codec
+     */
+    public String storageKey(String sha256) {
+        return sha256 + keySuffix;
+    }
+
+    public InputStream decode(InputStream encoded) throws IOException {
+        return encoded;
+    }
+
+    public OutputStream encode(OutputStream target) throws IOException {
+        return target;
+    }
+
+    /**
+     * Null-safe lookup for rows written before codecs were recorded
+     */
+    public static AttachmentCodec orIdentity(AttachmentCodec codec) {
+        return codec != null ? codec : IDENTITY;
+    }
+}
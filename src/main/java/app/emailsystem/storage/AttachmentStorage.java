@@ -0,0 +1,128 @@
+package app.emailsystem.storage;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Backend that holds attachment bytes outside the database.
+ *
+ * Content is written in two steps: {@link #stage(InputStream, String)} streams the bytes
+ * into a temporary file and computes the SHA-256 digest, {@link #promote(StagedBlob)}
+ * makes the staged file visible under its content-addressed key. The key of stored
+ * content is {@link AttachmentCodec#storageKey(String)} of the codec it was staged with.
+ */
+public interface AttachmentStorage {
+
+    /**
+     * Stream content into a temporary file, computing size and SHA-256 of the original
+     * bytes on the way. Content that is worth it is compressed while it is written.
+     *
+     * @param content the content to store, read until EOF but not closed
+     * @param contentType the declared content type, may be null
+     * @return the staged blob
+     * @throws IOException if the content cannot be written
+     */
+    StagedBlob stage(InputStream content, String contentType) throws IOException;
+
+    default StagedBlob stage(InputStream content) throws IOException {
+        return stage(content, null);
+    }
+
+    /**
+     * Move a staged blob to its content-addressed location.
+     * If the key already exists the staged copy is discarded.
+     *
+     * @param staged the staged blob
+     * @return the storage key of the content, including the codec suffix
+     * @throws IOException if the blob cannot be moved
+     */
+    String promote(StagedBlob staged) throws IOException;
+
+    /**
+     * Delete a staged blob that will not be promoted
+     *
+     * @param staged the staged blob, may be null
+     */
+    void discard(StagedBlob staged);
+
+    /**
+     * Write one chunk of a resumable upload at its offset in the upload file, creating
+     * the file on the first write. Chunks may arrive in any order and be written again.
+     *
+     * @param uploadId the upload session
+     * @param offset position of the chunk in the file
+     * @param content the chunk, read until {@code length} bytes but not closed
+     * @param length the exact length of the chunk
+     * @param digest updated with the chunk bytes, may be null
+     * @throws IOException if the chunk is shorter or longer than {@code length} or cannot be written
+     */
+    void writeUploadChunk(UUID uploadId, long offset, InputStream content, long length, MessageDigest digest) throws IOException;
+
+    /**
+     * Stage a completely received upload like any other content
+     *
+     * @param uploadId the upload session
+     * @param contentType the declared content type, may be null
+     * @return the staged blob; the upload file itself is left in place
+     * @throws IOException if the upload file cannot be read
+     */
+    StagedBlob stageUpload(UUID uploadId, String contentType) throws IOException;
+
+    void deleteUpload(UUID uploadId) throws IOException;
+
+    /**
+     * Store a small artifact derived from stored content, such as a thumbnail.
+     * The artifact becomes visible atomically and replaces an existing one.
+     *
+     * @param key the storage key of the artifact
+     * @param content the artifact bytes
+     * @throws IOException if the artifact cannot be written
+     */
+    void store(String key, byte[] content) throws IOException;
+
+    /**
+     * Load stored content as a resource for streaming
+     *
+     * @param key the storage key
+     * @return the resource
+     */
+    Resource load(String key);
+
+    /**
+     * Resolve the file backing a storage key
+     *
+     * @param key the storage key
+     * @return the path of the stored content
+     */
+    Path resolve(String key);
+
+    boolean exists(String key);
+
+    void delete(String key) throws IOException;
+
+    /**
+     * List stored keys in ascending order, including derived artifacts
+     *
+     * @param after only keys greater than this one are listed, null to start at the beginning
+     * @param limit the maximum number of keys
+     * @return the keys
+     * @throws IOException if the storage cannot be listed
+     */
+    List<String> listKeys(String after, int limit) throws IOException;
+
+    /**
+     * Delete staged files left behind by uploads that never completed, e.g. after a crash
+     *
+     * @param modifiedBefore only files last written before this time are deleted
+     * @return the number of bytes freed
+     * @throws IOException if the staging area cannot be listed
+     */
+    long purgeStagingFiles(Instant modifiedBefore) throws IOException;
+}
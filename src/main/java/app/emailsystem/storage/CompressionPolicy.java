@@ -0,0 +1,116 @@
+package app.emailsystem.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides whether attachment content is worth compressing at rest.
+ *
+ * Types that are known to be compressed already (images, audio, video, archives,
+ * OOXML documents) are stored raw. For everything else the Shannon entropy of
+ * the first bytes of the content is measured: text, CSV, JSON, logs and XML sit
+ * well below 6 bits per byte, while compressed or encrypted data is close to 8.
+ */
+@Component
+public class CompressionPolicy {
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed",
+        "application/x-bzip2",
+        "application/x-xz",
+        "application/zstd",
+        "application/pdf",
+        "application/java-archive",
+        "application/epub+zip"
+    );
+
+    private static final String[] COMPRESSED_PREFIXES = {
+        "image/", "audio/", "video/",
+        "application/vnd.openxmlformats-officedocument.",
+        "application/vnd.oasis.opendocument."
+    };
+
+    private final boolean enabled;
+    private final long minSize;
+    private final double maxEntropyBitsPerByte;
+
+    public CompressionPolicy(@Value("${attachment.storage.compression.enabled:true}") boolean enabled,
+                             @Value("${attachment.storage.compression.min-size:1024}") long minSize,
+                             @Value("${attachment.storage.compression.max-entropy:7.0}") double maxEntropyBitsPerByte) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.maxEntropyBitsPerByte = maxEntropyBitsPerByte;
+    }
+
+    /**
+     * Choose the codec for content from its declared type and a sample of its first bytes
+     *
+     * @param contentType the declared content type, may be null
+     * @param sample buffer holding the first bytes of the content
+     * @param sampleLength number of valid bytes in the sample
+     * @param complete whether the sample holds the whole content
+     * @return the codec to store the content with
+     */
+    public AttachmentCodec choose(String contentType, byte[] sample, int sampleLength, boolean complete) {
+        if (!enabled || (complete && sampleLength < minSize) || isCompressedType(contentType)) {
+            return AttachmentCodec.IDENTITY;
+        }
+        return entropy(sample, sampleLength) <= maxEntropyBitsPerByte
+            ? AttachmentCodec.GZIP
+            : AttachmentCodec.IDENTITY;
+    }
+
+    /**
+     * Whether content of the given type is compressed by its format already
+     *
+     * @param contentType the content type, may be null or carry parameters
+     */
+    public boolean isCompressedType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        if (COMPRESSED_TYPES.contains(type)) {
+            return true;
+        }
+        for (String prefix : COMPRESSED_PREFIXES) {
+            // Flat (uncompressed) OpenDocument XML is the exception among office formats
+            if (type.startsWith(prefix) && !type.endsWith("-flat-xml") && !type.equals("image/svg+xml")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shannon entropy of the sample in bits per byte
+     */
+    static double entropy(byte[] sample, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+}
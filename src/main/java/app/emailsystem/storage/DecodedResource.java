@@ -0,0 +1,45 @@
+package app.emailsystem.storage;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Exposes encoded content at rest as its original bytes. The content length is
+ * the decoded size, so HTTP range requests address the original content and are
+ * served by skipping through the decoder.
+ */
+public class DecodedResource extends AbstractResource {
+
+    private final Resource encoded;
+    private final AttachmentCodec codec;
+    private final long contentLength;
+
+    public DecodedResource(Resource encoded, AttachmentCodec codec, long contentLength) {
+        this.encoded = encoded;
+        this.codec = codec;
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return codec.decode(encoded.getInputStream());
+    }
+
+    @Override
+    public boolean exists() {
+        return encoded.exists();
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getDescription() {
+        return codec.name().toLowerCase() + " decoded " + encoded.getDescription();
+    }
+}
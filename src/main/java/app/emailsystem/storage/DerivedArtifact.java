@@ -0,0 +1,28 @@
+package app.emailsystem.storage;
+
+/**
+ * Files derived from attachment content by the post-processing pipeline.
+ * They are stored next to the content under its hash with a fixed suffix.
+ */
+public enum DerivedArtifact {
+
+    THUMBNAIL(".thumb.jpg", "image/jpeg"),
+
+    TEXT(".txt", "text/plain;charset=UTF-8");
+
+    private final String keySuffix;
+    private final String contentType;
+
+    DerivedArtifact(String keySuffix, String contentType) {
+        this.keySuffix = keySuffix;
+        this.contentType = contentType;
+    }
+
+    public String storageKey(String sha256) {
+        return sha256 + keySuffix;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,292 @@
+package app.emailsystem.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Attachment storage on the local filesystem.
+ *
+ * Blobs are keyed by the hex SHA-256 of their content and laid out as
+ * {@code <root>/ab/cd/abcd...} so that no directory grows too large.
+ * Staged uploads live in {@code <root>/tmp} on the same filesystem, which
+ * keeps {@link #promote(StagedBlob)} a rename.
+ *
+ * Staging buffers only the first {@value #SAMPLE_SIZE} bytes, which the
+ * {@link CompressionPolicy} inspects to choose the codec before the rest of
+ * the content is streamed through it in the same pass.
+ */
+@Slf4j
+@Component
+public class FileSystemAttachmentStorage implements AttachmentStorage {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{64}(\\.[a-z0-9]+)*");
+    private static final Pattern SHARD_PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+    private final Path root;
+    private final Path tmpDir;
+    private final Path uploadDir;
+    private final CompressionPolicy compressionPolicy;
+
+    public FileSystemAttachmentStorage(@Value("${attachment.storage.root:data/attachments}") String root,
+                                       CompressionPolicy compressionPolicy) throws IOException {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.compressionPolicy = compressionPolicy;
+        this.tmpDir = this.root.resolve("tmp");
+        this.uploadDir = this.root.resolve("uploads");
+        Files.createDirectories(tmpDir);
+        Files.createDirectories(uploadDir);
+        log.info("Attachment storage initialised at {}", this.root);
+    }
+
+    @Override
+    public StagedBlob stage(InputStream content, String contentType) throws IOException {
+        MessageDigest digest = newDigest();
+        CRC32 crc = new CRC32();
+        Path tempFile = Files.createTempFile(tmpDir, "upload-", ".part");
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampled = content.readNBytes(sample, 0, SAMPLE_SIZE);
+        boolean complete = sampled < SAMPLE_SIZE;
+        AttachmentCodec codec = compressionPolicy.choose(contentType, sample, sampled, complete);
+
+        digest.update(sample, 0, sampled);
+        crc.update(sample, 0, sampled);
+        long size = sampled;
+
+        try (OutputStream out = codec.encode(Files.newOutputStream(tempFile))) {
+            out.write(sample, 0, sampled);
+            if (!complete) {
+                // The sample buffer doubles as the copy buffer for the rest of the stream
+                int read;
+                while ((read = content.read(sample)) != -1) {
+                    digest.update(sample, 0, read);
+                    crc.update(sample, 0, read);
+                    out.write(sample, 0, read);
+                    size += read;
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+
+        return new StagedBlob(tempFile, HexFormat.of().formatHex(digest.digest()), size, codec,
+                Files.size(tempFile), crc.getValue());
+    }
+
+    @Override
+    public String promote(StagedBlob staged) throws IOException {
+        String key = staged.getStorageKey();
+        Path target = resolve(key);
+
+        if (Files.exists(target)) {
+            discard(staged);
+            return key;
+        }
+
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(staged.getTempFile(), target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            try {
+                Files.move(staged.getTempFile(), target);
+            } catch (FileAlreadyExistsException ignored) {
+                discard(staged);
+            }
+        } catch (FileAlreadyExistsException e) {
+            discard(staged);
+        }
+        return key;
+    }
+
+    @Override
+    public void discard(StagedBlob staged) {
+        if (staged == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(staged.getTempFile());
+        } catch (IOException e) {
+            log.warn("Failed to delete staged file {}: {}", staged.getTempFile(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void writeUploadChunk(UUID uploadId, long offset, InputStream content, long length,
+                                 MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = offset;
+        long remaining = length;
+
+        // Concurrent chunks of the same upload write disjoint ranges through their own channels
+        try (FileChannel channel = FileChannel.open(uploadFile(uploadId),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (remaining > 0) {
+                int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Chunk ended after " + (length - remaining) + " of " + length + " bytes");
+                }
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                remaining -= read;
+            }
+        }
+        if (content.read() != -1) {
+            throw new IOException("Chunk is longer than " + length + " bytes");
+        }
+    }
+
+    @Override
+    public StagedBlob stageUpload(UUID uploadId, String contentType) throws IOException {
+        try (InputStream in = Files.newInputStream(uploadFile(uploadId))) {
+            return stage(in, contentType);
+        }
+    }
+
+    @Override
+    public void deleteUpload(UUID uploadId) throws IOException {
+        Files.deleteIfExists(uploadFile(uploadId));
+    }
+
+    private Path uploadFile(UUID uploadId) {
+        return uploadDir.resolve(uploadId + ".part");
+    }
+
+    @Override
+    public void store(String key, byte[] content) throws IOException {
+        Path target = resolve(key);
+        Path tempFile = Files.createTempFile(tmpDir, "artifact-", ".part");
+        try {
+            Files.write(tempFile, content);
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Override
+    public Resource load(String key) {
+        return new FileSystemResource(resolve(key));
+    }
+
+    @Override
+    public Path resolve(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid storage key: " + key);
+        }
+        return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.exists(resolve(key));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    @Override
+    public List<String> listKeys(String after, int limit) throws IOException {
+        String from = after == null ? "" : after;
+        List<String> keys = new ArrayList<>();
+
+        // Directories are named after key prefixes, so walking them in order lists keys in order
+        for (String first : shardDirectories(root, from.length() >= 2 ? from.substring(0, 2) : "")) {
+            Path firstDir = root.resolve(first);
+            String secondFrom = from.length() >= 4 && first.equals(from.substring(0, 2)) ? from.substring(2, 4) : "";
+            for (String second : shardDirectories(firstDir, secondFrom)) {
+                try (Stream<Path> files = Files.list(firstDir.resolve(second))) {
+                    files.map(file -> file.getFileName().toString())
+                        .filter(name -> KEY_PATTERN.matcher(name).matches() && name.compareTo(from) > 0)
+                        .sorted()
+                        .limit(limit - keys.size())
+                        .forEach(keys::add);
+                }
+                if (keys.size() >= limit) {
+                    return keys;
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static List<String> shardDirectories(Path dir, String from) throws IOException {
+        try (Stream<Path> children = Files.list(dir)) {
+            return children.filter(Files::isDirectory)
+                .map(child -> child.getFileName().toString())
+                .filter(name -> SHARD_PATTERN.matcher(name).matches() && name.compareTo(from) >= 0)
+                .sorted()
+                .toList();
+        }
+    }
+
+    @Override
+    public long purgeStagingFiles(Instant modifiedBefore) throws IOException {
+        long freed = 0;
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                try {
+                    if (Files.getLastModifiedTime(file).toInstant().isBefore(modifiedBefore)) {
+                        long size = Files.size(file);
+                        if (Files.deleteIfExists(file)) {
+                            freed += size;
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // Promoted or discarded meanwhile
+                }
+            }
+        }
+        return freed;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package app.emailsystem.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * An uploaded file whose content has been staged in the attachment storage,
+ * together with the metadata needed to create its attachment row.
+ */
+@Getter
+@RequiredArgsConstructor
+public class StagedAttachment {
+    private final String filename;
+    private final String contentType;
+    private final StagedBlob blob;
+}
@@ -0,0 +1,31 @@
+package app.emailsystem.storage;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.nio.file.Path;
+
+/**
+ * Attachment content that has been streamed to a temporary file in the store
+ * but is not yet visible under its content-addressed key.
+ */
+@Getter
+@RequiredArgsConstructor
+public class StagedBlob {
+    private final Path tempFile;
+    private final String sha256;
+    private final long size;
+    private final AttachmentCodec codec;
+    /**
+     * Size of the temporary file, which differs from {@link #size} for encoded content
+     */
+    private final long storedSize;
+    /**
+     * CRC-32 of the original bytes, as needed for uncompressed ZIP entries
+     */
+    private final long crc32;
+
+    public String getStorageKey() {
+        return codec.storageKey(sha256);
+    }
+}
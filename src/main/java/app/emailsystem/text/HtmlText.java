@@ -0,0 +1,235 @@
+package app.emailsystem.text;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts HTML to plain text in a single pass over the markup.
+ *
+ * Tags are dropped, block elements end a line, the bodies of script and style elements
+ * and comments are skipped, common entities and numeric character references are
+ * decoded, and runs of whitespace are collapsed. Markup is untrusted, so nothing here
+ * backtracks: every character is looked at a bounded number of times, and an unclosed
+ * tag, comment or script element simply ends the text.
+ */
+public final class HtmlText {
+
+    private static final Set<String> BLOCK_TAGS = Set.of("br", "p", "div", "li", "tr", "h1", "h2", "h3", "h4", "h5",
+            "h6", "ul", "ol", "table", "blockquote", "pre", "hr", "section", "article", "header", "footer");
+    // Tags that sit inside a word; any other tag separates words
+    private static final Set<String> INLINE_TAGS = Set.of("a", "b", "i", "u", "s", "em", "strong", "span", "font",
+            "small", "big", "sub", "sup", "code", "mark", "strike", "abbr");
+    private static final Set<String> RAW_TEXT_TAGS = Set.of("script", "style");
+    private static final Map<String, Character> ENTITIES = Map.of(
+            "nbsp", ' ', "lt", '<', "gt", '>', "quot", '"', "amp", '&', "apos", '\'');
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private HtmlText() {
+    }
+
+    public static String toText(CharSequence html) {
+        return toText(html, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxChars the most characters of text to return; conversion stops there
+     */
+    public static String toText(CharSequence html, int maxChars) {
+        String markup = html.toString();
+        Output out = new Output(Math.min(markup.length(), maxChars));
+        int length = markup.length();
+        int i = 0;
+        while (i < length && out.length() < maxChars) {
+            char c = markup.charAt(i);
+            if (c == '<') {
+                int next = skipMarkup(markup, i, out);
+                if (next > i) {
+                    i = next;
+                    continue;
+                }
+                out.append(c);
+                i++;
+            } else if (c == '&') {
+                i = decodeEntity(markup, i, out);
+            } else if (Character.isWhitespace(c)) {
+                out.space();
+                i++;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        String text = out.toString();
+        return text.length() > maxChars ? text.substring(0, maxChars) : text;
+    }
+
+    /**
+     * Skip the tag, comment or declaration at {@code start}
+     *
+     * @return the index after it, or {@code start} if the {@code <} does not open markup
+     */
+    private static int skipMarkup(String markup, int start, Output out) {
+        int length = markup.length();
+        if (markup.startsWith("<!--", start)) {
+            int end = markup.indexOf("-->", start + 4);
+            return end < 0 ? length : end + 3;
+        }
+        int nameStart = start + 1;
+        boolean closing = nameStart < length && markup.charAt(nameStart) == '/';
+        if (closing) {
+            nameStart++;
+        }
+        if (nameStart >= length) {
+            return start;
+        }
+        char first = markup.charAt(nameStart);
+        if (!closing && (first == '!' || first == '?')) {
+            // Doctype or processing instruction
+            int end = markup.indexOf('>', nameStart);
+            return end < 0 ? length : end + 1;
+        }
+        if (!isAsciiLetter(first)) {
+            // A lone "<", as in "a < b", is text
+            return start;
+        }
+        int nameEnd = nameStart + 1;
+        while (nameEnd < length && Character.isLetterOrDigit(markup.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        int end = markup.indexOf('>', nameEnd);
+        if (end < 0) {
+            return length;
+        }
+        String name = markup.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+        if (BLOCK_TAGS.contains(name)) {
+            out.newline();
+        } else if (!INLINE_TAGS.contains(name)) {
+            out.space();
+        }
+        if (!closing && RAW_TEXT_TAGS.contains(name) && markup.charAt(end - 1) != '/') {
+            return skipRawText(markup, end + 1, name);
+        }
+        return end + 1;
+    }
+
+    /**
+     * Skip the body of a script or style element up to and including its end tag
+     */
+    private static int skipRawText(String markup, int from, String name) {
+        int length = markup.length();
+        int at = markup.indexOf("</", from);
+        while (at >= 0) {
+            if (markup.regionMatches(true, at + 2, name, 0, name.length())) {
+                int end = markup.indexOf('>', at + 2 + name.length());
+                return end < 0 ? length : end + 1;
+            }
+            at = markup.indexOf("</", at + 2);
+        }
+        return length;
+    }
+
+    /**
+     * Decode the entity or character reference at {@code start}, or copy the
+     * {@code &} if there is none
+     *
+     * @return the index after what was consumed
+     */
+    private static int decodeEntity(String markup, int start, Output out) {
+        int limit = Math.min(markup.length(), start + 2 + MAX_ENTITY_LENGTH);
+        int semicolon = -1;
+        for (int j = start + 1; j < limit; j++) {
+            char c = markup.charAt(j);
+            if (c == ';') {
+                semicolon = j;
+                break;
+            }
+            if (!Character.isLetterOrDigit(c) && c != '#') {
+                break;
+            }
+        }
+        if (semicolon > start + 1) {
+            String name = markup.substring(start + 1, semicolon);
+            Character named = ENTITIES.get(name);
+            int codePoint = named != null ? named : name.charAt(0) == '#' ? characterReference(name) : -1;
+            if (codePoint >= 0) {
+                out.appendCodePoint(codePoint);
+                return semicolon + 1;
+            }
+        }
+        out.append('&');
+        return start + 1;
+    }
+
+    private static int characterReference(String name) {
+        try {
+            int codePoint = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')
+                    ? Integer.parseInt(name.substring(2), 16)
+                    : Integer.parseInt(name.substring(1));
+            return Character.isValidCodePoint(codePoint) && codePoint != 0 ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Text with whitespace collapsed: separators are only written before the next
+     * character, so the text never starts or ends with one
+     */
+    private static final class Output {
+        private final StringBuilder text;
+        private boolean space;
+        private boolean newline;
+
+        private Output(int capacity) {
+            this.text = new StringBuilder(Math.min(capacity, 64 * 1024));
+        }
+
+        void space() {
+            space = true;
+        }
+
+        void newline() {
+            newline = true;
+        }
+
+        void append(char c) {
+            separate();
+            text.append(c);
+        }
+
+        void appendCodePoint(int codePoint) {
+            if (Character.isWhitespace(codePoint)) {
+                space();
+                return;
+            }
+            separate();
+            text.appendCodePoint(codePoint);
+        }
+
+        int length() {
+            return text.length();
+        }
+
+        private void separate() {
+            if (!text.isEmpty()) {
+                if (newline) {
+                    text.append('\n');
+                } else if (space) {
+                    text.append(' ');
+                }
+            }
+            space = false;
+            newline = false;
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
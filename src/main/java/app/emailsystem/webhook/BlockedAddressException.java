@@ -0,0 +1,14 @@
+package app.emailsystem.webhook;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a webhook's host resolves to an address it may not be sent to, see
+ * {@link WebhookAddressPolicy}. Trying again does not help, so it is not retried.
+ */
+public class BlockedAddressException extends IOException {
+
+    public BlockedAddressException(String message) {
+        super(message);
+    }
+}
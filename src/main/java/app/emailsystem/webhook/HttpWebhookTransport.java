@@ -0,0 +1,76 @@
+package app.emailsystem.webhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.HexFormat;
+
+/**
+ * Posts a batch as JSON, {@code {"id": ..., "subscriptionId": ..., "events": [...]}},
+ * signed with the endpoint's secret: {@code X-Webhook-Signature} is {@code sha256=}
+ * followed by the hex HMAC-SHA256 of the body. One HTTP client, and so one connection
+ * pool, serves all endpoints.
+ *
+ * The host is checked with the {@link WebhookAddressPolicy} before every request, so a
+ * name that was made to resolve to a private address after it was subscribed is not
+ * posted to; the check and the request share the JVM's DNS cache, so they see the same
+ * addresses. Redirects are not followed.
+ */
+public class HttpWebhookTransport implements WebhookTransport {
+
+    private final HttpClient client;
+    private final ObjectMapper objectMapper;
+    private final Duration timeout;
+    private final WebhookAddressPolicy addressPolicy;
+
+    public HttpWebhookTransport(ObjectMapper objectMapper, Duration timeout, WebhookAddressPolicy addressPolicy) {
+        this.objectMapper = objectMapper;
+        this.timeout = timeout;
+        this.addressPolicy = addressPolicy;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    @Override
+    public int send(WebhookEndpoint endpoint, WebhookBatch batch, int attempt) throws IOException {
+        URI uri = URI.create(endpoint.getUrl());
+        addressPolicy.check(uri.getHost());
+        byte[] body = objectMapper.writeValueAsBytes(batch);
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .header("User-Agent", "EmailSystem-Webhook")
+                .header("X-Webhook-Batch", batch.getId().toString())
+                .header("X-Webhook-Attempt", Integer.toString(attempt))
+                .header("X-Webhook-Signature", "sha256=" + sign(endpoint.getSecret(), body))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    static String sign(String secret, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(body));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package app.emailsystem.webhook;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which hosts webhooks may be posted to. Users choose the URLs, so without it
+ * they could have the server post to itself or to other machines on its network: a
+ * host is refused if any address it resolves to is a loopback, wildcard, link-local,
+ * site-local, unique-local or multicast address, unless it is one of the allowed hosts.
+ *
+ * Hosts are checked when a subscription is made and again before each request, as
+ * what a name resolves to can change after it was checked.
+ */
+public class WebhookAddressPolicy {
+
+    private final Set<String> allowedHosts;
+
+    /**
+     * @param allowedHosts host names or IP addresses that may be posted to whatever they
+     *                     resolve to
+     */
+    public WebhookAddressPolicy(Collection<String> allowedHosts) {
+        this.allowedHosts = allowedHosts.stream()
+                .map(WebhookAddressPolicy::normalize)
+                .filter(host -> !host.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Resolve the host and check every address it has
+     *
+     * @throws java.net.UnknownHostException if the host does not resolve
+     * @throws BlockedAddressException       if it resolves to an address webhooks may not be sent to
+     */
+    public void check(String host) throws IOException {
+        String normalized = normalize(host);
+        if (allowedHosts.contains(normalized)) {
+            return;
+        }
+        for (InetAddress address : InetAddress.getAllByName(normalized)) {
+            if (isBlocked(address)) {
+                throw new BlockedAddressException(host + " resolves to " + address.getHostAddress()
+                        + ", a private or local address");
+            }
+        }
+    }
+
+    static boolean isBlocked(InetAddress address) {
+        return address.isLoopbackAddress()
+                || address.isAnyLocalAddress()
+                || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress()
+                || address.isMulticastAddress()
+                // fc00::/7, which isSiteLocalAddress does not cover
+                || (address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC);
+    }
+
+    private static String normalize(String host) {
+        String trimmed = host != null ? host.trim().toLowerCase(Locale.ROOT) : "";
+        // IPv6 literals appear in URLs in brackets
+        if (trimmed.length() > 1 && trimmed.startsWith("[") && trimmed.endsWith("]")) {
+            return trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed;
+    }
+}
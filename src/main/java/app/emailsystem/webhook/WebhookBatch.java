@@ -0,0 +1,22 @@
+package app.emailsystem.webhook;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The events of one POST to an endpoint. Retries send the same batch, ID included, so
+ * a receiver that saw it already can tell.
+ */
+@Getter
+@AllArgsConstructor
+public class WebhookBatch {
+
+    private final UUID id;
+
+    private final UUID subscriptionId;
+
+    private final List<WebhookEvent> events;
+}
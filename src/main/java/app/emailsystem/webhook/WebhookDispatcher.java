@@ -0,0 +1,296 @@
+package app.emailsystem.webhook;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts events to webhook endpoints in batches, off the threads that raise them.
+ *
+ * {@link #offer} only adds the event to its endpoint's bounded queue, dropping it if the
+ * queue is full, so it never waits. The first event for an idle endpoint waits
+ * {@link WebhookSettings#getLinger()} for others, then the queue is sent in batches of up
+ * to {@link WebhookSettings#getMaxBatchSize()}; events raised while a batch is on its way
+ * make up the next one, so a busy endpoint gets fewer, larger requests rather than more.
+ *
+ * At most {@link WebhookSettings#getMaxConcurrency()} batches per endpoint are in flight,
+ * counting those waiting to be retried, so one slow or failing endpoint holds a bounded
+ * share of the sender threads and the others are not held up. A batch that fails with a
+ * network error, a timeout, 408, 429 or a 5xx is retried after an exponential backoff
+ * with jitter, so the retries of many batches do not arrive at once; other answers, a
+ * {@link BlockedAddressException}, or running out of attempts, drop it.
+ */
+@Slf4j
+public class WebhookDispatcher {
+
+    /** Batches waiting for a sender thread; each holds one of its endpoint's slots */
+    private static final int SEND_QUEUE_SIZE = 1024;
+
+    private final WebhookTransport transport;
+    private final WebhookSettings settings;
+    private final Map<UUID, EndpointQueue> queues = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor senders;
+    /** Lingering and backoff; one task per idle endpoint or retried batch at most */
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public WebhookDispatcher(WebhookTransport transport, WebhookSettings settings) {
+        this.transport = transport;
+        this.settings = settings;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(settings.getWorkers(), settings.getWorkers(), 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(SEND_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "webhook-sender-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.senders.allowCoreThreadTimeOut(true);
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "webhook-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queue an event for the endpoint
+     *
+     * @return false if the endpoint's queue is full and the event was dropped
+     */
+    public boolean offer(WebhookEndpoint endpoint, WebhookEvent event) {
+        EndpointQueue queue = queues.computeIfAbsent(endpoint.getId(), id -> new EndpointQueue(endpoint));
+        if (!queue.pending.offer(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int pending = queue.pending.size();
+        if (pending >= settings.getMaxBatchSize() && pending % settings.getMaxBatchSize() == 0) {
+            // A full batch need not wait
+            execute(timer, () -> flush(queue));
+        } else if (queue.lingering.compareAndSet(false, true)) {
+            schedule(() -> {
+                queue.lingering.set(false);
+                flush(queue);
+            }, settings.getLinger().toMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Forget an endpoint whose subscription was deleted, with the events queued for it
+     */
+    public void remove(UUID endpointId) {
+        EndpointQueue queue = queues.remove(endpointId);
+        if (queue != null) {
+            queue.removed = true;
+            queue.pending.clear();
+        }
+    }
+
+    /**
+     * Send what is queued, without retrying, and stop
+     */
+    public void stop() throws InterruptedException {
+        timer.shutdownNow();
+        for (EndpointQueue queue : queues.values()) {
+            queue.retrying = false;
+            flush(queue);
+        }
+        senders.shutdown();
+        if (!senders.awaitTermination(10, TimeUnit.SECONDS)) {
+            senders.shutdownNow();
+        }
+    }
+
+    /**
+     * Events delivered to an endpoint
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Events dropped because their endpoint's queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Events given up on after their endpoint rejected or kept failing them
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Batches sent again after a failure
+     */
+    public long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * Requests made, one per batch and attempt
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Events waiting to be sent, over all endpoints
+     */
+    public int getPending() {
+        int pending = 0;
+        for (EndpointQueue queue : queues.values()) {
+            pending += queue.pending.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Send batches while the endpoint has events and free slots
+     */
+    private void flush(EndpointQueue queue) {
+        while (!queue.removed && !queue.pending.isEmpty()) {
+            int inFlight = queue.inFlight.get();
+            if (inFlight >= settings.getMaxConcurrency()) {
+                // Picked up when a batch in flight completes
+                return;
+            }
+            if (!queue.inFlight.compareAndSet(inFlight, inFlight + 1)) {
+                continue;
+            }
+            List<WebhookEvent> events = new ArrayList<>(Math.min(queue.pending.size(), settings.getMaxBatchSize()));
+            queue.pending.drainTo(events, settings.getMaxBatchSize());
+            if (events.isEmpty()) {
+                queue.inFlight.decrementAndGet();
+                return;
+            }
+            send(queue, new WebhookBatch(UUID.randomUUID(), queue.endpoint.getId(), events), 1);
+        }
+    }
+
+    private void send(EndpointQueue queue, WebhookBatch batch, int attempt) {
+        if (!execute(senders, () -> post(queue, batch, attempt))) {
+            // Every sender is busy; keep the slot and try again later
+            retry(queue, batch, attempt);
+        }
+    }
+
+    private void post(EndpointQueue queue, WebhookBatch batch, int attempt) {
+        if (queue.removed) {
+            completed(queue);
+            return;
+        }
+        boolean retryable;
+        try {
+            requests.incrementAndGet();
+            int status = transport.send(queue.endpoint, batch, attempt);
+            if (status >= 200 && status < 300) {
+                sent.addAndGet(batch.getEvents().size());
+                completed(queue);
+                return;
+            }
+            retryable = status == 408 || status == 429 || status >= 500;
+            log.debug("Webhook {} answered {} to batch {}, attempt {}", queue.endpoint.getUrl(), status,
+                    batch.getId(), attempt);
+        } catch (BlockedAddressException e) {
+            retryable = false;
+            log.warn("Webhook {} refused for batch {}: {}", queue.endpoint.getUrl(), batch.getId(), e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            retryable = true;
+            log.debug("Webhook {} failed for batch {}, attempt {}: {}", queue.endpoint.getUrl(), batch.getId(),
+                    attempt, e.getMessage());
+        }
+        if (retryable && attempt < settings.getMaxAttempts() && queue.retrying) {
+            retried.incrementAndGet();
+            retry(queue, batch, attempt + 1);
+        } else {
+            failed.addAndGet(batch.getEvents().size());
+            log.warn("Dropped {} events for webhook {} after {} attempts", batch.getEvents().size(),
+                    queue.endpoint.getUrl(), attempt);
+            completed(queue);
+        }
+    }
+
+    private void retry(EndpointQueue queue, WebhookBatch batch, int attempt) {
+        if (!schedule(() -> send(queue, batch, attempt), backoff(attempt))) {
+            failed.addAndGet(batch.getEvents().size());
+            completed(queue);
+        }
+    }
+
+    /**
+     * The delay before the given attempt: doubling from the initial backoff up to the
+     * maximum, of which a random half is taken off
+     */
+    long backoff(int attempt) {
+        long initial = settings.getInitialBackoff().toMillis();
+        long max = settings.getMaxBackoff().toMillis();
+        long backoff = initial;
+        for (int retry = 2; retry < attempt && backoff < max; retry++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, max);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private void completed(EndpointQueue queue) {
+        queue.inFlight.decrementAndGet();
+        flush(queue);
+    }
+
+    private static boolean execute(ThreadPoolExecutor executor, Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean schedule(Runnable task, long delayMillis) {
+        try {
+            timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private final class EndpointQueue {
+        private final WebhookEndpoint endpoint;
+        private final ArrayBlockingQueue<WebhookEvent> pending = new ArrayBlockingQueue<>(settings.getQueueSize());
+        /** Batches sent or waiting to be retried */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean lingering = new AtomicBoolean();
+        private volatile boolean removed;
+        private volatile boolean retrying = true;
+
+        private EndpointQueue(WebhookEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+}
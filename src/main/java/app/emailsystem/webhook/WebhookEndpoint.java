@@ -0,0 +1,26 @@
+package app.emailsystem.webhook;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Where a subscription's events are posted
+ */
+@Getter
+@AllArgsConstructor
+public class WebhookEndpoint {
+
+    /**
+     * The subscription's ID; events for one ID share a queue and its limits
+     */
+    private final UUID id;
+
+    private final String url;
+
+    /**
+     * Key of the HMAC that signs each request, so the receiver can tell it came from us
+     */
+    private final String secret;
+}
@@ -0,0 +1,40 @@
+package app.emailsystem.webhook;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * One change to a user's mailbox, as sent to their webhooks
+ */
+@Getter
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WebhookEvent {
+
+    /**
+     * Such as {@code email.delivered}
+     */
+    private final String type;
+
+    private final UUID userId;
+
+    private final UUID emailId;
+
+    /**
+     * ISO-8601, in UTC
+     */
+    private final String occurredAt;
+
+    /**
+     * The sender's address, for deliveries only
+     */
+    private final String from;
+
+    /**
+     * The subject, for deliveries only
+     */
+    private final String subject;
+}
@@ -0,0 +1,53 @@
+package app.emailsystem.webhook;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * Settings of a {@link WebhookDispatcher}, see {@code webhook.*} in application.properties
+ */
+@Getter
+@Builder
+public class WebhookSettings {
+
+    /**
+     * Threads that post batches, shared by all endpoints
+     */
+    @Builder.Default
+    private final int workers = 8;
+
+    /**
+     * Events waiting per endpoint beyond which new ones are dropped
+     */
+    @Builder.Default
+    private final int queueSize = 10000;
+
+    @Builder.Default
+    private final int maxBatchSize = 100;
+
+    /**
+     * How long the first event for an idle endpoint waits for others to join its batch
+     */
+    @Builder.Default
+    private final Duration linger = Duration.ofMillis(200);
+
+    /**
+     * Batches posted to, or waiting to be retried at, one endpoint at a time
+     */
+    @Builder.Default
+    private final int maxConcurrency = 2;
+
+    /**
+     * Tries per batch, the first one included
+     */
+    @Builder.Default
+    private final int maxAttempts = 6;
+
+    @Builder.Default
+    private final Duration initialBackoff = Duration.ofSeconds(1);
+
+    @Builder.Default
+    private final Duration maxBackoff = Duration.ofMinutes(1);
+}
@@ -0,0 +1,20 @@
+package app.emailsystem.webhook;
+
+import java.io.IOException;
+
+/**
+ * Sends batches for a {@link WebhookDispatcher}. Called on the dispatcher's sender
+ * threads, so implementations may block.
+ */
+public interface WebhookTransport {
+
+    /**
+     * Post the batch to the endpoint
+     *
+     * @param attempt 1 for the first try, counting up with each retry
+     * @return the HTTP status the endpoint answered with
+     * @throws IOException if the endpoint could not be reached or did not answer in time, or
+     *                     {@link BlockedAddressException} if it may not be posted to
+     */
+    int send(WebhookEndpoint endpoint, WebhookBatch batch, int attempt) throws IOException;
+}
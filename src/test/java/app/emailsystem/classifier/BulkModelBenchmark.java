@@ -0,0 +1,116 @@
+package app.emailsystem.classifier;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures scoring a 50 KB HTML message with a model trained on 20,000 messages, with
+ * the body token cap delivery uses and without it, and checks that the model tells the
+ * two kinds of training mail apart.
+ *
+ * Not part of the regular test run; execute with
+ * {@code mvn test -Dtest=BulkModelBenchmark}.
+ */
+@Tag("benchmark")
+class BulkModelBenchmark {
+
+    private static final int TRAINING_MESSAGES = 20000;
+    private static final int ROUNDS = 5000;
+    private static final int BODY_SIZE = 50 * 1024;
+
+    @Test
+    void fiftyKilobyteMessage() throws IOException {
+        Random random = new Random(42);
+        String[] vocabulary = new String[20000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = word(random);
+        }
+
+        BulkModel capped = new BulkModel(1000);
+        long started = System.nanoTime();
+        for (int i = 0; i < TRAINING_MESSAGES; i++) {
+            boolean bulk = i % 2 == 0;
+            capped.train(sender(bulk, i), subject(random, vocabulary, bulk), body(random, vocabulary, bulk, 2048), bulk, 1);
+        }
+        System.out.printf("trained on %d messages in %.1f ms, %d tokens%n", TRAINING_MESSAGES,
+                (System.nanoTime() - started) / 1e6, capped.getVocabularySize());
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        capped.writeTo(new DataOutputStream(snapshot));
+        BulkModel uncapped = new BulkModel(Integer.MAX_VALUE);
+        uncapped.readFrom(new DataInputStream(new ByteArrayInputStream(snapshot.toByteArray())));
+        assertEquals(capped.getVocabularySize(), uncapped.getVocabularySize());
+        System.out.printf("snapshot of %d KB%n", snapshot.size() / 1024);
+
+        String bulkBody = body(random, vocabulary, true, BODY_SIZE);
+        String normalBody = body(random, vocabulary, false, BODY_SIZE);
+        String bulkSubject = subject(random, vocabulary, true);
+        String normalSubject = subject(random, vocabulary, false);
+        for (BulkModel model : new BulkModel[] {capped, uncapped}) {
+            assertTrue(model.score(sender(true, 1), bulkSubject, bulkBody) > 0.95);
+            assertTrue(model.score(sender(false, 1), normalSubject, normalBody) < 0.05);
+        }
+
+        System.out.printf("%12s %12s%n", "body tokens", "50 KB score");
+        for (BulkModel model : new BulkModel[] {capped, uncapped}) {
+            long best = Long.MAX_VALUE;
+            double sink = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                sink += model.score(sender(true, round), bulkSubject, bulkBody);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%12s %9.1f us%n", model == capped ? "1000" : "all", best / 1e3);
+            assertTrue(sink > 0);
+        }
+    }
+
+    private static String sender(boolean bulk, int i) {
+        return bulk ? "noreply@notify.example.com" : "user" + (i % 50) + "@example.com";
+    }
+
+    private static String subject(Random random, String[] vocabulary, boolean bulk) {
+        return (bulk ? "[Alert] Build " : "Re: ") + pick(random, vocabulary, bulk) + " " + pick(random, vocabulary, bulk);
+    }
+
+    /**
+     * HTML of roughly the given size, drawing mostly from one half of the vocabulary
+     */
+    private static String body(Random random, String[] vocabulary, boolean bulk, int size) {
+        StringBuilder body = new StringBuilder(size + 64);
+        body.append("<html><body><p>");
+        while (body.length() < size) {
+            body.append(pick(random, vocabulary, bulk)).append(random.nextInt(12) == 0 ? "</p>\n<p>" : " ");
+            if (random.nextInt(40) == 0) {
+                body.append("&nbsp;<a href=\"https://example.com/x\">link</a> ");
+            }
+        }
+        return body.append("</p></body></html>").toString();
+    }
+
+    private static String pick(Random random, String[] vocabulary, boolean bulk) {
+        int half = vocabulary.length / 2;
+        int index = random.nextInt(half);
+        // One word in five comes from the other kind's half
+        return vocabulary[random.nextInt(5) == 0 ? (bulk ? half + index : index) : (bulk ? index : half + index)];
+    }
+
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        int length = 3 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+}
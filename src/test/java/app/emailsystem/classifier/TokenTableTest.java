@@ -0,0 +1,55 @@
+package app.emailsystem.classifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenTableTest {
+
+    @Test
+    void agreesWithHashMapAcrossResizes() {
+        Random random = new Random(11);
+        TokenTable table = new TokenTable();
+        Map<Long, long[]> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Few distinct keys at first, so most adds update an existing token
+            long key = 1 + random.nextInt(1 + i / 2);
+            boolean bulk = random.nextBoolean();
+            table.add(key, bulk ? 1 : 0, bulk ? 0 : 1);
+            long[] counts = expected.computeIfAbsent(key, k -> new long[2]);
+            counts[bulk ? 0 : 1]++;
+        }
+        assertEquals(expected.size(), table.size());
+        expected.forEach((key, counts) -> {
+            assertEquals(counts[0], TokenTable.bulk(table.get(key)));
+            assertEquals(counts[1], TokenTable.normal(table.get(key)));
+        });
+        assertEquals(0, table.get(Long.MAX_VALUE));
+    }
+
+    @Test
+    void countsSaturateAtZero() {
+        TokenTable table = new TokenTable();
+        table.add(42, 1, 2);
+        table.add(42, -3, -1);
+        assertEquals(TokenTable.pack(0, 1), table.get(42));
+    }
+
+    @Test
+    void pruneKeepsFrequentTokens() {
+        TokenTable table = new TokenTable();
+        for (long key = 1; key <= 5000; key++) {
+            table.add(key, (int) (key % 3), 0);
+        }
+        int removed = table.prune(2);
+        // Keys 2, 5, 8, ... were seen twice
+        assertEquals(3333, removed);
+        assertEquals(1667, table.size());
+        assertEquals(TokenTable.pack(2, 0), table.get(5));
+        assertEquals(0, table.get(4));
+    }
+}
@@ -0,0 +1,49 @@
+package app.emailsystem.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AhoCorasickTest {
+
+    @Test
+    void findsOverlappingAndNestedPatterns() {
+        AhoCorasick matcher = new AhoCorasick(List.of("he", "she", "his", "hers", "", "xyz"));
+        BitSet found = matcher.match("ushers");
+        assertEquals(BitSet.valueOf(new long[] {0b1011}), found);
+    }
+
+    @Test
+    void agreesWithContainsOnRandomText() {
+        Random random = new Random(7);
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            patterns.add(randomText(random, 1 + random.nextInt(5)));
+        }
+        AhoCorasick matcher = new AhoCorasick(patterns);
+        for (int round = 0; round < 50; round++) {
+            String text = randomText(random, random.nextInt(300));
+            BitSet expected = new BitSet();
+            for (int i = 0; i < patterns.size(); i++) {
+                if (text.contains(patterns.get(i))) {
+                    expected.set(i);
+                }
+            }
+            assertEquals(expected, matcher.match(text));
+        }
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // A small alphabet, so patterns share prefixes and suffixes
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}
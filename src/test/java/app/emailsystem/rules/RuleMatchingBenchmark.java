@@ -0,0 +1,92 @@
+package app.emailsystem.rules;
+
+import app.emailsystem.entity.FilterRule;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures matching a message against one recipient's 1,000 filter rules, compiled as
+ * in delivery and, for comparison, checked one by one with {@code String.contains}.
+ *
+ * Not part of the regular test run; execute with
+ * {@code mvn test -Dtest=RuleMatchingBenchmark}.
+ */
+@Tag("benchmark")
+class RuleMatchingBenchmark {
+
+    private static final int RULES = 1000;
+    private static final int ROUNDS = 2000;
+    private static final int[] BODY_SIZES = {1024, 16 * 1024, 128 * 1024};
+
+    @Test
+    void thousandRules() {
+        Random random = new Random(42);
+        List<FilterRule> rules = new ArrayList<>();
+        for (int i = 0; i < RULES; i++) {
+            FilterRule.Field field = FilterRule.Field.values()[i % 4];
+            String value = switch (field) {
+                case FROM, TO -> i % 8 < 4 ? "user" + i + "@example.com" : "@domain" + i + ".com";
+                default -> word(random) + " " + word(random);
+            };
+            rules.add(FilterRule.builder().field(field).value(value).action(FilterRule.Action.STAR).build());
+        }
+
+        long started = System.nanoTime();
+        CompiledRules compiled = new CompiledRules(rules);
+        System.out.printf("compiled %d rules in %.2f ms%n", RULES, (System.nanoTime() - started) / 1e6);
+
+        System.out.printf("%10s %14s %14s %8s%n", "body", "compiled", "contains", "speedup");
+        for (int size : BODY_SIZES) {
+            StringBuilder body = new StringBuilder(size + 16);
+            while (body.length() < size) {
+                body.append(word(random)).append(' ');
+            }
+            FilterMessage message = new FilterMessage("user4@example.com",
+                    List.of("team@example.com", "someone@domain5.com"), "Quarterly " + word(random) + " report",
+                    "<p>" + body + "</p>");
+
+            long compiledNanos = Long.MAX_VALUE;
+            long naiveNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                boolean compiledMatch = compiled.match(message).isStar();
+                compiledNanos = Math.min(compiledNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                boolean naiveMatch = naive(rules, message);
+                naiveNanos = Math.min(naiveNanos, System.nanoTime() - start);
+                assertEquals(naiveMatch, compiledMatch);
+            }
+            System.out.printf("%8d KB %11.1f us %11.1f us %7.1fx%n", size / 1024,
+                    compiledNanos / 1e3, naiveNanos / 1e3, (double) naiveNanos / compiledNanos);
+        }
+    }
+
+    private static boolean naive(List<FilterRule> rules, FilterMessage message) {
+        boolean matched = false;
+        for (FilterRule rule : rules) {
+            matched |= switch (rule.getField()) {
+                case FROM -> message.getFrom().equals(rule.getValue()) || message.getFrom().endsWith(rule.getValue());
+                case TO -> message.getTo().stream().anyMatch(to -> to.equals(rule.getValue()) || to.endsWith(rule.getValue()));
+                case SUBJECT -> message.getSubject().contains(rule.getValue());
+                case BODY -> message.getBody().contains(rule.getValue());
+            };
+        }
+        return matched;
+    }
+
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        int length = 3 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+}
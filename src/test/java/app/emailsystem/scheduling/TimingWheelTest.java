@@ -0,0 +1,65 @@
+package app.emailsystem.scheduling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private static final long TICK = 100;
+    private static final long START = 1_700_000_000_000L;
+
+    @Test
+    void timersFireAtTheirDeadlineOnAnyLevel() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(TICK, START);
+        Random random = new Random(42);
+        long[] deadlines = new long[2000];
+        for (int i = 0; i < deadlines.length; i++) {
+            // Up to 30 days, past the top level's reach
+            deadlines[i] = START + (long) (random.nextDouble() * 30L * 24 * 3600 * 1000);
+            wheel.schedule(i, deadlines[i]);
+        }
+
+        int fired = 0;
+        long now = START;
+        long end = START + 31L * 24 * 3600 * 1000;
+        while (now < end) {
+            now += 7 * TICK;
+            for (int key : wheel.advance(now)) {
+                assertTrue(deadlines[key] <= now, "fired early");
+                assertTrue(deadlines[key] > now - 8 * TICK, "fired late");
+                fired++;
+            }
+        }
+        assertEquals(deadlines.length, fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cancelledAndReplacedTimersDoNotFire() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, START);
+        wheel.schedule("cancelled", START + 5_000);
+        wheel.schedule("moved", START + 5_000);
+        wheel.schedule("kept", START + 5_000);
+        assertTrue(wheel.cancel("cancelled"));
+        assertFalse(wheel.cancel("unknown"));
+        wheel.schedule("moved", START + 500_000);
+
+        assertEquals(List.of("kept"), wheel.advance(START + 5_000));
+        assertEquals(List.of(), wheel.advance(START + 499_900));
+        assertEquals(List.of("moved"), wheel.advance(START + 500_000));
+    }
+
+    @Test
+    void pastDeadlinesFireAtTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, START);
+        wheel.advance(START + 10_000);
+        wheel.schedule("overdue", START);
+        assertEquals(List.of("overdue"), wheel.advance(START + 10_000 + TICK));
+    }
+}
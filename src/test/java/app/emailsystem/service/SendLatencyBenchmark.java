@@ -0,0 +1,141 @@
+package app.emailsystem.service;
+
+import app.emailsystem.dto.EmailDTO;
+import app.emailsystem.entity.DeliveryJob;
+import app.emailsystem.entity.User;
+import app.emailsystem.repository.DeliveryJobRepository;
+import app.emailsystem.repository.UserRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures compose latency and JDBC statements per send against the number of recipients,
+ * and the time the delivery workers take to reach every recipient. Sending only queues the
+ * message, so its latency and statement count should not grow with the recipients.
+ *
+ * Runs against a throwaway {@code email_system_bench} database on the configured MySQL
+ * server. Not part of the regular test run; execute with
+ * {@code mvn test -Dtest=SendLatencyBenchmark}.
+ */
+@Tag("benchmark")
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:mysql://localhost:3306/email_system_bench?createDatabaseIfNotExist=true"
+        + "&useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true&rewriteBatchedStatements=true",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.show-sql=false",
+    "spring.jpa.properties.hibernate.generate_statistics=true",
+    // Measure delivery itself, not the undo window
+    "delivery.undo-window-ms=0",
+    "logging.level.app.emailsystem=WARN",
+    "logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener=WARN"
+})
+class SendLatencyBenchmark {
+
+    private static final int[] RECIPIENT_COUNTS = {1, 10, 50, 100, 250, 500, 1000, 5000};
+    private static final int ROUNDS = 50;
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private DeliveryJobRepository deliveryJobRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Test
+    void sendLatencyByRecipientCount() throws InterruptedException {
+        int maxRecipients = Arrays.stream(RECIPIENT_COUNTS).max().getAsInt();
+        List<User> users = createUsers(maxRecipients + 1);
+        User sender = users.get(0);
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        // Warm up connections, statement caches and the JIT
+        for (int i = 0; i < 20; i++) {
+            emailService.sendEmail(sender.getId(), message(users.subList(1, 11), "unknown@example.com"), List.of());
+        }
+        awaitDelivery();
+
+        System.out.printf("%10s %10s %10s %12s %14s%n", "recipients", "p50 ms", "p99 ms", "statements", "delivery ms");
+        long smallestStatements = 0;
+        for (int count : RECIPIENT_COUNTS) {
+            EmailDTO dto = message(users.subList(1, count + 1), "unknown@example.com");
+            long[] nanos = new long[ROUNDS];
+            long statements = 0;
+            List<UUID> sent = new ArrayList<>();
+            long started = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                statistics.clear();
+                long sendStarted = System.nanoTime();
+                SendResult result = emailService.sendEmail(sender.getId(), dto, List.of());
+                nanos[round] = System.nanoTime() - sendStarted;
+                statements = statistics.getPrepareStatementCount();
+                sent.add(result.getEmail().getId());
+            }
+            awaitDelivery();
+            double deliveryMillis = (System.nanoTime() - started) / 1e6;
+
+            Arrays.sort(nanos);
+            System.out.printf("%10d %10.2f %10.2f %12d %14.1f%n", count, nanos[ROUNDS / 2] / 1e6,
+                    nanos[(int) Math.ceil(ROUNDS * 0.99) - 1] / 1e6, statements, deliveryMillis);
+
+            for (DeliveryJob job : deliveryJobRepository.findByEmailIdIn(sent)) {
+                assertEquals(DeliveryJob.State.DONE, job.getState());
+                assertEquals("unknown@example.com", job.getUnknownAddresses());
+            }
+            if (smallestStatements == 0) {
+                smallestStatements = statements;
+            }
+            // Queueing writes the same rows whatever the number of recipients
+            assertEquals(smallestStatements, statements, count + " recipients took " + statements + " statements");
+        }
+    }
+
+    private void awaitDelivery() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 300_000;
+        while (deliveryJobRepository.countPending() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "delivery did not finish");
+            Thread.sleep(20);
+        }
+    }
+
+    private List<User> createUsers(int count) {
+        String run = UUID.randomUUID().toString().substring(0, 8);
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(User.builder()
+                    .email("bench-" + run + "-" + i + "@example.com")
+                    .password("{noop}benchmark")
+                    .firstName("Bench")
+                    .lastName("User " + i)
+                    .build());
+        }
+        return userRepository.saveAll(users);
+    }
+
+    private static EmailDTO message(List<User> recipients, String unknownAddress) {
+        EmailDTO dto = new EmailDTO();
+        dto.setRecipients(recipients.stream().map(User::getEmail).collect(Collectors.joining(", "))
+                + ", " + unknownAddress);
+        dto.setSubject("Quarterly report");
+        dto.setContent("Please find the figures for the last quarter below.\n".repeat(40));
+        return dto;
+    }
+}
@@ -0,0 +1,120 @@
+package app.emailsystem.service;
+
+import app.emailsystem.entity.UploadSession;
+import app.emailsystem.exception.EmailSystemException;
+import app.emailsystem.repository.UploadSessionRepository;
+import app.emailsystem.repository.UserRepository;
+import app.emailsystem.storage.CompressionPolicy;
+import app.emailsystem.storage.FileSystemAttachmentStorage;
+import app.emailsystem.storage.StagedBlob;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UploadSessionServiceTest {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int SIZE = 2 * CHUNK_SIZE + 100;
+
+    @TempDir
+    Path root;
+
+    private final UUID ownerId = UUID.randomUUID();
+    private final UUID sessionId = UUID.randomUUID();
+    private final byte[] content = new byte[SIZE];
+    private FileSystemAttachmentStorage storage;
+    private UploadSession session;
+    private UploadSessionService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        new Random(42).nextBytes(content);
+        storage = new FileSystemAttachmentStorage(root.toString(), new CompressionPolicy(false, 1024, 7.0));
+        LocalDateTime now = LocalDateTime.now();
+        session = UploadSession.builder()
+                .id(sessionId)
+                .filename("build.log")
+                .contentType("application/octet-stream")
+                .size(SIZE)
+                .chunkSize(CHUNK_SIZE)
+                .chunkCount(3)
+                .receivedChunks(new byte[1])
+                .state(UploadSession.State.OPEN)
+                .createdAt(now)
+                .updatedAt(now)
+                .expiresAt(now.plusDays(1))
+                .build();
+        UploadSessionRepository repository = mock(UploadSessionRepository.class);
+        when(repository.findByIdAndOwnerId(sessionId, ownerId)).thenReturn(Optional.of(session));
+        when(repository.findByIdAndOwnerIdForUpdate(sessionId, ownerId)).thenReturn(Optional.of(session));
+        service = new UploadSessionService(repository, mock(UserRepository.class), mock(AttachmentService.class),
+                storage, mock(PlatformTransactionManager.class), new SimpleMeterRegistry(),
+                SIZE, CHUNK_SIZE, 20, 86_400_000, 604_800_000);
+    }
+
+    @Test
+    void keepsAReceivedChunkWhenItIsSentAgain() throws Exception {
+        send(0, chunk(0), sha256(chunk(0)));
+
+        // Resends after a lost answer: cut off, and damaged in transit
+        byte[] damaged = chunk(0);
+        damaged[10] ^= 1;
+        service.receiveChunk(ownerId, sessionId, 0, new ByteArrayInputStream(damaged, 0, 1000), null);
+        service.receiveChunk(ownerId, sessionId, 0, new ByteArrayInputStream(damaged), sha256(chunk(0)));
+
+        send(1, chunk(1), null);
+        send(2, chunk(2), null);
+        assertTrue(session.isComplete());
+        StagedBlob staged = storage.stageUpload(sessionId, null);
+        assertEquals(sha256(content), staged.getSha256());
+        storage.discard(staged);
+    }
+
+    @Test
+    void acceptsAChunkAgainAfterItWasCutOff() throws Exception {
+        assertThrows(EmailSystemException.class, () ->
+                service.receiveChunk(ownerId, sessionId, 1, new ByteArrayInputStream(chunk(1), 0, 1000), null));
+        assertFalse(session.isReceived(1));
+
+        send(0, chunk(0), null);
+        send(1, chunk(1), sha256(chunk(1)));
+        send(2, chunk(2), null);
+        StagedBlob staged = storage.stageUpload(sessionId, null);
+        assertEquals(sha256(content), staged.getSha256());
+        storage.discard(staged);
+    }
+
+    private void send(int index, byte[] chunk, String sha256) {
+        service.receiveChunk(ownerId, sessionId, index, new ByteArrayInputStream(chunk), sha256);
+        assertTrue(session.isReceived(index));
+    }
+
+    private byte[] chunk(int index) {
+        int from = index * CHUNK_SIZE;
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, SIZE - from)];
+        System.arraycopy(content, from, chunk, 0, chunk.length);
+        return chunk;
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+}
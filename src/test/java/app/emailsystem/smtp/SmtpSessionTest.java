@@ -0,0 +1,344 @@
+package app.emailsystem.smtp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SmtpSessionTest {
+
+    private static final String ADDRESS = "build@example.com";
+    private static final int MAX_MESSAGE_SIZE = 1024;
+
+    @TempDir
+    Path spool;
+
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final List<SmtpEnvelope> envelopes = new CopyOnWriteArrayList<>();
+    /** Logins with the password "hold" keep their worker until this is released */
+    private final CountDownLatch held = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private SmtpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = startServer(2, 256);
+    }
+
+    private SmtpServer startServer(int workers, int queueSize) throws IOException {
+        SmtpHandler handler = new SmtpHandler() {
+            @Override
+            public SmtpSender authenticate(String username, String password) {
+                if ("hold".equals(password)) {
+                    held.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new SmtpSender(UUID.randomUUID(), username);
+                }
+                return "secret".equals(password) ? new SmtpSender(UUID.randomUUID(), username) : null;
+            }
+
+            @Override
+            public String submit(SmtpSender sender, SmtpEnvelope envelope, Path message, long size) {
+                try {
+                    messages.add(Files.readString(message, StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    throw new SmtpException(451, "4.3.0", e.getMessage());
+                }
+                envelopes.add(envelope);
+                return Integer.toString(messages.size());
+            }
+        };
+        SmtpServer started = new SmtpServer(handler, SmtpSettings.builder()
+                .port(0)
+                .workers(workers)
+                .queueSize(queueSize)
+                .maxMessageSize(MAX_MESSAGE_SIZE)
+                .spoolDirectory(spool)
+                .build());
+        started.start();
+        return started;
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+        try (Stream<Path> left = Files.list(spool)) {
+            assertEquals(0, left.count(), "spool files left behind");
+        }
+    }
+
+    @Test
+    void unstuffsDataUpToTheTerminatingDot() throws IOException {
+        try (Client client = login()) {
+            client.send("MAIL FROM:<" + ADDRESS + ">\r\nRCPT TO:<ops@example.com>\r\nDATA\r\n");
+            client.expect("250");
+            client.expect("250");
+            client.expect("354");
+            // Split so the terminator and a stuffed dot straddle reads
+            client.send("Subject: dots\r\n\r\n..leading\r\n.");
+            client.send(".\r\nmiddle .\r\n.\r");
+            client.send("\nQUIT\r\n");
+            client.expect("250");
+            client.expect("221");
+        }
+        assertEquals(List.of("Subject: dots\r\n\r\n.leading\r\n.\r\nmiddle .\r\n"), messages);
+        assertEquals(List.of("ops@example.com"), envelopes.get(0).getRecipients());
+    }
+
+    @Test
+    void joinsBdatChunksByteForByte() throws IOException {
+        try (Client client = login()) {
+            client.send("MAIL FROM:<" + ADDRESS + ">\r\nRCPT TO:<ops@example.com>\r\n"
+                    + "BDAT 12\r\nFirst\r\n.\r\n\r\nBDAT 7 LAST\r\n.second");
+            client.expect("250");
+            client.expect("250");
+            client.expect("250 2.0.0 Chunk received, 12 octets");
+            client.expect("250 2.0.0 Ok: queued");
+        }
+        assertEquals(List.of("First\r\n.\r\n\r\n.second"), messages);
+    }
+
+    @Test
+    void answersCommandsPipelinedBehindAuthentication() throws IOException {
+        try (Client client = new Client(server.getPort())) {
+            client.expect("220");
+            // AUTH is checked on a worker; what follows it must wait, then be answered in order
+            client.send("EHLO test\r\nAUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n"
+                    + "MAIL FROM:<" + ADDRESS + "> SIZE=10\r\nRCPT TO:<a@example.com>\r\nRCPT TO:<b@example.com>\r\n"
+                    + "BDAT 4 LAST\r\nbody");
+            client.expect("250");
+            client.expect("235");
+            client.expect("250 2.1.0");
+            client.expect("250 2.1.5");
+            client.expect("250 2.1.5");
+            client.expect("250 2.0.0 Ok: queued");
+        }
+        assertEquals(List.of("a@example.com", "b@example.com"), envelopes.get(0).getRecipients());
+    }
+
+    @Test
+    void authenticatesWithLogin() throws IOException {
+        try (Client client = new Client(server.getPort())) {
+            client.expect("220");
+            client.send("EHLO test\r\nAUTH LOGIN\r\n");
+            client.expect("250");
+            client.expect("334 VXNlcm5hbWU6");
+            client.send(base64(ADDRESS) + "\r\n");
+            client.expect("334 UGFzc3dvcmQ6");
+            client.send(base64("secret") + "\r\nMAIL FROM:<" + ADDRESS + ">\r\n");
+            client.expect("235");
+            client.expect("250");
+        }
+    }
+
+    @Test
+    void rejectsOversizeMessages() throws IOException {
+        String body = "x".repeat(MAX_MESSAGE_SIZE) + "\r\n";
+        try (Client client = login()) {
+            client.send("MAIL FROM:<" + ADDRESS + "> SIZE=" + (MAX_MESSAGE_SIZE + 1) + "\r\n");
+            client.expect("552 5.3.4");
+
+            client.send("MAIL FROM:<" + ADDRESS + ">\r\nRCPT TO:<ops@example.com>\r\nDATA\r\n");
+            client.expect("250");
+            client.expect("250");
+            client.expect("354");
+            client.send(body + ".\r\n");
+            client.expect("552 5.3.4");
+
+            // The transaction was reset, and chunks over the limit are read and rejected
+            client.send("MAIL FROM:<" + ADDRESS + ">\r\nRCPT TO:<ops@example.com>\r\n"
+                    + "BDAT " + body.length() + " LAST\r\n" + body + "NOOP\r\n");
+            client.expect("250");
+            client.expect("250");
+            client.expect("552 5.3.4");
+            client.expect("250");
+        }
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    void enforcesCommandSequence() throws IOException {
+        try (Client client = new Client(server.getPort())) {
+            client.expect("220");
+            client.send("AUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n");
+            client.expect("503 5.5.1");
+            client.send("EHLO test\r\nMAIL FROM:<" + ADDRESS + ">\r\n");
+            client.expect("250");
+            client.expect("530 5.7.0");
+            client.send("AUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n");
+            client.expect("235");
+            client.send("RCPT TO:<ops@example.com>\r\nDATA\r\nMAIL FROM:<other@example.com>\r\n"
+                    + "MAIL FROM:<" + ADDRESS + ">\r\nMAIL FROM:<" + ADDRESS + ">\r\nDATA\r\n"
+                    + "AUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n");
+            client.expect("503 5.5.1");
+            client.expect("503 5.5.1");
+            client.expect("553 5.7.1");
+            client.expect("250");
+            client.expect("503 5.5.1");
+            client.expect("554 5.5.1");
+            client.expect("503 5.5.1");
+        }
+    }
+
+    @Test
+    void closesTheConnectionAfterThreeFailedLogins() throws IOException {
+        try (Client client = new Client(server.getPort())) {
+            client.expect("220");
+            client.send("EHLO test\r\nAUTH PLAIN " + plain("", ADDRESS, "wrong") + "\r\n"
+                    + "AUTH PLAIN " + plain("", ADDRESS, "wrong") + "\r\n");
+            client.expect("250");
+            client.expect("535 5.7.8");
+            client.expect("535 5.7.8");
+            client.send("AUTH LOGIN " + base64(ADDRESS) + "\r\n");
+            client.expect("334");
+            client.send(base64("wrong") + "\r\n");
+            client.expect("535 5.7.8");
+            client.assertClosed();
+        }
+    }
+
+    @Test
+    void rejectsAnotherAuthorizationIdentity() throws IOException {
+        try (Client client = new Client(server.getPort())) {
+            client.expect("220");
+            client.send("EHLO test\r\nAUTH PLAIN " + plain("ceo@example.com", ADDRESS, "secret") + "\r\n");
+            client.expect("250");
+            client.expect("535 5.7.8");
+            client.send("AUTH PLAIN " + plain(ADDRESS.toUpperCase(), ADDRESS, "secret") + "\r\n");
+            client.expect("235");
+        }
+    }
+
+    @Test
+    void answersBusyWithoutKeepingTheMessageOrCountingAFailedLogin() throws Exception {
+        server.stop();
+        server = startServer(1, 1);
+        try (Client sending = login(); Client running = new Client(server.getPort());
+             Client queued = new Client(server.getPort()); Client rejected = new Client(server.getPort())) {
+            sending.send("MAIL FROM:<" + ADDRESS + ">\r\nRCPT TO:<ops@example.com>\r\nDATA\r\n");
+            sending.expect("250");
+            sending.expect("250");
+            sending.expect("354");
+
+            // One login holds the only worker and another waits in the queue
+            running.expect("220");
+            running.send("EHLO test\r\nAUTH PLAIN " + plain("", ADDRESS, "hold") + "\r\n");
+            running.expect("250");
+            assertTrue(held.await(5, TimeUnit.SECONDS));
+            queued.expect("220");
+            // The NOOP is answered once the AUTH behind it has been queued
+            queued.send("EHLO test\r\nNOOP\r\nAUTH PLAIN " + plain("", ADDRESS, "hold") + "\r\n");
+            queued.expect("250");
+            queued.expect("250");
+
+            sending.send("Subject: busy\r\n\r\nbody\r\n.\r\n");
+            sending.expect("451 4.3.2");
+            try (Stream<Path> left = Files.list(spool)) {
+                assertEquals(0, left.count(), "spool file of the rejected message");
+            }
+
+            rejected.expect("220");
+            rejected.send("EHLO test\r\n");
+            rejected.expect("250");
+            for (int i = 0; i < 3; i++) {
+                rejected.send("AUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n");
+                rejected.expect("451 4.3.2");
+            }
+            rejected.send("NOOP\r\n");
+            rejected.expect("250");
+
+            release.countDown();
+            running.expect("235");
+            queued.expect("235");
+        }
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    void deletesSpoolFilesLeftBehindOnStart() throws Exception {
+        server.stop();
+        Path stale = Files.writeString(spool.resolve("smtp-123.eml"), "Subject: interrupted\r\n");
+        server = startServer(2, 256);
+        assertFalse(Files.exists(stale));
+    }
+
+    private Client login() throws IOException {
+        Client client = new Client(server.getPort());
+        client.expect("220");
+        client.send("EHLO test\r\nAUTH PLAIN " + plain("", ADDRESS, "secret") + "\r\n");
+        client.expect("250");
+        client.expect("235");
+        return client;
+    }
+
+    private static String plain(String authorization, String username, String password) {
+        return base64(authorization + "\0" + username + "\0" + password);
+    }
+
+    private static String base64(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out = socket.getOutputStream();
+        }
+
+        void send(String text) throws IOException {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        /**
+         * Read one reply, of one or more lines, and check how it starts
+         */
+        void expect(String prefix) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                assertTrue(line != null && line.startsWith(prefix), "expected " + prefix + " but got " + line);
+            } while (line.length() > 3 && line.charAt(3) == '-');
+        }
+
+        void assertClosed() throws IOException {
+            assertNull(in.readLine());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
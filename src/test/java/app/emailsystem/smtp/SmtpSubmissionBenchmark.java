@@ -0,0 +1,202 @@
+package app.emailsystem.smtp;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures messages per second through the SMTP server on one node, with DATA and with
+ * BDAT, from clients that pipeline each transaction, and checks that every message
+ * reaches the handler byte for byte. The handler only reads the spooled message, so
+ * this is the cost of the protocol and the spool, not of sending.
+ *
+ * Not part of the regular test run; execute with
+ * {@code mvn test -Dtest=SmtpSubmissionBenchmark}.
+ */
+@Tag("benchmark")
+class SmtpSubmissionBenchmark {
+
+    private static final int CLIENTS = 16;
+    private static final int MESSAGES_PER_CLIENT = 500;
+    private static final int MESSAGE_SIZE = 8 * 1024;
+    private static final String ADDRESS = "build@example.com";
+
+    @TempDir
+    Path spool;
+
+    @Test
+    void pipelinedSubmissions() throws Exception {
+        byte[] message = message(MESSAGE_SIZE);
+        AtomicLong received = new AtomicLong();
+        SmtpHandler handler = new SmtpHandler() {
+            @Override
+            public SmtpSender authenticate(String username, String password) {
+                return "secret".equals(password) ? new SmtpSender(UUID.randomUUID(), username) : null;
+            }
+
+            @Override
+            public String submit(SmtpSender sender, SmtpEnvelope envelope, Path spooled, long size) {
+                try {
+                    assertArrayEquals(message, Files.readAllBytes(spooled));
+                } catch (IOException e) {
+                    throw new SmtpException(451, "4.3.0", e.getMessage());
+                }
+                return Long.toString(received.incrementAndGet());
+            }
+        };
+        SmtpServer server = new SmtpServer(handler, SmtpSettings.builder()
+                .port(0)
+                .workers(4)
+                .spoolDirectory(spool)
+                .build());
+        server.start();
+        try {
+            for (boolean chunking : new boolean[] {false, true, false, true}) {
+                received.set(0);
+                long started = System.nanoTime();
+                run(server.getPort(), message, chunking);
+                double seconds = (System.nanoTime() - started) / 1e9;
+                assertEquals((long) CLIENTS * MESSAGES_PER_CLIENT, received.get());
+                System.out.printf("%s: %d messages of %d KB over %d connections in %.2f s, %.0f messages/s%n",
+                        chunking ? "BDAT" : "DATA", received.get(), MESSAGE_SIZE / 1024, CLIENTS, seconds,
+                        received.get() / seconds);
+            }
+            try (Stream<Path> left = Files.list(spool)) {
+                assertEquals(0, left.count());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(int port, byte[] message, boolean chunking) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                done.add(clients.submit(() -> {
+                    client(port, message, chunking);
+                    return null;
+                }));
+            }
+            for (Future<?> client : done) {
+                client.get();
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    private static void client(int port, byte[] message, boolean chunking) throws IOException {
+        byte[] stuffed = dotStuff(message);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            expect(in, "220");
+            String credentials = Base64.getEncoder().encodeToString(
+                    ("\0" + ADDRESS + "\0secret").getBytes(StandardCharsets.UTF_8));
+            send(out, "EHLO benchmark\r\nAUTH PLAIN " + credentials + "\r\n");
+            expect(in, "250");
+            expect(in, "235");
+            for (int i = 0; i < MESSAGES_PER_CLIENT; i++) {
+                String envelope = "MAIL FROM:<" + ADDRESS + "> SIZE=" + message.length + "\r\n"
+                        + "RCPT TO:<ops@example.com>\r\nRCPT TO:<alerts@example.com>\r\n";
+                if (chunking) {
+                    // The whole transaction in one write
+                    send(out, envelope + "BDAT " + message.length + " LAST\r\n", message);
+                } else {
+                    // DATA ends a group; its 354 has to be awaited before the message
+                    send(out, envelope + "DATA\r\n");
+                }
+                expect(in, "250");
+                expect(in, "250");
+                expect(in, "250");
+                if (!chunking) {
+                    expect(in, "354");
+                    send(out, "", stuffed, ".\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                expect(in, "250");
+            }
+            send(out, "QUIT\r\n");
+            expect(in, "221");
+        }
+    }
+
+    /**
+     * A message of about the given size whose lines include ones starting with a dot
+     */
+    private static byte[] message(int size) {
+        StringBuilder text = new StringBuilder("From: " + ADDRESS + "\r\nTo: ops@example.com\r\n"
+                + "Subject: Nightly build\r\n\r\n");
+        for (int line = 0; text.length() < size; line++) {
+            text.append(line % 10 == 0 ? ".step " : "step ").append(line)
+                    .append(" finished without errors in 1.2 seconds\r\n");
+        }
+        text.append(".\r\n..\r\n");
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] dotStuff(byte[] message) {
+        byte[] stuffed = new byte[message.length * 2];
+        int length = 0;
+        boolean lineStart = true;
+        for (byte b : message) {
+            if (lineStart && b == '.') {
+                stuffed[length++] = '.';
+            }
+            stuffed[length++] = b;
+            lineStart = b == '\n';
+        }
+        return Arrays.copyOf(stuffed, length);
+    }
+
+    private static void send(OutputStream out, String commands, byte[]... data) throws IOException {
+        byte[] bytes = commands.getBytes(StandardCharsets.US_ASCII);
+        int length = bytes.length;
+        for (byte[] part : data) {
+            length += part.length;
+        }
+        byte[] all = Arrays.copyOf(bytes, length);
+        int position = bytes.length;
+        for (byte[] part : data) {
+            System.arraycopy(part, 0, all, position, part.length);
+            position += part.length;
+        }
+        out.write(all);
+        out.flush();
+    }
+
+    /**
+     * Read one reply, of one or more lines, and check its code
+     */
+    private static void expect(BufferedReader in, String code) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            assertTrue(line != null && line.startsWith(code), "expected " + code + " but got " + line);
+        } while (line.charAt(3) == '-');
+    }
+}
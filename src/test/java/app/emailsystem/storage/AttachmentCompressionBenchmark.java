@@ -0,0 +1,152 @@
+package app.emailsystem.storage;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures storage saved and staging/download throughput of the compression tier
+ * on a corpus shaped like typical mail attachments.
+ *
+ * Not part of the regular test run; execute with
+ * {@code mvn test -Dtest=AttachmentCompressionBenchmark}.
+ */
+@Tag("benchmark")
+class AttachmentCompressionBenchmark {
+
+    private static final int DOCUMENT_SIZE = 8 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void compressionTier() throws Exception {
+        FileSystemAttachmentStorage raw = new FileSystemAttachmentStorage(
+                root.resolve("raw").toString(), new CompressionPolicy(false, 1024, 7.0));
+        FileSystemAttachmentStorage compressed = new FileSystemAttachmentStorage(
+                root.resolve("compressed").toString(), new CompressionPolicy(true, 1024, 7.0));
+
+        Map<String, Document> corpus = corpus();
+        long totalRaw = 0;
+        long totalStored = 0;
+
+        System.out.printf("%-22s %10s %10s %7s %12s %12s %12s%n",
+                "document", "raw KB", "stored KB", "ratio", "stage raw", "stage codec", "download");
+
+        for (Map.Entry<String, Document> entry : corpus.entrySet()) {
+            Document document = entry.getValue();
+
+            double rawStage = 0;
+            double codecStage = 0;
+            double download = 0;
+            StagedBlob staged = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                rawStage = Math.max(rawStage, stageThroughput(raw, document));
+                long started = System.nanoTime();
+                staged = compressed.stage(new ByteArrayInputStream(document.bytes), document.contentType);
+                codecStage = Math.max(codecStage, megabytesPerSecond(document.bytes.length, started));
+
+                String key = compressed.promote(staged);
+                DecodedResource resource = new DecodedResource(compressed.load(key), staged.getCodec(), staged.getSize());
+                started = System.nanoTime();
+                long read = drain(resource.getInputStream());
+                download = Math.max(download, megabytesPerSecond(read, started));
+                assertEquals(document.bytes.length, read);
+                compressed.delete(key);
+            }
+
+            totalRaw += staged.getSize();
+            totalStored += staged.getStoredSize();
+            System.out.printf("%-22s %10d %10d %6.1fx %9.0f MB/s %7.0f MB/s %7.0f MB/s  %s%n",
+                    entry.getKey(), staged.getSize() / 1024, staged.getStoredSize() / 1024,
+                    (double) staged.getSize() / staged.getStoredSize(),
+                    rawStage, codecStage, download, staged.getCodec());
+        }
+
+        System.out.printf("%-22s %10d %10d %6.1fx  saved %.0f%%%n", "total",
+                totalRaw / 1024, totalStored / 1024, (double) totalRaw / totalStored,
+                100.0 * (totalRaw - totalStored) / totalRaw);
+        assertTrue(totalStored < totalRaw);
+    }
+
+    private static double stageThroughput(AttachmentStorage storage, Document document) throws Exception {
+        long started = System.nanoTime();
+        StagedBlob staged = storage.stage(new ByteArrayInputStream(document.bytes), document.contentType);
+        double throughput = megabytesPerSecond(document.bytes.length, started);
+        storage.discard(staged);
+        return throughput;
+    }
+
+    private static double megabytesPerSecond(long bytes, long startedNanos) {
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        return bytes / (1024.0 * 1024.0) / seconds;
+    }
+
+    private static long drain(InputStream in) throws Exception {
+        try (in) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    private static Map<String, Document> corpus() {
+        Random random = new Random(42);
+        Map<String, Document> corpus = new LinkedHashMap<>();
+
+        corpus.put("report.csv", new Document("text/csv", generate(i ->
+                i + "," + (1000 + random.nextInt(9000)) + ",user" + random.nextInt(500) + "@example.com,"
+                        + String.format("%.2f", random.nextDouble() * 10000) + ",2024-0" + (1 + i % 9) + "-1" + i % 10 + "\n")));
+
+        corpus.put("export.json", new Document("application/json", generate(i ->
+                "{\"id\":" + i + ",\"from\":\"user" + random.nextInt(500) + "@example.com\",\"subject\":\"Re: order "
+                        + random.nextInt(100000) + "\",\"read\":" + random.nextBoolean() + ",\"labels\":[\"inbox\",\"work\"]},\n")));
+
+        corpus.put("server.log", new Document("text/plain", generate(i ->
+                "2024-03-1" + i % 10 + " 12:" + String.format("%02d:%02d", i % 60, random.nextInt(60))
+                        + " INFO  [http-nio-8080-exec-" + random.nextInt(10) + "] a.e.service.EmailService - Sent email "
+                        + new java.util.UUID(random.nextLong(), random.nextLong()) + "\n")));
+
+        corpus.put("document.fodt", new Document("application/vnd.oasis.opendocument.text-flat-xml", generate(i ->
+                "<text:p text:style-name=\"P" + i % 7 + "\"><text:span text:style-name=\"T1\">Paragraph " + i
+                        + " of the quarterly summary with figures " + random.nextInt(1000) + "</text:span></text:p>\n")));
+
+        byte[] noise = new byte[DOCUMENT_SIZE];
+        random.nextBytes(noise);
+        corpus.put("photo.jpg", new Document("image/jpeg", noise));
+
+        byte[] archive = new byte[DOCUMENT_SIZE];
+        random.nextBytes(archive);
+        corpus.put("unknown.bin (random)", new Document("application/octet-stream", archive));
+
+        return corpus;
+    }
+
+    private static byte[] generate(java.util.function.IntFunction<String> line) {
+        StringBuilder builder = new StringBuilder(DOCUMENT_SIZE + 256);
+        for (int i = 0; builder.length() < DOCUMENT_SIZE; i++) {
+            builder.append(line.apply(i));
+        }
+        builder.setLength(DOCUMENT_SIZE);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Document(String contentType, byte[] bytes) {
+    }
+}
@@ -0,0 +1,213 @@
+package app.emailsystem.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSystemAttachmentStorageTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    Path root;
+
+    private FileSystemAttachmentStorage storage;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        storage = new FileSystemAttachmentStorage(root.toString(), new CompressionPolicy(true, 1024, 7.0));
+    }
+
+    @Test
+    void stageComputesSizeAndDigestAndPromoteIsIdempotent() throws Exception {
+        long size = 3 * MB + 17;
+        MessageDigest expected = MessageDigest.getInstance("SHA-256");
+        CRC32 expectedCrc = new CRC32();
+        try (InputStream in = new PatternInputStream(size)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                expected.update(buffer, 0, read);
+                expectedCrc.update(buffer, 0, read);
+            }
+        }
+
+        StagedBlob first = storage.stage(new PatternInputStream(size));
+        assertEquals(size, first.getSize());
+        assertEquals(HexFormat.of().formatHex(expected.digest()), first.getSha256());
+        assertEquals(expectedCrc.getValue(), first.getCrc32());
+
+        String key = storage.promote(first);
+        assertTrue(storage.exists(key));
+        assertEquals(size, Files.size(storage.resolve(key)));
+        assertFalse(Files.exists(first.getTempFile()));
+
+        StagedBlob second = storage.stage(new PatternInputStream(size));
+        assertEquals(key, storage.promote(second));
+        assertFalse(Files.exists(second.getTempFile()));
+    }
+
+    @Test
+    void compressibleContentIsStoredGzippedAndDecodesToTheOriginal() throws Exception {
+        StringBuilder csv = new StringBuilder("id,sender,subject,size\n");
+        for (int i = 0; i < 20_000; i++) {
+            csv.append(i).append(",user").append(i % 97).append("@example.com,Quarterly report ")
+               .append(i % 12).append(',').append(i * 7 % 5000).append('\n');
+        }
+        byte[] original = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        StagedBlob staged = storage.stage(new ByteArrayInputStream(original), "text/csv");
+        assertEquals(AttachmentCodec.GZIP, staged.getCodec());
+        assertEquals(original.length, staged.getSize());
+        assertTrue(staged.getStoredSize() < original.length / 4);
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(original)),
+                staged.getSha256());
+
+        String key = storage.promote(staged);
+        assertEquals(staged.getSha256() + ".gz", key);
+
+        DecodedResource decoded = new DecodedResource(storage.load(key), AttachmentCodec.GZIP, staged.getSize());
+        try (InputStream in = decoded.getInputStream()) {
+            assertArrayEquals(original, in.readAllBytes());
+        }
+        // Ranges are served by skipping through the decoder
+        try (InputStream in = decoded.getInputStream()) {
+            assertEquals(original.length - 100, in.skip(original.length - 100));
+            assertArrayEquals(Arrays.copyOfRange(original, original.length - 100, original.length), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void precompressedTypesAreStoredRaw() throws Exception {
+        byte[] text = "plain text that would compress well ".repeat(200).getBytes(StandardCharsets.UTF_8);
+        assertEquals(AttachmentCodec.IDENTITY, storage.stage(new ByteArrayInputStream(text), "image/png").getCodec());
+        assertEquals(AttachmentCodec.GZIP, storage.stage(new ByteArrayInputStream(text), "application/octet-stream").getCodec());
+    }
+
+    @Test
+    void uploadChunksArriveOutOfOrderAndStageAsOneFile() throws Exception {
+        byte[] original = new PatternInputStream(MB + 100).readAllBytes();
+        int chunk = 256 * 1024;
+        UUID uploadId = UUID.randomUUID();
+
+        // A chunk cut short is rejected and can be sent again
+        assertThrows(IOException.class, () -> storage.writeUploadChunk(uploadId, chunk,
+                new ByteArrayInputStream(original, chunk, 1000), chunk, null));
+        assertThrows(IOException.class, () -> storage.writeUploadChunk(uploadId, 0,
+                new ByteArrayInputStream(original, 0, chunk + 1), chunk, null));
+
+        for (int index : new int[] {4, 1, 0, 3, 2, 1}) {
+            int offset = index * chunk;
+            int length = Math.min(chunk, original.length - offset);
+            storage.writeUploadChunk(uploadId, offset, new ByteArrayInputStream(original, offset, length), length, null);
+        }
+
+        StagedBlob staged = storage.stageUpload(uploadId, "application/octet-stream");
+        assertEquals(original.length, staged.getSize());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(original)), staged.getSha256());
+
+        storage.deleteUpload(uploadId);
+        assertThrows(IOException.class, () -> storage.stageUpload(uploadId, null));
+    }
+
+    @Test
+    void listKeysPagesThroughAllShardsInOrder() throws Exception {
+        List<String> stored = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String key = storage.promote(storage.stage(new ByteArrayInputStream(("content " + i).getBytes(StandardCharsets.UTF_8))));
+            storage.store(DerivedArtifact.TEXT.storageKey(key), new byte[] {1});
+            stored.add(key);
+            stored.add(DerivedArtifact.TEXT.storageKey(key));
+        }
+        Collections.sort(stored);
+
+        List<String> listed = new ArrayList<>();
+        String after = null;
+        for (List<String> page; !(page = storage.listKeys(after, 7)).isEmpty(); after = page.get(page.size() - 1)) {
+            listed.addAll(page);
+        }
+        assertEquals(stored, listed);
+    }
+
+    @Test
+    void stagingAllocationStaysFlatAsFileSizeGrows() throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so class loading and JIT do not count against the first measurement
+        storage.discard(storage.stage(new PatternInputStream(MB)));
+
+        long smallest = 0;
+        for (long size : new long[] {MB, 16 * MB, 64 * MB}) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            StagedBlob blob = storage.stage(new PatternInputStream(size));
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            storage.discard(blob);
+
+            assertEquals(size, blob.getSize());
+            if (smallest == 0) {
+                smallest = allocated;
+            }
+            // A buffering implementation would allocate at least the file size
+            assertTrue(allocated < MB,
+                    "staging " + size + " bytes allocated " + allocated + " bytes");
+            assertTrue(allocated < smallest * 4 + 64 * 1024,
+                    "allocation grew from " + smallest + " to " + allocated + " bytes for " + size + " bytes");
+        }
+    }
+
+    /**
+     * Produces a deterministic byte pattern of the given length without holding it in memory
+     */
+    private static final class PatternInputStream extends InputStream {
+        private final long length;
+        private long position;
+
+        PatternInputStream(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            return (int) (position++ * 31 & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(len, length - position);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) (position++ * 31);
+            }
+            return count;
+        }
+    }
+}
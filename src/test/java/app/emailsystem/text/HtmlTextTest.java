@@ -0,0 +1,50 @@
+package app.emailsystem.text;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class HtmlTextTest {
+
+    @Test
+    void dropsMarkupAndBreaksLinesAfterBlocks() {
+        String html = "<html><head><title>Report</title><style>p { color: red }</style></head>"
+                + "<body><h1>Nightly  build</h1><p>All <b>green</b>,<br>no&nbsp;failures.</p>"
+                + "<!-- generated --><script type=\"text/javascript\">if (a < b) alert(1)</SCRIPT>"
+                + "<table><tr><td>a</td><td>b</td></tr></table></body></html>";
+        assertEquals("Report\nNightly build\nAll green,\nno failures.\na b", HtmlText.toText(html));
+    }
+
+    @Test
+    void decodesEntitiesAndKeepsStrayCharacters() {
+        assertEquals("a < b & c > d \"e\" 'f' \u00e9 \u20ac &bogus; & x",
+                HtmlText.toText("a < b &amp; c &gt; d &quot;e&quot; &#39;f&apos; &#233; &#x20AC; &bogus; & x"));
+    }
+
+    @Test
+    void stopsAtMaxChars() {
+        assertEquals("abc\nd", HtmlText.toText("<p>abc</p><p>defgh</p>", 5));
+    }
+
+    @Test
+    void unclosedMarkupEndsTheText() {
+        assertEquals("before", HtmlText.toText("before<script>var x = 1;"));
+        assertEquals("before", HtmlText.toText("before<!-- never closed"));
+        assertEquals("before", HtmlText.toText("before<a href=\"x"));
+    }
+
+    @Test
+    void takesLinearTimeOnHostileMarkup() {
+        int size = 800 * 1024;
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> {
+            HtmlText.toText("<script".repeat(size / 7));
+            HtmlText.toText("<script>".repeat(size / 8));
+            HtmlText.toText("<a".repeat(size / 2));
+            HtmlText.toText("<style></".repeat(size / 9));
+            HtmlText.toText("&#".repeat(size / 2));
+        });
+    }
+}
@@ -0,0 +1,160 @@
+package app.emailsystem.webhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebhookDispatcherTest {
+
+    private WebhookStubReceiver receiver;
+    private WebhookEndpoint endpoint;
+    private WebhookDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        receiver = new WebhookStubReceiver();
+        endpoint = new WebhookEndpoint(UUID.randomUUID(), receiver.getUrl(), "secret");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+        receiver.close();
+    }
+
+    @Test
+    void coalescesEventsIntoSignedBatches() throws Exception {
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .maxBatchSize(100)
+                .linger(Duration.ofMillis(100))
+                .build());
+        offer(250);
+
+        awaitTrue(() -> receiver.getEventsAccepted() == 250);
+        List<WebhookStubReceiver.Request> requests = receiver.getRequests();
+        assertTrue(requests.size() <= 4, requests.size() + " requests");
+        for (WebhookStubReceiver.Request request : requests) {
+            assertEquals("sha256=" + HttpWebhookTransport.sign("secret", request.body.getBytes(StandardCharsets.UTF_8)),
+                    request.signature);
+            assertTrue(request.body.contains("\"subscriptionId\":\"" + endpoint.getId() + "\""));
+        }
+        // Counted once each response has been read
+        awaitTrue(() -> dispatcher.getSent() == 250);
+    }
+
+    @Test
+    void retriesFailedBatchesWithTheSameId() throws Exception {
+        receiver.failNext(2, 503);
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .linger(Duration.ofMillis(10))
+                .initialBackoff(Duration.ofMillis(20))
+                .build());
+        offer(10);
+
+        awaitTrue(() -> dispatcher.getSent() == 10);
+        List<WebhookStubReceiver.Request> requests = receiver.getRequests();
+        assertEquals(3, requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(requests.get(0).batchId, requests.get(i).batchId);
+            assertEquals(i + 1, requests.get(i).attempt);
+        }
+        assertEquals(2, dispatcher.getRetried());
+    }
+
+    @Test
+    void dropsBatchesTheEndpointRejects() throws Exception {
+        receiver.failNext(1, 400);
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .linger(Duration.ofMillis(10))
+                .initialBackoff(Duration.ofMillis(20))
+                .build());
+        offer(5);
+
+        awaitTrue(() -> dispatcher.getFailed() == 5);
+        assertEquals(1, receiver.getRequests().size());
+        assertEquals(0, dispatcher.getRetried());
+    }
+
+    @Test
+    void refusesLocalAddressesWithoutRetrying() throws Exception {
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .linger(Duration.ofMillis(10))
+                .initialBackoff(Duration.ofMillis(20))
+                .build(), List.of());
+        offer(5);
+
+        awaitTrue(() -> dispatcher.getFailed() == 5);
+        assertEquals(0, receiver.getRequests().size());
+        assertEquals(0, dispatcher.getRetried());
+    }
+
+    @Test
+    void limitsConcurrentRequestsPerEndpoint() throws Exception {
+        receiver.setDelay(50);
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .workers(8)
+                .maxBatchSize(10)
+                .maxConcurrency(2)
+                .linger(Duration.ofMillis(1))
+                .build());
+        offer(200);
+
+        awaitTrue(() -> dispatcher.getSent() == 200);
+        assertTrue(receiver.getMaxConcurrent() <= 2, receiver.getMaxConcurrent() + " concurrent requests");
+        assertTrue(receiver.getRequests().size() >= 10);
+    }
+
+    @Test
+    void dropsEventsBeyondTheQueueInsteadOfWaiting() throws Exception {
+        receiver.setDelay(500);
+        dispatcher = dispatcher(WebhookSettings.builder()
+                .queueSize(50)
+                .maxBatchSize(10)
+                .maxConcurrency(1)
+                .linger(Duration.ofMillis(1))
+                .build());
+        long started = System.nanoTime();
+        offer(1000);
+
+        assertTrue(System.nanoTime() - started < Duration.ofMillis(400).toNanos());
+        assertTrue(dispatcher.getDropped() >= 1000 - 50 - 10, dispatcher.getDropped() + " dropped");
+    }
+
+    private WebhookDispatcher dispatcher(WebhookSettings settings) {
+        return dispatcher(settings, List.of("127.0.0.1"));
+    }
+
+    private WebhookDispatcher dispatcher(WebhookSettings settings, List<String> allowedHosts) {
+        return new WebhookDispatcher(new HttpWebhookTransport(new ObjectMapper(), Duration.ofSeconds(5),
+                new WebhookAddressPolicy(allowedHosts)), settings);
+    }
+
+    private void offer(int events) {
+        String now = Instant.now().toString();
+        for (int i = 0; i < events; i++) {
+            dispatcher.offer(endpoint, new WebhookEvent("email.delivered", UUID.randomUUID(), UUID.randomUUID(), now,
+                    "sender@example.com", "Message " + i));
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package app.emailsystem.webhook;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local webhook endpoint for tests, on the JDK's HTTP server: records each request it
+ * gets and answers 204, or fails or answers slowly when told to.
+ */
+final class WebhookStubReceiver implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = new ArrayList<>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private volatile int failureStatus;
+    private volatile long delayMillis;
+
+    WebhookStubReceiver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/hook", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/hook";
+    }
+
+    /**
+     * Answer the next requests with the given status
+     */
+    void failNext(int count, int status) {
+        failureStatus = status;
+        failuresLeft.set(count);
+    }
+
+    /**
+     * Take this long to answer each request
+     */
+    void setDelay(long millis) {
+        delayMillis = millis;
+    }
+
+    List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /**
+     * The most requests that were being answered at once
+     */
+    int getMaxConcurrent() {
+        return maxConcurrent.get();
+    }
+
+    /**
+     * Events in the requests answered with success
+     */
+    int getEventsAccepted() {
+        int events = 0;
+        for (Request request : getRequests()) {
+            if (request.status < 300) {
+                events += request.body.split("\"emailId\"", -1).length - 1;
+            }
+        }
+        return events;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+        try (exchange) {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            int status = failuresLeft.getAndUpdate(left -> Math.max(0, left - 1)) > 0 ? failureStatus : 204;
+            synchronized (requests) {
+                requests.add(new Request(exchange.getRequestHeaders().getFirst("X-Webhook-Batch"),
+                        Integer.parseInt(exchange.getRequestHeaders().getFirst("X-Webhook-Attempt")),
+                        exchange.getRequestHeaders().getFirst("X-Webhook-Signature"), body, status));
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrent.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static final class Request {
+        final String batchId;
+        final int attempt;
+        final String signature;
+        final String body;
+        final int status;
+
+        private Request(String batchId, int attempt, String signature, String body, int status) {
+            this.batchId = batchId;
+            this.attempt = attempt;
+            this.signature = signature;
+            this.body = body;
+            this.status = status;
+        }
+    }
+}